@@ -35,6 +35,9 @@ import java.util.Map;
 import org.apache.http.HttpEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.android.volley.Request;
@@ -57,6 +60,7 @@ import com.android.volley.Request;
  * <li> delete</li>
  * <li> searchScopeAndOrder</li>
  * <li> searchResultLayout</li>
+ * <li> batch</li>
  * </ul>
  * 
  * It also has constructors to build any arbitrary request.
@@ -105,7 +109,8 @@ public class RestRequest {
 		QUERY("/services/data/%s/query"), 
 		SEARCH("/services/data/%s/search"),
 		SEARCH_SCOPE_AND_ORDER("/services/data/%s/search/scopeOrder"),
-		SEARCH_RESULT_LAYOUT("/services/data/%s/search/layout");
+		SEARCH_RESULT_LAYOUT("/services/data/%s/search/layout"),
+		BATCH("/services/data/%s/composite/batch");
 
 		private final String pathTemplate;
 
@@ -118,6 +123,14 @@ public class RestRequest {
 		}
 	}
 
+	// Keys of composite batch requests
+	private static final String SERVICES_DATA = "/services/data/";
+	private static final String BATCH_REQUESTS = "batchRequests";
+	private static final String HALT_ON_ERROR = "haltOnError";
+	private static final String METHOD = "method";
+	private static final String URL = "url";
+	private static final String RICH_INPUT = "richInput";
+
 	private final RestMethod method;
 	private final String path;
 	private final HttpEntity requestEntity;
@@ -387,6 +400,39 @@ public class RestRequest {
 		return new RestRequest(RestMethod.GET, path.toString(), null);	
 	}	
 	
+	/**
+	 * Request to execute up to 25 sub-requests in a single round trip.
+	 * Sub-requests are executed independently, their results are returned in the "results" array of the response.
+	 * See https://developer.salesforce.com/docs/atlas.en-us.api_rest.meta/api_rest/resources_composite_batch.htm
+	 *
+	 * @param apiVersion (v34.0 or above)
+	 * @param haltOnError
+	 * @param requests sub-requests (their body, if any, must be json)
+	 * @return a RestRequest
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public static RestRequest getRequestForBatch(String apiVersion, boolean haltOnError, List<RestRequest> requests) throws IOException, JSONException {
+		JSONArray batchRequests = new JSONArray();
+		for (RestRequest request : requests) {
+			JSONObject batchRequest = new JSONObject();
+			batchRequest.put(METHOD, request.getMethod().name());
+			String url = request.getPath();
+			batchRequest.put(URL, url.startsWith(SERVICES_DATA) ? url.substring(SERVICES_DATA.length()) : url);
+			HttpEntity entity = request.getRequestEntity();
+			if (entity != null) {
+				batchRequest.put(RICH_INPUT, new JSONObject(EntityUtils.toString(entity, HTTP.UTF_8)));
+			}
+			batchRequests.put(batchRequest);
+		}
+		JSONObject body = new JSONObject();
+		body.put(BATCH_REQUESTS, batchRequests);
+		body.put(HALT_ON_ERROR, haltOnError);
+		StringEntity entity = new StringEntity(body.toString(), HTTP.UTF_8);
+		entity.setContentType("application/json");
+		return new RestRequest(RestMethod.POST, RestAction.BATCH.getPath(apiVersion), entity);
+	}
+
 	/**
 	 * Jsonize map and create a StringEntity out of it 
 	 * @param fields
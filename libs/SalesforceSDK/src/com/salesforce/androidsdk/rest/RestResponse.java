@@ -26,7 +26,9 @@
  */
 package com.salesforce.androidsdk.rest;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -151,6 +153,29 @@ public class RestResponse {
 		}
 	}
 
+	/**
+	 * Returns the response content as a stream, without first buffering the entire response in memory
+	 * If the response was already consumed, the stream reads from the buffered response instead
+	 * NB: once the stream has been read, the response can no longer be consumed (asBytes(), asString() etc will return an empty response)
+	 *     the caller is responsible for closing the stream
+	 *
+	 * @return InputStream for entire response
+	 * @throws IOException
+	 */
+	public InputStream asInputStream() throws IOException {
+		if (responseAsBytes != null) {
+			return new ByteArrayInputStream(responseAsBytes);
+		}
+		HttpEntity entity = null;
+		if (response != null) {
+			entity = response.getEntity();
+		}
+		if (entity == null) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		return entity.getContent();
+	}
+
 	/**
 	 * @return byte[] for entire response
 	 * @throws IOException
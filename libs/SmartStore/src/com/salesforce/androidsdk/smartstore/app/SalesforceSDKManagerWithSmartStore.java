@@ -39,6 +39,7 @@ import android.text.TextUtils;
 
 import com.salesforce.androidsdk.accounts.UserAccount;
 import com.salesforce.androidsdk.app.SalesforceSDKManager;
+import com.salesforce.androidsdk.smartstore.phonegap.SmartStorePlugin;
 import com.salesforce.androidsdk.smartstore.store.DBOpenHelper;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
 import com.salesforce.androidsdk.ui.LoginActivity;
@@ -195,6 +196,7 @@ public class SalesforceSDKManagerWithSmartStore extends SalesforceSDKManager {
         if (users != null && users.size() == 1) {
 			DBOpenHelper.deleteDatabase(getAppContext(), users.get(0));
         }
+        SmartStorePlugin.shutdownWriteQueue(false);
         super.cleanUp(frontActivity, account);
     }
 
@@ -367,6 +369,7 @@ public class SalesforceSDKManagerWithSmartStore extends SalesforceSDKManager {
      		dbName = DBOpenHelper.DEFAULT_DB_NAME;
      	}
      	DBOpenHelper.deleteDatabase(context, dbName, null, null);
+     	SmartStorePlugin.shutdownWriteQueue(true);
      }
 
      /**
@@ -405,5 +408,6 @@ public class SalesforceSDKManagerWithSmartStore extends SalesforceSDKManager {
       */
       public void removeSmartStore(String dbNamePrefix, UserAccount account, String communityId) {
     	  DBOpenHelper.deleteDatabase(context, dbNamePrefix, account, communityId);
+    	  SmartStorePlugin.shutdownWriteQueue(account == null);
       }
 }
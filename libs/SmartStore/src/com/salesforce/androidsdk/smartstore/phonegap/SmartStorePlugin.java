@@ -33,11 +33,13 @@ import android.util.SparseArray;
 import com.salesforce.androidsdk.phonegap.ForcePlugin;
 import com.salesforce.androidsdk.phonegap.JavaScriptPluginVersion;
 import com.salesforce.androidsdk.smartstore.app.SalesforceSDKManagerWithSmartStore;
+import com.salesforce.androidsdk.smartstore.store.CompoundIndexSpec;
 import com.salesforce.androidsdk.smartstore.store.IndexSpec;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec.QueryType;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
 import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.SoupFormat;
 import com.salesforce.androidsdk.smartstore.ui.SmartStoreInspectorActivity;
 
 import net.sqlcipher.database.SQLiteDatabase;
@@ -52,6 +54,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * PhoneGap plugin for smart store.
@@ -65,11 +71,15 @@ public class SmartStorePlugin extends ForcePlugin {
 	public static final String LIKE_KEY = "likeKey";
 	public static final String MATCH_KEY = "matchKey";
 	public static final String SMART_SQL = "smartSql";
+	public static final String SELECT_PATHS = "selectPaths";
 	public static final String ORDER = "order";
+	public static final String ORDER_PATH = "orderPath";
 	public static final String PAGE_SIZE = "pageSize";
 	public static final String QUERY_TYPE = "queryType";
+	public static final String TYPED_COLUMNS = "typedColumns";
 	static final String TOTAL_ENTRIES = "totalEntries";
 	static final String TOTAL_PAGES = "totalPages";
+	static final String TOTAL_ENTRIES_EXACT = "totalEntriesExact";
 	static final String RE_INDEX_DATA = "reIndexData";
 	static final String CURRENT_PAGE_INDEX = "currentPageIndex";
 	static final String CURRENT_PAGE_ORDERED_ENTRIES = "currentPageOrderedEntries";
@@ -84,8 +94,32 @@ public class SmartStorePlugin extends ForcePlugin {
 	private static final String ENTRY_IDS = "entryIds";
 	private static final String INDEX = "index";
 	private static final String INDEXES = "indexes";
+	private static final String COMPOUND_INDEXES = "compoundIndexes";
+	private static final String SOUP_FORMAT = "soupFormat";
+	private static final String READ_AHEAD_PAGES = "readAheadPages";
+	private static final String LAZY_COUNT = "lazyCount";
+	private static final String TRANSACTION_SIZE = "transactionSize";
+	private static final String OFFSET = "offset";
+	private static final String UPSERTED_COUNT = "upsertedCount";
+	private static final String FAILED_COUNT = "failedCount";
+	private static final String DONE = "done";
+
+	// Default number of entries upserted per transaction by pgBulkUpsertSoupEntries
+	public static final int DEFAULT_BULK_TRANSACTION_SIZE = 500;
 	private static final String IS_GLOBAL_STORE = "isGlobalStore";
 
+	// Windowed cursors not read for that long (ms) drop their window of entries (see StoreCursor.releaseIfIdle)
+	// Checked on a timer (started when a cursor is opened, stopped once all cursors are closed)
+	public static final long CURSOR_IDLE_TIMEOUT = 5 * 60 * 1000;
+	private static final long CURSOR_IDLE_CHECK_PERIOD = 60 * 1000;
+	private static ScheduledExecutorService idleCursorsReleaser;
+
+	// Write actions of the global store and of the user store: each store runs its writes one at a time on a thread of its own
+	// (started when a write is queued, stopped when the store is removed, see shutdownWriteQueue)
+	// Read actions run concurrently on cordova's thread pool
+	private static final StoreWriteQueue GLOBAL_STORE_WRITE_QUEUE = new StoreWriteQueue("global");
+	private static final StoreWriteQueue USER_STORE_WRITE_QUEUE = new StoreWriteQueue("user");
+
 	// Map of cursor id to StoreCursor, per database.
 	private static Map<SQLiteDatabase, SparseArray<StoreCursor>> STORE_CURSORS = new HashMap<SQLiteDatabase, SparseArray<StoreCursor>>();
 
@@ -97,11 +131,86 @@ public class SmartStorePlugin extends ForcePlugin {
 		return STORE_CURSORS.get(db);
 	}
 
+	/**
+	 * Start the timer dropping the windows of entries of idle cursors (if not already running)
+	 */
+	private synchronized static void scheduleIdleCursorsRelease() {
+		if (idleCursorsReleaser == null) {
+			idleCursorsReleaser = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SmartStore idle cursors");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			idleCursorsReleaser.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					releaseIdleCursors(System.currentTimeMillis());
+				}
+			}, CURSOR_IDLE_CHECK_PERIOD, CURSOR_IDLE_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Drop the windows of entries of the cursors (of all stores) that have been idle for more than CURSOR_IDLE_TIMEOUT
+	 * Stops the timer once there are no cursors left
+	 * @param now
+	 * @return number of windows dropped
+	 */
+	public synchronized static int releaseIdleCursors(long now) {
+		int released = 0;
+		boolean hasCursors = false;
+		for (SparseArray<StoreCursor> storeCursors : STORE_CURSORS.values()) {
+			synchronized (storeCursors) {
+				for (int i = 0; i < storeCursors.size(); i++) {
+					if (storeCursors.valueAt(i).releaseIfIdle(now, CURSOR_IDLE_TIMEOUT)) {
+						released++;
+					}
+				}
+				hasCursors |= storeCursors.size() > 0;
+			}
+		}
+		if (!hasCursors && idleCursorsReleaser != null) {
+			idleCursorsReleaser.shutdown();
+			idleCursorsReleaser = null;
+		}
+		return released;
+	}
+
+	/**
+	 * @return true if the timer dropping the windows of entries of idle cursors is running
+	 */
+	public synchronized static boolean isReleasingIdleCursors() {
+		return idleCursorsReleaser != null;
+	}
+
+	/**
+	 * Run consecutive upserts queued from javascript in a single transaction (instead of one transaction per upsert)
+	 * @param batchUpserts
+	 */
+	public static void setBatchUpserts(boolean batchUpserts) {
+		GLOBAL_STORE_WRITE_QUEUE.setBatchUpserts(batchUpserts);
+		USER_STORE_WRITE_QUEUE.setBatchUpserts(batchUpserts);
+	}
+
+	/**
+	 * Stop the thread running the writes of the global store or of the user store (once the write running is done)
+	 * Called when the store is removed (see SalesforceSDKManagerWithSmartStore): writes still waiting to run fail,
+	 * so that they can't land in the store of the next user, and writes queued afterwards start a new thread
+	 * @param isGlobal
+	 */
+	public static void shutdownWriteQueue(boolean isGlobal) {
+		(isGlobal ? GLOBAL_STORE_WRITE_QUEUE : USER_STORE_WRITE_QUEUE).shutdown();
+	}
+
 	/**
 	 * Supported plugin actions that the client can take.
 	 */
 	enum Action {
 		pgAlterSoup,
+		pgBulkUpsertSoupEntries,
 		pgClearSoup,
 		pgCloseCursor,
 		pgGetDatabaseSize,
@@ -134,45 +243,89 @@ public class SmartStorePlugin extends ForcePlugin {
     	}
 
     	// Not running smartstore action on the main thread
-    	cordova.getThreadPool().execute(new Runnable() {
-
-			@Override
-			public void run() {
-
-		    	// All smart store action need to be serialized
-				synchronized(SmartStorePlugin.class) {
-	        		try {
-		        		switch(action) {
-		        		  case pgAlterSoup:             alterSoup(args, callbackContext); break;
-		        		  case pgClearSoup:				clearSoup(args, callbackContext); break;
-		                  case pgCloseCursor:           closeCursor(args, callbackContext); break;
-		                  case pgGetDatabaseSize:       getDatabaseSize(args, callbackContext); break;
-		                  case pgGetSoupIndexSpecs:     getSoupIndexSpecs(args, callbackContext); break;
-		                  case pgMoveCursorToPageIndex: moveCursorToPageIndex(args, callbackContext); break;
-		                  case pgQuerySoup:             querySoup(args, callbackContext); break;
-		                  case pgRegisterSoup:          registerSoup(args, callbackContext); break;
-		                  case pgReIndexSoup:			reIndexSoup(args, callbackContext); break;
-		                  case pgRemoveFromSoup:        removeFromSoup(args, callbackContext); break;
-		                  case pgRemoveSoup:            removeSoup(args, callbackContext); break;
-		                  case pgRetrieveSoupEntries:   retrieveSoupEntries(args, callbackContext); break;
-		                  case pgRunSmartQuery:         runSmartQuery(args, callbackContext); break;
-		                  case pgShowInspector:         showInspector(args, callbackContext); break;
-		                  case pgSoupExists:            soupExists(args, callbackContext); break;
-		                  case pgUpsertSoupEntries:     upsertSoupEntries(args, callbackContext); break;
-		                  default: throw new SmartStoreException("No handler for action " + action);
-		    	    	}
-	        		} catch (Exception e) {
-	            		Log.w("SmartStorePlugin.execute", e.getMessage(), e);
-	            		callbackContext.error(e.getMessage());
-	            	}	        		
-	            	Log.d("SmartSTorePlugin.execute", "Total time for " + action + "->" + (System.currentTimeMillis() - start));
-	        	}
-			}
-    	});
+    	final StoreWriteQueue writeQueue = (getIsGlobal(args.optJSONObject(0)) ? GLOBAL_STORE_WRITE_QUEUE : USER_STORE_WRITE_QUEUE);
+    	switch (action) {
+
+    	// Upserts: queued behind the other writes to the store (and possibly run in a transaction shared with the upserts queued behind them)
+    	case pgUpsertSoupEntries:
+    		try {
+    			upsertSoupEntries(args, callbackContext, action, start, writeQueue);
+    		} catch (JSONException e) {
+    			Log.w("SmartStorePlugin.execute", e.getMessage(), e);
+    			callbackContext.error(e.getMessage());
+    		}
+    		break;
+
+    	// Other writes: queued
+    	case pgAlterSoup:
+    	case pgBulkUpsertSoupEntries:
+    	case pgClearSoup:
+    	case pgRegisterSoup:
+    	case pgReIndexSoup:
+    	case pgRemoveFromSoup:
+    	case pgRemoveSoup:
+    		writeQueue.queue(new StoreWriteQueue.Action() {
+				@Override
+				public void run() {
+					runAction(action, args, callbackContext, start);
+				}
+
+				@Override
+				public void onError(Exception e) {
+					Log.w("SmartStorePlugin.execute", e.getMessage(), e);
+					callbackContext.error(e.getMessage());
+				}
+    		});
+    		break;
+
+    	// Reads: run concurrently
+    	default:
+	    	cordova.getThreadPool().execute(new Runnable() {
+				@Override
+				public void run() {
+					runAction(action, args, callbackContext, start);
+				}
+	    	});
+    	}
     	Log.d("SmartSTorePlugin.execute", "Main thread time for " + action + "->" + (System.currentTimeMillis() - start));
     	return true;
     }
 
+    /**
+     * Run action (other than upsert)
+     * @param action
+     * @param args
+     * @param callbackContext
+     * @param start time the action was received at
+     */
+    private void runAction(Action action, JSONArray args, CallbackContext callbackContext, long start) {
+		try {
+    		switch(action) {
+    		  case pgAlterSoup:             alterSoup(args, callbackContext); break;
+    		  case pgBulkUpsertSoupEntries: bulkUpsertSoupEntries(args, callbackContext); break;
+    		  case pgClearSoup:				clearSoup(args, callbackContext); break;
+              case pgCloseCursor:           closeCursor(args, callbackContext); break;
+              case pgGetDatabaseSize:       getDatabaseSize(args, callbackContext); break;
+              case pgGetSoupIndexSpecs:     getSoupIndexSpecs(args, callbackContext); break;
+              case pgMoveCursorToPageIndex: moveCursorToPageIndex(args, callbackContext); break;
+              case pgQuerySoup:             querySoup(args, callbackContext); break;
+              case pgRegisterSoup:          registerSoup(args, callbackContext); break;
+              case pgReIndexSoup:			reIndexSoup(args, callbackContext); break;
+              case pgRemoveFromSoup:        removeFromSoup(args, callbackContext); break;
+              case pgRemoveSoup:            removeSoup(args, callbackContext); break;
+              case pgRetrieveSoupEntries:   retrieveSoupEntries(args, callbackContext); break;
+              case pgRunSmartQuery:         runSmartQuery(args, callbackContext); break;
+              case pgShowInspector:         showInspector(args, callbackContext); break;
+              case pgSoupExists:            soupExists(args, callbackContext); break;
+              default: throw new SmartStoreException("No handler for action " + action);
+	    	}
+		} catch (Exception e) {
+    		Log.w("SmartStorePlugin.execute", e.getMessage(), e);
+    		callbackContext.error(e.getMessage());
+    	}
+    	Log.d("SmartSTorePlugin.execute", "Total time for " + action + "->" + (System.currentTimeMillis() - start));
+    }
+
 	/**
 	 * Native implementation of pgRemoveFromSoup
 	 * @param args
@@ -186,6 +339,13 @@ public class SmartStorePlugin extends ForcePlugin {
 		String soupName = arg0.getString(SOUP_NAME);
         final SmartStore smartStore = getSmartStore(arg0);
 
+		// Remove by query
+		if (!arg0.isNull(QUERY_SPEC)) {
+			smartStore.deleteByQuery(soupName, QuerySpec.fromJSON(soupName, arg0.getJSONObject(QUERY_SPEC)));
+			callbackContext.success();
+			return;
+		}
+
 		JSONArray jsonSoupEntryIds = arg0.getJSONArray(ENTRY_IDS);
 		Long[] soupEntryIds = new Long[jsonSoupEntryIds.length()];
 		for (int i = 0; i < jsonSoupEntryIds.length(); i++) {
@@ -238,10 +398,22 @@ public class SmartStorePlugin extends ForcePlugin {
         final SmartStore smartStore = getSmartStore(arg0);
 
 		// Drop cursor from storeCursors map
-		getSmartStoreCursors(smartStore).remove(cursorId);
+		closeCursor(smartStore, cursorId);
 		callbackContext.success();		
 	}
 
+	/**
+	 * Drop cursor
+	 * @param smartStore
+	 * @param cursorId
+	 */
+	public static void closeCursor(SmartStore smartStore, int cursorId) {
+		final SparseArray<StoreCursor> storeCursors = getSmartStoreCursors(smartStore);
+		synchronized (storeCursors) {
+			storeCursors.remove(cursorId);
+		}
+	}
+
 	/**
 	 * Native implementation of pgMoveCursorToPageIndex
 	 * @param args
@@ -258,19 +430,24 @@ public class SmartStorePlugin extends ForcePlugin {
         final SmartStore smartStore = getSmartStore(arg0);
 
 		// Get cursor
-		final StoreCursor storeCursor = getSmartStoreCursors(smartStore).get(cursorId);
+		final SparseArray<StoreCursor> storeCursors = getSmartStoreCursors(smartStore);
+		final StoreCursor storeCursor;
+		synchronized (storeCursors) {
+			storeCursor = storeCursors.get(cursorId);
+		}
 		if (storeCursor == null) {
 			callbackContext.error("Invalid cursor id");
+			return;
 		}
 
 		// Change page
 		storeCursor.moveToPageIndex(index);
 
-		// Build json result
-		JSONObject result = storeCursor.getData(smartStore);
+		// Build json result (serialized - entries are passed through as stored)
+		String result = storeCursor.getData(smartStore);
 
 		// Done
-		callbackContext.success(result);
+		callbackContext.sendPluginResult(new SerializedJSONPluginResult(result));
 	}
 
 	/**
@@ -311,40 +488,114 @@ public class SmartStorePlugin extends ForcePlugin {
 	}
 
 	/**
-	 * Native implementation of pgUpsertSoupEntries
+	 * Native implementation of pgUpsertSoupEntries (run by the write queue of the store, see StoreWriteQueue)
 	 * @param args
 	 * @param callbackContext
-	 * @return
-	 * @throws JSONException 
+	 * @param action
+	 * @param start time the action was received at
+	 * @param writeQueue
+	 * @throws JSONException
 	 */
-	private void upsertSoupEntries(JSONArray args, CallbackContext callbackContext) throws JSONException {
+	private void upsertSoupEntries(final JSONArray args, final CallbackContext callbackContext, final Action action, final long start,
+			StoreWriteQueue writeQueue) throws JSONException {
 
 		// Parse args
-		JSONObject arg0 = args.getJSONObject(0);
+		final JSONObject arg0 = args.getJSONObject(0);
 		String soupName = arg0.getString(SOUP_NAME);
-        final SmartStore smartStore = getSmartStore(arg0);
+		JSONArray entriesJson = arg0.getJSONArray(ENTRIES);
+		String externalIdPath = arg0.getString(EXTERNAL_ID_PATH);
+
+		// Queue upsert
+		writeQueue.queue(new StoreWriteQueue.SoupEntriesUpsert(soupName, entriesJson, externalIdPath) {
+			@Override
+			public SmartStore getSmartStore() {
+				return SmartStorePlugin.this.getSmartStore(arg0);
+			}
+
+			@Override
+			public void onSuccess(JSONArray results) {
+				callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, results));
+				Log.d("SmartSTorePlugin.execute", "Total time for " + action + "->" + (System.currentTimeMillis() - start));
+			}
+
+			@Override
+			public void onError(Exception e) {
+				Log.w("SmartStorePlugin.execute", e.getMessage(), e);
+				callbackContext.error(e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Native implementation of pgBulkUpsertSoupEntries
+	 * @param args
+	 * @param callbackContext
+	 * @throws JSONException
+	 */
+	private void bulkUpsertSoupEntries(JSONArray args, CallbackContext callbackContext) throws JSONException {
+		JSONObject arg0 = args.getJSONObject(0);
+		bulkUpsertSoupEntries(getSmartStore(arg0), arg0, callbackContext);
+	}
 
+	/**
+	 * Upsert the entries of a pgBulkUpsertSoupEntries call (public for tests)
+	 * Meant for large imports sent from javascript in chunks, one call per chunk: cordova parses all the entries of a call before it is run,
+	 * so memory use is bounded by the size of the chunks sent by javascript
+	 * The entries of the chunk are upserted in transactions of transactionSize entries (DEFAULT_BULK_TRANSACTION_SIZE by default)
+	 * Each transaction is acknowledged as soon as it commits with the soup entry ids of its entries (null for the ones that failed) and the counts so far
+	 * The upserted entries are not sent back
+	 * @param smartStore
+	 * @param arg0
+	 * @param callbackContext
+	 * @throws JSONException
+	 */
+	public static void bulkUpsertSoupEntries(SmartStore smartStore, JSONObject arg0, CallbackContext callbackContext) throws JSONException {
+
+		// Parse args
+		String soupName = arg0.getString(SOUP_NAME);
 		JSONArray entriesJson = arg0.getJSONArray(ENTRIES);
 		String externalIdPath = arg0.getString(EXTERNAL_ID_PATH);
-		List<JSONObject> entries = new ArrayList<JSONObject>();
-		for (int i = 0; i < entriesJson.length(); i++) {
-			entries.add(entriesJson.getJSONObject(i));
+		int transactionSize = (arg0.isNull(TRANSACTION_SIZE) ? DEFAULT_BULK_TRANSACTION_SIZE : arg0.getInt(TRANSACTION_SIZE));
+		if (transactionSize <= 0) {
+			throw new SmartStoreException("Invalid " + TRANSACTION_SIZE + ": " + transactionSize);
 		}
 
-		// Run upsert
-		smartStore.beginTransaction();
-		try {
-			JSONArray results = new JSONArray();			
-			for (JSONObject entry : entries) {
-				results.put(smartStore.upsert(soupName, entry, externalIdPath, false));
+		// Run upserts, one transaction at a time
+		int upsertedCount = 0;
+		int failedCount = 0;
+		int offset = 0;
+		do {
+			int end = Math.min(offset + transactionSize, entriesJson.length());
+			List<JSONObject> entries = new ArrayList<JSONObject>(end - offset);
+			for (int i = offset; i < end; i++) {
+				entries.add(entriesJson.getJSONObject(i));
+			}
+			JSONArray results = smartStore.upsertAll(soupName, entries, externalIdPath, true);
+			JSONArray entryIds = new JSONArray();
+			for (int i = 0; i < results.length(); i++) {
+				JSONObject result = results.optJSONObject(i);
+				if (result == null) {
+					failedCount++;
+					entryIds.put(JSONObject.NULL);
+				} else {
+					upsertedCount++;
+					entryIds.put(result.getLong(SmartStore.SOUP_ENTRY_ID));
+				}
 			}
-			smartStore.setTransactionSuccessful();
-			PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, results);
+
+			// Acknowledge transaction
+			JSONObject ack = new JSONObject();
+			ack.put(OFFSET, offset);
+			ack.put(ENTRY_IDS, entryIds);
+			ack.put(UPSERTED_COUNT, upsertedCount);
+			ack.put(FAILED_COUNT, failedCount);
+			offset = end;
+			boolean done = (offset >= entriesJson.length());
+			ack.put(DONE, done);
+			PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, ack);
+			pluginResult.setKeepCallback(!done);
 			callbackContext.sendPluginResult(pluginResult);
-	    } finally {
-			smartStore.endTransaction();
-		}
-		
+		} while (offset < entriesJson.length());
 	}
 
 	/**
@@ -368,8 +619,12 @@ public class SmartStorePlugin extends ForcePlugin {
 			indexSpecs.add(new IndexSpec(indexJson.getString(PATH), SmartStore.Type.valueOf(indexJson.getString(TYPE))));
 		}
 
+		JSONArray compoundIndexesJson = arg0.optJSONArray(COMPOUND_INDEXES);
+		CompoundIndexSpec[] compoundIndexSpecs = (compoundIndexesJson == null ? new CompoundIndexSpec[0] : CompoundIndexSpec.fromJSON(compoundIndexesJson));
+		SoupFormat soupFormat = arg0.isNull(SOUP_FORMAT) ? SoupFormat.json : SoupFormat.valueOf(arg0.getString(SOUP_FORMAT));
+
 		// Run register
-		smartStore.registerSoup(soupName, indexSpecs.toArray(new IndexSpec[0]));
+		smartStore.registerSoup(soupName, indexSpecs.toArray(new IndexSpec[0]), compoundIndexSpecs, soupFormat);
 		callbackContext.success(soupName);
 	}
 
@@ -394,7 +649,7 @@ public class SmartStorePlugin extends ForcePlugin {
 		}
 
 		// Run query
-		runQuery(smartStore, querySpec, callbackContext);
+		runQuery(smartStore, querySpec, arg0.optInt(READ_AHEAD_PAGES, 0), arg0.optBoolean(LAZY_COUNT, false), callbackContext);
 	}
 
 	/**
@@ -414,27 +669,34 @@ public class SmartStorePlugin extends ForcePlugin {
 		}
 
 		// Run query
-		runQuery(smartStore, querySpec, callbackContext);
+		runQuery(smartStore, querySpec, arg0.optInt(READ_AHEAD_PAGES, 0), arg0.optBoolean(LAZY_COUNT, false), callbackContext);
 	}
 
 	/**
 	 * Helper for querySoup and runSmartSql
+	 * @param smartStore
 	 * @param querySpec
+	 * @param readAheadPages number of pages the cursor fetches ahead of the current page (see StoreCursor)
+	 * @param lazyCount true to not count entries upfront (see StoreCursor)
 	 * @param callbackContext
 	 * @throws JSONException
 	 */
-	private void runQuery(SmartStore smartStore, QuerySpec querySpec,
+	public static void runQuery(SmartStore smartStore, QuerySpec querySpec, int readAheadPages, boolean lazyCount,
 			CallbackContext callbackContext) throws JSONException {
 
 		// Build store cursor
-		final StoreCursor storeCursor = new StoreCursor(smartStore, querySpec);
-		getSmartStoreCursors(smartStore).put(storeCursor.cursorId, storeCursor);
+		final StoreCursor storeCursor = new StoreCursor(smartStore, querySpec, readAheadPages, lazyCount);
+		final SparseArray<StoreCursor> storeCursors = getSmartStoreCursors(smartStore);
+		synchronized (storeCursors) {
+			storeCursors.put(storeCursor.cursorId, storeCursor);
+		}
+		scheduleIdleCursorsRelease();
 
-		// Build json result
-		JSONObject result = storeCursor.getData(smartStore);
+		// Build json result (serialized - entries are passed through as stored)
+		String result = storeCursor.getData(smartStore);
 
 		// Done
-		callbackContext.success(result);
+		callbackContext.sendPluginResult(new SerializedJSONPluginResult(result));
 	}
 
 	/**
@@ -511,10 +773,13 @@ public class SmartStorePlugin extends ForcePlugin {
 			JSONObject indexJson = indexesJson.getJSONObject(i);
 			indexSpecs.add(new IndexSpec(indexJson.getString(PATH), SmartStore.Type.valueOf(indexJson.getString(TYPE))));
 		}
+		JSONArray compoundIndexesJson = arg0.optJSONArray(COMPOUND_INDEXES);
+		CompoundIndexSpec[] compoundIndexSpecs = (compoundIndexesJson == null ? null : CompoundIndexSpec.fromJSON(compoundIndexesJson));
+		SoupFormat soupFormat = arg0.isNull(SOUP_FORMAT) ? null : SoupFormat.valueOf(arg0.getString(SOUP_FORMAT));
 		boolean reIndexData = arg0.getBoolean(RE_INDEX_DATA);
 
 		// Run register
-		smartStore.alterSoup(soupName, indexSpecs.toArray(new IndexSpec[0]), reIndexData);
+		smartStore.alterSoup(soupName, indexSpecs.toArray(new IndexSpec[0]), compoundIndexSpecs, soupFormat, reIndexData);
 		callbackContext.success(soupName);
 	}	
 
@@ -590,4 +855,26 @@ public class SmartStorePlugin extends ForcePlugin {
 		return arg0 != null ? arg0.optBoolean(IS_GLOBAL_STORE, false) : false;
 	}
 
+	/**
+	 * Successful plugin result for json that is already serialized
+	 * The json is handed to the bridge as it is (PluginResult only takes JSONObject / JSONArray, which it would serialize)
+	 */
+	static class SerializedJSONPluginResult extends PluginResult {
+		private final String json;
+
+		SerializedJSONPluginResult(String json) {
+			super(PluginResult.Status.OK);
+			this.json = json;
+		}
+
+		@Override
+		public int getMessageType() {
+			return PluginResult.MESSAGE_TYPE_JSON;
+		}
+
+		@Override
+		public String getMessage() {
+			return json;
+		}
+	}
 }
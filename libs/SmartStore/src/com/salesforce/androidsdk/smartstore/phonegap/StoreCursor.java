@@ -1,5 +1,10 @@
 package com.salesforce.androidsdk.smartstore.phonegap;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -7,59 +12,230 @@ import com.salesforce.androidsdk.smartstore.store.QuerySpec;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
 
 /**
- * Store Cursor 
+ * Store Cursor
  * We don't actually keep a cursor opened, instead, we wrap the query spec and page index
+ *
+ * Windowed cursors (readAheadPages > 0 or lazyCount) keep a window of entries in memory: the current page and the readAheadPages pages following it,
+ * fetched with a single query - moving to a page of the window does not run any query
+ * The window is fetched again once the store has changed (see SmartStore.getSoupChangeCount) and dropped when the cursor is idle (see releaseIfIdle)
+ *
+ * With lazyCount, entries are not counted upfront: until the last page has been fetched, totalEntries is only a lower bound
+ * (the entries fetched so far plus one) and totalEntriesExact is false
+ *
+ * Entries are kept serialized (see SmartStore.queryAsStrings): they are handed to javascript without being parsed and serialized again
  */
 public class StoreCursor {
-	
-	private static int LAST_ID = 0;
-	
-	// Id / soup / query / totalPages immutable
+
+	// Cursors get created concurrently (read actions of the plugin run in parallel)
+	private static final AtomicInteger LAST_ID = new AtomicInteger(0);
+
+	// Id / soup / query / windowing immutable
 	public  final int cursorId;
 	private final QuerySpec querySpec;
-	private final int totalPages;
-	private final int totalEntries;
-	
+	private final int readAheadPages;
+	private final boolean lazyCount;
+
+	// Total entries / pages: computed upfront unless lazyCount is set
+	private int totalPages;
+	private int totalEntries;
+	private boolean totalEntriesExact;
+
 	// Current page can change - by calling moveToPageIndex
 	private int currentPageIndex;
-	
+
+	// Keys of the pages (windows for windowed cursors) following the ones fetched so far (exact/like/range queries only)
+	// Used to fetch them with keyset pagination instead of page index pagination
+	private final Map<Integer, QuerySpec.PageKey> pageKeys = new HashMap<Integer, QuerySpec.PageKey>();
+
+	// Window (windowed cursors only): query spec with a page size of a whole window, index of the window fetched, its entries
+	// and the soup change count when they were fetched
+	private final QuerySpec windowQuerySpec;
+	private int windowIndex;
+	private List<String> windowEntries;
+	private long windowSoupChangeCount;
+
+	// Last time the cursor was read (see releaseIfIdle)
+	private long lastAccessTime;
+
 	/**
 	 * @param smartStore
 	 * @param querySpec
-	 * @throws JSONException 
+	 * @throws JSONException
 	 */
 	public StoreCursor(SmartStore smartStore, QuerySpec querySpec) {
-		int countRows = smartStore.countQuery(querySpec);
-		
-		this.cursorId = LAST_ID++;
+		this(smartStore, querySpec, 0, false);
+	}
+
+	/**
+	 * @param smartStore
+	 * @param querySpec
+	 * @param readAheadPages number of pages fetched ahead of the current page (0 to fetch one page at a time)
+	 * @param lazyCount true to skip counting entries upfront
+	 */
+	public StoreCursor(SmartStore smartStore, QuerySpec querySpec, int readAheadPages, boolean lazyCount) {
+		this.cursorId = LAST_ID.getAndIncrement();
 		this.querySpec = querySpec;
-		this.totalEntries = countRows;
-		this.totalPages = (int) Math.ceil( (double) countRows / querySpec.pageSize);
+		this.readAheadPages = Math.max(0, readAheadPages);
+		this.lazyCount = lazyCount;
+		this.windowQuerySpec = (this.readAheadPages > 0 || lazyCount ? querySpec.withPageSize(querySpec.pageSize * (this.readAheadPages + 1)) : null);
+		this.windowIndex = -1;
 		this.currentPageIndex = 0;
+		this.lastAccessTime = System.currentTimeMillis();
+		if (lazyCount) {
+			// Lower bound until the end is reached (see fetchWindow)
+			this.totalEntries = 0;
+			this.totalEntriesExact = false;
+		} else {
+			this.totalEntries = smartStore.countQuery(querySpec);
+			this.totalEntriesExact = true;
+		}
+		this.totalPages = computeTotalPages();
 	}
-	
+
 	/**
 	 * @param newPageIndex
 	 */
-	public void moveToPageIndex(int newPageIndex) {
+	public synchronized void moveToPageIndex(int newPageIndex) {
 		// Always between 0 and totalPages-1
 		this.currentPageIndex = (newPageIndex < 0 ? 0 : newPageIndex >= totalPages ? totalPages - 1 : newPageIndex);
 	}
-	
+
+	/**
+	 * Drop the window of entries if the cursor has not been read for idleTimeout ms
+	 * The cursor remains usable: the window gets fetched again the next time the cursor is read
+	 * @param now
+	 * @param idleTimeout
+	 * @return true if the window was dropped
+	 */
+	public synchronized boolean releaseIfIdle(long now, long idleTimeout) {
+		if (windowEntries == null || now - lastAccessTime < idleTimeout) {
+			return false;
+		}
+		windowEntries = null;
+		windowIndex = -1;
+		return true;
+	}
+
 	/**
 	 * @param smartStore
-	 * @return json containing cursor meta data (page index, size etc) and data (entries in page)
-	 * Note: query is run to build json
-	 * @throws JSONException 
+	 * @return serialized json containing cursor meta data (page index, size etc) and data (entries in page)
+	 * Note: query is run to build json (unless the current page is in the window of a windowed cursor)
+	 * @throws JSONException
 	 */
-	public JSONObject getData(SmartStore smartStore) throws JSONException {
+	public synchronized String getData(SmartStore smartStore) throws JSONException {
+		lastAccessTime = System.currentTimeMillis();
+		// Entries first: fetching them can change the totals of a lazily counted cursor
+		List<String> entries = getCurrentPageEntries(smartStore);
 		JSONObject json = new JSONObject();
 		json.put(SmartStorePlugin.CURSOR_ID, cursorId);
 		json.put(SmartStorePlugin.CURRENT_PAGE_INDEX, currentPageIndex);
 		json.put(SmartStorePlugin.PAGE_SIZE, querySpec.pageSize);
 		json.put(SmartStorePlugin.TOTAL_ENTRIES, totalEntries);
 		json.put(SmartStorePlugin.TOTAL_PAGES, totalPages);
-		json.put(SmartStorePlugin.CURRENT_PAGE_ORDERED_ENTRIES, smartStore.query(querySpec, currentPageIndex));
-		return json;
+		if (lazyCount) {
+			json.put(SmartStorePlugin.TOTAL_ENTRIES_EXACT, totalEntriesExact);
+		}
+
+		// Serialized entries are appended as they are
+		String metaData = json.toString();
+		int length = metaData.length() + SmartStorePlugin.CURRENT_PAGE_ORDERED_ENTRIES.length() + 8;
+		for (String entry : entries) {
+			length += entry.length() + 1;
+		}
+		StringBuilder data = new StringBuilder(length);
+		data.append(metaData, 0, metaData.length() - 1);
+		data.append(',').append(JSONObject.quote(SmartStorePlugin.CURRENT_PAGE_ORDERED_ENTRIES)).append(":[");
+		for (int i = 0; i < entries.size(); i++) {
+			if (i > 0) {
+				data.append(',');
+			}
+			data.append(entries.get(i));
+		}
+		return data.append("]}").toString();
+	}
+
+	/**
+	 * @param smartStore
+	 * @return entries in current page
+	 * Note: when moving to the next page (the typical case), keyset pagination is used, otherwise we fall back to page index pagination
+	 * @throws JSONException
+	 */
+	private List<String> getCurrentPageEntries(SmartStore smartStore) throws JSONException {
+		if (windowQuerySpec != null) {
+			return getCurrentPageEntriesFromWindow(smartStore);
+		}
+		if (!querySpec.supportsKeysetPagination()) {
+			return smartStore.queryAsStrings(querySpec, currentPageIndex);
+		}
+		QuerySpec.PageKey afterKey = pageKeys.get(currentPageIndex);
+		List<String> entries = (currentPageIndex == 0 || afterKey != null
+				? smartStore.queryAsStrings(querySpec, afterKey)
+				: smartStore.queryAsStrings(querySpec, currentPageIndex));
+		QuerySpec.PageKey nextPageKey = smartStore.getNextPageKeyFromStrings(querySpec, entries);
+		if (nextPageKey != null) {
+			pageKeys.put(currentPageIndex + 1, nextPageKey);
+		}
+		return entries;
+	}
+
+	/**
+	 * @param smartStore
+	 * @return entries in current page copied from the window (fetched first if it is missing, stale or not the one containing the current page)
+	 * @throws JSONException
+	 */
+	private List<String> getCurrentPageEntriesFromWindow(SmartStore smartStore) throws JSONException {
+		int pageIndex = Math.max(currentPageIndex, 0); // -1 when there are no entries
+		int pagesPerWindow = readAheadPages + 1;
+		int neededWindowIndex = pageIndex / pagesPerWindow;
+		long soupChangeCount = smartStore.getSoupChangeCount();
+		if (windowEntries == null || windowIndex != neededWindowIndex || windowSoupChangeCount != soupChangeCount) {
+			fetchWindow(smartStore, neededWindowIndex, soupChangeCount);
+		}
+		int start = (pageIndex - windowIndex * pagesPerWindow) * querySpec.pageSize;
+		int end = Math.min(start + querySpec.pageSize, windowEntries.size());
+		return windowEntries.subList(Math.min(start, end), end);
+	}
+
+	/**
+	 * Fetch window and (for lazily counted cursors) update totals
+	 * @param smartStore
+	 * @param newWindowIndex
+	 * @param soupChangeCount
+	 * @throws JSONException
+	 */
+	private void fetchWindow(SmartStore smartStore, int newWindowIndex, long soupChangeCount) throws JSONException {
+		boolean storeChanged = (windowSoupChangeCount != soupChangeCount);
+		List<String> entries;
+		QuerySpec.PageKey afterKey = pageKeys.get(newWindowIndex);
+		if (querySpec.supportsKeysetPagination() && (newWindowIndex == 0 || afterKey != null)) {
+			entries = smartStore.queryAsStrings(windowQuerySpec, afterKey);
+			QuerySpec.PageKey nextWindowKey = smartStore.getNextPageKeyFromStrings(windowQuerySpec, entries);
+			if (nextWindowKey != null) {
+				pageKeys.put(newWindowIndex + 1, nextWindowKey);
+			}
+		} else {
+			entries = smartStore.queryAsStrings(windowQuerySpec, newWindowIndex);
+		}
+		windowIndex = newWindowIndex;
+		windowEntries = entries;
+		windowSoupChangeCount = soupChangeCount;
+
+		if (lazyCount) {
+			int windowStart = newWindowIndex * windowQuerySpec.pageSize;
+			if (entries.size() < windowQuerySpec.pageSize) {
+				// End reached
+				totalEntries = windowStart + entries.size();
+				totalEntriesExact = true;
+			} else if (!totalEntriesExact || storeChanged) {
+				// At least one more entry
+				totalEntries = Math.max(storeChanged ? 0 : totalEntries, windowStart + entries.size() + 1);
+				totalEntriesExact = false;
+			}
+			totalPages = computeTotalPages();
+		}
+	}
+
+	private int computeTotalPages() {
+		return (int) Math.ceil( (double) totalEntries / querySpec.pageSize);
 	}
-}
\ No newline at end of file
+}
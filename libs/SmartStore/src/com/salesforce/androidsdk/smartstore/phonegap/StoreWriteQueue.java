@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.phonegap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+import com.salesforce.androidsdk.smartstore.store.SmartStore;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
+
+/**
+ * Queue of the write actions of a store: they run one at a time, in the order they were queued, on a thread of their own
+ * Read actions are not queued: they run concurrently (the store's lock only makes them wait while a write is in progress)
+ *
+ * When upsert batching is enabled, consecutive queued upserts (to the same database) run in a single transaction
+ * Their results are only reported once the transaction has committed - if one of them fails, the transaction is rolled back
+ * and they are run again one by one (so that each gets its own outcome)
+ *
+ * The thread is a daemon thread, only started when an action is queued: call shutdown once the store is reset or its database closed
+ * Actions still waiting to run at that point are dropped (they fail): they were queued for a store that is gone
+ */
+public class StoreWriteQueue {
+
+	/**
+	 * Write action (reporting its own outcome)
+	 */
+	public interface Action {
+		void run();
+
+		/**
+		 * Called instead of run if the queue is shut down before the action ran
+		 * @param e
+		 */
+		void onError(Exception e);
+	}
+
+	/**
+	 * Upsert action: run by the queue (possibly in a transaction shared with other upserts), outcome reported once it is known
+	 */
+	public interface Upsert {
+		/**
+		 * @return store to upsert to
+		 */
+		SmartStore getSmartStore();
+
+		/**
+		 * Called a second time (on its own) when the batch transaction it ran in is rolled back:
+		 * it must then start over from its original input (see SoupEntriesUpsert)
+		 * @param smartStore
+		 * @return upserted entries
+		 * @throws Exception
+		 */
+		JSONArray upsert(SmartStore smartStore) throws Exception;
+
+		/**
+		 * Called once the upsert is committed
+		 * @param results
+		 */
+		void onSuccess(JSONArray results);
+
+		/**
+		 * Called if the upsert failed
+		 * @param e
+		 */
+		void onError(Exception e);
+	}
+
+	/**
+	 * Upsert of soup entries (in a transaction of its own unless batched)
+	 * Upserting sets the soup entry id and last modified date of the entries: they are put back to their original values
+	 * before the upsert is run a second time (otherwise the entries created by the rolled back run would be updated instead,
+	 * using soup entry ids that do not exist)
+	 */
+	public static abstract class SoupEntriesUpsert implements Upsert {
+		private final String soupName;
+		private final JSONArray entries;
+		private final String externalIdPath;
+
+		// Soup entry ids / last modified dates of the entries as received (null until the first run)
+		private Object[] originalSoupEntryIds;
+		private Object[] originalLastModifiedDates;
+
+		/**
+		 * @param soupName
+		 * @param entries
+		 * @param externalIdPath
+		 */
+		public SoupEntriesUpsert(String soupName, JSONArray entries, String externalIdPath) {
+			this.soupName = soupName;
+			this.entries = entries;
+			this.externalIdPath = externalIdPath;
+		}
+
+		@Override
+		public JSONArray upsert(SmartStore smartStore) throws JSONException {
+			List<JSONObject> soupElts = new ArrayList<JSONObject>(entries.length());
+			for (int i = 0; i < entries.length(); i++) {
+				soupElts.add(entries.getJSONObject(i));
+			}
+			if (originalSoupEntryIds == null) {
+				originalSoupEntryIds = new Object[soupElts.size()];
+				originalLastModifiedDates = new Object[soupElts.size()];
+				for (int i = 0; i < soupElts.size(); i++) {
+					originalSoupEntryIds[i] = soupElts.get(i).opt(SmartStore.SOUP_ENTRY_ID);
+					originalLastModifiedDates[i] = soupElts.get(i).opt(SmartStore.SOUP_LAST_MODIFIED_DATE);
+				}
+			} else {
+				for (int i = 0; i < soupElts.size(); i++) {
+					restore(soupElts.get(i), SmartStore.SOUP_ENTRY_ID, originalSoupEntryIds[i]);
+					restore(soupElts.get(i), SmartStore.SOUP_LAST_MODIFIED_DATE, originalLastModifiedDates[i]);
+				}
+			}
+
+			smartStore.beginTransaction();
+			try {
+				JSONArray results = new JSONArray();
+				for (JSONObject soupElt : soupElts) {
+					results.put(smartStore.upsert(soupName, soupElt, externalIdPath, false));
+				}
+				smartStore.setTransactionSuccessful();
+				return results;
+			} finally {
+				smartStore.endTransaction();
+			}
+		}
+
+		private static void restore(JSONObject soupElt, String key, Object originalValue) throws JSONException {
+			if (originalValue == null) {
+				soupElt.remove(key);
+			} else {
+				soupElt.put(key, originalValue);
+			}
+		}
+	}
+
+	private final String name;
+	private volatile boolean batchUpserts;
+
+	// Thread running the queued actions and the actions waiting to run on it (only taken off by that thread, or dropped by shutdown)
+	// Both are created when an action is queued after the queue was shut down (or for the first time)
+	private ExecutorService executor;
+	private ConcurrentLinkedQueue<Object> pending;
+
+	/**
+	 * @param name name of the store (used to name the thread)
+	 */
+	public StoreWriteQueue(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param batchUpserts true to run consecutive queued upserts in a single transaction
+	 */
+	public void setBatchUpserts(boolean batchUpserts) {
+		this.batchUpserts = batchUpserts;
+	}
+
+	/**
+	 * @param action
+	 */
+	public void queue(Action action) {
+		queueAction(action);
+	}
+
+	/**
+	 * @param upsert
+	 */
+	public void queue(Upsert upsert) {
+		queueAction(upsert);
+	}
+
+	/**
+	 * Stop the thread once the action running (if any) is done
+	 * Actions still waiting to run are dropped: their onError is called
+	 * Actions queued afterwards run on a new thread
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			SmartStoreException e = new SmartStoreException("Write queue " + name + " was shut down before the write could run");
+			Object dropped;
+			while ((dropped = pending.poll()) != null) {
+				if (dropped instanceof Action) {
+					((Action) dropped).onError(e);
+				}
+				else {
+					((Upsert) dropped).onError(e);
+				}
+			}
+			executor = null;
+			pending = null;
+		}
+	}
+
+	private synchronized void queueAction(Object action) {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SmartStore writes (" + name + ")");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			pending = new ConcurrentLinkedQueue<Object>();
+		}
+
+		// Runs the next pending action of the thread (queued once for each action queued)
+		final ConcurrentLinkedQueue<Object> executorPending = pending;
+		executorPending.add(action);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Object next = executorPending.poll();
+				if (next instanceof Action) {
+					((Action) next).run();
+				}
+				else if (next instanceof Upsert) {
+					runUpserts((Upsert) next, executorPending);
+				}
+				// Nothing left when the action was run as part of a batch
+			}
+		});
+	}
+
+	/**
+	 * Run upsert along with the upserts queued right behind it (when batching is enabled)
+	 * @param first
+	 * @param pending
+	 */
+	private void runUpserts(Upsert first, ConcurrentLinkedQueue<Object> pending) {
+		SmartStore smartStore;
+		try {
+			smartStore = first.getSmartStore();
+		} catch (Exception e) {
+			first.onError(e);
+			return;
+		}
+
+		// Batch
+		List<Upsert> batch = new ArrayList<Upsert>();
+		batch.add(first);
+		while (batchUpserts && pending.peek() instanceof Upsert) {
+			Upsert next = (Upsert) pending.peek();
+			SmartStore nextSmartStore;
+			try {
+				nextSmartStore = next.getSmartStore();
+			} catch (Exception e) {
+				break; // left for its own run, which reports the error
+			}
+			if (nextSmartStore.getDatabase() != smartStore.getDatabase() || !pending.remove(next)) {
+				break; // not removed when dropped by shutdown
+			}
+			batch.add(next);
+		}
+		if (batch.size() == 1) {
+			runUpsert(first, smartStore);
+			return;
+		}
+
+		// Run batch in one transaction
+		List<JSONArray> results = new ArrayList<JSONArray>();
+		boolean success;
+		try {
+			smartStore.beginTransaction();
+			try {
+				for (Upsert upsert : batch) {
+					results.add(upsert.upsert(smartStore));
+				}
+				smartStore.setTransactionSuccessful();
+			} finally {
+				smartStore.endTransaction();
+			}
+			success = true;
+		} catch (Exception e) {
+			Log.w("StoreWriteQueue.runUpserts", "Batch of " + batch.size() + " upserts failed, running them one by one", e);
+			success = false;
+		}
+
+		// Report outcomes
+		if (success) {
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).onSuccess(results.get(i));
+			}
+		} else {
+			for (Upsert upsert : batch) {
+				runUpsert(upsert, smartStore);
+			}
+		}
+	}
+
+	/**
+	 * Run upsert on its own
+	 * @param upsert
+	 * @param smartStore
+	 */
+	private void runUpsert(Upsert upsert, SmartStore smartStore) {
+		JSONArray results;
+		try {
+			results = upsert.upsert(smartStore);
+		} catch (Exception e) {
+			upsert.onError(e);
+			return;
+		}
+		upsert.onSuccess(results);
+	}
+}
@@ -31,9 +31,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -42,6 +44,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.SoupFormat;
 
 /**
  * Class taking care of alter soup
@@ -57,7 +60,12 @@ public class AlterSoupLongOperation extends LongOperation {
 	private static final String SOUP_TABLE_NAME = "soupTableName";
 	private static final String OLD_INDEX_SPECS = "oldIndexSpecs";
 	private static final String NEW_INDEX_SPECS = "newIndexSpecs";
+	private static final String OLD_COMPOUND_INDEX_SPECS = "oldCompoundIndexSpecs";
+	private static final String NEW_COMPOUND_INDEX_SPECS = "newCompoundIndexSpecs";
 	private static final String RE_INDEX_DATA = "reIndexData";
+	private static final String LAST_RE_INDEXED_ID = "lastReIndexedId";
+	private static final String OLD_SOUP_FORMAT = "oldSoupFormat";
+	private static final String NEW_SOUP_FORMAT = "newSoupFormat";
 	
     /**
      * Enum for alter steps
@@ -88,9 +96,24 @@ public class AlterSoupLongOperation extends LongOperation {
 	
 	// Old index specs
 	private IndexSpec[] oldIndexSpecs;
+
+	// New compound index specs
+	private CompoundIndexSpec[] newCompoundIndexSpecs;
+
+	// Old compound index specs
+	private CompoundIndexSpec[] oldCompoundIndexSpecs;
 	
 	// True if soup elements should be brought to memory to be re-indexed
 	private boolean reIndexData;
+
+	// New soup format
+	private SoupFormat newSoupFormat;
+
+	// Old soup format
+	private SoupFormat oldSoupFormat;
+
+	// Id of last soup element re-indexed (re-indexing is done in chunks and resumes after that id)
+	private long lastReIndexedId;
 	
 	// Instance of smartstore
 	private SmartStore store;
@@ -120,13 +143,32 @@ public class AlterSoupLongOperation extends LongOperation {
 	 */
 	public AlterSoupLongOperation(SmartStore store, String soupName, IndexSpec[] newIndexSpecs,
 			boolean reIndexData) throws JSONException {
+		this(store, soupName, newIndexSpecs, null, null, reIndexData);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param store
+	 * @param soupName
+	 * @param newIndexSpecs
+	 * @param newCompoundIndexSpecs null to keep the compound index specs whose paths are all in newIndexSpecs
+	 * @param newSoupFormat null to keep the soup format
+	 * @param reIndexData
+	 * @throws JSONException 
+	 */
+	public AlterSoupLongOperation(SmartStore store, String soupName, IndexSpec[] newIndexSpecs,
+			CompoundIndexSpec[] newCompoundIndexSpecs, SoupFormat newSoupFormat, boolean reIndexData) throws JSONException {
 		
-    	synchronized(SmartStore.class) {
-    		// Setting store field
-    		this.store = store;
-    		
-    		// Setting db field
-    		this.db = store.getDatabase();
+		// Setting store field
+		this.store = store;
+
+		// Setting db field
+		this.db = store.getDatabase();
+
+		final Lock lock = SmartStore.writeLock(db);
+		lock.lock();
+		try {
     		
     		// Setting soupName field
     		this.soupName = soupName;
@@ -140,16 +182,36 @@ public class AlterSoupLongOperation extends LongOperation {
 	        
 	        // Setting reIndexData field
 	        this.reIndexData = reIndexData;
+
+	        // Making sure soup is not being altered already (the lock is released while re-indexing)
+	        for (LongOperation operation : store.getLongOperations()) {
+	        	if (operation instanceof AlterSoupLongOperation && soupName.equals(((AlterSoupLongOperation) operation).soupName)) {
+	        		throw new SmartStoreException("Soup: " + soupName + " is already being altered");
+	        	}
+	        }
 	        
 	        // Get old indexSpecs
 	        this.oldIndexSpecs = DBHelper.getInstance(db).getIndexSpecs(db, soupName);
 
+	        // Get old compoundIndexSpecs
+	        this.oldCompoundIndexSpecs = store.getSoupCompoundIndexSpecs(soupName);
+
+	        // Setting newCompoundIndexSpecs field
+	        this.newCompoundIndexSpecs = (newCompoundIndexSpecs != null ? newCompoundIndexSpecs : getRetainedCompoundIndexSpecs());
+	        SmartStore.checkCompoundIndexSpecs(soupName, newIndexSpecs, this.newCompoundIndexSpecs);
+
+	        // Get old soup format / setting newSoupFormat field
+	        this.oldSoupFormat = DBHelper.getInstance(db).getSoupFormat(db, soupName);
+	        this.newSoupFormat = (newSoupFormat != null ? newSoupFormat : oldSoupFormat);
+
     		// Create row in alter status table - auto commit
     		this.rowId = createLongOperationDbRow();
 	        
     		// Last step completed
     		this.afterStep = AlterSoupStep.STARTING;
-    	}
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -187,41 +249,83 @@ public class AlterSoupLongOperation extends LongOperation {
 		this.soupName = details.getString(SOUP_NAME);
 		this.newIndexSpecs = IndexSpec.fromJSON(details.getJSONArray(NEW_INDEX_SPECS));
 		this.oldIndexSpecs = IndexSpec.fromJSON(details.getJSONArray(OLD_INDEX_SPECS));
+		// Operations started before compound indexes existed don't have them in their details
+		JSONArray newCompoundIndexSpecsJson = details.optJSONArray(NEW_COMPOUND_INDEX_SPECS);
+		JSONArray oldCompoundIndexSpecsJson = details.optJSONArray(OLD_COMPOUND_INDEX_SPECS);
+		this.newCompoundIndexSpecs = (newCompoundIndexSpecsJson == null ? new CompoundIndexSpec[0] : CompoundIndexSpec.fromJSON(newCompoundIndexSpecsJson));
+		this.oldCompoundIndexSpecs = (oldCompoundIndexSpecsJson == null ? new CompoundIndexSpec[0] : CompoundIndexSpec.fromJSON(oldCompoundIndexSpecsJson));
 		this.reIndexData = details.getBoolean(RE_INDEX_DATA);
+		this.lastReIndexedId = details.optLong(LAST_RE_INDEXED_ID, 0);
+		// Operations started before soup formats existed don't have them in their details
+		this.oldSoupFormat = SoupFormat.valueOf(details.optString(OLD_SOUP_FORMAT, SoupFormat.json.name()));
+		this.newSoupFormat = SoupFormat.valueOf(details.optString(NEW_SOUP_FORMAT, SoupFormat.json.name()));
 		this.soupTableName = details.getString(SOUP_TABLE_NAME);
 	}
 
 
+	/**
+	 * @return old compound index specs whose paths are all indexed by the new index specs
+	 */
+	private CompoundIndexSpec[] getRetainedCompoundIndexSpecs() {
+		Set<String> newPaths = new HashSet<String>();
+		for (IndexSpec indexSpec : newIndexSpecs) {
+			newPaths.add(indexSpec.path);
+		}
+		newPaths.add(SmartStore.SOUP_ENTRY_ID);
+		newPaths.add(SmartStore.SOUP_LAST_MODIFIED_DATE);
+		List<CompoundIndexSpec> retained = new ArrayList<CompoundIndexSpec>();
+		for (CompoundIndexSpec compoundIndexSpec : oldCompoundIndexSpecs) {
+			if (newPaths.containsAll(compoundIndexSpec.getAllPaths())) {
+				retained.add(compoundIndexSpec);
+			}
+		}
+		return retained.toArray(new CompoundIndexSpec[0]);
+	}
+
 	/**
 	 * Helper method for alterSoup
 	 * @param toStep 
 	 */
 	private void alterSoupInternal(AlterSoupStep toStep)  {
-		
-		switch(afterStep) {
-		case STARTING:
-			renameOldSoupTable();
-			if (toStep == AlterSoupStep.RENAME_OLD_SOUP_TABLE) break;
-		case RENAME_OLD_SOUP_TABLE:
-			dropOldIndexes();
-			if (toStep == AlterSoupStep.DROP_OLD_INDEXES) break;
-		case DROP_OLD_INDEXES:
-			registerSoupUsingTableName();
-			if (toStep == AlterSoupStep.REGISTER_SOUP_USING_TABLE_NAME) break;
-		case REGISTER_SOUP_USING_TABLE_NAME:
-			copyTable();
-			if (toStep == AlterSoupStep.COPY_TABLE) break;
-		case COPY_TABLE:
-			// Re-index soup (if requested)
-			if (reIndexData)
+		final Lock lock = SmartStore.writeLock(db);
+
+		// The soup can't be used until its data is in the new table: the lock is held for all the steps up to the copy
+		lock.lock();
+		try {
+			switch(afterStep) {
+			case STARTING:
+				renameOldSoupTable();
+				if (toStep == AlterSoupStep.RENAME_OLD_SOUP_TABLE) return;
+			case RENAME_OLD_SOUP_TABLE:
+				dropOldIndexes();
+				if (toStep == AlterSoupStep.DROP_OLD_INDEXES) return;
+			case DROP_OLD_INDEXES:
+				registerSoupUsingTableName();
+				if (toStep == AlterSoupStep.REGISTER_SOUP_USING_TABLE_NAME) return;
+			case REGISTER_SOUP_USING_TABLE_NAME:
+				copyTable();
+				if (toStep == AlterSoupStep.COPY_TABLE) return;
+			default:
+				break;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		// Re-index soup (if requested) / re-write soup elements (if format changed) - the lock is only held while doing a chunk
+		if (afterStep == AlterSoupStep.COPY_TABLE) {
+			if (reIndexData || oldSoupFormat != newSoupFormat)
 				reIndexSoup();
-			if (toStep == AlterSoupStep.RE_INDEX_SOUP) break;
-		case RE_INDEX_SOUP:
-			dropOldTable();		
-			if (toStep == AlterSoupStep.DROP_OLD_TABLE) break;
-		case DROP_OLD_TABLE:
-			// Nothing left to do
-			break;
+			if (toStep == AlterSoupStep.RE_INDEX_SOUP) return;
+		}
+
+		if (afterStep == AlterSoupStep.COPY_TABLE || afterStep == AlterSoupStep.RE_INDEX_SOUP) {
+			lock.lock();
+			try {
+				dropOldTable();
+			} finally {
+				lock.unlock();
+			}
 		}
 	}
 
@@ -246,10 +350,17 @@ public class AlterSoupLongOperation extends LongOperation {
 		    String indexName = soupTableName + "_" + i + "_idx";
 		    db.execSQL("DROP INDEX IF EXISTS "  + indexName);
 		}
+		for (int k=0; k<oldCompoundIndexSpecs.length; k++) {
+		    db.execSQL("DROP INDEX IF EXISTS "  + SmartStore.getCompoundIndexName(soupTableName, k));
+		}
+
+		// Removing full-text table and its triggers (registerSoup will re-create them, copying/re-indexing the rows will fill it)
+		SmartStore.dropFtsTable(db, soupTableName);
 
         try {
             db.beginTransaction();
             DBHelper.getInstance(db).delete(db, SmartStore.SOUP_INDEX_MAP_TABLE, SmartStore.SOUP_NAME_PREDICATE, soupName);
+            DBHelper.getInstance(db).delete(db, SmartStore.SOUP_COMPOUND_INDEX_MAP_TABLE, SmartStore.SOUP_NAME_PREDICATE, soupName);
 
             // Remove from cache
             DBHelper.getInstance(db).removeFromCache(soupName);
@@ -269,7 +380,7 @@ public class AlterSoupLongOperation extends LongOperation {
 	 */
 	protected void registerSoupUsingTableName() {
 		// Create new table for soup
-		store.registerSoupUsingTableName(soupName, newIndexSpecs, soupTableName);
+		store.registerSoupUsingTableName(soupName, newIndexSpecs, newCompoundIndexSpecs, newSoupFormat, soupTableName);
 		
 		// Update row in alter status table -auto commit
 		updateLongOperationDbRow(AlterSoupStep.REGISTER_SOUP_USING_TABLE_NAME);
@@ -287,6 +398,7 @@ public class AlterSoupLongOperation extends LongOperation {
 		
 			// Move data (core columns + indexed paths that we are still indexing)
 			db.execSQL(computeCopyTableStatement());
+			DBHelper.getInstance(db).incrementSoupChangeCount();
 	
 			// Update row in alter status table 
 			updateLongOperationDbRow(AlterSoupStep.COPY_TABLE);
@@ -299,32 +411,52 @@ public class AlterSoupLongOperation extends LongOperation {
 
 
 	/**
-	 * Step 5: re-index soup for new indexes (optional step)
+	 * Step 5: re-index soup for new indexes and/or re-write soup elements in new soup format (optional step)
 	 */
 	protected void reIndexSoup() {
-		// Putting path--type of old index specs in a set
-		Set<String> oldPathTypeSet = new HashSet<String>();
-		for (IndexSpec oldIndexSpec : oldIndexSpecs) {
-			oldPathTypeSet.add(oldIndexSpec.getPathType());
-		}
-		
-		// Filtering out the ones that do not have their path--type in oldPathTypeSet
 		List<String> indexPaths = new ArrayList<String>();
-		for (IndexSpec indexSpec : newIndexSpecs) {
-			if (!oldPathTypeSet.contains(indexSpec.getPathType())) {
-				indexPaths.add(indexSpec.path);
+		if (reIndexData) {
+			// Putting path--type of old index specs in a set
+			Set<String> oldPathTypeSet = new HashSet<String>();
+			for (IndexSpec oldIndexSpec : oldIndexSpecs) {
+				oldPathTypeSet.add(oldIndexSpec.getPathType());
+			}
+			
+			// Filtering out the ones that do not have their path--type in oldPathTypeSet
+			for (IndexSpec indexSpec : newIndexSpecs) {
+				if (!oldPathTypeSet.contains(indexSpec.getPathType())) {
+					indexPaths.add(indexSpec.path);
+				}
 			}
 		}
 		
-		db.beginTransaction();
-        try {
-            store.reIndexSoup(soupName, indexPaths.toArray(new String[0]), false);
-            updateLongOperationDbRow(AlterSoupStep.RE_INDEX_SOUP);
-        }
-        finally {
-            db.setTransactionSuccessful();
-            db.endTransaction();
-        }
+		// Chunk by chunk, starting after the last soup element re-indexed (if resuming)
+		store.reIndexSoupInChunks(soupName, indexPaths.toArray(new String[0]), lastReIndexedId, oldSoupFormat != newSoupFormat, this);
+
+		final Lock lock = SmartStore.writeLock(db);
+		lock.lock();
+		try {
+			updateLongOperationDbRow(AlterSoupStep.RE_INDEX_SOUP);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record last soup element re-indexed in long operations status table
+	 * Called after every chunk re-indexed, in the chunk's transaction
+	 * @param lastReIndexedId
+	 */
+	protected void checkpointReIndex(long lastReIndexedId) {
+		this.lastReIndexedId = lastReIndexedId;
+		try {
+			ContentValues contentValues = new ContentValues();
+			contentValues.put(SmartStore.DETAILS_COL, getDetails().toString());
+			contentValues.put(SmartStore.LAST_MODIFIED_COL, System.currentTimeMillis());
+			DBHelper.getInstance(db).update(db, SmartStore.LONG_OPERATIONS_STATUS_TABLE, contentValues, SmartStore.ID_PREDICATE, rowId + "");
+		} catch (JSONException e) {
+			throw new SmartStoreException("Could not checkpoint re-indexing of soup: " + soupName);
+		}
 	}
 
 
@@ -333,7 +465,7 @@ public class AlterSoupLongOperation extends LongOperation {
 	 */
 	protected void dropOldTable() {
 		// Drop old table
-		db.execSQL("DROP TABLE " + getOldSoupTableName());
+		db.execSQL("DROP TABLE IF EXISTS " + getOldSoupTableName());
 		
 		// Update status row - auto commit
 		updateLongOperationDbRow(AlterSoupStep.DROP_OLD_TABLE);
@@ -370,7 +502,12 @@ public class AlterSoupLongOperation extends LongOperation {
     	details.put(SOUP_TABLE_NAME, soupTableName);
     	details.put(OLD_INDEX_SPECS, IndexSpec.toJSON(oldIndexSpecs));
     	details.put(NEW_INDEX_SPECS, IndexSpec.toJSON(newIndexSpecs));
+    	details.put(OLD_COMPOUND_INDEX_SPECS, CompoundIndexSpec.toJSON(oldCompoundIndexSpecs));
+    	details.put(NEW_COMPOUND_INDEX_SPECS, CompoundIndexSpec.toJSON(newCompoundIndexSpecs));
     	details.put(RE_INDEX_DATA, reIndexData);
+    	details.put(LAST_RE_INDEXED_ID, lastReIndexedId);
+    	details.put(OLD_SOUP_FORMAT, oldSoupFormat.name());
+    	details.put(NEW_SOUP_FORMAT, newSoupFormat.name());
 		return details;
 	}
 	
@@ -382,6 +519,7 @@ public class AlterSoupLongOperation extends LongOperation {
 	 * @return
 	 */
 	protected void updateLongOperationDbRow(AlterSoupStep newStatus) {
+		afterStep = newStatus;
 		if (newStatus == AlterSoupStep.LAST) {
 	    	DBHelper.getInstance(db).delete(db, SmartStore.LONG_OPERATIONS_STATUS_TABLE, SmartStore.ID_PREDICATE, rowId + "");
 		}
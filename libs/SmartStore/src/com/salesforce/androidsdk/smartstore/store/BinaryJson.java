@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.store;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Binary encoding of soup elements (used by soups with a binary SoupFormat)
+ *
+ * Encoded element: a header byte (PLAIN or DEFLATED) followed by the encoded object
+ * (for DEFLATED: the length of the encoded object followed by the deflated encoded object)
+ *
+ * Encoded value: a tag byte followed by
+ * - nothing for null / false / true
+ * - a zigzag varint for int / long
+ * - 8 bytes for double
+ * - a varint length followed by the utf-8 bytes for string (and numbers of other types, kept as their string)
+ * - a varint count followed by the key (encoded as a string without tag) / value pairs for object
+ * - a varint count followed by the values for array
+ *
+ * Decoding gives back the same values as parsing the JSON string of the element (int / long / double / string / boolean / JSONObject.NULL / JSONObject / JSONArray)
+ * without scanning the text of the whole element
+ */
+public class BinaryJson {
+
+	// Header byte
+	private static final byte PLAIN = 1;
+	private static final byte DEFLATED = 2;
+
+	// Tags
+	private static final byte NULL = 0;
+	private static final byte FALSE = 1;
+	private static final byte TRUE = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte STRING = 6;
+	private static final byte OBJECT = 7;
+	private static final byte ARRAY = 8;
+	private static final byte NUMBER = 9;
+
+	// Elements smaller than that are never compressed (deflate overhead would not pay off)
+	public static final int MIN_COMPRESSED_SIZE = 256;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * @param json
+	 * @param compress true to deflate the element (only done when it makes it smaller)
+	 * @return encoded element
+	 */
+	public static byte[] encode(JSONObject json, boolean compress) {
+		Output out = new Output();
+		out.write(PLAIN);
+		writeValue(out, json);
+		if (!compress || out.size() < MIN_COMPRESSED_SIZE) {
+			return out.toByteArray();
+		}
+
+		// Deflating (header excluded)
+		byte[] plain = out.toByteArray();
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(plain, 1, plain.length - 1);
+			deflater.finish();
+			Output deflated = new Output();
+			deflated.write(DEFLATED);
+			deflated.writeVarint(plain.length - 1);
+			byte[] buffer = new byte[1024];
+			while (!deflater.finished()) {
+				deflated.write(buffer, 0, deflater.deflate(buffer));
+				if (deflated.size() >= plain.length) {
+					// Not getting smaller
+					return plain;
+				}
+			}
+			return deflated.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @param bytes encoded element
+	 * @return decoded element
+	 * @throws JSONException if bytes are not an encoded element
+	 */
+	public static JSONObject decode(byte[] bytes) throws JSONException {
+		if (bytes.length == 0) {
+			throw new JSONException("Empty binary soup element");
+		}
+		Input in;
+		switch (bytes[0]) {
+		case PLAIN:
+			in = new Input(bytes, 1);
+			break;
+		case DEFLATED:
+			Input header = new Input(bytes, 1);
+			long inflatedLength = header.readVarint();
+			if (inflatedLength < 0 || inflatedLength > Integer.MAX_VALUE) {
+				throw new JSONException("Bogus length in binary soup element: " + inflatedLength);
+			}
+			byte[] inflated = new byte[(int) inflatedLength];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(bytes, header.position, bytes.length - header.position);
+				int length = 0;
+				while (length < inflated.length && !inflater.finished()) {
+					int n = inflater.inflate(inflated, length, inflated.length - length);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					length += n;
+				}
+				if (length != inflated.length) {
+					throw new JSONException("Truncated binary soup element");
+				}
+			} catch (DataFormatException e) {
+				throw new JSONException(e.getMessage());
+			} finally {
+				inflater.end();
+			}
+			in = new Input(inflated, 0);
+			break;
+		default:
+			throw new JSONException("Bogus binary soup element header: " + bytes[0]);
+		}
+		Object value = readValue(in);
+		if (!(value instanceof JSONObject)) {
+			throw new JSONException("Binary soup element is not an object");
+		}
+		return (JSONObject) value;
+	}
+
+	private static void writeValue(Output out, Object value) {
+		if (value == null || value == JSONObject.NULL) {
+			out.write(NULL);
+		}
+		else if (value instanceof Boolean) {
+			out.write((Boolean) value ? TRUE : FALSE);
+		}
+		else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			out.write(INT);
+			out.writeZigzag(((Number) value).longValue());
+		}
+		else if (value instanceof Long) {
+			out.write(LONG);
+			out.writeZigzag((Long) value);
+		}
+		else if (value instanceof Double || value instanceof Float) {
+			out.write(DOUBLE);
+			out.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+		}
+		else if (value instanceof Number) {
+			out.write(NUMBER);
+			out.writeString(value.toString());
+		}
+		else if (value instanceof JSONObject) {
+			JSONObject object = (JSONObject) value;
+			out.write(OBJECT);
+			out.writeVarint(object.length());
+			Iterator<String> keys = object.keys();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				out.writeString(key);
+				writeValue(out, object.opt(key));
+			}
+		}
+		else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			out.write(ARRAY);
+			out.writeVarint(array.length());
+			for (int i = 0; i < array.length(); i++) {
+				writeValue(out, array.opt(i));
+			}
+		}
+		else {
+			out.write(STRING);
+			out.writeString(value.toString());
+		}
+	}
+
+	private static Object readValue(Input in) throws JSONException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return JSONObject.NULL;
+		case FALSE:
+			return Boolean.FALSE;
+		case TRUE:
+			return Boolean.TRUE;
+		case INT:
+			return (int) in.readZigzag();
+		case LONG:
+			return in.readZigzag();
+		case DOUBLE:
+			return Double.longBitsToDouble(in.readLong());
+		case STRING:
+			return in.readString();
+		case NUMBER:
+			return JSONStreamHelper.parseNumber(in.readString());
+		case OBJECT:
+			int length = (int) in.readVarint();
+			JSONObject object = new JSONObject();
+			for (int i = 0; i < length; i++) {
+				String key = in.readString();
+				object.put(key, readValue(in));
+			}
+			return object;
+		case ARRAY:
+			int count = (int) in.readVarint();
+			JSONArray array = new JSONArray();
+			for (int i = 0; i < count; i++) {
+				array.put(readValue(in));
+			}
+			return array;
+		default:
+			throw new JSONException("Bogus tag in binary soup element: " + tag);
+		}
+	}
+
+	/**
+	 * Growable output buffer
+	 */
+	private static class Output extends ByteArrayOutputStream {
+
+		Output() {
+			super(256);
+		}
+
+		void writeVarint(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		void writeZigzag(long value) {
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		void writeLong(long value) {
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				write((int) (value >>> shift));
+			}
+		}
+
+		void writeString(String value) {
+			byte[] bytes = value.getBytes(UTF8);
+			writeVarint(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * Input over a byte array
+	 */
+	private static class Input {
+		private final byte[] bytes;
+		int position;
+
+		Input(byte[] bytes, int position) {
+			this.bytes = bytes;
+			this.position = position;
+		}
+
+		byte readByte() throws JSONException {
+			if (position >= bytes.length) {
+				throw new JSONException("Truncated binary soup element");
+			}
+			return bytes[position++];
+		}
+
+		long readVarint() throws JSONException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new JSONException("Bogus varint in binary soup element");
+		}
+
+		long readZigzag() throws JSONException {
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		long readLong() throws JSONException {
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (readByte() & 0xFF);
+			}
+			return value;
+		}
+
+		String readString() throws JSONException {
+			int length = (int) readVarint();
+			if (length < 0 || position + length > bytes.length) {
+				throw new JSONException("Truncated binary soup element");
+			}
+			String value = new String(bytes, position, length, UTF8);
+			position += length;
+			return value;
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.store;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+/**
+ * Path to a value inside a soup element (e.g. "address.city"), split once into its elements
+ * Use compile(path) to get one (compiled paths are cached) and project(soupElt) to get the value at the path
+ * Use Group to get the values at several paths with a single traversal of the soup element (parsed or serialized)
+ */
+public class CompiledPath {
+
+	// Compiled paths are immutable - they are shared by all threads
+	private static final int MAX_CACHED_PATHS = 1000;
+	private static final ConcurrentHashMap<String, CompiledPath> CACHE = new ConcurrentHashMap<String, CompiledPath>();
+
+	public final String path;
+	private final String[] pathElements;
+
+	private CompiledPath(String path) {
+		this.path = path;
+		this.pathElements = split(path);
+	}
+
+	/**
+	 * @param path
+	 * @return compiled path for path
+	 */
+	public static CompiledPath compile(String path) {
+		String key = (path == null ? "" : path);
+		CompiledPath compiledPath = CACHE.get(key);
+		if (compiledPath == null) {
+			compiledPath = new CompiledPath(key);
+			if (CACHE.size() < MAX_CACHED_PATHS) {
+				CACHE.putIfAbsent(key, compiledPath);
+			}
+		}
+		return compiledPath;
+	}
+
+	/**
+	 * @param soup
+	 * @return object at path in soup (soup itself for an empty path)
+	 */
+	public Object project(JSONObject soup) {
+		Object o = soup;
+		for (String pathElement : pathElements) {
+			if (!(o instanceof JSONObject)) {
+				return null;
+			}
+			o = ((JSONObject) o).opt(pathElement);
+		}
+		return o;
+	}
+
+	/**
+	 * Split path on dots (without going through a regex)
+	 * @param path
+	 * @return path elements (none for an empty path)
+	 */
+	private static String[] split(String path) {
+		if (path.length() == 0) {
+			return new String[0];
+		}
+		List<String> elements = new ArrayList<String>();
+		int start = 0;
+		int dot;
+		while ((dot = path.indexOf('.', start)) != -1) {
+			elements.add(path.substring(start, dot));
+			start = dot + 1;
+		}
+		elements.add(path.substring(start));
+		return elements.toArray(new String[elements.size()]);
+	}
+
+	/**
+	 * Group of paths projected together
+	 * Paths are arranged in a tree of their elements so that each object of the soup element is only looked up once
+	 * (e.g. for "a.b" and "a.c", "a" is looked up once)
+	 */
+	public static class Group {
+
+		private final int size;
+		private final Node root = new Node();
+
+		/**
+		 * @param compiledPaths
+		 */
+		public Group(CompiledPath[] compiledPaths) {
+			this.size = compiledPaths.length;
+			for (int i = 0; i < compiledPaths.length; i++) {
+				Node node = root;
+				for (String pathElement : compiledPaths[i].pathElements) {
+					Node child = node.childrenMap.get(pathElement);
+					if (child == null) {
+						child = new Node();
+						node.childrenMap.put(pathElement, child);
+					}
+					node = child;
+				}
+				node.positionsList.add(i);
+			}
+			root.freeze();
+		}
+
+		/**
+		 * @param paths
+		 * @return group for paths
+		 */
+		public static Group compile(List<String> paths) {
+			CompiledPath[] compiledPaths = new CompiledPath[paths.size()];
+			for (int i = 0; i < compiledPaths.length; i++) {
+				compiledPaths[i] = CompiledPath.compile(paths.get(i));
+			}
+			return new Group(compiledPaths);
+		}
+
+		/**
+		 * @param soup
+		 * @return objects at the paths of the group in soup (in the order the paths were passed in)
+		 */
+		public Object[] project(JSONObject soup) {
+			Object[] values = new Object[size];
+			project(root, soup, values);
+			return values;
+		}
+
+		/**
+		 * Partial parse: only the objects leading to the paths of the group and the values at the paths get parsed,
+		 * everything else is skipped by the reader, which stops as soon as all the paths have been reached
+		 *
+		 * @param json serialized soup element
+		 * @return objects at the paths of the group in json (in the order the paths were passed in)
+		 * @throws JSONException
+		 */
+		public Object[] project(String json) throws JSONException {
+			Object[] values = new Object[size];
+			JsonReader reader = new JsonReader(new StringReader(json));
+			try {
+				project(root, reader, values, new int[] {root.endNodeCount});
+			} catch (IOException e) {
+				throw new JSONException(e.getMessage());
+			} catch (IllegalStateException e) {
+				throw new JSONException(e.getMessage());
+			} finally {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+			return values;
+		}
+
+		/**
+		 * @param node
+		 * @param reader positioned on the value for node
+		 * @param values
+		 * @param remaining number of end nodes (nodes where paths end) not reached yet
+		 */
+		private static void project(Node node, JsonReader reader, Object[] values, int[] remaining) throws IOException, JSONException {
+			// A path ends here: the whole value is needed (paths going through it are projected from the parsed value)
+			if (node.positions.length > 0) {
+				project(node, JSONStreamHelper.readValue(reader), values);
+				remaining[0] -= node.endNodeCount;
+			}
+			// Paths go through here: walking down the object
+			else if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+				reader.beginObject();
+				while (remaining[0] > 0 && reader.hasNext()) {
+					Node child = node.getChild(reader.nextName());
+					if (child != null) {
+						project(child, reader, values, remaining);
+					} else {
+						reader.skipValue();
+					}
+				}
+				if (remaining[0] > 0) {
+					reader.endObject();
+				}
+			}
+			// Paths go through a non-object value: they are all null
+			else {
+				reader.skipValue();
+				remaining[0] -= node.endNodeCount;
+			}
+		}
+
+		private static void project(Node node, Object o, Object[] values) {
+			for (int position : node.positions) {
+				values[position] = o;
+			}
+			if (o instanceof JSONObject) {
+				for (int i = 0; i < node.children.length; i++) {
+					Object child = ((JSONObject) o).opt(node.childNames[i]);
+					if (child != null) {
+						project(node.children[i], child, values);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Node of the tree of path elements
+		 * Built with the maps/lists, then frozen into arrays (that are walked for every soup element projected)
+		 */
+		private static class Node {
+			// Positions (in the group) of the paths ending at this node
+			List<Integer> positionsList = new ArrayList<Integer>(1);
+			Map<String, Node> childrenMap = new LinkedHashMap<String, Node>();
+
+			int[] positions;
+			String[] childNames;
+			Node[] children;
+			// Number of nodes in the subtree (this one included) where paths end
+			int endNodeCount;
+
+			Node getChild(String name) {
+				for (int i = 0; i < childNames.length; i++) {
+					if (childNames[i].equals(name)) {
+						return children[i];
+					}
+				}
+				return null;
+			}
+
+			void freeze() {
+				positions = new int[positionsList.size()];
+				for (int i = 0; i < positions.length; i++) {
+					positions[i] = positionsList.get(i);
+				}
+				childNames = childrenMap.keySet().toArray(new String[childrenMap.size()]);
+				children = childrenMap.values().toArray(new Node[childrenMap.size()]);
+				endNodeCount = (positions.length > 0 ? 1 : 0);
+				for (Node child : children) {
+					child.freeze();
+					endNodeCount += child.endNodeCount;
+				}
+				positionsList = null;
+				childrenMap = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Simple class to represent a compound index spec: an index on several indexed paths of a soup
+ *
+ * The index is on the columns of paths (in that order) followed by the columns of coveringPaths
+ * Queries filtering on the first paths and ordering by the next ones can use the index for both
+ * Queries only reading paths of the index (e.g. smart sql selecting these paths) are answered from the index alone
+ *
+ * All paths must be indexed paths of the soup, _soupEntryId or _soupLastModifiedDate
+ * _soupEntryId is allowed anywhere, it is the row id of the soup table and is already stored in every index,
+ * so as the last path or as a covering path it does not change the index
+ */
+public class CompoundIndexSpec {
+	public final String[] paths;
+	public final String[] coveringPaths;
+
+	public CompoundIndexSpec(String... paths) {
+		this(paths, new String[0]);
+	}
+
+	public CompoundIndexSpec(String[] paths, String[] coveringPaths) {
+		this.paths = paths;
+		this.coveringPaths = (coveringPaths == null ? new String[0] : coveringPaths);
+	}
+
+	/**
+	 * @return paths followed by covering paths
+	 */
+	public List<String> getAllPaths() {
+		List<String> allPaths = new ArrayList<String>(Arrays.asList(paths));
+		allPaths.addAll(Arrays.asList(coveringPaths));
+		return allPaths;
+	}
+
+    @Override
+    public int hashCode() {
+    	return 31 * Arrays.hashCode(paths) + Arrays.hashCode(coveringPaths);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null)
+            return false;
+        if (obj == this)
+            return true;
+        if (!(obj instanceof CompoundIndexSpec))
+            return false;
+
+        CompoundIndexSpec rhs = (CompoundIndexSpec) obj;
+        return Arrays.equals(paths, rhs.paths) && Arrays.equals(coveringPaths, rhs.coveringPaths);
+    }
+
+	/**
+	 * @return JSONObject for this CompoundIndexSpec
+	 * @throws JSONException
+	 */
+	public JSONObject toJSON() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("paths", new JSONArray(Arrays.asList(paths)));
+		json.put("coveringPaths", new JSONArray(Arrays.asList(coveringPaths)));
+		return json;
+	}
+
+	/**
+	 * @param compoundIndexSpecs
+	 * @return JSONArray for the array of CompoundIndexSpec's
+	 * @throws JSONException
+	 */
+	public static JSONArray toJSON(CompoundIndexSpec[] compoundIndexSpecs) throws JSONException {
+		JSONArray json = new JSONArray();
+		for (CompoundIndexSpec compoundIndexSpec : compoundIndexSpecs) {
+			json.put(compoundIndexSpec.toJSON());
+		}
+		return json;
+	}
+
+	/**
+	 * @param jsonArray
+	 * @return CompoundIndexSpec[] from a JSONArray
+	 * @throws JSONException
+	 */
+	public static CompoundIndexSpec[] fromJSON(JSONArray jsonArray) throws JSONException {
+		List<CompoundIndexSpec> list = new ArrayList<CompoundIndexSpec>();
+		for (int i = 0; i < jsonArray.length(); i++) {
+			list.add(CompoundIndexSpec.fromJSON(jsonArray.getJSONObject(i)));
+		}
+		return list.toArray(new CompoundIndexSpec[0]);
+	}
+
+	/**
+	 * Return CompoundIndexSpec given JSONObject
+	 * @param json
+	 * @return
+	 * @throws JSONException
+	 */
+	public static CompoundIndexSpec fromJSON(JSONObject json) throws JSONException {
+		return new CompoundIndexSpec(toStringArray(json.getJSONArray("paths")), toStringArray(json.optJSONArray("coveringPaths")));
+	}
+
+	private static String[] toStringArray(JSONArray jsonArray) throws JSONException {
+		if (jsonArray == null) {
+			return new String[0];
+		}
+		String[] strings = new String[jsonArray.length()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = jsonArray.getString(i);
+		}
+		return strings;
+	}
+}
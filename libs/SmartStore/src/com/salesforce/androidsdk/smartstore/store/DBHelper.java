@@ -27,22 +27,37 @@
 package com.salesforce.androidsdk.smartstore.store;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
 
 import net.sqlcipher.DatabaseUtils.InsertHelper;
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteDoneException;
 import net.sqlcipher.database.SQLiteStatement;
+import net.sqlcipher.database.SQLiteTransactionListener;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.util.Log;
+import android.util.LruCache;
 
 import com.salesforce.androidsdk.accounts.UserAccount;
 import com.salesforce.androidsdk.smartstore.app.SalesforceSDKManagerWithSmartStore;
 import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.SoupChangeListener;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.SoupFormat;
+import com.salesforce.androidsdk.smartstore.store.SoupChange.ChangeType;
 import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
 
 /**
@@ -53,7 +68,7 @@ import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
  */
 public class DBHelper {
 
-	private static Map<SQLiteDatabase, DBHelper> INSTANCES;
+	private static final ConcurrentHashMap<SQLiteDatabase, DBHelper> INSTANCES = new ConcurrentHashMap<SQLiteDatabase, DBHelper>();
 
 	/**
 	 * Returns the instance of this class associated with the database specified.
@@ -61,14 +76,14 @@ public class DBHelper {
 	 * @param db Database.
 	 * @return Instance of this class.
 	 */
-	public static synchronized DBHelper getInstance(SQLiteDatabase db) {
-		if (INSTANCES == null) {
-			INSTANCES = new HashMap<SQLiteDatabase, DBHelper>();
-		}
+	public static DBHelper getInstance(SQLiteDatabase db) {
 		DBHelper instance = INSTANCES.get(db);
 		if (instance == null) {
-			instance = new DBHelper();
-			INSTANCES.put(db, instance);
+			DBHelper newInstance = new DBHelper();
+			instance = INSTANCES.putIfAbsent(db, newInstance);
+			if (instance == null) {
+				instance = newInstance;
+			}
 		}
 		return instance;
 	}
@@ -77,28 +92,113 @@ public class DBHelper {
 	private static final String COUNT_SELECT = "SELECT count(*) FROM %s %s";
 	private static final String SEQ_SELECT = "SELECT seq FROM SQLITE_SEQUENCE WHERE name = ?";
 	private static final String LIMIT_SELECT = "SELECT * FROM (%s) LIMIT %s";
+	private static final String INSERT_STMT = "INSERT INTO %s (%s) VALUES (%s)";
+	private static final String UPDATE_STMT = "UPDATE %s SET %s WHERE %s";
+
+	// Max number of entries in smart sql / raw count sql caches
+	public static final int SMART_SQL_CACHE_SIZE = 100;
+	public static final int RAW_COUNT_SQL_CACHE_SIZE = 50;
+
+	// Lock guarding access to the database: concurrent readers or a single writer
+	private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+
+	// Soup metadata: soup name to soup table names, soup name to index specs and soup name to soup formats
+	// Immutable snapshots read without locking, replaced (copy on write) whenever a soup is registered, altered or dropped
+	private volatile Map<String, String> soupNameToTableNamesMap = Collections.emptyMap();
+	private volatile Map<String, IndexSpec[]> soupNameToIndexSpecsMap = Collections.emptyMap();
+	private volatile Map<String, SoupFormat> soupNameToFormatsMap = Collections.emptyMap();
+
+	// Serializes updates of the soup metadata snapshots
+	private final Object soupMetadataUpdateLock = new Object();
+
+	// Soup name to cache of parsed soup elements (only for soups that have one - see SmartStore.setSoupEltCacheSize)
+	private final ConcurrentHashMap<String, SoupEltCache> soupNameToEltCachesMap = new ConcurrentHashMap<String, SoupEltCache>();
+
+	// Soup change listeners (see SmartStore.registerSoupChangeListener)
+	private final CopyOnWriteArrayList<SoupChangeListener> soupChangeListeners = new CopyOnWriteArrayList<SoupChangeListener>();
+
+	// Soup changes made in the transaction in progress (started with beginTransaction), published once it has committed and dropped otherwise
+	// Only used by writers (while holding the write lock)
+	private final List<SoupChange> pendingSoupChanges = new ArrayList<SoupChange>();
+
+	// Depth of the transactions started with beginTransaction in progress, whether the outermost transaction is one of them
+	// and whether it is committing (see soupChangeTransactionListener) - only used by writers (while holding the write lock)
+	private int trackedTransactionDepth;
+	private boolean trackedOutermostTransaction;
+	private boolean trackedTransactionCommitting;
+
+	// Listener of the outermost transactions started with beginTransaction
+	// Note: onCommit is called before COMMIT actually runs (which can still fail), soup changes are only published once endTransaction returns
+	private final SQLiteTransactionListener soupChangeTransactionListener = new SQLiteTransactionListener() {
+		@Override
+		public void onBegin() {
+		}
+
+		@Override
+		public void onCommit() {
+			trackedTransactionCommitting = true;
+		}
+
+		@Override
+		public void onRollback() {
+			trackedTransactionCommitting = false;
+		}
+	};
 
-	// Cache of soup name to soup table names
-	private Map<String, String> soupNameToTableNamesMap = new HashMap<String, String>();
+	// Number of soup changes made so far (whether there are soup change listeners or not)
+	// Lets readers holding on to query results (e.g. windowed store cursors) find out cheaply whether they are stale
+	private volatile long soupChangeCount;
 
-	// Cache of soup name to index specs
-	private Map<String, IndexSpec[]> soupNameToIndexSpecsMap = new HashMap<String, IndexSpec[]>();
+	// Daemon thread calling soup change listeners (never called while the database is locked)
+	// Started when a listener is added, shut down when the last one is removed or the database is reset
+	private ExecutorService soupChangeExecutor;
+
+	// Statement caches below are only used by writers (while holding the write lock)
 
 	// Cache of table name to get-next-id compiled statements
 	private Map<String, SQLiteStatement> tableNameToNextIdStatementsMap = new HashMap<String, SQLiteStatement>();
 
+	// Cache of table name to next id to hand out (seeded once from the sequence table)
+	private Map<String, Long> tableNameToNextIdsMap = new HashMap<String, Long>();
+
 	// Cache of table name to insert helpers
 	private Map<String, InsertHelper> tableNameToInsertHelpersMap = new HashMap<String, InsertHelper>();
 
-	// Cache of raw count sql to compiled statements
-	private Map<String, SQLiteStatement> rawCountSqlToStatementsMap = new HashMap<String, SQLiteStatement>();
+	// Cache of smart sql to converted sql (most recently used)
+	private LruCache<String, String> smartSqlToSqlCache = new LruCache<String, String>(SMART_SQL_CACHE_SIZE);
+
+	// Cache of raw count sql to compiled statements (most recently used - statements are closed when evicted)
+	private LruCache<String, SQLiteStatement> rawCountSqlToStatementsCache = new LruCache<String, SQLiteStatement>(RAW_COUNT_SQL_CACHE_SIZE) {
+		@Override
+		protected void entryRemoved(boolean evicted, String countSql, SQLiteStatement oldProg, SQLiteStatement newProg) {
+			if (oldProg != null && oldProg != newProg)
+				oldProg.close();
+		}
+	};
+
+	// Cache of table name to compiled insert statements (used by batch upserts)
+	private Map<String, SQLiteStatement> tableNameToInsertStatementsMap = new HashMap<String, SQLiteStatement>();
+
+	// Cache of table name to compiled update statements (used by batch upserts)
+	private Map<String, SQLiteStatement> tableNameToUpdateStatementsMap = new HashMap<String, SQLiteStatement>();
+
+	/**
+	 * @return read/write lock for the database
+	 */
+	public ReentrantReadWriteLock getReadWriteLock() {
+		return readWriteLock;
+	}
 
 	/**
 	 * @param soupName
 	 * @param tableName
 	 */
 	public void cacheTableName(String soupName, String tableName) {
-		soupNameToTableNamesMap.put(soupName, tableName);
+		synchronized(soupMetadataUpdateLock) {
+			Map<String, String> map = new HashMap<String, String>(soupNameToTableNamesMap);
+			map.put(soupName, tableName);
+			soupNameToTableNamesMap = Collections.unmodifiableMap(map);
+		}
 	}
 
 	/**
@@ -114,7 +214,255 @@ public class DBHelper {
 	 * @param tableName
 	 */
 	public void cacheIndexSpecs(String soupName, IndexSpec[] indexSpecs) {
-		soupNameToIndexSpecsMap.put(soupName, indexSpecs.clone());
+		synchronized(soupMetadataUpdateLock) {
+			Map<String, IndexSpec[]> map = new HashMap<String, IndexSpec[]>(soupNameToIndexSpecsMap);
+			map.put(soupName, indexSpecs.clone());
+			soupNameToIndexSpecsMap = Collections.unmodifiableMap(map);
+		}
+	}
+
+	/**
+	 * @param soupName
+	 * @param soupFormat
+	 */
+	public void cacheSoupFormat(String soupName, SoupFormat soupFormat) {
+		synchronized(soupMetadataUpdateLock) {
+			Map<String, SoupFormat> map = new HashMap<String, SoupFormat>(soupNameToFormatsMap);
+			map.put(soupName, soupFormat);
+			soupNameToFormatsMap = Collections.unmodifiableMap(map);
+		}
+	}
+
+	/**
+	 * @param soupName
+	 * @return
+	 */
+	public SoupFormat getCachedSoupFormat(String soupName) {
+		return soupNameToFormatsMap.get(soupName);
+	}
+
+	/**
+	 * @param soupName
+	 * @param soupEltCache cache of parsed soup elements for the soup or null to have none
+	 */
+	public void setSoupEltCache(String soupName, SoupEltCache soupEltCache) {
+		if (soupEltCache == null) {
+			soupNameToEltCachesMap.remove(soupName);
+		} else {
+			soupNameToEltCachesMap.put(soupName, soupEltCache);
+		}
+	}
+
+	/**
+	 * @param soupName
+	 * @return cache of parsed soup elements for the soup or null if it has none
+	 */
+	public SoupEltCache getSoupEltCache(String soupName) {
+		return soupNameToEltCachesMap.get(soupName);
+	}
+
+	/**
+	 * @param listener
+	 */
+	public synchronized void addSoupChangeListener(SoupChangeListener listener) {
+		if (soupChangeExecutor == null) {
+			soupChangeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SmartStore soup changes");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		soupChangeListeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * @param listener
+	 */
+	public synchronized void removeSoupChangeListener(SoupChangeListener listener) {
+		soupChangeListeners.remove(listener);
+		if (soupChangeListeners.isEmpty()) {
+			shutdownSoupChangeExecutor();
+		}
+	}
+
+	/**
+	 * @return true if there are soup change listeners
+	 */
+	public boolean hasSoupChangeListeners() {
+		return !soupChangeListeners.isEmpty();
+	}
+
+	/**
+	 * @return number of soup changes recorded so far (changes rolled back included)
+	 */
+	public long getSoupChangeCount() {
+		return soupChangeCount;
+	}
+
+	/**
+	 * Count a change that does not go to soup change listeners (e.g. soup altered or re-indexed) but can change query results
+	 * Caller must hold the write lock
+	 */
+	public void incrementSoupChangeCount() {
+		soupChangeCount++;
+	}
+
+	/**
+	 * Begin transaction (soup changes recorded during the transaction get published once it has committed)
+	 * Must be ended with endTransaction
+	 * @param db
+	 */
+	public void beginTransaction(SQLiteDatabase db) {
+		boolean outermost = !db.inTransaction();
+		if (outermost) {
+			db.beginTransactionWithListener(soupChangeTransactionListener);
+		} else {
+			db.beginTransaction();
+		}
+		if (trackedTransactionDepth == 0) {
+			trackedOutermostTransaction = outermost;
+			trackedTransactionCommitting = false;
+		}
+		trackedTransactionDepth++;
+	}
+
+	/**
+	 * End transaction started with beginTransaction
+	 * Once the outermost one has ended, the soup changes recorded are published if it committed and dropped otherwise
+	 * (they are also dropped when the outermost transaction was not started with beginTransaction: its outcome is not known)
+	 * @param db
+	 */
+	public void endTransaction(SQLiteDatabase db) {
+		boolean ended = false;
+		try {
+			db.endTransaction();
+			ended = true;
+		} finally {
+			trackedTransactionDepth--;
+			if (trackedTransactionDepth == 0) {
+				boolean committed = ended && trackedOutermostTransaction && trackedTransactionCommitting;
+				trackedTransactionCommitting = false;
+				if (committed) {
+					publishSoupChanges();
+				} else {
+					pendingSoupChanges.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record change to a soup (published right away outside of a transaction, once the transaction has committed otherwise)
+	 * Nothing is recorded when there are no soup change listeners, or for changes made in a transaction not started with beginTransaction
+	 *
+	 * @param db
+	 * @param soupName
+	 * @param changeType
+	 * @param soupEntryIds
+	 */
+	public void recordSoupChange(SQLiteDatabase db, String soupName, ChangeType changeType, Collection<Long> soupEntryIds) {
+		soupChangeCount++; // only called by writers (while holding the write lock)
+		if (soupChangeListeners.isEmpty()) {
+			return;
+		}
+		if (trackedTransactionDepth > 0) {
+			pendingSoupChanges.add(new SoupChange(soupName, changeType, soupEntryIds));
+		} else if (!db.inTransaction()) {
+			pendingSoupChanges.add(new SoupChange(soupName, changeType, soupEntryIds));
+			publishSoupChanges();
+		}
+	}
+
+	/**
+	 * Hand pending soup changes (coalesced) to the soup change listeners
+	 */
+	private void publishSoupChanges() {
+		if (pendingSoupChanges.isEmpty()) {
+			return;
+		}
+		final List<SoupChange> soupChanges = Collections.unmodifiableList(SoupChange.coalesce(pendingSoupChanges));
+		pendingSoupChanges.clear();
+		if (soupChanges.isEmpty()) {
+			return; // e.g. soup elements created then deleted
+		}
+		synchronized (this) {
+			if (soupChangeExecutor == null) {
+				return; // last listener removed in the meantime
+			}
+			soupChangeExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (SoupChangeListener listener : soupChangeListeners) {
+						try {
+							listener.onSoupChanges(soupChanges);
+						} catch (RuntimeException e) {
+							Log.e("DBHelper.publishSoupChanges", "Soup change listener failed", e);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stop the thread calling soup change listeners (once the soup changes already published have been handed to them)
+	 */
+	private synchronized void shutdownSoupChangeExecutor() {
+		if (soupChangeExecutor != null) {
+			soupChangeExecutor.shutdown();
+			soupChangeExecutor = null;
+		}
+	}
+
+	/**
+	 * Load metadata (table name, index specs and format) of all soups in one pass
+	 * Called when the database is opened so that soup metadata lookups never have to go to the database afterwards
+	 *
+	 * @param db
+	 */
+	public void loadSoupMetadata(SQLiteDatabase db) {
+		Map<String, String> tableNames = new HashMap<String, String>();
+		Map<String, SoupFormat> soupFormats = new HashMap<String, SoupFormat>();
+		Map<String, List<IndexSpec>> indexSpecsLists = new HashMap<String, List<IndexSpec>>();
+		Cursor cursor = null;
+		try {
+			cursor = query(db, SmartStore.SOUP_NAMES_TABLE, new String[] {SmartStore.ID_COL, SmartStore.SOUP_NAME_COL, SmartStore.SOUP_FORMAT_COL}, null, null, null);
+			if (cursor.moveToFirst()) {
+				do {
+					tableNames.put(cursor.getString(1), SmartStore.getSoupTableName(cursor.getLong(0)));
+					soupFormats.put(cursor.getString(1), toSoupFormat(cursor.getString(2)));
+				} while (cursor.moveToNext());
+			}
+			safeClose(cursor);
+			cursor = query(db, SmartStore.SOUP_INDEX_MAP_TABLE, new String[] {SmartStore.SOUP_NAME_COL, SmartStore.PATH_COL, SmartStore.COLUMN_NAME_COL, SmartStore.COLUMN_TYPE_COL},
+					null, null, null);
+			if (cursor.moveToFirst()) {
+				do {
+					String soupName = cursor.getString(0);
+					List<IndexSpec> indexSpecs = indexSpecsLists.get(soupName);
+					if (indexSpecs == null) {
+						indexSpecs = new ArrayList<IndexSpec>();
+						indexSpecsLists.put(soupName, indexSpecs);
+					}
+					indexSpecs.add(new IndexSpec(cursor.getString(1), Type.valueOf(cursor.getString(3)), cursor.getString(2)));
+				} while (cursor.moveToNext());
+			}
+		}
+		finally {
+			safeClose(cursor);
+		}
+		Map<String, IndexSpec[]> indexSpecsMap = new HashMap<String, IndexSpec[]>();
+		for (Entry<String, List<IndexSpec>> entry : indexSpecsLists.entrySet()) {
+			indexSpecsMap.put(entry.getKey(), entry.getValue().toArray(new IndexSpec[0]));
+		}
+		synchronized(soupMetadataUpdateLock) {
+			soupNameToTableNamesMap = Collections.unmodifiableMap(tableNames);
+			soupNameToIndexSpecsMap = Collections.unmodifiableMap(indexSpecsMap);
+			soupNameToFormatsMap = Collections.unmodifiableMap(soupFormats);
+		}
 	}
 
 	/**
@@ -125,6 +473,50 @@ public class DBHelper {
 		return soupNameToIndexSpecsMap.get(soupName);
 	}
 
+	/**
+	 * @param smartSql
+	 * @param sql
+	 */
+	public void cacheSql(String smartSql, String sql) {
+		smartSqlToSqlCache.put(smartSql, sql);
+	}
+
+	/**
+	 * @param smartSql
+	 * @return
+	 */
+	public String getCachedSql(String smartSql) {
+		return smartSqlToSqlCache.get(smartSql);
+	}
+
+	/**
+	 * @return number of smart sql conversions served from the cache
+	 */
+	public int getSmartSqlCacheHitCount() {
+		return smartSqlToSqlCache.hitCount();
+	}
+
+	/**
+	 * @return number of smart sql conversions not found in the cache
+	 */
+	public int getSmartSqlCacheMissCount() {
+		return smartSqlToSqlCache.missCount();
+	}
+
+	/**
+	 * @return number of count queries run with a cached compiled statement
+	 */
+	public int getRawCountSqlCacheHitCount() {
+		return rawCountSqlToStatementsCache.hitCount();
+	}
+
+	/**
+	 * @return number of count queries that required compiling a statement
+	 */
+	public int getRawCountSqlCacheMissCount() {
+		return rawCountSqlToStatementsCache.missCount();
+	}
+
 	/**
 	 * @param soupName
 	 */
@@ -138,37 +530,94 @@ public class DBHelper {
 			SQLiteStatement prog = tableNameToNextIdStatementsMap.remove(tableName);
 			if (prog != null) 
 				prog.close();
+			tableNameToNextIdsMap.remove(tableName);
+
+			SQLiteStatement insertProg = tableNameToInsertStatementsMap.remove(tableName);
+			if (insertProg != null)
+				insertProg.close();
+
+			SQLiteStatement updateProg = tableNameToUpdateStatementsMap.remove(tableName);
+			if (updateProg != null)
+				updateProg.close();
 			
-			cleanupRawCountSqlToStatementMaps(tableName);
+			// Matching whole table names only (TABLE_1 should not match TABLE_10), the soup's own tables (e.g. TABLE_1_fts) included
+			Pattern tableNamePattern = Pattern.compile("(?<!\\w)" + Pattern.quote(tableName) + "(?!\\d)");
+			cleanupRawCountSqlToStatementMaps(tableNamePattern);
+			cleanupSmartSqlToSqlCache(tableNamePattern);
+		}
+		SoupEltCache soupEltCache = soupNameToEltCachesMap.get(soupName);
+		if (soupEltCache != null) {
+			soupEltCache.clear();
+		}
+		synchronized(soupMetadataUpdateLock) {
+			Map<String, String> tableNames = new HashMap<String, String>(soupNameToTableNamesMap);
+			tableNames.remove(soupName);
+			Map<String, IndexSpec[]> indexSpecsMap = new HashMap<String, IndexSpec[]>(soupNameToIndexSpecsMap);
+			indexSpecsMap.remove(soupName);
+			Map<String, SoupFormat> soupFormats = new HashMap<String, SoupFormat>(soupNameToFormatsMap);
+			soupFormats.remove(soupName);
+			soupNameToTableNamesMap = Collections.unmodifiableMap(tableNames);
+			soupNameToIndexSpecsMap = Collections.unmodifiableMap(indexSpecsMap);
+			soupNameToFormatsMap = Collections.unmodifiableMap(soupFormats);
 		}
-		soupNameToTableNamesMap.remove(soupName);
-		soupNameToIndexSpecsMap.remove(soupName);
 	}
 
-	private void cleanupRawCountSqlToStatementMaps(String tableName) {
-		List<String> countSqlToRemove = new ArrayList<String>();
-		for (Entry<String, SQLiteStatement>  entry : rawCountSqlToStatementsMap.entrySet()) {
-			String countSql = entry.getKey();
-			if (countSql.contains(tableName)) {
-				SQLiteStatement countProg = entry.getValue();
-				if (countProg != null)
-					countProg.close();
-				countSqlToRemove.add(countSql);
+	private void cleanupRawCountSqlToStatementMaps(Pattern tableNamePattern) {
+		for (String countSql : rawCountSqlToStatementsCache.snapshot().keySet()) {
+			if (tableNamePattern.matcher(countSql).find()) {
+				rawCountSqlToStatementsCache.remove(countSql); // closes statement
 			}
 		}
-		for (String countSql : countSqlToRemove) {
-			rawCountSqlToStatementsMap.remove(countSql);
+	}
+
+	private void cleanupSmartSqlToSqlCache(Pattern tableNamePattern) {
+		for (Entry<String, String> entry : smartSqlToSqlCache.snapshot().entrySet()) {
+			if (tableNamePattern.matcher(entry.getValue()).find()) {
+				smartSqlToSqlCache.remove(entry.getKey());
+			}
 		}
 	}
 
 	/**
-	 * Get next id for a table
+	 * Get next id for a table (without consuming it)
+	 * Note: the sequence table is only read the first time, afterwards the in-memory allocator is used
 	 * 
 	 * @param db
 	 * @param tableName
 	 * @return long
 	 */
 	public long getNextId(SQLiteDatabase db, String tableName) {
+		Long nextId = tableNameToNextIdsMap.get(tableName);
+		if (nextId == null) {
+			nextId = getNextIdFromSequence(db, tableName);
+			tableNameToNextIdsMap.put(tableName, nextId);
+		}
+		return nextId;
+	}
+
+	/**
+	 * Allocate next id for a table
+	 * Ids are handed out from memory, the sequence table is only read the first time
+	 * Ids allocated for inserts that fail or are rolled back are not reused (autoincrement tables only require ids to be increasing)
+	 * 
+	 * @param db
+	 * @param tableName
+	 * @return long
+	 */
+	public long allocateId(SQLiteDatabase db, String tableName) {
+		long nextId = getNextId(db, tableName);
+		tableNameToNextIdsMap.put(tableName, nextId + 1);
+		return nextId;
+	}
+
+	/**
+	 * Read next id for a table from the sequence table
+	 * 
+	 * @param db
+	 * @param tableName
+	 * @return long
+	 */
+	private long getNextIdFromSequence(SQLiteDatabase db, String tableName) {
 		SQLiteStatement prog = tableNameToNextIdStatementsMap.get(tableName);
 		if (prog == null) {
 			prog = db.compileStatement(SEQ_SELECT);
@@ -197,6 +646,56 @@ public class DBHelper {
 		return insertHelper;
 	}
 
+	/**
+	 * Get compiled insert statement for a soup table
+	 * Parameters are: id, soup, created, lastModified followed by one parameter per index spec
+	 *
+	 * @param db
+	 * @param table
+	 * @param indexSpecs
+	 * @return
+	 */
+	public SQLiteStatement getInsertStatement(SQLiteDatabase db, String table, IndexSpec[] indexSpecs) {
+		SQLiteStatement prog = tableNameToInsertStatementsMap.get(table);
+		if (prog == null) {
+			StringBuilder columns = new StringBuilder();
+			StringBuilder params = new StringBuilder();
+			columns.append(SmartStore.ID_COL).append(", ").append(SmartStore.SOUP_COL)
+					.append(", ").append(SmartStore.CREATED_COL).append(", ").append(SmartStore.LAST_MODIFIED_COL);
+			params.append("?, ?, ?, ?");
+			for (IndexSpec indexSpec : indexSpecs) {
+				columns.append(", ").append(indexSpec.columnName);
+				params.append(", ?");
+			}
+			prog = db.compileStatement(String.format(INSERT_STMT, table, columns, params));
+			tableNameToInsertStatementsMap.put(table, prog);
+		}
+		return prog;
+	}
+
+	/**
+	 * Get compiled update statement for a soup table
+	 * Parameters are: soup, lastModified followed by one parameter per index spec and finally id
+	 *
+	 * @param db
+	 * @param table
+	 * @param indexSpecs
+	 * @return
+	 */
+	public SQLiteStatement getUpdateStatement(SQLiteDatabase db, String table, IndexSpec[] indexSpecs) {
+		SQLiteStatement prog = tableNameToUpdateStatementsMap.get(table);
+		if (prog == null) {
+			StringBuilder assignments = new StringBuilder();
+			assignments.append(SmartStore.SOUP_COL).append(" = ?, ").append(SmartStore.LAST_MODIFIED_COL).append(" = ?");
+			for (IndexSpec indexSpec : indexSpecs) {
+				assignments.append(", ").append(indexSpec.columnName).append(" = ?");
+			}
+			prog = db.compileStatement(String.format(UPDATE_STMT, table, assignments, SmartStore.ID_PREDICATE));
+			tableNameToUpdateStatementsMap.put(table, prog);
+		}
+		return prog;
+	}
+
 	/**
 	 * Does a count query
 	 * @param db
@@ -220,8 +719,18 @@ public class DBHelper {
 	 * @return
 	 */
 	public Cursor limitRawQuery(SQLiteDatabase db, String sql, String limit, String... whereArgs) {
-		String limitSql = String.format(LIMIT_SELECT, sql, limit);
-		return db.rawQuery(limitSql, whereArgs);
+		// Limit values are bound (instead of being inlined) so that all pages share the same compiled statement
+		String[] limitArgs = limit.split(",");
+		String limitSql = String.format(LIMIT_SELECT, sql, limitArgs.length == 2 ? "?,?" : "?");
+		int whereArgsLength = (whereArgs == null ? 0 : whereArgs.length);
+		String[] args = new String[whereArgsLength + limitArgs.length];
+		if (whereArgsLength > 0) {
+			System.arraycopy(whereArgs, 0, args, 0, whereArgsLength);
+		}
+		for (int i=0; i<limitArgs.length; i++) {
+			args[whereArgsLength + i] = limitArgs[i].trim();
+		}
+		return db.rawQuery(limitSql, args);
 	}
 
 	/**
@@ -232,22 +741,25 @@ public class DBHelper {
 	 * @return
 	 */
 	public int countRawCountQuery(SQLiteDatabase db, String countSql, String... whereArgs) {
-		SQLiteStatement prog = rawCountSqlToStatementsMap.get(countSql);
-		if (prog == null) {
-			prog = db.compileStatement(countSql);
-			rawCountSqlToStatementsMap.put(countSql, prog);
-		}
-		if (whereArgs != null) {
-			for (int i=0; i<whereArgs.length; i++) {
-				prog.bindString(i+1, whereArgs[i]);
+		// Compiled statements are shared by concurrent readers and can be closed when evicted from the cache
+		synchronized(rawCountSqlToStatementsCache) {
+			SQLiteStatement prog = rawCountSqlToStatementsCache.get(countSql);
+			if (prog == null) {
+				prog = db.compileStatement(countSql);
+				rawCountSqlToStatementsCache.put(countSql, prog);
+			}
+			if (whereArgs != null) {
+				for (int i=0; i<whereArgs.length; i++) {
+					prog.bindString(i+1, whereArgs[i]);
+				}
+			}
+			try {
+				int count =  (int) prog.simpleQueryForLong();
+				prog.clearBindings();
+				return count;
+			} catch (SQLiteDoneException e) {
+				return -1;
 			}
-		}
-		try {
-			int count =  (int) prog.simpleQueryForLong();
-			prog.clearBindings();
-			return count;
-		} catch (SQLiteDoneException e) {
-			return -1;
 		}
 	}
 
@@ -321,6 +833,7 @@ public class DBHelper {
 	 */
 	public synchronized void reset(Context ctx) {
 		clearMemoryCache();
+		shutdownSoupChangeExecutor();
 		final List<UserAccount> accounts = SalesforceSDKManagerWithSmartStore.getInstance().getUserAccountManager().getAuthenticatedUsers();
 		if (accounts != null) {
 			for (final UserAccount account : accounts) {
@@ -337,6 +850,7 @@ public class DBHelper {
 	 */
 	public synchronized void reset(Context ctx, UserAccount account) {
 		clearMemoryCache();
+		shutdownSoupChangeExecutor();
 		DBOpenHelper.deleteDatabase(ctx, account);
 	}
 
@@ -352,16 +866,30 @@ public class DBHelper {
 		for (final SQLiteStatement prog : tableNameToNextIdStatementsMap.values()) {
 			prog.close();
 		}
-		for (final SQLiteStatement rawCountSql : rawCountSqlToStatementsMap.values()) {
-			rawCountSql.close();
+		for (final SQLiteStatement prog : tableNameToInsertStatementsMap.values()) {
+			prog.close();
+		}
+		for (final SQLiteStatement prog : tableNameToUpdateStatementsMap.values()) {
+			prog.close();
 		}
 
 		// Clears all maps.
-		soupNameToTableNamesMap.clear();
-		soupNameToIndexSpecsMap.clear();
+		synchronized(soupMetadataUpdateLock) {
+			soupNameToTableNamesMap = Collections.emptyMap();
+			soupNameToIndexSpecsMap = Collections.emptyMap();
+			soupNameToFormatsMap = Collections.emptyMap();
+		}
 		tableNameToInsertHelpersMap.clear();
 		tableNameToNextIdStatementsMap.clear();
-		rawCountSqlToStatementsMap.clear();
+		tableNameToNextIdsMap.clear();
+		rawCountSqlToStatementsCache.evictAll(); // closes statements
+		smartSqlToSqlCache.evictAll();
+		for (final SoupEltCache soupEltCache : soupNameToEltCachesMap.values()) {
+			soupEltCache.clear();
+		}
+		soupNameToEltCachesMap.clear();
+		tableNameToInsertStatementsMap.clear();
+		tableNameToUpdateStatementsMap.clear();
 	}
 
     /**
@@ -418,6 +946,39 @@ public class DBHelper {
         }
     }
 
+    /**
+     * Read soup format back from the soup names table
+     * @param db
+     * @param soupName
+     * @return
+     */
+    public SoupFormat getSoupFormat(SQLiteDatabase db, String soupName) {
+        SoupFormat soupFormat = getCachedSoupFormat(soupName);
+        if (soupFormat == null) {
+            Cursor cursor = null;
+            try {
+                cursor = query(db, SmartStore.SOUP_NAMES_TABLE, new String[] {SmartStore.SOUP_FORMAT_COL}, null, null, SmartStore.SOUP_NAME_PREDICATE, soupName);
+                if (!cursor.moveToFirst()) {
+                    throw new SmartStoreException("Soup: " + soupName + " does not exist");
+                }
+                soupFormat = toSoupFormat(cursor.getString(0));
+            }
+            finally {
+                safeClose(cursor);
+            }
+            cacheSoupFormat(soupName, soupFormat);
+        }
+        return soupFormat;
+    }
+
+    /**
+     * @param soupFormatStr
+     * @return soup format (json for soups registered before soup formats existed)
+     */
+    private static SoupFormat toSoupFormat(String soupFormatStr) {
+        return soupFormatStr == null ? SoupFormat.json : SoupFormat.valueOf(soupFormatStr);
+    }
+
     /**
      * Return table name for a given soup or null if the soup doesn't exist
      * @param db
@@ -47,7 +47,8 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 
 	// 1 --> up until 2.3
 	// 2 --> starting at 2.3 (new meta data table long_operations_status)
-	public static final int DB_VERSION = 2;
+	// 3 --> starting at 3.3 (new meta data table soup_compound_index_map and new column soupFormat in soup_names)
+	public static final int DB_VERSION = 3;
 	public static final String DEFAULT_DB_NAME = "smartstore";
 	private static final String DB_NAME_SUFFIX = ".db";
 	private static final String ORG_KEY_PREFIX = "00D";
@@ -162,12 +163,19 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 		if (oldVersion == 1) {
 			SmartStore.createLongOperationsStatusTable(db);
 		}
+		if (oldVersion < 3) {
+			SmartStore.createCompoundIndexMapTable(db);
+			SmartStore.addSoupFormatColumn(db);
+		}
 	}
 	
 	@Override
 	@SuppressWarnings("deprecation")
 	public void onOpen(SQLiteDatabase db) {
 		(new SmartStore(db)).resumeLongOperations();
+
+		// Loading all soups' metadata now so that lookups don't have to go to the database later
+		DBHelper.getInstance(db).loadSoupMetadata(db);
 	}
 
 	/**
@@ -27,9 +27,11 @@
 package com.salesforce.androidsdk.smartstore.store;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -44,17 +46,20 @@ public class IndexSpec {
     public final String path;
     public final Type type;
     public final String columnName;
+    public final CompiledPath compiledPath;
+
+    // Path groups of index specs arrays (keyed by array identity, arrays cached by DBHelper are reused for every write)
+    private static final Map<IndexSpec[], CompiledPath.Group> GROUPS = Collections.synchronizedMap(new WeakHashMap<IndexSpec[], CompiledPath.Group>());
 
     public IndexSpec(String path, Type type) {
-        this.path = path;
-        this.type = type;
-        this.columnName = null; // undefined
+        this(path, type, null /* undefined */);
     }
 
     public IndexSpec(String path, Type type, String columnName) {
         this.path = path;
         this.type = type;
         this.columnName = columnName;
+        this.compiledPath = CompiledPath.compile(path);
     }
 
     @Override
@@ -144,6 +149,25 @@ public class IndexSpec {
 	}
 	
 	
+	/**
+	 * Project the paths of all the index specs with a single traversal of the soup element
+	 * @param soupElt
+	 * @param indexSpecs
+	 * @return values at the paths of the index specs (in the same order as indexSpecs)
+	 */
+	public static Object[] projectAll(JSONObject soupElt, IndexSpec[] indexSpecs) {
+		CompiledPath.Group group = GROUPS.get(indexSpecs);
+		if (group == null) {
+			CompiledPath[] compiledPaths = new CompiledPath[indexSpecs.length];
+			for (int i = 0; i < indexSpecs.length; i++) {
+				compiledPaths[i] = indexSpecs[i].compiledPath;
+			}
+			group = new CompiledPath.Group(compiledPaths);
+			GROUPS.put(indexSpecs, group);
+		}
+		return group.project(soupElt);
+	}
+
 	/**
 	 * @param indexSpecs
 	 * @return map index spec path to index spec
@@ -26,6 +26,7 @@
  */
 package com.salesforce.androidsdk.smartstore.store;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -45,19 +46,23 @@ public class QuerySpec {
 	private static final String FROM = "FROM ";
 	private static final String WHERE = "WHERE ";
 	private static final String ORDER_BY = "ORDER BY ";
+	private static final String MATCH = " MATCH ? ";
 	
 	// Key members
 	public final QueryType queryType;
     public final int pageSize;
     public final String smartSql;
     public final String countSmartSql;
+    public final boolean typedColumns; // smart queries only: true to map values using their storage class instead of guessing their type from their text
 
-    // Exact/Range/Like
+    // Exact/Range/Like/Match
 	public final String soupName;
+    public final String[] selectPaths; // null to get whole soup elements back
     public final String path;
+    public final String orderPath;
     public final Order order;
 
-    // Exact
+    // Exact/Match
     public final String matchKey;
     // Range
     public final String beginKey;
@@ -66,9 +71,11 @@ public class QuerySpec {
     public final String likeKey;
 
     // Private constructor for soup query spec
-    private QuerySpec(String soupName, String path, QueryType queryType, String matchKey, String beginKey, String endKey, String likeKey, Order order, int pageSize) {
+    private QuerySpec(String soupName, String[] selectPaths, String path, QueryType queryType, String matchKey, String beginKey, String endKey, String likeKey, String orderPath, Order order, int pageSize) {
     	this.soupName = soupName;
+        this.selectPaths = selectPaths;
         this.path = path;
+        this.orderPath = orderPath;
         this.queryType = queryType;
         this.matchKey = matchKey;
         this.beginKey = beginKey;
@@ -76,20 +83,24 @@ public class QuerySpec {
         this.likeKey = likeKey;
         this.order = order;
         this.pageSize = pageSize;
+        this.typedColumns = false;
         this.smartSql = computeSmartSql();
         this.countSmartSql = computeCountSql();
     }
 
     // Private constructor for smart query spec
-    private QuerySpec(String smartSql, int pageSize) {
+    private QuerySpec(String smartSql, int pageSize, boolean typedColumns) {
     	this.smartSql = smartSql;
         this.countSmartSql = computeCountSql(smartSql);
     	this.pageSize = pageSize;
+    	this.typedColumns = typedColumns;
         this.queryType = QueryType.smart;
     	
     	// Not applicable
         this.soupName = null;
+        this.selectPaths = null;
         this.path = null;
+        this.orderPath = null;
         this.matchKey = null;
         this.beginKey = null;
         this.endKey = null;
@@ -97,6 +108,19 @@ public class QuerySpec {
         this.order = null;    	
     }
 
+    /**
+     * @param pageSize
+     * @return query spec identical to this one but with the given page size
+     */
+    public QuerySpec withPageSize(int pageSize) {
+    	if (pageSize == this.pageSize) {
+    		return this;
+    	}
+    	return queryType == QueryType.smart
+    			? new QuerySpec(smartSql, pageSize, typedColumns)
+    			: new QuerySpec(soupName, selectPaths, path, queryType, matchKey, beginKey, endKey, likeKey, orderPath, order, pageSize);
+    }
+
     /**
      * Return q auery spec for an all query
      * @param soupName
@@ -106,7 +130,20 @@ public class QuerySpec {
      * @return
      */
     public static QuerySpec buildAllQuerySpec(String soupName, String path, Order order, int pageSize) {
-    	return buildRangeQuerySpec(soupName, path, null, null, order, pageSize);
+    	return buildAllQuerySpec(soupName, null, path, order, pageSize);
+    }
+
+    /**
+     * Return a query spec for an all query only returning selectPaths
+     * @param soupName
+     * @param selectPaths paths to return (see SmartStore.query) or null to get whole soup elements back
+     * @param path
+     * @param order
+     * @param pageSize
+     * @return
+     */
+    public static QuerySpec buildAllQuerySpec(String soupName, String[] selectPaths, String path, Order order, int pageSize) {
+    	return buildRangeQuerySpec(soupName, selectPaths, path, null, null, order, pageSize);
     }
     
     /**
@@ -118,7 +155,20 @@ public class QuerySpec {
      * @return
      */
     public static QuerySpec buildExactQuerySpec(String soupName, String path, String exactMatchKey, int pageSize) {
-        return new QuerySpec(soupName, path, QueryType.exact, exactMatchKey, null, null, null, Order.ascending /* meaningless - all rows will have the same value in the indexed column*/, pageSize);
+        return buildExactQuerySpec(soupName, null, path, exactMatchKey, pageSize);
+    }
+
+    /**
+     * Return a query spec for an exact match query only returning selectPaths
+     * @param soupName
+     * @param selectPaths paths to return (see SmartStore.query) or null to get whole soup elements back
+     * @param path
+     * @param exactMatchKey
+     * @param pageSize
+     * @return
+     */
+    public static QuerySpec buildExactQuerySpec(String soupName, String[] selectPaths, String path, String exactMatchKey, int pageSize) {
+        return new QuerySpec(soupName, selectPaths, path, QueryType.exact, exactMatchKey, null, null, null, path, Order.ascending /* meaningless - all rows will have the same value in the indexed column*/, pageSize);
     }
 
     /**
@@ -132,7 +182,22 @@ public class QuerySpec {
      * @return
      */
     public static QuerySpec buildRangeQuerySpec(String soupName, String path, String beginKey, String endKey, Order order, int pageSize) {
-        return new QuerySpec(soupName, path, QueryType.range, null, beginKey, endKey, null, order, pageSize);
+        return buildRangeQuerySpec(soupName, null, path, beginKey, endKey, order, pageSize);
+    }
+
+    /**
+     * Return a query spec for a range query only returning selectPaths
+     * @param soupName
+     * @param selectPaths paths to return (see SmartStore.query) or null to get whole soup elements back
+     * @param path
+     * @param beginKey
+     * @param endKey
+     * @param order
+     * @param pageSize
+     * @return
+     */
+    public static QuerySpec buildRangeQuerySpec(String soupName, String[] selectPaths, String path, String beginKey, String endKey, Order order, int pageSize) {
+        return new QuerySpec(soupName, selectPaths, path, QueryType.range, null, beginKey, endKey, null, path, order, pageSize);
     }
 
     /**
@@ -145,7 +210,53 @@ public class QuerySpec {
      * @return
      */
     public static QuerySpec buildLikeQuerySpec(String soupName, String path, String likeKey, Order order, int pageSize) {
-        return new QuerySpec(soupName, path, QueryType.like, null, null, null, likeKey, order, pageSize);
+        return buildLikeQuerySpec(soupName, null, path, likeKey, order, pageSize);
+    }
+
+    /**
+     * Return a query spec for a like query only returning selectPaths
+     * @param soupName
+     * @param selectPaths paths to return (see SmartStore.query) or null to get whole soup elements back
+     * @param path
+     * @param likeKey
+     * @param order
+     * @param pageSize
+     * @return
+     */
+    public static QuerySpec buildLikeQuerySpec(String soupName, String[] selectPaths, String path, String likeKey, Order order, int pageSize) {
+        return new QuerySpec(soupName, selectPaths, path, QueryType.like, null, null, null, likeKey, path, order, pageSize);
+    }
+
+    /**
+     * Return a query spec for a full-text match query
+     * Only full_text indexed paths can be searched, matchKey uses the sqlite full-text query syntax (e.g. "smi*" for a prefix search)
+     * When orderPath is null, results are ranked by relevance (most matching terms first)
+     *
+     * @param soupName
+     * @param path full_text indexed path to search or null to search all the full_text indexed paths of the soup
+     * @param matchKey
+     * @param orderPath
+     * @param order
+     * @param pageSize
+     * @return
+     */
+    public static QuerySpec buildMatchQuerySpec(String soupName, String path, String matchKey, String orderPath, Order order, int pageSize) {
+        return buildMatchQuerySpec(soupName, null, path, matchKey, orderPath, order, pageSize);
+    }
+
+    /**
+     * Return a query spec for a full-text match query only returning selectPaths
+     * @param soupName
+     * @param selectPaths paths to return (see SmartStore.query) or null to get whole soup elements back
+     * @param path
+     * @param matchKey
+     * @param orderPath
+     * @param order
+     * @param pageSize
+     * @return
+     */
+    public static QuerySpec buildMatchQuerySpec(String soupName, String[] selectPaths, String path, String matchKey, String orderPath, Order order, int pageSize) {
+        return new QuerySpec(soupName, selectPaths, path, QueryType.match, matchKey, null, null, null, orderPath, order, pageSize);
     }
 
     /**
@@ -155,7 +266,28 @@ public class QuerySpec {
      * @return
      */
     public static QuerySpec buildSmartQuerySpec(String smartSql, int pageSize) {
-    	return new QuerySpec(smartSql, pageSize);
+    	return new QuerySpec(smartSql, pageSize, false);
+    }
+
+    /**
+     * Return a query spec for a smart query
+     * @param smartSql
+     * @param pageSize
+     * @param typedColumns true to map values using their storage class (a string made of digits comes back as a string, a null as a null)
+     *                     instead of guessing their type from their text
+     * @return
+     */
+    public static QuerySpec buildSmartQuerySpec(String smartSql, int pageSize, boolean typedColumns) {
+    	return new QuerySpec(smartSql, pageSize, typedColumns);
+    }
+
+    /**
+     * Return a query spec for a smart query run without paging (e.g. with SmartStore.streamQuery)
+     * @param smartSql
+     * @return
+     */
+    public static QuerySpec buildSmartQuerySpec(String smartSql) {
+    	return new QuerySpec(smartSql, Integer.MAX_VALUE, false);
     }
 
     /**
@@ -169,6 +301,24 @@ public class QuerySpec {
     	return selectClause + fromClause + whereClause + orderClause;
     }
 
+    /**
+     * Compute smartSql for exact/like/range/match queries selecting the given columns instead of the soup column
+     * Used for queries with select paths (see SmartStore.query)
+     *
+     * @param columns comma separated list of columns
+     */
+    public String computeSmartSql(String columns) {
+    	return SELECT + columns + " " + computeFromClause() + computeWhereClause() + computeOrderClause();
+    }
+
+    /**
+     * Compute smartSql selecting only the soup entry ids of the soup elements matching exact/like/range/match queries (in no particular order)
+     * Used to delete the soup elements matching a query (see SmartStore.deleteByQuery)
+     */
+    public String computeSoupEntryIdsSmartSql() {
+    	return SELECT + computeFieldReference(SmartStore.SOUP_ENTRY_ID) + " " + computeFromClause() + computeWhereClause();
+    }
+
     /**
      * Compute countSmartSql for exact/like/range queries
      */
@@ -193,16 +343,23 @@ public class QuerySpec {
     }
 
     /**
-     * @return from clause for exact/like/range queries
+     * @return from clause for exact/like/range/match queries
      */
     private String computeFromClause() {
+    	if (queryType == QueryType.match) {
+    		return FROM + computeSoupReference() + ", " + computeSoupFtsReference() + " ";
+    	}
         return FROM  + computeSoupReference() + " ";
     }
     
     /**
-     * @return where clause for exact/like/range queries
+     * @return where clause for exact/like/range/match queries
      */
     private String computeWhereClause() {
+    	if (queryType == QueryType.match) {
+    		String ftsField = (path == null ? computeSoupFtsReference() : computeSoupFtsReference() + "." + computeFieldReference(path));
+    		return WHERE + computeSoupFtsReference() + ".docid = " + computeFieldReference(SmartStore.SOUP_ENTRY_ID) + " AND " + ftsField + MATCH;
+    	}
     	if (path == null) return "";
     	
     	String field = computeFieldReference(path);
@@ -222,12 +379,141 @@ public class QuerySpec {
     }
 
     /**
-     * @return order clause for exact/like/range queries
+     * @return order clause for exact/like/range/match queries
+     * Note: rows with the same value are ordered by soup entry id so that page index and keyset pagination see the same order
      */
     private String computeOrderClause() {
-    	if (path == null) return "";
+    	String idField = computeFieldReference(SmartStore.SOUP_ENTRY_ID);
+    	if (queryType == QueryType.match) {
+    		if (orderPath == null) return ORDER_BY + computeRank() + " " + Order.descending.sql + ", " + idField + " " + Order.ascending.sql + " ";
+
+    		// Qualifying the column (full_text indexed columns exist in both the soup table and its fts table)
+    		return ORDER_BY + computeSoupReference() + "." + computeFieldReference(orderPath) + " " + order.sql + ", " + idField + " " + order.sql + " ";
+    	}
+    	if (orderPath == null) return ORDER_BY + idField + " " + (order == null ? Order.ascending : order).sql + " ";
+
+    	return ORDER_BY + computeFieldReference(orderPath) + " " + order.sql + ", " + idField + " " + order.sql + " ";
+    }
+
+    /**
+     * @return relevance of a row for match queries: number of matching terms
+     * Note: offsets() returns 4 space separated integers per matching term, so we count the integers in its output (matchinfo() needs a custom function to be decoded)
+     * Removing the digits leaves the separators only: offsets() gets called once per row
+     */
+    private String computeRank() {
+    	String separators = "offsets(" + computeSoupFtsReference() + ")";
+    	for (char digit = '0'; digit <= '9'; digit++) {
+    		separators = "replace(" + separators + ", '" + digit + "', '')";
+    	}
+    	return "((length(" + separators + ") + 1) / 4)";
+    }
 
-    	return ORDER_BY + computeFieldReference(path) + " " + order.sql + " ";
+    /**
+     * Compute smartSql to fetch the page following afterKey (keyset pagination)
+     * Unlike page index pagination, the cost of fetching a page does not depend on how deep the page is
+     *
+     * @param afterKey key of last row of previous page or null to get the first page
+     * @return smart sql for exact/like/range queries
+     */
+    public String computeKeysetSmartSql(PageKey afterKey) {
+    	checkKeysetSupported();
+    	return computeSeekSmartSql(afterKey == null ? null : computeSeekPredicate(afterKey));
+    }
+
+    /**
+     * Compute smartSql to fetch the rows following the ones returned by computeKeysetSmartSql(afterKey) when they don't fill a page
+     * Rows without value come first (ascending) or last (descending) and are fetched separately,
+     * so that the seek predicates stay ranges of the index on the path column
+     *
+     * @param afterKey key of last row of previous page
+     * @return smart sql for exact/like/range queries or null if no rows follow
+     */
+    public String computeKeysetFollowingSmartSql(PageKey afterKey) {
+    	checkKeysetSupported();
+    	if (path == null || afterKey == null) {
+    		return null;
+    	}
+    	String field = computeFieldReference(path);
+    	boolean ascending = (order != Order.descending);
+    	if (ascending && afterKey.lastValue == null) {
+    		return computeSeekSmartSql(field + " IS NOT NULL");
+    	}
+    	if (!ascending && afterKey.lastValue != null) {
+    		return computeSeekSmartSql(field + " IS NULL");
+    	}
+    	return null;
+    }
+
+    /**
+     * @param afterKey key of last row of previous page or null to get the first page
+     * @return args going with the sql returned by computeKeysetSmartSql
+     */
+    public String[] getKeysetArgs(PageKey afterKey) {
+    	checkKeysetSupported();
+    	String[] args = getArgs();
+    	if (afterKey == null) {
+    		return args;
+    	}
+    	String lastId = Long.toString(afterKey.lastSoupEntryId);
+    	String[] seekArgs = (path == null || afterKey.lastValue == null
+    			? new String[] {lastId}
+    			: new String[] {afterKey.lastValue, afterKey.lastValue, lastId});
+    	if (args == null) {
+    		return seekArgs;
+    	}
+    	String[] allArgs = new String[args.length + seekArgs.length];
+    	System.arraycopy(args, 0, allArgs, 0, args.length);
+    	System.arraycopy(seekArgs, 0, allArgs, args.length, seekArgs.length);
+    	return allArgs;
+    }
+
+    /**
+     * @param seekPred predicate to add to the where clause or null
+     * @return smart sql for exact/like/range queries restricted by seekPred
+     */
+    private String computeSeekSmartSql(String seekPred) {
+    	String whereClause = computeWhereClause();
+    	if (seekPred != null) {
+    		whereClause = (whereClause.equals("") ? WHERE : whereClause + "AND ") + seekPred + " ";
+    	}
+    	return computeSelectClause() + computeFromClause() + whereClause + computeOrderClause();
+    }
+
+    /**
+     * @param afterKey
+     * @return predicate selecting rows that come after afterKey in the query order and have a value (or no value if afterKey has none)
+     * Note: the index on the path column is (value, id) since id is the rowid, the predicates are ranges of that index
+     * (no OR with IS NULL / IS NOT NULL, which would keep sqlite from using it), rows in the other null-ness come from computeKeysetFollowingSmartSql
+     * Note: row values comparisons ((value, id) > (?, ?)) would be simpler but need sqlite 3.15
+     */
+    private String computeSeekPredicate(PageKey afterKey) {
+    	String idField = computeFieldReference(SmartStore.SOUP_ENTRY_ID);
+    	String op = (order != Order.descending) ? ">" : "<";
+    	if (path == null) {
+    		return idField + " " + op + " ?";
+    	}
+
+    	String field = computeFieldReference(path);
+    	if (afterKey.lastValue == null) {
+    		return "(" + field + " IS NULL AND " + idField + " " + op + " ?)";
+    	}
+    	return "(" + field + " " + op + "= ? AND (" + field + " " + op + " ? OR " + idField + " " + op + " ?))";
+    }
+
+    /**
+     * @return true if keyset pagination can be used (exact/like/range queries only)
+     */
+    public boolean supportsKeysetPagination() {
+    	return queryType != QueryType.smart && queryType != QueryType.match && selectPaths == null;
+    }
+
+    /**
+     * Keyset pagination is only available for exact/like/range queries
+     */
+    private void checkKeysetSupported() {
+    	if (!supportsKeysetPagination()) {
+    		throw new SmartStoreException("Keyset pagination not supported for " + queryType + " queries, use page index instead");
+    	}
     }
     
 	/**
@@ -237,6 +523,13 @@ public class QuerySpec {
 		return "{" + soupName + "}";
 	}
 
+	/**
+	 * @return reference to the full-text table of the soup for smart sql query
+	 */
+	private String computeSoupFtsReference() {
+		return computeSoupReference() + SmartStore.FTS_SUFFIX;
+	}
+
     
     /**
      * @param field
@@ -252,6 +545,7 @@ public class QuerySpec {
     public String[] getArgs() {
         switch(queryType) {
         case exact:
+        case match:
             return new String[] {matchKey};
         case like:
             return new String[] {likeKey};
@@ -286,17 +580,28 @@ public class QuerySpec {
 		String endKey = JSONObjectHelper.optString(querySpecJson, SmartStorePlugin.END_KEY);
 		String likeKey = JSONObjectHelper.optString(querySpecJson, SmartStorePlugin.LIKE_KEY);
 		String smartSql = JSONObjectHelper.optString(querySpecJson, SmartStorePlugin.SMART_SQL);
+		String orderPath = JSONObjectHelper.optString(querySpecJson, SmartStorePlugin.ORDER_PATH);
+		JSONArray selectPathsJson = querySpecJson.optJSONArray(SmartStorePlugin.SELECT_PATHS);
+		String[] selectPaths = null;
+		if (selectPathsJson != null) {
+			selectPaths = new String[selectPathsJson.length()];
+			for (int i = 0; i < selectPaths.length; i++) {
+				selectPaths[i] = selectPathsJson.getString(i);
+			}
+		}
 		
 		Order order = Order.valueOf(JSONObjectHelper.optString(querySpecJson, SmartStorePlugin.ORDER, "ascending"));
 		int pageSize = querySpecJson.getInt(SmartStorePlugin.PAGE_SIZE); 
+		boolean typedColumns = querySpecJson.optBoolean(SmartStorePlugin.TYPED_COLUMNS, false);
 	
 		// Building query spec
 		QuerySpec querySpec = null;
 		switch (queryType) {
-	    case exact:   querySpec = buildExactQuerySpec(soupName, path, matchKey, pageSize); break;
-	    case range:   querySpec = buildRangeQuerySpec(soupName, path, beginKey, endKey, order, pageSize); break;
-	    case like:    querySpec = buildLikeQuerySpec(soupName, path, likeKey, order, pageSize); break;
-	    case smart:   querySpec = buildSmartQuerySpec(smartSql, pageSize); break;
+	    case exact:   querySpec = buildExactQuerySpec(soupName, selectPaths, path, matchKey, pageSize); break;
+	    case range:   querySpec = buildRangeQuerySpec(soupName, selectPaths, path, beginKey, endKey, order, pageSize); break;
+	    case like:    querySpec = buildLikeQuerySpec(soupName, selectPaths, path, likeKey, order, pageSize); break;
+	    case match:   querySpec = buildMatchQuerySpec(soupName, selectPaths, path, matchKey, orderPath, order, pageSize); break;
+	    case smart:   querySpec = buildSmartQuerySpec(smartSql, pageSize, typedColumns); break;
 	    default: throw new RuntimeException("Fell through switch: " + queryType);
 		}
 		return querySpec;
@@ -309,10 +614,26 @@ public class QuerySpec {
         exact,
         range,
         like,
+        match,
         smart;
     }
 
 
+    /**
+     * Position of the last row of a page, used to fetch the next page with keyset pagination
+     */
+    public static class PageKey {
+    	// Value of the order by path in the last row (as stored in its index column) or null
+    	public final String lastValue;
+    	// Soup entry id of the last row
+    	public final long lastSoupEntryId;
+
+    	public PageKey(String lastValue, long lastSoupEntryId) {
+    		this.lastValue = lastValue;
+    		this.lastSoupEntryId = lastSoupEntryId;
+    	}
+    }
+
     /**
      * Simple class to represent query order
      */
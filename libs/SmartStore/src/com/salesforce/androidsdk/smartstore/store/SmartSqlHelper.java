@@ -26,9 +26,8 @@
  */
 package com.salesforce.androidsdk.smartstore.store;
 
-import java.util.HashMap;
 import java.util.Locale;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -43,7 +42,7 @@ import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException
  */
 public class SmartSqlHelper  {
 
-	private static Map<SQLiteDatabase, SmartSqlHelper> INSTANCES;
+	private static final ConcurrentHashMap<SQLiteDatabase, SmartSqlHelper> INSTANCES = new ConcurrentHashMap<SQLiteDatabase, SmartSqlHelper>();
 
 	/**
 	 * Returns the instance of this class associated with the database specified.
@@ -51,19 +50,22 @@ public class SmartSqlHelper  {
 	 * @param db Database.
 	 * @return Instance of this class.
 	 */
-	public static synchronized SmartSqlHelper getInstance(SQLiteDatabase db) {
-		if (INSTANCES == null) {
-			INSTANCES = new HashMap<SQLiteDatabase, SmartSqlHelper>();
-		}
+	public static SmartSqlHelper getInstance(SQLiteDatabase db) {
 		SmartSqlHelper instance = INSTANCES.get(db);
 		if (instance == null) {
-			instance = new SmartSqlHelper();
-			INSTANCES.put(db, instance);
+			SmartSqlHelper newInstance = new SmartSqlHelper();
+			instance = INSTANCES.putIfAbsent(db, newInstance);
+			if (instance == null) {
+				instance = newInstance;
+			}
 		}
 		return instance;
 	}
 
     public static final String SOUP = "_soup";
+
+	// Pattern matching {soupName} and {soupName:path}
+	private static final Pattern SOUP_REFERENCE_PATTERN = Pattern.compile("\\{([^}]+)\\}");
 	
 	/**
 	 * Convert "smart" sql query to actual sql
@@ -73,11 +75,23 @@ public class SmartSqlHelper  {
 	 *     only indexed path can be referenced (alternatively you can do {soupName:_soupEntryId} or {soupName:_soupLastModifiedDate}
 	 *     to get an entire soup element back, do {soupName:_soup}
 	 *
+	 * Converted sql is cached by DBHelper (cache entries referencing a soup are dropped when the soup is dropped or altered)
+	 *
 	 * @param db
 	 * @param smartSql
 	 * @return actual sql     
 	 */
 	public String convertSmartSql(SQLiteDatabase db, String smartSql) {
+		DBHelper dbHelper = DBHelper.getInstance(db);
+		String sql = dbHelper.getCachedSql(smartSql);
+		if (sql == null) {
+			sql = convertSmartSqlNoCache(db, smartSql);
+			dbHelper.cacheSql(smartSql, sql);
+		}
+		return sql;
+	}
+
+	private String convertSmartSqlNoCache(SQLiteDatabase db, String smartSql) {
 
 		// Select's only
 		String smartSqlLowerCase = smartSql.toLowerCase(Locale.getDefault()).trim();
@@ -86,9 +100,8 @@ public class SmartSqlHelper  {
 		}
 
 		// Replacing {soupName} and {soupName:path}
-		Pattern pattern  = Pattern.compile("\\{([^}]+)\\}");
 		StringBuffer sql = new StringBuffer();
-		Matcher matcher = pattern.matcher(smartSql);
+		Matcher matcher = SOUP_REFERENCE_PATTERN.matcher(smartSql);
 		while (matcher.find()) {
 			String fullMatch = matcher.group();
 			String match = matcher.group(1);
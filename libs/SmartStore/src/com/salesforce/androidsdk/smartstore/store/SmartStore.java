@@ -28,11 +28,22 @@ package com.salesforce.androidsdk.smartstore.store;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
 
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteException;
 import net.sqlcipher.database.SQLiteOpenHelper;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -41,10 +52,12 @@ import org.json.JSONObject;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.text.TextUtils;
+import android.util.Base64;
 import android.util.Log;
 
 import com.salesforce.androidsdk.smartstore.store.LongOperation.LongOperationType;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec.QueryType;
+import com.salesforce.androidsdk.smartstore.store.SoupChange.ChangeType;
 
 /**
  * Smart store
@@ -59,11 +72,24 @@ public class SmartStore  {
     // Default
     public static final int DEFAULT_PAGE_SIZE = 10;
 
+    // Default number of soup elements re-indexed per chunk (see reIndexSoup)
+    public static final int DEFAULT_RE_INDEX_CHUNK_SIZE = 1000;
+
+    // Max number of values in a single IN (...) lookup or id predicate (sqlite's default limit on host parameters is 999)
+    // Longer lists are split over several statements
+    protected static final int MAX_LOOKUP_BATCH_SIZE = 500;
+
+    // Compound selects (whose other selects could return ids of other soups) are not allowed in deleteByQuery smart queries
+    private static final Pattern DELETE_SMART_SQL_COMPOUND_PATTERN = Pattern.compile("\\b(union|intersect|except)\\b", Pattern.CASE_INSENSITIVE);
+
     // Table to keep track of soup names
     protected static final String SOUP_NAMES_TABLE = "soup_names";
 
     // Table to keep track of soup's index specs
     protected static final String SOUP_INDEX_MAP_TABLE = "soup_index_map";
+
+    // Table to keep track of soup's compound index specs
+    protected static final String SOUP_COMPOUND_INDEX_MAP_TABLE = "soup_compound_index_map";
     
     // Table to keep track of status of long operations in flight
     protected static final String LONG_OPERATIONS_STATUS_TABLE = "long_operations_status";
@@ -74,12 +100,23 @@ public class SmartStore  {
     protected static final String COLUMN_NAME_COL = "columnName";
     protected static final String COLUMN_TYPE_COL = "columnType";
 
+    // Column of the soup names table (besides id and soupName)
+    protected static final String SOUP_FORMAT_COL = "soupFormat";
+
+    // Columns of the soup compound index map table (besides soupName)
+    protected static final String INDEX_NAME_COL = "indexName";
+    protected static final String DEFINITION_COL = "definition";
+
     // Columns of a soup table
     protected static final String ID_COL = "id";
     protected static final String CREATED_COL = "created";
     protected static final String LAST_MODIFIED_COL = "lastModified";
     protected static final String SOUP_COL = "soup";
 
+    // Suffix of the full-text table of a soup (only created for soups with full_text index specs)
+    // Its rows have the soup entry id as docid and a column for each full_text indexed path (named like the column of the soup table)
+    protected static final String FTS_SUFFIX = "_fts";
+
     // Columns of long operations status table
 	protected static final String TYPE_COL = "type";
     protected static final String DETAILS_COL = "details";
@@ -99,17 +136,26 @@ public class SmartStore  {
 	protected SQLiteOpenHelper dbOpenHelper;
 	private String passcode;
 
+	// Re-indexing settings (see reIndexSoup)
+	private volatile int reIndexChunkSize = DEFAULT_RE_INDEX_CHUNK_SIZE;
+	private volatile long reIndexPauseMillis = 0;
+	private volatile ReIndexCallback reIndexCallback;
+
     /**
      * Changes the encryption key on the smartstore.
      *
      * @param db Database object.
      * @param newKey New encryption key.
      */
-    public static synchronized void changeKey(SQLiteDatabase db, String newKey) {
-    	synchronized(db) {
+    public static void changeKey(SQLiteDatabase db, String newKey) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
 	        if (newKey != null && !newKey.trim().equals("")) {
 	            db.execSQL("PRAGMA rekey = '" + newKey + "'");
 	        }
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -121,7 +167,9 @@ public class SmartStore  {
      * @param db
      */
     public static void createMetaTables(SQLiteDatabase db) {
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
 	        // Create soup_index_map table
 	        StringBuilder sb = new StringBuilder();
 	        sb.append("CREATE TABLE ").append(SOUP_INDEX_MAP_TABLE).append(" (")
@@ -140,6 +188,7 @@ public class SmartStore  {
 	        sb.append("CREATE TABLE ").append(SOUP_NAMES_TABLE).append(" (")
 	                    .append(ID_COL).append(" INTEGER PRIMARY KEY AUTOINCREMENT")
 	                    .append(",").append(SOUP_NAME_COL).append(" TEXT")
+	                    .append(",").append(SOUP_FORMAT_COL).append(" TEXT")
 	                      .append(")");
 	        db.execSQL(sb.toString());
 	        // Add index on soup_name column
@@ -147,6 +196,46 @@ public class SmartStore  {
 	        
 	        // Create alter_soup_status table
 	        createLongOperationsStatusTable(db);
+
+	        // Create soup_compound_index_map table
+	        createCompoundIndexMapTable(db);
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Add soup format column to soup_names table (databases created before soup formats)
+     * @param db
+     */
+    public static void addSoupFormatColumn(SQLiteDatabase db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
+    		db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s TEXT", SOUP_NAMES_TABLE, SOUP_FORMAT_COL));
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Create soup_compound_index_map table
+     * @param db
+     */
+    public static void createCompoundIndexMapTable(SQLiteDatabase db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
+    		StringBuilder sb = new StringBuilder();
+	    	sb.append("CREATE TABLE IF NOT EXISTS ").append(SOUP_COMPOUND_INDEX_MAP_TABLE).append(" (")
+	        .append(SOUP_NAME_COL).append(" TEXT")
+	        .append(",").append(INDEX_NAME_COL).append(" TEXT")
+	        .append(",").append(DEFINITION_COL).append(" TEXT")
+	        .append(")");
+	        db.execSQL(sb.toString());
+	        db.execSQL(String.format("CREATE INDEX IF NOT EXISTS %s on %s ( %s )", SOUP_COMPOUND_INDEX_MAP_TABLE + "_0", SOUP_COMPOUND_INDEX_MAP_TABLE, SOUP_NAME_COL));
+    	} finally {
+    		lock.unlock();
     	}
     }
     
@@ -155,7 +244,9 @@ public class SmartStore  {
      * @param db
      */
     public static void createLongOperationsStatusTable(SQLiteDatabase db) {
-    	synchronized(SmartStore.class) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
     		StringBuilder sb = new StringBuilder();
 	    	sb.append("CREATE TABLE IF NOT EXISTS ").append(LONG_OPERATIONS_STATUS_TABLE).append(" (")
 	        .append(ID_COL).append(" INTEGER PRIMARY KEY AUTOINCREMENT")
@@ -166,6 +257,8 @@ public class SmartStore  {
 	        .append(", ").append(LAST_MODIFIED_COL).append(" INTEGER")
 	        .append(")");
 	        db.execSQL(sb.toString());
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -208,16 +301,54 @@ public class SmartStore  {
     
     /**
      * Start transaction
+     * Note: the store is locked for writing (readers on other threads wait) until endTransaction is called on the same thread
      */
     public void beginTransaction() {
-    	getDatabase().beginTransaction();
+    	final SQLiteDatabase db = getDatabase();
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
+    		DBHelper.getInstance(db).beginTransaction(db);
+    	} catch (RuntimeException e) {
+    		lock.unlock();
+    		throw e;
+    	}
     }
 
     /**
      * End transaction (commit or rollback)
      */
     public void endTransaction() {
-    	getDatabase().endTransaction();
+    	final SQLiteDatabase db = getDatabase();
+    	try {
+    		DBHelper.getInstance(db).endTransaction(db);
+    	} finally {
+    		writeLock(db).unlock();
+    	}
+    }
+
+    /**
+     * Lock to hold while reading from the database
+     * Any number of threads can read at the same time, but not while a thread holds the write lock
+     * @param db
+     * @return
+     */
+    protected static Lock readLock(SQLiteDatabase db) {
+    	return DBHelper.getInstance(db).getReadWriteLock().readLock();
+    }
+
+    /**
+     * Lock to hold while writing to the database (exclusive)
+     * Fails if the current thread is reading (e.g. writing from a streamQuery callback): the read lock cannot be upgraded and the thread would wait forever
+     * @param db
+     * @return
+     */
+    protected static Lock writeLock(SQLiteDatabase db) {
+    	ReentrantReadWriteLock readWriteLock = DBHelper.getInstance(db).getReadWriteLock();
+    	if (readWriteLock.getReadHoldCount() > 0 && !readWriteLock.isWriteLockedByCurrentThread()) {
+    		throw new SmartStoreException("Cannot write to the store while reading from it on the same thread");
+    	}
+    	return readWriteLock.writeLock();
     }
 
     /**
@@ -237,16 +368,45 @@ public class SmartStore  {
      * @param indexSpecs
      */
     public void registerSoup(String soupName, IndexSpec[] indexSpecs) {
+    	registerSoup(soupName, indexSpecs, new CompoundIndexSpec[0]);
+    }
+
+    /**
+     * Register a soup with compound indexes
+     *
+     * Same as registerSoup(soupName, indexSpecs) but also create an index for each of the compoundIndexSpecs
+     * (e.g. on OwnerId then LastModifiedDate so that "WHERE OwnerId = ? ORDER BY LastModifiedDate" does not need a sort)
+     * @param soupName
+     * @param indexSpecs
+     * @param compoundIndexSpecs paths of compound index specs must be paths of indexSpecs (or _soupEntryId / _soupLastModifiedDate)
+     */
+    public void registerSoup(String soupName, IndexSpec[] indexSpecs, CompoundIndexSpec[] compoundIndexSpecs) {
+    	registerSoup(soupName, indexSpecs, compoundIndexSpecs, SoupFormat.json);
+    }
+
+    /**
+     * Register a soup with compound indexes storing its elements in the given format
+     *
+     * @param soupName
+     * @param indexSpecs
+     * @param compoundIndexSpecs
+     * @param soupFormat see SoupFormat
+     */
+    public void registerSoup(String soupName, IndexSpec[] indexSpecs, CompoundIndexSpec[] compoundIndexSpecs, SoupFormat soupFormat) {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
 	        if (soupName == null) throw new SmartStoreException("Bogus soup name:" + soupName);
 	        if (indexSpecs.length == 0) throw new SmartStoreException("No indexSpecs specified for soup: " + soupName);
 	        if (hasSoup(soupName)) return; // soup already exist - do nothing
+	        checkCompoundIndexSpecs(soupName, indexSpecs, compoundIndexSpecs);
 	
 	        // First get a table name
 	        String soupTableName = null;
 	        ContentValues soupMapValues = new ContentValues();
 	        soupMapValues.put(SOUP_NAME_COL, soupName);
+	        soupMapValues.put(SOUP_FORMAT_COL, soupFormat.name());
 	        try {
 	            db.beginTransaction();
 	            long soupId = DBHelper.getInstance(db).insert(db, SOUP_NAMES_TABLE, soupMapValues);
@@ -257,7 +417,9 @@ public class SmartStore  {
 	        }
 	        
 	        // Do the rest - create table / indexes
-	        registerSoupUsingTableName(soupName, indexSpecs, soupTableName);
+	        registerSoupUsingTableName(soupName, indexSpecs, compoundIndexSpecs, soupFormat, soupTableName);
+    	} finally {
+    		lock.unlock();
     	}
     }
         
@@ -270,11 +432,25 @@ public class SmartStore  {
 	 * @param soupTableName
 	 */
     protected void registerSoupUsingTableName(String soupName, IndexSpec[] indexSpecs, String soupTableName) {
+    	registerSoupUsingTableName(soupName, indexSpecs, new CompoundIndexSpec[0], SoupFormat.json, soupTableName);
+    }
+
+    /**
+     * Helper method for registerSoup
+     *
+	 * @param soupName
+	 * @param indexSpecs
+	 * @param compoundIndexSpecs
+	 * @param soupFormat
+	 * @param soupTableName
+	 */
+    protected void registerSoupUsingTableName(String soupName, IndexSpec[] indexSpecs, CompoundIndexSpec[] compoundIndexSpecs, SoupFormat soupFormat, String soupTableName) {
 
         // Prepare SQL for creating soup table and its indices
         StringBuilder createTableStmt = new StringBuilder();          // to create new soup table
         List<String> createIndexStmts = new ArrayList<String>();      // to create indices on new soup table
         List<ContentValues> soupIndexMapInserts = new ArrayList<ContentValues>();  // to be inserted in soup index map table
+        List<ContentValues> soupCompoundIndexMapInserts = new ArrayList<ContentValues>();  // to be inserted in soup compound index map table
 
         createTableStmt.append("CREATE TABLE ").append(soupTableName).append(" (")
                         .append(ID_COL).append(" INTEGER PRIMARY KEY AUTOINCREMENT")
@@ -284,6 +460,7 @@ public class SmartStore  {
 
         int i = 0;
         IndexSpec[] indexSpecsToCache = new IndexSpec[indexSpecs.length];
+        List<String> ftsColumnNames = new ArrayList<String>();  // columns of full_text indexed paths
         for (IndexSpec indexSpec : indexSpecs) {
             // for create table
             String columnName = soupTableName + "_" + i;
@@ -302,12 +479,41 @@ public class SmartStore  {
             String indexName = soupTableName + "_" + i + "_idx";
             createIndexStmts.add(String.format("CREATE INDEX %s on %s ( %s )", indexName, soupTableName, columnName));;
 
+            // for full-text table
+            if (indexSpec.type == Type.full_text) {
+            	ftsColumnNames.add(columnName);
+            }
+
             // for the cache
             indexSpecsToCache[i] = new IndexSpec(indexSpec.path, indexSpec.type, columnName);
 
             i++;
         }
         createTableStmt.append(")");
+
+        Map<String, String> pathToColumnNames = getPathToColumnNames(indexSpecsToCache);
+        for (int k = 0; k < compoundIndexSpecs.length; k++) {
+        	CompoundIndexSpec compoundIndexSpec = compoundIndexSpecs[k];
+
+        	// for create index
+        	List<String> columnNames = new ArrayList<String>();
+        	for (String path : compoundIndexSpec.getAllPaths()) {
+        		columnNames.add(pathToColumnNames.get(path));
+        	}
+        	String indexName = getCompoundIndexName(soupTableName, k);
+        	createIndexStmts.add(String.format("CREATE INDEX %s on %s ( %s )", indexName, soupTableName, TextUtils.join(", ", columnNames)));
+
+        	// for insert
+        	ContentValues values = new ContentValues();
+        	values.put(SOUP_NAME_COL, soupName);
+        	values.put(INDEX_NAME_COL, indexName);
+        	try {
+        		values.put(DEFINITION_COL, compoundIndexSpec.toJSON().toString());
+        	} catch (JSONException e) {
+        		throw new SmartStoreException("Bogus compound index spec for soup: " + soupName);
+        	}
+        	soupCompoundIndexMapInserts.add(values);
+        }
         final SQLiteDatabase db = getDatabase();
 
         // Run SQL for creating soup table and its indices
@@ -315,11 +521,20 @@ public class SmartStore  {
         for (String createIndexStmt : createIndexStmts) {
             db.execSQL(createIndexStmt.toString());
         }
+        if (!ftsColumnNames.isEmpty()) {
+        	createFtsTable(db, soupTableName, ftsColumnNames);
+        }
         try {
             db.beginTransaction();
             for (ContentValues values : soupIndexMapInserts) {
                 DBHelper.getInstance(db).insert(db, SOUP_INDEX_MAP_TABLE, values);
             }
+            for (ContentValues values : soupCompoundIndexMapInserts) {
+                DBHelper.getInstance(db).insert(db, SOUP_COMPOUND_INDEX_MAP_TABLE, values);
+            }
+            ContentValues soupFormatValues = new ContentValues();
+            soupFormatValues.put(SOUP_FORMAT_COL, soupFormat.name());
+            DBHelper.getInstance(db).update(db, SOUP_NAMES_TABLE, soupFormatValues, SOUP_NAME_PREDICATE, soupName);
             db.setTransactionSuccessful();
 
             // Add to soupNameToTableNamesMap
@@ -327,22 +542,104 @@ public class SmartStore  {
 
             // Add to soupNameToIndexSpecsMap
             DBHelper.getInstance(db).cacheIndexSpecs(soupName, indexSpecsToCache);
+
+            // Add to soupNameToFormatsMap
+            DBHelper.getInstance(db).cacheSoupFormat(soupName, soupFormat);
         } finally {
             db.endTransaction();
         }
     }
+
+    /**
+     * Check that the paths of the compound index specs can be indexed
+     *
+     * @param soupName
+     * @param indexSpecs
+     * @param compoundIndexSpecs
+     */
+    protected static void checkCompoundIndexSpecs(String soupName, IndexSpec[] indexSpecs, CompoundIndexSpec[] compoundIndexSpecs) {
+    	Map<String, String> pathToColumnNames = getPathToColumnNames(indexSpecs);
+    	for (CompoundIndexSpec compoundIndexSpec : compoundIndexSpecs) {
+    		if (compoundIndexSpec.paths.length == 0) throw new SmartStoreException("No paths specified for compound index of soup: " + soupName);
+    		for (String path : compoundIndexSpec.getAllPaths()) {
+    			if (!pathToColumnNames.containsKey(path)) throw new SmartStoreException("Path: " + path + " of compound index is not indexed in soup: " + soupName);
+    		}
+    	}
+    }
+
+    /**
+     * @param indexSpecs
+     * @return map from paths that can be in compound indexes to their columns (null columns for index specs without column names)
+     */
+    private static Map<String, String> getPathToColumnNames(IndexSpec[] indexSpecs) {
+    	Map<String, String> pathToColumnNames = new HashMap<String, String>();
+    	for (IndexSpec indexSpec : indexSpecs) {
+    		pathToColumnNames.put(indexSpec.path, indexSpec.columnName);
+    	}
+    	pathToColumnNames.put(SOUP_ENTRY_ID, ID_COL);
+    	pathToColumnNames.put(SOUP_LAST_MODIFIED_DATE, LAST_MODIFIED_COL);
+    	return pathToColumnNames;
+    }
+
+    /**
+     * @param soupTableName
+     * @param position of the compound index spec
+     * @return name of db index for compound index spec
+     */
+    protected static String getCompoundIndexName(String soupTableName, int position) {
+    	return soupTableName + "_c" + position + "_idx";
+    }
+
+    /**
+     * Create full-text table for soup and the triggers keeping it in sync with the soup table
+     * Every write to the soup table (create/update/upsert/delete/clear/re-index/alter) is therefore reflected in the full-text table
+     *
+     * @param db
+     * @param soupTableName
+     * @param ftsColumnNames columns of the soup table holding full_text indexed paths
+     */
+    private static void createFtsTable(SQLiteDatabase db, String soupTableName, List<String> ftsColumnNames) {
+    	String ftsTableName = soupTableName + FTS_SUFFIX;
+    	List<String> newValues = new ArrayList<String>();
+    	List<String> setClauses = new ArrayList<String>();
+    	for (String columnName : ftsColumnNames) {
+    		newValues.add("new." + columnName);
+    		setClauses.add(columnName + " = new." + columnName);
+    	}
+    	String columns = TextUtils.join(", ", ftsColumnNames);
+    	db.execSQL(String.format("CREATE VIRTUAL TABLE %s USING fts4(%s)", ftsTableName, columns));
+    	db.execSQL(String.format("CREATE TRIGGER %s_insert AFTER INSERT ON %s BEGIN INSERT INTO %s (docid, %s) VALUES (new.%s, %s); END",
+    			ftsTableName, soupTableName, ftsTableName, columns, ID_COL, TextUtils.join(", ", newValues)));
+    	db.execSQL(String.format("CREATE TRIGGER %s_update AFTER UPDATE OF %s ON %s BEGIN UPDATE %s SET %s WHERE docid = new.%s; END",
+    			ftsTableName, columns, soupTableName, ftsTableName, TextUtils.join(", ", setClauses), ID_COL));
+    	db.execSQL(String.format("CREATE TRIGGER %s_delete AFTER DELETE ON %s BEGIN DELETE FROM %s WHERE docid = old.%s; END",
+    			ftsTableName, soupTableName, ftsTableName, ID_COL));
+    }
+
+    /**
+     * Drop full-text table of soup (if any) and the triggers keeping it in sync
+     *
+     * @param db
+     * @param soupTableName
+     */
+    protected static void dropFtsTable(SQLiteDatabase db, String soupTableName) {
+    	String ftsTableName = soupTableName + FTS_SUFFIX;
+    	for (String trigger : new String[] {"insert", "update", "delete"}) {
+    		db.execSQL("DROP TRIGGER IF EXISTS " + ftsTableName + "_" + trigger);
+    	}
+    	db.execSQL("DROP TABLE IF EXISTS " + ftsTableName);
+    }
     
 	/**
 	 * Finish long operations that were interrupted
+	 * Operations take the lock themselves (alter soup releases it while re-indexing between chunks)
 	 */
 	public void resumeLongOperations() {
-		synchronized(SmartStore.class) {
-			for (LongOperation longOperation :  getLongOperations()) {
-				try {
-					longOperation.run();
-				} catch (Exception e) {
-	        		Log.e("SmartStore.resumeLongOperations", "Unexpected error", e);
-				}
+		for (LongOperation longOperation :  getLongOperations()) {
+			try {
+				longOperation.run();
+			} catch (Exception e) {
+        		Log.e("SmartStore.resumeLongOperations", "Unexpected error", e);
 			}
 		}
 	}
@@ -352,7 +649,9 @@ public class SmartStore  {
 	 */
 	public LongOperation[] getLongOperations() {
 		List<LongOperation> longOperations = new ArrayList<LongOperation>();
-		synchronized(SmartStore.class) {
+		final Lock lock = readLock(getDatabase());
+		lock.lock();
+		try {
 			Cursor cursor = null;
 			final SQLiteDatabase db = getDatabase();
 			try {
@@ -378,12 +677,15 @@ public class SmartStore  {
 			} finally {
 			    safeClose(cursor);
 			}
+		} finally {
+			lock.unlock();
 		}
 		return longOperations.toArray(new LongOperation[0]);
 	}
     
 	/**
 	 * Alter soup
+	 * Compound indexes whose paths are all still indexed are kept
 	 * 
 	 * @param soupName
 	 * @param indexSpecs array of index specs
@@ -392,7 +694,41 @@ public class SmartStore  {
 	 */
 	public void alterSoup(String soupName, IndexSpec[] indexSpecs,
 			boolean reIndexData) throws JSONException {
-		AlterSoupLongOperation operation = new AlterSoupLongOperation(this, soupName, indexSpecs, reIndexData);
+		alterSoup(soupName, indexSpecs, null, reIndexData);
+	}
+
+	/**
+	 * Alter soup
+	 * Re-indexing (if requested) is done in chunks, see reIndexSoup
+	 * 
+	 * @param soupName
+	 * @param indexSpecs array of index specs
+	 * @param compoundIndexSpecs array of compound index specs (null to keep compound indexes whose paths are all still indexed)
+	 * @param reIndexData
+	 * @throws JSONException 
+	 */
+	public void alterSoup(String soupName, IndexSpec[] indexSpecs, CompoundIndexSpec[] compoundIndexSpecs,
+			boolean reIndexData) throws JSONException {
+		alterSoup(soupName, indexSpecs, compoundIndexSpecs, null, reIndexData);
+	}
+
+	/**
+	 * Alter soup
+	 * When the soup format changes, all soup elements are re-written in the new format (in chunks, see reIndexSoup)
+	 * 
+	 * NB: the soup remains queryable while it is re-indexed, but the lock is released in between chunks: until alterSoup returns,
+	 * the columns of new index specs are NULL for soup elements not re-indexed yet, so queries on their paths miss those elements
+	 * 
+	 * @param soupName
+	 * @param indexSpecs array of index specs
+	 * @param compoundIndexSpecs array of compound index specs (null to keep compound indexes whose paths are all still indexed)
+	 * @param soupFormat new soup format (null to keep the current one)
+	 * @param reIndexData
+	 * @throws JSONException 
+	 */
+	public void alterSoup(String soupName, IndexSpec[] indexSpecs, CompoundIndexSpec[] compoundIndexSpecs, SoupFormat soupFormat,
+			boolean reIndexData) throws JSONException {
+		AlterSoupLongOperation operation = new AlterSoupLongOperation(this, soupName, indexSpecs, compoundIndexSpecs, soupFormat, reIndexData);
 		operation.run();
 	}
 
@@ -400,69 +736,297 @@ public class SmartStore  {
 	 * Re-index all soup elements for passed indexPaths
 	 * NB: only indexPath that have IndexSpec on them will be indexed
 	 * 
+	 * Soup elements are re-indexed in chunks (see setReIndexChunkSize)
+	 * When handleTx is true, every chunk is re-indexed in its own transaction and the lock is released in between chunks,
+	 * so that other queries and writes can run while a large soup is re-indexed (see setReIndexThrottle and setReIndexCallback)
+	 * When handleTx is false, all the chunks are re-indexed in the caller's transaction
+	 * 
+	 * NB: when handleTx is true, queries run in between chunks see the values previously indexed (NULL for new index specs)
+	 * for the soup elements not re-indexed yet
+	 * 
 	 * @param soupName
 	 * @param indexPaths
 	 * @param handleTx
 	 */
 	public void reIndexSoup(String soupName, String[] indexPaths, boolean handleTx) {
-		synchronized(SmartStore.class) {
-			final SQLiteDatabase db = getDatabase();
+		final SQLiteDatabase db = getDatabase();
+		if (handleTx) {
+			if (!hasSoup(soupName)) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+			reIndexSoupInChunks(soupName, indexPaths, 0, false, null);
+			return;
+		}
+
+		final Lock lock = writeLock(db);
+		lock.lock();
+		try {
 	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
 	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+			IndexSpec[] indexSpecs = getIndexSpecsForPaths(soupName, indexPaths, true);
+			long afterId = 0;
+			while (indexSpecs.length > 0 && afterId != -1) {
+				afterId = reIndexSoupChunk(db, soupTableName, indexSpecs, null, afterId, reIndexChunkSize);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
 
-	        // Getting index specs from indexPaths
-			Map<String, IndexSpec> mapAllSpecs = IndexSpec.mapForIndexSpecs(getSoupIndexSpecs(soupName));
-			List<IndexSpec> indexSpecsList = new ArrayList<IndexSpec>();
-			for (String indexPath : indexPaths) {
-				if (mapAllSpecs.containsKey(indexPath)) {
-					indexSpecsList.add(mapAllSpecs.get(indexPath));
-				}
-				else {
-					Log.w("SmartStore.reIndexSoup", "Cannot re-index " + indexPath + " - it does not have an index");
-				}
+	/**
+	 * Re-index soup elements with an id greater than afterId for passed indexPaths, one chunk at a time
+	 * Every chunk is re-indexed in its own transaction holding the lock, which is released in between chunks
+	 * Stops if the soup gets dropped
+	 * 
+	 * @param soupName
+	 * @param indexPaths
+	 * @param afterId
+	 * @param rewriteSoupElts true to also re-write the soup elements (in the soup's current format)
+	 * @param operation alter soup operation to checkpoint in every chunk's transaction (null if not re-indexing for an alter soup)
+	 */
+	protected void reIndexSoupInChunks(String soupName, String[] indexPaths, long afterId, boolean rewriteSoupElts, AlterSoupLongOperation operation) {
+		final SQLiteDatabase db = getDatabase();
+		final Lock lock = writeLock(db);
+		int total = -1;
+		int done = 0;
+		while (true) {
+			final int chunkSize = reIndexChunkSize;
+			lock.lock();
+			try {
+		        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
+		        if (soupTableName == null) {
+		        	// Soup dropped
+		        	return;
+		        }
+
+		        // Index specs are looked up for every chunk: column names change if the soup is altered in between chunks
+		        IndexSpec[] indexSpecs = getIndexSpecsForPaths(soupName, indexPaths, total == -1);
+		        if (indexSpecs.length == 0 && !rewriteSoupElts) {
+		        	// Nothing to do
+		        	return;
+		        }
+		        if (total == -1) {
+		        	total = countRows(db, soupTableName, null);
+		        	done = (afterId == 0 ? 0 : countRows(db, soupTableName, ID_COL + " <= ?", afterId + ""));
+		        }
+
+		        db.beginTransaction();
+		        try {
+		        	SoupFormat soupFormat = (rewriteSoupElts ? DBHelper.getInstance(db).getSoupFormat(db, soupName) : null);
+		        	afterId = reIndexSoupChunk(db, soupTableName, indexSpecs, soupFormat, afterId, chunkSize);
+		        	if (afterId == -1) {
+		        		// All done
+		        		return;
+		        	}
+		        	if (operation != null) {
+		        		operation.checkpointReIndex(afterId);
+		        	}
+		        	db.setTransactionSuccessful();
+		        } finally {
+		        	db.endTransaction();
+		        }
+			} finally {
+				lock.unlock();
+			}
+
+			// Reporting progress and pausing without the lock
+			done = Math.min(done + chunkSize, total);
+			final ReIndexCallback callback = reIndexCallback;
+			if (callback != null) {
+				callback.onProgress(soupName, done, total);
 			}
-			IndexSpec[] indexSpecs = indexSpecsList.toArray(new IndexSpec[0]);
-			if (indexSpecs.length == 0) {
-				// Nothing to do
-				return;
+			pauseBetweenReIndexChunks();
+		}
+	}
+
+	/**
+	 * Re-index a chunk of soup elements (the next chunkSize ones with an id greater than afterId)
+	 * Caller must hold the lock
+	 * 
+	 * @param db
+	 * @param soupTableName
+	 * @param indexSpecs
+	 * @param soupFormat format to re-write the soup elements in (null to leave them as they are)
+	 * @param afterId
+	 * @param chunkSize
+	 * @return id of the last soup element re-indexed or -1 if there were none left
+	 */
+	private long reIndexSoupChunk(SQLiteDatabase db, String soupTableName, IndexSpec[] indexSpecs, SoupFormat soupFormat, long afterId, int chunkSize) {
+		long lastId = -1;
+		Cursor cursor = null;
+		try {
+			// Index values change: query results obtained before are no longer current (see getSoupChangeCount)
+			DBHelper.getInstance(db).incrementSoupChangeCount();
+		    cursor = DBHelper.getInstance(db).query(db, soupTableName, new String[] {ID_COL, SOUP_COL}, ID_COL, chunkSize + "", ID_COL + " > ?", afterId + "");
+
+		    if (cursor.moveToFirst()) {
+		        do {
+		        	lastId = cursor.getLong(0);
+		        	try {
+		            	JSONObject soupElt = readSoupElt(cursor, 1); 
+		            	ContentValues contentValues = new ContentValues();
+		            	if (soupFormat != null) {
+		            		putSoupElt(contentValues, soupFormat, soupElt);
+		            	}
+		            	projectIndexedPaths(soupElt, contentValues, indexSpecs);
+		                DBHelper.getInstance(db).update(db, soupTableName, contentValues, ID_PREDICATE, lastId + "");
+		        	}
+		        	catch (JSONException e) {
+		        		Log.w("SmartStore.alterSoup", "Could not parse soup element " + lastId, e);
+		        		// Should not have happen - just keep going 
+		        	}
+		        }
+		        while (cursor.moveToNext());
+		    }
+		}
+		finally {
+		    safeClose(cursor);
+		}
+		return lastId;
+	}
+
+	/**
+	 * @param soupName
+	 * @param indexPaths
+	 * @param logMissing true to log index paths that do not have an index spec
+	 * @return index specs (with column names) of soup for indexPaths
+	 */
+	private IndexSpec[] getIndexSpecsForPaths(String soupName, String[] indexPaths, boolean logMissing) {
+		Map<String, IndexSpec> mapAllSpecs = IndexSpec.mapForIndexSpecs(getSoupIndexSpecs(soupName));
+		List<IndexSpec> indexSpecsList = new ArrayList<IndexSpec>();
+		for (String indexPath : indexPaths) {
+			if (mapAllSpecs.containsKey(indexPath)) {
+				indexSpecsList.add(mapAllSpecs.get(indexPath));
 			}
-			
-			if (handleTx) {
-				db.beginTransaction();
+			else if (logMissing) {
+				Log.w("SmartStore.reIndexSoup", "Cannot re-index " + indexPath + " - it does not have an index");
 			}
-			Cursor cursor = null;
+		}
+		return indexSpecsList.toArray(new IndexSpec[0]);
+	}
+
+	/**
+	 * @param db
+	 * @param tableName
+	 * @param whereClause
+	 * @param whereArgs
+	 * @return number of rows in table matching whereClause
+	 */
+	private int countRows(SQLiteDatabase db, String tableName, String whereClause, String... whereArgs) {
+		Cursor cursor = null;
+		try {
+			cursor = DBHelper.getInstance(db).query(db, tableName, new String[] {"count(*)"}, null, null, whereClause, whereArgs);
+			return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+		}
+		finally {
+			safeClose(cursor);
+		}
+	}
+
+	/**
+	 * Sleep between chunks of re-indexing (if throttled)
+	 */
+	private void pauseBetweenReIndexChunks() {
+		final long pauseMillis = reIndexPauseMillis;
+		if (pauseMillis > 0) {
 			try {
-			    cursor = DBHelper.getInstance(db).query(db, soupTableName, new String[] {ID_COL, SOUP_COL}, null, null, null);
-	
-			    if (cursor.moveToFirst()) {
-			        do {
-			        	String soupEntryId = cursor.getString(0);
-			        	String soupRaw = cursor.getString(1);
-			        	try {
-			            	JSONObject soupElt = new JSONObject(soupRaw); 
-			            	ContentValues contentValues = new ContentValues();
-			            	for (IndexSpec indexSpec : indexSpecs) {
-				                projectIndexedPaths(soupElt, contentValues, indexSpec);
-				            }
-			                DBHelper.getInstance(db).update(db, soupTableName, contentValues, ID_PREDICATE, soupEntryId + "");
-			        	}
-			        	catch (JSONException e) {
-			        		Log.w("SmartStore.alterSoup", "Could not parse soup element " + soupEntryId, e);
-			        		// Should not have happen - just keep going 
-			        	}
-			        }
-			        while (cursor.moveToNext());
-			    }
-			}
-			finally {
-				if (handleTx) {
-					db.setTransactionSuccessful();
-					db.endTransaction();
-				}
-			    safeClose(cursor);
+				Thread.sleep(pauseMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
 		}
 	}
+
+	/**
+	 * Set number of soup elements re-indexed per chunk (by reIndexSoup and alterSoup)
+	 * Smaller chunks hold the lock for less time, larger chunks re-index faster
+	 * Queries run in between chunks only see the new index values of the soup elements re-indexed so far (see alterSoup)
+	 * 
+	 * @param chunkSize
+	 */
+	public void setReIndexChunkSize(int chunkSize) {
+		if (chunkSize <= 0) throw new SmartStoreException("Bogus re-index chunk size: " + chunkSize);
+		this.reIndexChunkSize = chunkSize;
+	}
+
+	/**
+	 * Set pause between chunks of re-indexing (by reIndexSoup and alterSoup)
+	 * Use to leave more room to other queries and writes (e.g. sync) while a large soup is re-indexed
+	 * 
+	 * @param pauseMillis 0 for no pause
+	 */
+	public void setReIndexThrottle(long pauseMillis) {
+		this.reIndexPauseMillis = pauseMillis;
+	}
+
+	/**
+	 * Set callback notified after every chunk of re-indexing (by reIndexSoup and alterSoup)
+	 * 
+	 * @param callback null to stop getting notified
+	 */
+	public void setReIndexCallback(ReIndexCallback callback) {
+		this.reIndexCallback = callback;
+	}
+
+	/**
+	 * Register listener to get notified of the changes made to the soups of this store
+	 * Changes are published once committed (changes made in a transaction that is rolled back are not published)
+	 * and coalesced per transaction (see SoupChange.coalesce), on a thread of their own
+	 * 
+	 * Note: only transactions started with beginTransaction (or by the smart store itself) are tracked,
+	 *       changes made in transactions started directly on the database are not published
+	 * 
+	 * @param listener
+	 */
+	public void registerSoupChangeListener(SoupChangeListener listener) {
+		DBHelper.getInstance(getDatabase()).addSoupChangeListener(listener);
+	}
+
+	/**
+	 * Unregister soup change listener
+	 * 
+	 * @param listener
+	 */
+	public void unregisterSoupChangeListener(SoupChangeListener listener) {
+		DBHelper.getInstance(getDatabase()).removeSoupChangeListener(listener);
+	}
+
+	/**
+	 * Enable (or disable) the in-memory cache of parsed soup elements of a soup (see SoupEltCache)
+	 * Once enabled, retrieve serves soup elements from the cache when it can (e.g. records read again and again by detail screens or sync up)
+	 * The cache is removed when the soup is dropped
+	 * 
+	 * @param soupName
+	 * @param maxBytes max estimated size in bytes of the cached soup elements - 0 to disable the cache
+	 */
+	public void setSoupEltCacheSize(String soupName, int maxBytes) {
+		final SQLiteDatabase db = getDatabase();
+		final Lock lock = writeLock(db);
+		lock.lock();
+		try {
+			DBHelper.getInstance(db).setSoupEltCache(soupName, maxBytes > 0 ? new SoupEltCache(maxBytes) : null);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return cache of parsed soup elements of soup (to get its hit / miss / eviction counts)
+	 * 
+	 * @param soupName
+	 * @return null if the soup has no cache (see setSoupEltCacheSize)
+	 */
+	public SoupEltCache getSoupEltCache(String soupName) {
+		return DBHelper.getInstance(getDatabase()).getSoupEltCache(soupName);
+	}
+
+	/**
+	 * Return number of changes made to the soups of the store so far (soups altered or re-indexed included)
+	 * Query results obtained when it had a given value are still current as long as it keeps that value
+	 *
+	 * @return
+	 */
+	public long getSoupChangeCount() {
+		return DBHelper.getInstance(getDatabase()).getSoupChangeCount();
+	}
 	
 	/**
 	 * Return indexSpecs of soup
@@ -471,43 +1035,109 @@ public class SmartStore  {
 	 * @return
 	 */
 	public IndexSpec[] getSoupIndexSpecs(String soupName) {
-    	synchronized(SmartStore.class) {
+    	final Lock lock = readLock(getDatabase());
+    	lock.lock();
+    	try {
     		final SQLiteDatabase db = getDatabase();
 	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
 	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
 	        return DBHelper.getInstance(db).getIndexSpecs(db, soupName);
+    	} finally {
+    		lock.unlock();
     	}
 	}
 	
 	/**
-	 * Clear all rows from a soup
+	 * Return format of soup
+	 * 
 	 * @param soupName
+	 * @return
 	 */
-	public void clearSoup(String soupName) {
-    	synchronized(SmartStore.class) {
+	public SoupFormat getSoupFormat(String soupName) {
+    	final Lock lock = readLock(getDatabase());
+    	lock.lock();
+    	try {
     		final SQLiteDatabase db = getDatabase();
 	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
 	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
-			db.beginTransaction();
-			try {
-				DBHelper.getInstance(db).delete(db, soupTableName, null);
-			} finally {
-				db.setTransactionSuccessful();
-				db.endTransaction();
-			}
+	        return DBHelper.getInstance(db).getSoupFormat(db, soupName);
+    	} finally {
+    		lock.unlock();
     	}
 	}
-	
-    /**
-     * Check if soup exists
-     *
-     * @param soupName
-     * @return true if soup exists, false otherwise
-     */
-    public boolean hasSoup(String soupName) {
-    	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
-    		return DBHelper.getInstance(db).getSoupTableName(db, soupName) != null;
+
+	/**
+	 * Return compound index specs of soup
+	 * 
+	 * @param soupName
+	 * @return
+	 * @throws JSONException
+	 */
+	public CompoundIndexSpec[] getSoupCompoundIndexSpecs(String soupName) throws JSONException {
+    	final Lock lock = readLock(getDatabase());
+    	lock.lock();
+    	Cursor cursor = null;
+    	try {
+    		final SQLiteDatabase db = getDatabase();
+	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
+	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+	        List<CompoundIndexSpec> compoundIndexSpecs = new ArrayList<CompoundIndexSpec>();
+	        cursor = DBHelper.getInstance(db).query(db, SOUP_COMPOUND_INDEX_MAP_TABLE, new String[] {DEFINITION_COL}, "rowid", null, SOUP_NAME_PREDICATE, soupName);
+	        if (cursor.moveToFirst()) {
+	        	do {
+	        		compoundIndexSpecs.add(CompoundIndexSpec.fromJSON(new JSONObject(cursor.getString(0))));
+	        	}
+	        	while (cursor.moveToNext());
+	        }
+	        return compoundIndexSpecs.toArray(new CompoundIndexSpec[0]);
+    	} finally {
+    		safeClose(cursor);
+    		lock.unlock();
+    	}
+	}
+	
+	/**
+	 * Clear all rows from a soup
+	 * @param soupName
+	 */
+	public void clearSoup(String soupName) {
+    	final Lock lock = writeLock(getDatabase());
+    	lock.lock();
+    	try {
+    		final SQLiteDatabase db = getDatabase();
+	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
+	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+			DBHelper.getInstance(db).beginTransaction(db);
+			try {
+				DBHelper.getInstance(db).delete(db, soupTableName, null);
+				SoupEltCache soupEltCache = DBHelper.getInstance(db).getSoupEltCache(soupName);
+				if (soupEltCache != null) {
+					soupEltCache.clear();
+				}
+				DBHelper.getInstance(db).recordSoupChange(db, soupName, ChangeType.cleared, null);
+			} finally {
+				db.setTransactionSuccessful();
+				DBHelper.getInstance(db).endTransaction(db);
+			}
+    	} finally {
+    		lock.unlock();
+    	}
+	}
+	
+    /**
+     * Check if soup exists
+     *
+     * @param soupName
+     * @return true if soup exists, false otherwise
+     */
+    public boolean hasSoup(String soupName) {
+    	final SQLiteDatabase db = getDatabase();
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
+    		return DBHelper.getInstance(db).getSoupTableName(db, soupName) != null;
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -520,22 +1150,30 @@ public class SmartStore  {
      */
     public void dropSoup(String soupName) {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
 	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
 	        if (soupTableName != null) {
 	            db.execSQL("DROP TABLE IF EXISTS " + soupTableName);
+	            dropFtsTable(db, soupTableName);
 	            try {
-	                db.beginTransaction();
+	                DBHelper.getInstance(db).beginTransaction(db);
 	                DBHelper.getInstance(db).delete(db, SOUP_NAMES_TABLE, SOUP_NAME_PREDICATE, soupName);
 	                DBHelper.getInstance(db).delete(db, SOUP_INDEX_MAP_TABLE, SOUP_NAME_PREDICATE, soupName);
+	                DBHelper.getInstance(db).delete(db, SOUP_COMPOUND_INDEX_MAP_TABLE, SOUP_NAME_PREDICATE, soupName);
+	                DBHelper.getInstance(db).recordSoupChange(db, soupName, ChangeType.dropped, null);
 	                db.setTransactionSuccessful();
 	
-	                // Remove from cache
+	                // Remove from cache - the soup element cache goes away with the soup (a soup registered again under that name has none)
 	                DBHelper.getInstance(db).removeFromCache(soupName);
+	                DBHelper.getInstance(db).setSoupEltCache(soupName, null);
 	            } finally {
-	                db.endTransaction();
+	                DBHelper.getInstance(db).endTransaction(db);
 	            }
 	        }
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -544,11 +1182,15 @@ public class SmartStore  {
      */
     public void dropAllSoups() {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
 	    	List<String> soupNames = getAllSoupNames();
 	        for(String soupName : soupNames) {
 	            dropSoup(soupName);
 	        }
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -557,7 +1199,9 @@ public class SmartStore  {
      */
     public List<String> getAllSoupNames() {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
 	    	List<String> soupNames = new ArrayList<String>();
 	        Cursor cursor = null;
 	        try {
@@ -573,94 +1217,503 @@ public class SmartStore  {
 	            safeClose(cursor);
 	        }
 	        return soupNames;
+    	} finally {
+    		lock.unlock();
     	}
     }
 
     /**
 	 * Run a query given by its query Spec, only returned results from selected page
+	 *
+	 * For query specs with select paths, each result is a JSONArray with the values at the select paths (instead of a whole soup element)
+	 * Values of indexed paths are read from their index column (i.e. as stored in it, a number indexed as a string comes back as a string)
+	 * Values of other paths are read from a partial parse of the soup element
+	 *
 	 * @param querySpec
 	 * @param pageIndex
      * @throws JSONException 
 	 */
 	public JSONArray query(QuerySpec querySpec, int pageIndex) throws JSONException {
 		final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
-			QueryType qt = querySpec.queryType;
-	    	String sql = convertSmartSql(querySpec.smartSql);
-	
-	        // Page
-	        int offsetRows = querySpec.pageSize * pageIndex;
-	        int numberRows = querySpec.pageSize;
-	        String limit = offsetRows + "," + numberRows;
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
+    		Projection projection = getProjection(db, querySpec);
+    		String sql = getSql(querySpec, projection);
+	        return runQuery(db, querySpec, projection, sql, getLimit(querySpec, pageIndex), querySpec.getArgs());
+    	} finally {
+    		lock.unlock();
+    	}
+	}
+
+	/**
+	 * Same as query(querySpec, pageIndex) but returning each result serialized (for results that are only going to be serialized, e.g. sent to javascript)
+	 * Soup elements stored as json come back as stored: they are not parsed and serialized again
+	 *
+	 * @param querySpec
+	 * @param pageIndex
+	 * @return
+	 * @throws JSONException
+	 */
+	public List<String> queryAsStrings(QuerySpec querySpec, int pageIndex) throws JSONException {
+		final SQLiteDatabase db = getDatabase();
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
+    		Projection projection = getProjection(db, querySpec);
+    		String sql = getSql(querySpec, projection);
+	        return runQueryAsStrings(db, querySpec, projection, sql, getLimit(querySpec, pageIndex), querySpec.getArgs());
+    	} finally {
+    		lock.unlock();
+    	}
+	}
+
+	/**
+	 * Run a query and hand its results to callback one at a time (all the results - the page size of the query spec is ignored)
+	 * A single cursor is walked from start to end (or until the callback asks to stop): results are never held in memory together
+	 * and the query is only run once (unlike when getting the results page by page)
+	 *
+	 * Note: the store is locked for reading until the walk is over
+	 * - callback must not write to the store (a SmartStoreException is thrown if it does)
+	 * - writers on other threads (e.g. sync) are blocked until the walk is over, so long walks should not be run while writes are expected
+	 *
+	 * @param querySpec
+	 * @param callback
+	 * @return number of results handed to callback
+	 * @throws JSONException
+	 */
+	public int streamQuery(QuerySpec querySpec, RowCallback callback) throws JSONException {
+		final SQLiteDatabase db = getDatabase();
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	Cursor cursor = null;
+    	try {
+    		Projection projection = getProjection(db, querySpec);
+    		String sql = getSql(querySpec, projection);
+    		cursor = db.rawQuery(sql, querySpec.getArgs());
+    		int count = 0;
+    		while (cursor.moveToNext()) {
+    			count++;
+    			if (!callback.onRow(getRow(cursor, querySpec, projection))) {
+    				break;
+    			}
+    		}
+    		return count;
+    	} finally {
+    		safeClose(cursor);
+    		lock.unlock();
+    	}
+	}
+
+	/**
+	 * Run a query using keyset pagination (exact/like/range queries only)
+	 * The page following afterKey is found through the index instead of walking and discarding the rows of all previous pages
+	 * Use getNextPageKey to get the key to pass to fetch the following page
+	 *
+	 * @param querySpec
+	 * @param afterKey key of the last row of the previous page or null to get the first page
+	 * @return
+	 * @throws JSONException
+	 */
+	public JSONArray query(QuerySpec querySpec, QuerySpec.PageKey afterKey) throws JSONException {
+		final SQLiteDatabase db = getDatabase();
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
+	    	String sql = convertSmartSql(querySpec.computeKeysetSmartSql(afterKey));
+	        JSONArray results = runQuery(db, querySpec, null, sql, Integer.toString(querySpec.pageSize), querySpec.getKeysetArgs(afterKey));
+
+	        // Page not full: rows in the other null-ness of the path come next
+	        String followingSmartSql = querySpec.computeKeysetFollowingSmartSql(afterKey);
+	        if (results.length() < querySpec.pageSize && followingSmartSql != null) {
+	        	JSONArray followingResults = runQuery(db, querySpec, null, convertSmartSql(followingSmartSql),
+	        			Integer.toString(querySpec.pageSize - results.length()), querySpec.getArgs());
+	        	for (int i = 0; i < followingResults.length(); i++) {
+	        		results.put(followingResults.get(i));
+	        	}
+	        }
+	        return results;
+    	} finally {
+    		lock.unlock();
+    	}
+	}
+
+	/**
+	 * Same as query(querySpec, afterKey) but returning each result serialized (see queryAsStrings(querySpec, pageIndex))
+	 * Use getNextPageKeyFromStrings to get the key to pass to fetch the following page
+	 *
+	 * @param querySpec
+	 * @param afterKey key of the last row of the previous page or null to get the first page
+	 * @return
+	 * @throws JSONException
+	 */
+	public List<String> queryAsStrings(QuerySpec querySpec, QuerySpec.PageKey afterKey) throws JSONException {
+		final SQLiteDatabase db = getDatabase();
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
+	    	String sql = convertSmartSql(querySpec.computeKeysetSmartSql(afterKey));
+	        List<String> results = runQueryAsStrings(db, querySpec, null, sql, Integer.toString(querySpec.pageSize), querySpec.getKeysetArgs(afterKey));
+
+	        // Page not full: rows in the other null-ness of the path come next
+	        String followingSmartSql = querySpec.computeKeysetFollowingSmartSql(afterKey);
+	        if (results.size() < querySpec.pageSize && followingSmartSql != null) {
+	        	results.addAll(runQueryAsStrings(db, querySpec, null, convertSmartSql(followingSmartSql),
+	        			Integer.toString(querySpec.pageSize - results.size()), querySpec.getArgs()));
+	        }
+	        return results;
+    	} finally {
+    		lock.unlock();
+    	}
+	}
+
+	/**
+	 * Return key to pass to query(querySpec, afterKey) to get the page following the one passed in
+	 *
+	 * @param querySpec
+	 * @param page page returned by query(querySpec, afterKey)
+	 * @return key of the last element of page or null if there are no more pages
+	 * @throws JSONException
+	 */
+	public QuerySpec.PageKey getNextPageKey(QuerySpec querySpec, JSONArray page) throws JSONException {
+		if (page == null || page.length() < querySpec.pageSize || page.length() == 0) {
+			return null;
+		}
+		JSONObject lastElt = page.getJSONObject(page.length() - 1);
+		return getPageKey(querySpec, querySpec.path == null ? null : project(lastElt, querySpec.path), lastElt.getLong(SOUP_ENTRY_ID));
+	}
+
+	/**
+	 * Return key to pass to queryAsStrings(querySpec, afterKey) to get the page following the one passed in
+	 * Only the last element of page gets parsed (and only partially)
+	 *
+	 * @param querySpec
+	 * @param page page returned by queryAsStrings(querySpec, afterKey)
+	 * @return key of the last element of page or null if there are no more pages
+	 * @throws JSONException
+	 */
+	public QuerySpec.PageKey getNextPageKeyFromStrings(QuerySpec querySpec, List<String> page) throws JSONException {
+		if (page == null || page.size() < querySpec.pageSize || page.size() == 0) {
+			return null;
+		}
+		List<String> paths = new ArrayList<String>();
+		paths.add(SOUP_ENTRY_ID);
+		if (querySpec.path != null) {
+			paths.add(querySpec.path);
+		}
+		Object[] values = CompiledPath.Group.compile(paths).project(page.get(page.size() - 1));
+		if (!(values[0] instanceof Number)) {
+			throw new JSONException("No " + SOUP_ENTRY_ID + " in last element of page");
+		}
+		return getPageKey(querySpec, querySpec.path == null ? null : values[1], ((Number) values[0]).longValue());
+	}
+
+	/**
+	 * @param querySpec
+	 * @param value value at querySpec.path of the last element of a page
+	 * @param soupEntryId soup entry id of the last element of a page
+	 * @return key of the last element of a page
+	 */
+	private QuerySpec.PageKey getPageKey(QuerySpec querySpec, Object value, long soupEntryId) {
+		String lastValue = null;
+		if (querySpec.path != null && value != null) {
+			// Using the value as it was stored in the index column (see projectIndexedPaths)
+			lastValue = value.toString();
+			for (IndexSpec indexSpec : getSoupIndexSpecs(querySpec.soupName)) {
+				if (indexSpec.path.equals(querySpec.path)) {
+					switch (indexSpec.type) {
+					case integer: lastValue = Long.toString(((Number) value).longValue()); break;
+					case floating: lastValue = Double.toString(((Number) value).doubleValue()); break;
+					case string:
+					case full_text: break;
+					}
+					break;
+				}
+			}
+		}
+		return new QuerySpec.PageKey(lastValue, soupEntryId);
+	}
+
+	/**
+	 * Run query and return results
+	 * @param db
+	 * @param querySpec
+	 * @param projection for queries with select paths or null
+	 * @param sql
+	 * @param limit
+	 * @param args
+	 * @return
+	 * @throws JSONException
+	 */
+	private JSONArray runQuery(SQLiteDatabase db, QuerySpec querySpec, Projection projection, String sql, String limit, String[] args) throws JSONException {
 	    	Cursor cursor = null;
 	    	try {
-	    		cursor = DBHelper.getInstance(db).limitRawQuery(db, sql, limit, querySpec.getArgs());
+	    		cursor = DBHelper.getInstance(db).limitRawQuery(db, sql, limit, args);
 	            JSONArray results = new JSONArray();
 	            if (cursor.moveToFirst()) {
 	                do {
-	                	// Smart queries
-	                	if (qt == QueryType.smart) {
-	                		results.put(getDataFromRow(cursor));	
-	                	}
-	            		// Exact/like/range queries
-	                	else {
-	                		results.put(new JSONObject(cursor.getString(0)));
-	                	}
+	                	results.put(getRow(cursor, querySpec, projection));
 	                } while (cursor.moveToNext());
 	            }
 	            return results;
 	    	} finally {
 	    		safeClose(cursor);
 	    	}
-    	}
 	}
 
 	/**
-	 * Return JSONArray for one row of data from cursor
 	 * @param cursor
+	 * @param querySpec
+	 * @param projection for queries with select paths or null
+	 * @return result for current row of cursor: JSONArray for smart queries and queries with select paths, soup element otherwise
+	 * @throws JSONException
+	 */
+	private Object getRow(Cursor cursor, QuerySpec querySpec, Projection projection) throws JSONException {
+		// Smart queries
+		if (querySpec.queryType == QueryType.smart) {
+			return getDataFromRow(cursor, querySpec.typedColumns);
+		}
+		// Queries with select paths
+		else if (projection != null) {
+			return projection.getRow(cursor);
+		}
+		// Exact/like/range queries
+		else {
+			return readSoupElt(cursor, 0);
+		}
+	}
+
+	/**
+	 * Run query and return results serialized
+	 * @param db
+	 * @param querySpec
+	 * @param projection for queries with select paths or null
+	 * @param sql
+	 * @param limit
+	 * @param args
 	 * @return
 	 * @throws JSONException
 	 */
-	private JSONArray getDataFromRow(Cursor cursor) throws JSONException {
-		JSONArray row = new JSONArray();
+	private List<String> runQueryAsStrings(SQLiteDatabase db, QuerySpec querySpec, Projection projection, String sql, String limit, String[] args) throws JSONException {
+	    	Cursor cursor = null;
+	    	try {
+	    		cursor = DBHelper.getInstance(db).limitRawQuery(db, sql, limit, args);
+	            List<String> results = new ArrayList<String>(cursor.getCount());
+	            while (cursor.moveToNext()) {
+	            	results.add(getRowAsString(cursor, querySpec, projection));
+	            }
+	            return results;
+	    	} finally {
+	    		safeClose(cursor);
+	    	}
+	}
+
+	/**
+	 * @param cursor
+	 * @param querySpec
+	 * @param projection for queries with select paths or null
+	 * @return serialized result for current row of cursor (same json as getRow)
+	 * @throws JSONException
+	 */
+	private String getRowAsString(Cursor cursor, QuerySpec querySpec, Projection projection) throws JSONException {
+		// Smart queries
+		if (querySpec.queryType == QueryType.smart) {
+			return getDataFromRowAsString(cursor, querySpec.typedColumns);
+		}
+		// Queries with select paths
+		else if (projection != null) {
+			return projection.getRow(cursor).toString();
+		}
+		// Exact/like/range queries
+		else {
+			return readSoupEltAsString(cursor, 0);
+		}
+	}
+
+	/**
+	 * Same as getDataFromRow but serialized (serialized soup elements are copied as they are)
+	 * @param cursor
+	 * @param typedColumns
+	 * @return
+	 * @throws JSONException
+	 */
+	private String getDataFromRowAsString(Cursor cursor, boolean typedColumns) throws JSONException {
+		StringBuilder row = new StringBuilder("[");
 		int columnCount = cursor.getColumnCount();
 		for (int i=0; i<columnCount; i++) {
-			String raw = cursor.getString(i);
+			if (i > 0) {
+				row.append(',');
+			}
+			// Is this column holding a serialized soup element?
+			if (isSoupEltColumn(cursor, i)) {
+				if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+					row.append(BinaryJson.decode(cursor.getBlob(i)).toString());
+					continue;
+				}
+				String raw = cursor.getString(i);
+				if (isSerializedSoupElt(raw)) {
+					row.append(raw);
+					continue;
+				}
+			}
 
-			// Is this column holding a serialized json object?
-			if (cursor.getColumnName(i).endsWith(SOUP_COL)) {
-				row.put(new JSONObject(raw));
-				// Note: we could end up returning a string if you aliased the column
+			// Serialized the way JSONArray serializes them
+			Object value = (typedColumns ? getColumnValue(cursor, i) : guessColumnValue(cursor, i));
+			if (value == JSONObject.NULL) {
+				row.append("null");
+			}
+			else if (value instanceof Number) {
+				row.append(JSONObject.numberToString((Number) value));
 			}
 			else {
-				// TODO Leverage cursor.getType once our min api is 11 or above
-				// For now, we do our best to guess
-				
-				// Is it holding a integer ?
-	    		try {
-	    			Long n = Long.parseLong(raw);
-	    			row.put(n);
-	    			// Note: we could end up returning an integer for a string column if you have a string value that contains just an integer
-	    		}
-	    		// Is it holding a floating ?
-	    		catch (NumberFormatException e) {
-	    			try { 
-		    			Double d = Double.parseDouble(raw);
-		    			// No exception, let's get the value straight from the cursor
-		    			// XXX Double.parseDouble(cursor.getString(i)) is sometimes different from cursor.getDouble(i) !!!
-		    			d = cursor.getDouble(i);
-		    			row.put(d);
-		    			// Note: we could end up returning an integer for a string column if you have a string value that contains just an integer
-	    			}
-		    		// It must be holding a string then
-	    			catch (NumberFormatException ne) {
-		    			row.put(raw);
-	    			}
-	    		}
+				row.append(JSONObject.quote(value.toString()));
 			}
 		}
+		return row.append(']').toString();
+	}
+
+	/**
+	 * Return JSONArray for one row of data from cursor
+	 * @param cursor
+	 * @param typedColumns true to map values using their storage class, false to guess their type (see QuerySpec.typedColumns)
+	 * @return
+	 * @throws JSONException
+	 */
+	private JSONArray getDataFromRow(Cursor cursor, boolean typedColumns) throws JSONException {
+		JSONArray row = new JSONArray();
+		int columnCount = cursor.getColumnCount();
+		for (int i=0; i<columnCount; i++) {
+			// Is this column holding a serialized soup element?
+			if (isSoupEltColumn(cursor, i)) {
+				if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+					row.put(BinaryJson.decode(cursor.getBlob(i)));
+					continue;
+				}
+				String raw = cursor.getString(i);
+				if (isSerializedSoupElt(raw)) {
+					row.put(new JSONObject(raw));
+					continue;
+				}
+			}
+			row.put(typedColumns ? getColumnValue(cursor, i) : guessColumnValue(cursor, i));
+		}
 		return row;
 	}
+
+	/**
+	 * Only {soupName:_soup} columns that are not aliased are named soup: columns aliased (even to a name ending in soup)
+	 * or computed from the soup column are returned like any other column
+	 * @param cursor
+	 * @param i
+	 * @return true if column i of current row is a soup column holding a serialized soup element (as json or binary, see SoupFormat)
+	 * Note: json soup elements should also go through isSerializedSoupElt (a value selected as soup could hold anything)
+	 */
+	private static boolean isSoupEltColumn(Cursor cursor, int i) {
+		int type = cursor.getType(i);
+		return (type == Cursor.FIELD_TYPE_STRING || type == Cursor.FIELD_TYPE_BLOB) && cursor.getColumnName(i).equals(SOUP_COL);
+	}
+
+	/**
+	 * @param raw text of a soup column
+	 * @return true if raw is a serialized json object (soup elements are stored as serialized json objects)
+	 */
+	private static boolean isSerializedSoupElt(String raw) {
+		return raw.length() > 1 && raw.charAt(0) == '{' && raw.charAt(raw.length() - 1) == '}';
+	}
+
+	/**
+	 * @param cursor
+	 * @param i
+	 * @return value of column i of current row, guessed from its text (numbers come back as numbers even when stored as strings)
+	 */
+	private static Object guessColumnValue(Cursor cursor, int i) {
+		int type = cursor.getType(i);
+		if (type == Cursor.FIELD_TYPE_NULL || type == Cursor.FIELD_TYPE_BLOB) {
+			return getColumnValue(cursor, i);
+		}
+		String raw = cursor.getString(i);
+
+		// Is it holding a integer ?
+		try {
+			return Long.parseLong(raw);
+			// Note: we could end up returning an integer for a string column if you have a string value that contains just an integer
+		}
+		// Is it holding a floating ?
+		catch (NumberFormatException e) {
+			try {
+				Double.parseDouble(raw);
+				// No exception, let's get the value straight from the cursor
+				// XXX Double.parseDouble(cursor.getString(i)) is sometimes different from cursor.getDouble(i) !!!
+				return cursor.getDouble(i);
+			}
+			// It must be holding a string then
+			catch (NumberFormatException ne) {
+				return raw;
+			}
+		}
+	}
+
+	/**
+	 * @param cursor
+	 * @param i
+	 * @return value of column i of current row (blobs come back base64 encoded)
+	 */
+	private static Object getColumnValue(Cursor cursor, int i) {
+		// Storage class of the value - index columns are created with the affinity of their IndexSpec type
+		// (string -> TEXT, integer -> INTEGER, floating -> REAL) so values come back typed without any guessing
+		switch (cursor.getType(i)) {
+		case Cursor.FIELD_TYPE_NULL:
+			return JSONObject.NULL;
+		case Cursor.FIELD_TYPE_INTEGER:
+			return cursor.getLong(i);
+		case Cursor.FIELD_TYPE_FLOAT:
+			return cursor.getDouble(i);
+		case Cursor.FIELD_TYPE_BLOB:
+			// Blobs (e.g. binary soup elements selected by a smart query) can't go in json as they are
+			return Base64.encodeToString(cursor.getBlob(i), Base64.NO_WRAP);
+		default:
+			return cursor.getString(i);
+		}
+	}
+
+	/**
+	 * @param db
+	 * @param querySpec
+	 * @return projection to read the select paths of querySpec or null if it does not have any
+	 */
+	private Projection getProjection(SQLiteDatabase db, QuerySpec querySpec) {
+		return querySpec.selectPaths == null ? null : getProjection(db, querySpec.soupName, querySpec.selectPaths);
+	}
+
+	/**
+	 * @param querySpec
+	 * @param projection projection returned by getProjection(db, querySpec)
+	 * @return sql to run for querySpec
+	 */
+	private String getSql(QuerySpec querySpec, Projection projection) {
+		return convertSmartSql(projection == null ? querySpec.smartSql : querySpec.computeSmartSql(TextUtils.join(", ", projection.columns)));
+	}
+
+	/**
+	 * @param querySpec
+	 * @param pageIndex
+	 * @return limit clause to get the page at pageIndex
+	 */
+	private static String getLimit(QuerySpec querySpec, int pageIndex) {
+		return (querySpec.pageSize * pageIndex) + "," + querySpec.pageSize;
+	}
+
+	/**
+	 * @param db
+	 * @param soupName
+	 * @param selectPaths
+	 * @return projection to read selectPaths of soup elements
+	 */
+	private Projection getProjection(SQLiteDatabase db, String soupName, String[] selectPaths) {
+		String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
+        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+        return new Projection(soupTableName, DBHelper.getInstance(db).getIndexSpecs(db, soupName), selectPaths);
+	}
 	
 	/**
 	 * @param querySpec
@@ -668,9 +1721,13 @@ public class SmartStore  {
 	 */
 	public int countQuery(QuerySpec querySpec) {
 		final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
 			String countSql = convertSmartSql(querySpec.countSmartSql);
 			return DBHelper.getInstance(db).countRawCountQuery(db, countSql, querySpec.getArgs());
+    	} finally {
+    		lock.unlock();
     	}
 	}
 
@@ -680,8 +1737,12 @@ public class SmartStore  {
 	 */
 	public String convertSmartSql(String smartSql) {
 		final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
     		return SmartSqlHelper.getInstance(db).convertSmartSql(db, smartSql);
+    	} finally {
+    		lock.unlock();
     	}
 	}
 
@@ -696,8 +1757,12 @@ public class SmartStore  {
      */
     public JSONObject create(String soupName, JSONObject soupElt) throws JSONException {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
     		return create(soupName, soupElt, true);
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -711,17 +1776,20 @@ public class SmartStore  {
      */
     public JSONObject create(String soupName, JSONObject soupElt, boolean handleTx) throws JSONException {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
 	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
 	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
 	        IndexSpec[] indexSpecs = DBHelper.getInstance(db).getIndexSpecs(db, soupName);
+	        SoupFormat soupFormat = DBHelper.getInstance(db).getSoupFormat(db, soupName);
 	
 	        try {
 	            if (handleTx) {
-	                db.beginTransaction();
+	                DBHelper.getInstance(db).beginTransaction(db);
 	            }
 	            long now = System.currentTimeMillis();
-	            long soupEntryId = DBHelper.getInstance(db).getNextId(db, soupTableName);
+	            long soupEntryId = DBHelper.getInstance(db).allocateId(db, soupTableName);
 	
 	            // Adding fields to soup element
 	            soupElt.put(SOUP_ENTRY_ID, soupEntryId);
@@ -731,16 +1799,15 @@ public class SmartStore  {
 	            contentValues.put(SOUP_COL, "");
 	            contentValues.put(CREATED_COL, now);
 	            contentValues.put(LAST_MODIFIED_COL, now);
-	            contentValues.put(SOUP_COL, soupElt.toString());
-	            for (IndexSpec indexSpec : indexSpecs) {
-	                projectIndexedPaths(soupElt, contentValues, indexSpec);
-	            }
+	            putSoupElt(contentValues, soupFormat, soupElt);
+	            projectIndexedPaths(soupElt, contentValues, indexSpecs);
 	
 	            // Inserting into database
 	            boolean success = DBHelper.getInstance(db).insert(db, soupTableName, contentValues) == soupEntryId;
 	
 	            // Commit if successful
 	            if (success) {
+	                DBHelper.getInstance(db).recordSoupChange(db, soupName, ChangeType.created, Arrays.asList(soupEntryId));
 	                if (handleTx) {
 	                    db.setTransactionSuccessful();
 	                }
@@ -750,27 +1817,133 @@ public class SmartStore  {
 	            }
 	        } finally {
 	            if (handleTx) {
-	                db.endTransaction();
+	                DBHelper.getInstance(db).endTransaction(db);
 	            }
 	        }
+    	} finally {
+    		lock.unlock();
     	}
     }
 
     /**
      * @param soupElt
      * @param contentValues
-     * @param indexSpec
-     */
-    private void projectIndexedPaths(JSONObject soupElt, ContentValues contentValues, IndexSpec indexSpec) {
-        Object value = project(soupElt, indexSpec.path);
-        switch (indexSpec.type) {
-        case integer:
-            contentValues.put(indexSpec.columnName, value != null ? ((Number) value).longValue() : null); break;
-        case string:
-            contentValues.put(indexSpec.columnName, value != null ? value.toString() : null); break;
-        case floating:
-            contentValues.put(indexSpec.columnName, value != null ? ((Number) value).doubleValue() : null); break;
-        }
+     * @param indexSpecs
+     */
+    private void projectIndexedPaths(JSONObject soupElt, ContentValues contentValues, IndexSpec[] indexSpecs) {
+    	Object[] values = IndexSpec.projectAll(soupElt, indexSpecs);
+    	for (int i = 0; i < indexSpecs.length; i++) {
+    		IndexSpec indexSpec = indexSpecs[i];
+    		Object value = values[i];
+	        switch (indexSpec.type) {
+	        case integer:
+	            contentValues.put(indexSpec.columnName, value != null ? ((Number) value).longValue() : null); break;
+	        case string:
+	        case full_text:
+	            contentValues.put(indexSpec.columnName, value != null ? value.toString() : null); break;
+	        case floating:
+	            contentValues.put(indexSpec.columnName, value != null ? ((Number) value).doubleValue() : null); break;
+	        }
+    	}
+    }
+
+    /**
+     * @param contentValues
+     * @param soupFormat
+     * @param soupElt
+     */
+    private static void putSoupElt(ContentValues contentValues, SoupFormat soupFormat, JSONObject soupElt) {
+    	switch (soupFormat) {
+    	case binary:
+    	case compressed_binary:
+    		contentValues.put(SOUP_COL, BinaryJson.encode(soupElt, soupFormat == SoupFormat.compressed_binary)); break;
+    	default:
+    		contentValues.put(SOUP_COL, soupElt.toString()); break;
+    	}
+    }
+
+    /**
+     * @param prog
+     * @param index
+     * @param soupFormat
+     * @param soupElt
+     */
+    private static void bindSoupElt(SQLiteStatement prog, int index, SoupFormat soupFormat, JSONObject soupElt) {
+    	switch (soupFormat) {
+    	case binary:
+    	case compressed_binary:
+    		prog.bindBlob(index, BinaryJson.encode(soupElt, soupFormat == SoupFormat.compressed_binary)); break;
+    	default:
+    		prog.bindString(index, soupElt.toString()); break;
+    	}
+    }
+
+    /**
+     * Read soup element from soup column
+     * The storage class of the value tells how it was written (blob for binary soups, text for json soups)
+     * so soups being migrated from one format to the other can be read at any point
+     *
+     * @param cursor
+     * @param i position of soup column
+     * @return soup element
+     * @throws JSONException
+     */
+    private static JSONObject readSoupElt(Cursor cursor, int i) throws JSONException {
+    	if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+    		return BinaryJson.decode(cursor.getBlob(i));
+    	}
+    	return new JSONObject(cursor.getString(i));
+    }
+
+    /**
+     * @param cursor
+     * @param i
+     * @return serialized soup element in column i of current row (as stored for soups using the json format)
+     * @throws JSONException
+     */
+    private static String readSoupEltAsString(Cursor cursor, int i) throws JSONException {
+    	if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+    		return BinaryJson.decode(cursor.getBlob(i)).toString();
+    	}
+    	return cursor.getString(i);
+    }
+
+    /**
+     * Retrieve only returning selectPaths (see query)
+     * @param soupName
+     * @param selectPaths
+     * @param soupEntryIds
+     * @return JSONArray of JSONArray's with the values at selectPaths of the soup elements with the given soupEntryIds
+     * @throws JSONException
+     */
+    public JSONArray retrieve(String soupName, String[] selectPaths, Long... soupEntryIds) throws JSONException {
+    	if (selectPaths == null) {
+    		return retrieve(soupName, soupEntryIds);
+    	}
+    	final SQLiteDatabase db = getDatabase();
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
+    		Projection projection = getProjection(db, soupName, selectPaths);
+	        Cursor cursor = null;
+	        try {
+	            JSONArray result = new JSONArray();
+	            for (Long[] batch : getSoupEntryIdsBatches(soupEntryIds)) {
+	            	cursor = DBHelper.getInstance(db).query(db, projection.soupTableName, projection.columns.toArray(new String[0]), null, null, getSoupEntryIdsPredicate(batch), (String[]) null);
+	            	while (cursor.moveToNext()) {
+	            		result.put(projection.getRow(cursor));
+	            	}
+	            	safeClose(cursor);
+	            	cursor = null;
+	            }
+	            return result;
+	        }
+	        finally {
+	            safeClose(cursor);
+	        }
+    	} finally {
+    		lock.unlock();
+    	}
     }
 
     /**
@@ -782,31 +1955,85 @@ public class SmartStore  {
      */
     public JSONArray retrieve(String soupName, Long... soupEntryIds) throws JSONException {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
 	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
 	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+	        SoupEltCache soupEltCache = DBHelper.getInstance(db).getSoupEltCache(soupName);
+	        if (soupEltCache != null) {
+	        	return retrieveUsingCache(db, soupTableName, soupEltCache, soupEntryIds);
+	        }
 	        Cursor cursor = null;
 	        try {
 	            JSONArray result = new JSONArray();
-	            cursor = DBHelper.getInstance(db).query(db, soupTableName, new String[] {SOUP_COL}, null, null, getSoupEntryIdsPredicate(soupEntryIds), (String[]) null);
-	            if (!cursor.moveToFirst()) {
-	                return result;
-	            }
-	            do {
-	                String raw = cursor.getString(cursor.getColumnIndex(SOUP_COL));
-	                result.put(new JSONObject(raw));
+	            for (Long[] batch : getSoupEntryIdsBatches(soupEntryIds)) {
+	            	cursor = DBHelper.getInstance(db).query(db, soupTableName, new String[] {SOUP_COL}, null, null, getSoupEntryIdsPredicate(batch), (String[]) null);
+	            	while (cursor.moveToNext()) {
+	            		result.put(readSoupElt(cursor, 0));
+	            	}
+	            	safeClose(cursor);
+	            	cursor = null;
 	            }
-	            while (cursor.moveToNext());
-	
 	            return result;
 	        }
 	        finally {
 	            safeClose(cursor);
 	        }
+    	} finally {
+    		lock.unlock();
     	}
     }
 
 
+    /**
+     * Retrieve soup elements from the soup element cache, only going to the database for the ones that are not cached
+     * Soup elements read from the database get cached, unless a transaction is in progress (it could still be rolled back)
+     * @param db
+     * @param soupTableName
+     * @param soupEltCache
+     * @param soupEntryIds
+     * @return JSONArray of JSONObject's with the given soupEntryIds (ordered by soup entry id)
+     * @throws JSONException
+     */
+    private JSONArray retrieveUsingCache(SQLiteDatabase db, String soupTableName, SoupEltCache soupEltCache, Long[] soupEntryIds) throws JSONException {
+    	SortedMap<Long, JSONObject> soupElts = new TreeMap<Long, JSONObject>();
+    	Set<Long> missingIds = new LinkedHashSet<Long>();
+    	for (Long soupEntryId : soupEntryIds) {
+    		if (soupEntryId == null || soupElts.containsKey(soupEntryId) || missingIds.contains(soupEntryId)) {
+    			continue;
+    		}
+    		JSONObject soupElt = soupEltCache.get(soupEntryId);
+    		if (soupElt != null) {
+    			soupElts.put(soupEntryId, soupElt);
+    		} else {
+    			missingIds.add(soupEntryId);
+    		}
+    	}
+    	if (!missingIds.isEmpty()) {
+    		boolean cacheable = !db.inTransaction();
+    		Cursor cursor = null;
+    		try {
+    			for (Long[] batch : getSoupEntryIdsBatches(missingIds.toArray(new Long[0]))) {
+    				cursor = DBHelper.getInstance(db).query(db, soupTableName, new String[] {ID_COL, SOUP_COL}, null, null, getSoupEntryIdsPredicate(batch), (String[]) null);
+    				while (cursor.moveToNext()) {
+    					long soupEntryId = cursor.getLong(0);
+    					JSONObject soupElt = readSoupElt(cursor, 1);
+    					if (cacheable) {
+    						soupEltCache.put(soupEntryId, soupElt);
+    					}
+    					soupElts.put(soupEntryId, soupElt);
+    				}
+    				safeClose(cursor);
+    				cursor = null;
+    			}
+    		} finally {
+    			safeClose(cursor);
+    		}
+    	}
+    	return new JSONArray(soupElts.values());
+    }
+
     /**
      * Update (and commits)
      * Note: Passed soupElt is modified (last modified date and soup entry id fields)
@@ -818,8 +2045,12 @@ public class SmartStore  {
      */
     public JSONObject update(String soupName, JSONObject soupElt, long soupEntryId) throws JSONException {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
     		return update(soupName, soupElt, soupEntryId, true);
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -834,10 +2065,13 @@ public class SmartStore  {
      */
     public JSONObject update(String soupName, JSONObject soupElt, long soupEntryId, boolean handleTx) throws JSONException {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
 	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
 	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
 	        IndexSpec[] indexSpecs = DBHelper.getInstance(db).getIndexSpecs(db, soupName);
+	        SoupFormat soupFormat = DBHelper.getInstance(db).getSoupFormat(db, soupName);
 	
 	        long now = System.currentTimeMillis();
 	
@@ -848,17 +2082,20 @@ public class SmartStore  {
 	
 	        // Preparing data for row
 	        ContentValues contentValues = new ContentValues();
-	        contentValues.put(SOUP_COL, soupElt.toString());
+	        putSoupElt(contentValues, soupFormat, soupElt);
 	        contentValues.put(LAST_MODIFIED_COL, now);
-	        for (IndexSpec indexSpec : indexSpecs) {
-	            projectIndexedPaths(soupElt, contentValues, indexSpec);
-	        }
+	        projectIndexedPaths(soupElt, contentValues, indexSpecs);
 	        try {
 	            if (handleTx) {
-	                db.beginTransaction();
+	                DBHelper.getInstance(db).beginTransaction(db);
 	            }
 	            boolean success = DBHelper.getInstance(db).update(db, soupTableName, contentValues, ID_PREDICATE, soupEntryId + "") == 1;
+	            SoupEltCache soupEltCache = DBHelper.getInstance(db).getSoupEltCache(soupName);
+	            if (soupEltCache != null) {
+	            	soupEltCache.remove(soupEntryId);
+	            }
 	            if (success) {
+	                DBHelper.getInstance(db).recordSoupChange(db, soupName, ChangeType.updated, Arrays.asList(soupEntryId));
 	                if (handleTx) {
 	                    db.setTransactionSuccessful();
 	                }
@@ -868,9 +2105,11 @@ public class SmartStore  {
 	            }
 	        } finally {
 	            if (handleTx) {
-	                db.endTransaction();
+	                DBHelper.getInstance(db).endTransaction(db);
 	            }
 	        }
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -884,8 +2123,12 @@ public class SmartStore  {
      */
     public JSONObject upsert(String soupName, JSONObject soupElt, String externalIdPath) throws JSONException {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
     		return upsert(soupName, soupElt, externalIdPath, true);
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -898,8 +2141,12 @@ public class SmartStore  {
      */
     public JSONObject upsert(String soupName, JSONObject soupElt) throws JSONException {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
     		return upsert(soupName, soupElt, SOUP_ENTRY_ID);
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -914,7 +2161,9 @@ public class SmartStore  {
      */
     public JSONObject upsert(String soupName, JSONObject soupElt, String externalIdPath, boolean handleTx) throws JSONException {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
 	        long entryId = -1;
 	        if (externalIdPath.equals(SOUP_ENTRY_ID)) {
 	            if (soupElt.has(SOUP_ENTRY_ID)) {
@@ -933,6 +2182,262 @@ public class SmartStore  {
 	        } else {
 	            return create(soupName, soupElt, handleTx);
 	        }
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Upsert (and commits) many soup elements at once
+     * Note: Passed soupElts are modified (last modified date and soup entry id fields)
+     * @param soupName
+     * @param soupElts
+     * @param externalIdPath
+     * @return JSONArray with soup elements upserted (JSONObject.NULL for the ones where the upsert failed) in the same order as soupElts
+     * @throws JSONException
+     */
+    public JSONArray upsertAll(String soupName, JSONArray soupElts, String externalIdPath) throws JSONException {
+    	return upsertAll(soupName, soupElts, externalIdPath, true);
+    }
+
+    /**
+     * Upsert many soup elements at once
+     * Note: Passed soupElts are modified (last modified date and soup entry id fields)
+     * @param soupName
+     * @param soupElts
+     * @param externalIdPath
+     * @param handleTx
+     * @return JSONArray with soup elements upserted (JSONObject.NULL for the ones where the upsert failed) in the same order as soupElts
+     * @throws JSONException
+     */
+    public JSONArray upsertAll(String soupName, JSONArray soupElts, String externalIdPath, boolean handleTx) throws JSONException {
+    	List<JSONObject> soupEltsList = new ArrayList<JSONObject>(soupElts.length());
+    	for (int i = 0; i < soupElts.length(); i++) {
+    		soupEltsList.add(soupElts.getJSONObject(i));
+    	}
+    	return upsertAll(soupName, soupEltsList, externalIdPath, handleTx);
+    }
+
+    /**
+     * Upsert many soup elements at once
+     *
+     * Table name and index specs are resolved once, existing soup entry ids are looked up in bulk
+     * and rows are written using the soup's compiled insert and update statements
+     *
+     * Note: Passed soupElts are modified (last modified date and soup entry id fields)
+     * @param soupName
+     * @param soupElts
+     * @param externalIdPath
+     * @param handleTx
+     * @return JSONArray with soup elements upserted (JSONObject.NULL for the ones where the upsert failed) in the same order as soupElts
+     * @throws JSONException
+     */
+    public JSONArray upsertAll(String soupName, Iterable<JSONObject> soupElts, String externalIdPath, boolean handleTx) throws JSONException {
+    	final SQLiteDatabase db = getDatabase();
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
+    		DBHelper dbHelper = DBHelper.getInstance(db);
+	        String soupTableName = dbHelper.getSoupTableName(db, soupName);
+	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+	        IndexSpec[] indexSpecs = dbHelper.getIndexSpecs(db, soupName);
+	        SoupFormat soupFormat = dbHelper.getSoupFormat(db, soupName);
+	        SoupEltCache soupEltCache = dbHelper.getSoupEltCache(soupName);
+	        boolean useSoupEntryId = externalIdPath.equals(SOUP_ENTRY_ID);
+
+	        // Collecting external ids
+	        List<JSONObject> elts = new ArrayList<JSONObject>();
+	        List<String> externalIds = new ArrayList<String>();
+	        for (JSONObject soupElt : soupElts) {
+	        	elts.add(soupElt);
+	        	if (!useSoupEntryId) {
+	        		Object externalIdObj = project(soupElt, externalIdPath);
+	        		externalIds.add(externalIdObj != null ? externalIdObj + "" : null);
+	        	}
+	        }
+
+	        // Looking up soup entry ids of existing soup elements in bulk
+	        Map<String, Long> externalIdToEntryId = useSoupEntryId ? null : lookupSoupEntryIds(soupName, externalIdPath, externalIds);
+
+	        JSONArray results = new JSONArray();
+	        List<Long> createdIds = new ArrayList<Long>();
+	        List<Long> updatedIds = new ArrayList<Long>();
+	        try {
+	            if (handleTx) {
+	                dbHelper.beginTransaction(db);
+	            }
+	            SQLiteStatement insertProg = dbHelper.getInsertStatement(db, soupTableName, indexSpecs);
+	            SQLiteStatement updateProg = dbHelper.getUpdateStatement(db, soupTableName, indexSpecs);
+	            long now = System.currentTimeMillis();
+	            for (int i = 0; i < elts.size(); i++) {
+	            	JSONObject soupElt = elts.get(i);
+	            	String externalId = useSoupEntryId ? null : externalIds.get(i);
+	            	long entryId = -1;
+	            	if (useSoupEntryId) {
+	            		if (soupElt.has(SOUP_ENTRY_ID)) {
+	            			entryId = soupElt.getLong(SOUP_ENTRY_ID);
+	            		}
+	            	} else if (externalId != null && externalIdToEntryId.containsKey(externalId)) {
+	            		entryId = externalIdToEntryId.get(externalId);
+	            	}
+
+	            	boolean success;
+	            	soupElt.put(SOUP_LAST_MODIFIED_DATE, now);
+
+	            	// If we have an entryId, let's do an update, otherwise let's do a create
+	            	if (entryId != -1) {
+	            		soupElt.put(SOUP_ENTRY_ID, entryId);
+	            		bindSoupElt(updateProg, 1, soupFormat, soupElt);
+	            		updateProg.bindLong(2, now);
+	            		bindIndexedPaths(updateProg, 3, soupElt, indexSpecs);
+	            		updateProg.bindLong(3 + indexSpecs.length, entryId);
+	            		success = executeSafely(updateProg, false) == 1;
+	            		if (soupEltCache != null) {
+	            			soupEltCache.remove(entryId);
+	            		}
+	            		if (success) {
+	            			updatedIds.add(entryId);
+	            		}
+	            	} else {
+	            		entryId = dbHelper.allocateId(db, soupTableName);
+	            		soupElt.put(SOUP_ENTRY_ID, entryId);
+	            		insertProg.bindLong(1, entryId);
+	            		bindSoupElt(insertProg, 2, soupFormat, soupElt);
+	            		insertProg.bindLong(3, now);
+	            		insertProg.bindLong(4, now);
+	            		bindIndexedPaths(insertProg, 5, soupElt, indexSpecs);
+	            		success = executeSafely(insertProg, true) == entryId;
+	            		if (success) {
+	            			createdIds.add(entryId);
+	            			// Later elements in the batch with the same external id should update this one
+	            			if (externalId != null) {
+	            				externalIdToEntryId.put(externalId, entryId);
+	            			}
+	            		}
+	            	}
+	            	results.put(success ? soupElt : JSONObject.NULL);
+	            }
+	            if (!createdIds.isEmpty()) {
+	            	dbHelper.recordSoupChange(db, soupName, ChangeType.created, createdIds);
+	            }
+	            if (!updatedIds.isEmpty()) {
+	            	dbHelper.recordSoupChange(db, soupName, ChangeType.updated, updatedIds);
+	            }
+	            if (handleTx) {
+	                db.setTransactionSuccessful();
+	            }
+	            return results;
+	        } finally {
+	            if (handleTx) {
+	                dbHelper.endTransaction(db);
+	            }
+	        }
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Run insert or update statement then clear its bindings
+     * @param prog
+     * @param isInsert
+     * @return row id for insert, number of rows affected for update, -1 if it failed
+     */
+    private long executeSafely(SQLiteStatement prog, boolean isInsert) {
+    	try {
+    		return isInsert ? prog.executeInsert() : prog.executeUpdateDelete();
+    	} catch (SQLiteException e) {
+    		Log.w("SmartStore.upsertAll", "Failed to write soup element", e);
+    		return -1;
+    	} finally {
+    		prog.clearBindings();
+    	}
+    }
+
+    /**
+     * Bind values of indexed paths to statement starting at position firstIndex
+     * @param prog
+     * @param firstIndex
+     * @param soupElt
+     * @param indexSpecs
+     */
+    private void bindIndexedPaths(SQLiteStatement prog, int firstIndex, JSONObject soupElt, IndexSpec[] indexSpecs) {
+    	Object[] values = IndexSpec.projectAll(soupElt, indexSpecs);
+    	for (int i = 0; i < indexSpecs.length; i++) {
+    		IndexSpec indexSpec = indexSpecs[i];
+    		int index = firstIndex + i;
+	        Object value = values[i];
+	        if (value == null) {
+	        	prog.bindNull(index);
+	        	continue;
+	        }
+	        switch (indexSpec.type) {
+	        case integer:
+	            prog.bindLong(index, ((Number) value).longValue()); break;
+	        case string:
+	        case full_text:
+	            prog.bindString(index, value.toString()); break;
+	        case floating:
+	            prog.bindDouble(index, ((Number) value).doubleValue()); break;
+	        }
+    	}
+    }
+
+    /**
+     * Look for soup elements where fieldPath's value is one of fieldValues
+     * Return map of field value to soupEntryId (values not found are not in the map)
+     * Throw an exception if fieldName is not indexed
+     * Throw an exception if more than one soup element are found for a given value
+     *
+     * @param soupName
+     * @param fieldPath
+     * @param fieldValues (null values are ignored)
+     */
+    public Map<String, Long> lookupSoupEntryIds(String soupName, String fieldPath, List<String> fieldValues) {
+    	final SQLiteDatabase db = getDatabase();
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
+    		Map<String, Long> result = new HashMap<String, Long>();
+    		List<String> values = new ArrayList<String>();
+    		for (String fieldValue : fieldValues) {
+    			if (fieldValue != null) {
+    				values.add(fieldValue);
+    			}
+    		}
+    		if (values.isEmpty()) {
+    			return result;
+    		}
+	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
+	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+	        String columnName = DBHelper.getInstance(db).getColumnNameForPath(db, soupName, fieldPath);
+	        for (int start = 0; start < values.size(); start += MAX_LOOKUP_BATCH_SIZE) {
+	        	List<String> batch = values.subList(start, Math.min(start + MAX_LOOKUP_BATCH_SIZE, values.size()));
+	        	String[] placeholders = new String[batch.size()];
+	        	for (int i = 0; i < placeholders.length; i++) {
+	        		placeholders[i] = "?";
+	        	}
+		        Cursor cursor = null;
+		        try {
+		            cursor = db.query(soupTableName, new String[] {ID_COL, columnName}, columnName + " IN (" + TextUtils.join(",", placeholders) + ")",
+		            		batch.toArray(new String[0]), null, null, null);
+		            if (cursor.moveToFirst()) {
+		            	do {
+		            		String fieldValue = cursor.getString(1);
+		            		if (result.containsKey(fieldValue)) {
+		            			throw new SmartStoreException(String.format("There are more than one soup elements where %s is %s", fieldPath, fieldValue));
+		            		}
+		            		result.put(fieldValue, cursor.getLong(0));
+		            	}
+		            	while (cursor.moveToNext());
+		            }
+		        } finally {
+		            safeClose(cursor);
+		        }
+	        }
+	        return result;
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -949,7 +2454,9 @@ public class SmartStore  {
      */
     public long lookupSoupEntryId(String soupName, String fieldPath, String fieldValue) {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = readLock(db);
+    	lock.lock();
+    	try {
 	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
 	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
 	        String columnName = DBHelper.getInstance(db).getColumnNameForPath(db, soupName, fieldPath);
@@ -968,6 +2475,8 @@ public class SmartStore  {
 	        } finally {
 	            safeClose(cursor);
 	        }
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -978,8 +2487,12 @@ public class SmartStore  {
      */
     public void delete(String soupName, Long... soupEntryIds) {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
     		delete(soupName, soupEntryIds, true);
+    	} finally {
+    		lock.unlock();
     	}
     }
 
@@ -991,22 +2504,132 @@ public class SmartStore  {
      */
     public void delete(String soupName, Long[] soupEntryIds, boolean handleTx) {
     	final SQLiteDatabase db = getDatabase();
-    	synchronized(db) {
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
 	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
 	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
 	        if (handleTx) {
-	            db.beginTransaction();
+	            DBHelper.getInstance(db).beginTransaction(db);
 	        }
 	        try {
-	            db.delete(soupTableName, getSoupEntryIdsPredicate(soupEntryIds), (String []) null);
+	            for (Long[] batch : getSoupEntryIdsBatches(soupEntryIds)) {
+	            	db.delete(soupTableName, getSoupEntryIdsPredicate(batch), (String []) null);
+	            }
+	            SoupEltCache soupEltCache = DBHelper.getInstance(db).getSoupEltCache(soupName);
+	            if (soupEltCache != null) {
+	            	soupEltCache.remove(soupEntryIds);
+	            }
+	            DBHelper.getInstance(db).recordSoupChange(db, soupName, ChangeType.deleted, Arrays.asList(soupEntryIds));
 	            if (handleTx) {
 	                db.setTransactionSuccessful();
 	            }
 	        } finally {
 	            if (handleTx) {
-	                db.endTransaction();
+	                DBHelper.getInstance(db).endTransaction(db);
 	            }
 	        }
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Delete (and commits) all the soup elements matching a query
+     * @param soupName
+     * @param querySpec
+     */
+    public void deleteByQuery(String soupName, QuerySpec querySpec) {
+    	final SQLiteDatabase db = getDatabase();
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
+    		deleteByQuery(soupName, querySpec, true);
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Delete all the soup elements matching a query with a single DELETE statement (soup elements are never read)
+     * All the soup elements matching the query are deleted (the page size of the query spec is ignored)
+     * Smart queries must only select {soupName:_soupEntryId} from {soupName} (e.g. "select {contacts:_soupEntryId} from {contacts} where {contacts:__local__} = 'true'"),
+     * any other smart query is rejected with a SmartStoreException
+     *
+     * @param soupName
+     * @param querySpec
+     * @param handleTx
+     */
+    public void deleteByQuery(String soupName, QuerySpec querySpec, boolean handleTx) {
+    	final SQLiteDatabase db = getDatabase();
+    	final Lock lock = writeLock(db);
+    	lock.lock();
+    	try {
+    		DBHelper dbHelper = DBHelper.getInstance(db);
+	        String soupTableName = dbHelper.getSoupTableName(db, soupName);
+	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+	        if (querySpec.queryType == QueryType.smart) {
+	        	checkDeleteSmartSql(soupName, querySpec.smartSql);
+	        } else if (!soupName.equals(querySpec.soupName)) {
+	        	throw new SmartStoreException("Query spec is for soup: " + querySpec.soupName + " not " + soupName);
+	        }
+	        String idsSql = convertSmartSql(querySpec.queryType == QueryType.smart ? querySpec.smartSql : querySpec.computeSoupEntryIdsSmartSql());
+	        String[] args = querySpec.getArgs();
+	        if (handleTx) {
+	            dbHelper.beginTransaction(db);
+	        }
+	        try {
+	        	// Soup change listeners want the ids of the soup elements deleted
+	        	if (dbHelper.hasSoupChangeListeners()) {
+	        		List<Long> soupEntryIds = new ArrayList<Long>();
+	        		Cursor cursor = null;
+	        		try {
+	        			cursor = db.rawQuery(idsSql, args);
+	        			while (cursor.moveToNext()) {
+	        				soupEntryIds.add(cursor.getLong(0));
+	        			}
+	        		} finally {
+	        			safeClose(cursor);
+	        		}
+	        		dbHelper.recordSoupChange(db, soupName, ChangeType.deleted, soupEntryIds);
+	        	} else {
+	        		// Still counted (see getSoupChangeCount)
+	        		dbHelper.recordSoupChange(db, soupName, ChangeType.deleted, null);
+	        	}
+	        	String deleteSql = "DELETE FROM " + soupTableName + " WHERE " + ID_COL + " IN (" + idsSql + ")";
+	        	if (args == null) {
+	        		db.execSQL(deleteSql);
+	        	} else {
+	        		db.execSQL(deleteSql, args);
+	        	}
+	            SoupEltCache soupEltCache = dbHelper.getSoupEltCache(soupName);
+	            if (soupEltCache != null) {
+	            	soupEltCache.clear();
+	            }
+	            if (handleTx) {
+	                db.setTransactionSuccessful();
+	            }
+	        } finally {
+	            if (handleTx) {
+	                dbHelper.endTransaction(db);
+	            }
+	        }
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Check that a smart query given to deleteByQuery only selects {soupName:_soupEntryId} from {soupName}
+     * Its result is used as the id list of a DELETE statement: selecting any other column (or ids of another soup) would delete unrelated soup elements
+     * @param soupName
+     * @param smartSql
+     */
+    private static void checkDeleteSmartSql(String soupName, String smartSql) {
+    	Pattern pattern = Pattern.compile("\\s*select\\s+\\{" + Pattern.quote(soupName + ":" + SOUP_ENTRY_ID) + "\\}\\s+from\\s+\\{" + Pattern.quote(soupName) + "\\}(\\s+(where|order|limit)\\b.*)?",
+    			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    	if (!pattern.matcher(smartSql).matches() || DELETE_SMART_SQL_COMPOUND_PATTERN.matcher(smartSql).find()) {
+    		throw new SmartStoreException("Smart query must only select {" + soupName + ":" + SOUP_ENTRY_ID + "} from {" + soupName + "} to delete soup elements: " + smartSql);
     	}
     }
 
@@ -1017,6 +2640,26 @@ public class SmartStore  {
         return ID_COL + " IN (" + TextUtils.join(",", soupEntryIds)+ ")";
     }
 
+    /**
+     * Split soup entry ids into batches small enough for a single id IN (...) predicate
+     * Ids are sorted before being split, so that batched reads return rows in the same order as a single read would (soup entry id order)
+     * @param soupEntryIds
+     * @return batches of at most MAX_LOOKUP_BATCH_SIZE ids
+     */
+    private static List<Long[]> getSoupEntryIdsBatches(Long[] soupEntryIds) {
+    	List<Long[]> batches = new ArrayList<Long[]>();
+    	if (soupEntryIds.length <= MAX_LOOKUP_BATCH_SIZE) {
+    		batches.add(soupEntryIds);
+    		return batches;
+    	}
+    	Long[] sortedIds = soupEntryIds.clone();
+    	Arrays.sort(sortedIds);
+    	for (int start = 0; start < sortedIds.length; start += MAX_LOOKUP_BATCH_SIZE) {
+    		batches.add(Arrays.copyOfRange(sortedIds, start, Math.min(start + MAX_LOOKUP_BATCH_SIZE, sortedIds.length)));
+    	}
+    	return batches;
+    }
+
 
     /**
      * @param soupId
@@ -1039,29 +2682,140 @@ public class SmartStore  {
      * @param soup
      * @param path
      * @return object at path in soup
+     * Note: path is compiled once (see CompiledPath), use CompiledPath.Group to project several paths at once
      */
     public static Object project(JSONObject soup, String path) {
-        if (soup == null) {
-            return null;
-        }
-        if (path == null || path.equals("")) {
-            return soup;
-        }
-        String[] pathElements = path.split("[.]");
-        Object o = soup;
-        for (String pathElement : pathElements) {
-        	if (o != null) {
-                o = ((JSONObject) o).opt(pathElement);
-        	}
-        }
-        return o;
+        return CompiledPath.compile(path).project(soup);
+    }
+
+    /**
+     * Columns to read and how to turn them into rows for queries and retrieves with select paths
+     * Indexed paths (and soup entry id / last modified date) are read from their column
+     * Other paths are read from a partial parse of the soup column (see CompiledPath.Group)
+     */
+    private static class Projection {
+    	final String soupTableName;
+    	// Columns to select (qualified with the soup table name)
+    	final List<String> columns = new ArrayList<String>();
+    	// For each select path: position of its column or -1 when it comes from the soup column
+    	final int[] columnPositions;
+    	// For each select path: position in the values of the group or -1 when it comes from a column
+    	final int[] groupPositions;
+    	// Paths to read from the soup column or null if there are none
+    	final CompiledPath.Group group;
+    	final int soupColumnPosition;
+
+    	Projection(String soupTableName, IndexSpec[] indexSpecs, String[] selectPaths) {
+    		this.soupTableName = soupTableName;
+    		this.columnPositions = new int[selectPaths.length];
+    		this.groupPositions = new int[selectPaths.length];
+    		Map<String, IndexSpec> mapIndexSpecs = IndexSpec.mapForIndexSpecs(indexSpecs);
+    		List<CompiledPath> unindexedPaths = new ArrayList<CompiledPath>();
+    		for (int i = 0; i < selectPaths.length; i++) {
+    			String path = selectPaths[i];
+    			String column = null;
+    			if (path.equals(SOUP_ENTRY_ID)) {
+    				column = ID_COL;
+    			} else if (path.equals(SOUP_LAST_MODIFIED_DATE)) {
+    				column = LAST_MODIFIED_COL;
+    			} else if (mapIndexSpecs.containsKey(path)) {
+    				column = mapIndexSpecs.get(path).columnName;
+    			}
+    			if (column != null) {
+    				columnPositions[i] = columns.size();
+    				groupPositions[i] = -1;
+    				columns.add(soupTableName + "." + column);
+    			} else {
+    				columnPositions[i] = -1;
+    				groupPositions[i] = unindexedPaths.size();
+    				unindexedPaths.add(CompiledPath.compile(path));
+    			}
+    		}
+    		if (unindexedPaths.isEmpty()) {
+    			this.group = null;
+    			this.soupColumnPosition = -1;
+    		} else {
+    			this.group = new CompiledPath.Group(unindexedPaths.toArray(new CompiledPath[0]));
+    			this.soupColumnPosition = columns.size();
+    			columns.add(soupTableName + "." + SOUP_COL);
+    		}
+    	}
+
+    	/**
+    	 * @param cursor
+    	 * @return values at select paths for current row
+    	 * @throws JSONException
+    	 */
+    	JSONArray getRow(Cursor cursor) throws JSONException {
+    		Object[] parsedValues = null;
+    		if (group != null) {
+    			// Binary soup elements are decoded, json ones only get partially parsed
+    			parsedValues = (cursor.getType(soupColumnPosition) == Cursor.FIELD_TYPE_BLOB
+    					? group.project(BinaryJson.decode(cursor.getBlob(soupColumnPosition)))
+    					: group.project(cursor.getString(soupColumnPosition)));
+    		}
+    		JSONArray row = new JSONArray();
+    		for (int i = 0; i < columnPositions.length; i++) {
+    			Object value = (columnPositions[i] >= 0 ? getColumnValue(cursor, columnPositions[i]) : parsedValues[groupPositions[i]]);
+    			row.put(value == null ? JSONObject.NULL : value);
+    		}
+    		return row;
+    	}
+    }
+
+    /**
+     * Callback to get re-indexing progress updates
+     */
+    public interface ReIndexCallback {
+    	/**
+    	 * Called after every chunk re-indexed (without the lock held)
+    	 * @param soupName
+    	 * @param reIndexed number of soup elements re-indexed so far
+    	 * @param total number of soup elements to re-index
+    	 */
+    	void onProgress(String soupName, int reIndexed, int total);
+    }
+
+    /**
+     * Callback to get the results of a query one at a time (see streamQuery)
+     */
+    public interface RowCallback {
+    	/**
+    	 * Called for every result of the query (with the store locked for reading: writing to the store from here fails)
+    	 * @param row JSONArray for smart queries and queries with select paths, soup element (JSONObject) otherwise
+    	 * @return true to get the next result, false to stop
+    	 * @throws JSONException
+    	 */
+    	boolean onRow(Object row) throws JSONException;
+    }
+
+    /**
+     * Listener of changes made to soups (see registerSoupChangeListener)
+     */
+    public interface SoupChangeListener {
+    	/**
+    	 * Called after a commit (on the soup change thread, without the lock held)
+    	 * @param soupChanges changes committed (coalesced)
+    	 */
+    	void onSoupChanges(List<SoupChange> soupChanges);
+    }
+
+    /**
+     * Enum for soup format: how soup elements are stored in the soup column
+     * json: as JSON strings (default)
+     * binary: encoded with BinaryJson (smaller, no text parsing when read back)
+     * compressed_binary: encoded with BinaryJson and deflated when that makes them smaller
+     */
+    public enum SoupFormat {
+    	json, binary, compressed_binary
     }
 
     /**
      * Enum for column type
+     * full_text paths are stored like string paths and are also indexed in the soup's full-text table (see QuerySpec.buildMatchQuerySpec)
      */
     public enum Type {
-        string("TEXT"), integer("INTEGER"), floating("REAL");
+        string("TEXT"), integer("INTEGER"), floating("REAL"), full_text("TEXT");
 
         private String columnType;
 
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Change made to a soup, published to soup change listeners once committed (see SmartStore.registerSoupChangeListener)
+ */
+public class SoupChange {
+
+	/**
+	 * Enum for change type
+	 * created / updated / deleted: soupEntryIds are the ids of the soup elements affected
+	 * cleared / dropped: all the soup elements are gone (soupEntryIds is empty)
+	 */
+	public enum ChangeType {
+		created, updated, deleted, cleared, dropped
+	}
+
+	public final String soupName;
+	public final ChangeType changeType;
+	public final Set<Long> soupEntryIds;
+
+	/**
+	 * @param soupName
+	 * @param changeType
+	 * @param soupEntryIds
+	 */
+	public SoupChange(String soupName, ChangeType changeType, Collection<Long> soupEntryIds) {
+		this.soupName = soupName;
+		this.changeType = changeType;
+		this.soupEntryIds = Collections.unmodifiableSet(soupEntryIds == null ? new LinkedHashSet<Long>() : new LinkedHashSet<Long>(soupEntryIds));
+	}
+
+	@Override
+	public String toString() {
+		return soupName + " " + changeType + " " + soupEntryIds;
+	}
+
+	/**
+	 * Coalesce changes: only the outcome of the changes made to each soup element is kept
+	 * (created then updated is created, updated then deleted is deleted, created then deleted is dropped altogether)
+	 * and changes to a soup that is then cleared or dropped are superseded
+	 *
+	 * @param soupChanges in the order they were made
+	 * @return coalesced changes: cleared / dropped changes and, per soup, the created, updated then deleted soup elements
+	 * (in the order of the first change to each soup since it was last cleared or dropped)
+	 */
+	public static List<SoupChange> coalesce(List<SoupChange> soupChanges) {
+		List<Object> coalesced = new ArrayList<Object>(); // cleared / dropped SoupChange or SoupEltChanges
+		Map<String, SoupEltChanges> soupNameToEltChanges = new HashMap<String, SoupEltChanges>();
+		for (SoupChange soupChange : soupChanges) {
+			if (soupChange.changeType == ChangeType.cleared || soupChange.changeType == ChangeType.dropped) {
+				soupNameToEltChanges.remove(soupChange.soupName);
+				Iterator<Object> iterator = coalesced.iterator();
+				while (iterator.hasNext()) {
+					Object previous = iterator.next();
+					String previousSoupName = (previous instanceof SoupChange ? ((SoupChange) previous).soupName : ((SoupEltChanges) previous).soupName);
+					if (previousSoupName.equals(soupChange.soupName)) {
+						iterator.remove();
+					}
+				}
+				coalesced.add(soupChange);
+			} else {
+				SoupEltChanges eltChanges = soupNameToEltChanges.get(soupChange.soupName);
+				if (eltChanges == null) {
+					eltChanges = new SoupEltChanges(soupChange.soupName);
+					soupNameToEltChanges.put(soupChange.soupName, eltChanges);
+					coalesced.add(eltChanges);
+				}
+				eltChanges.add(soupChange);
+			}
+		}
+
+		List<SoupChange> result = new ArrayList<SoupChange>();
+		for (Object changes : coalesced) {
+			if (changes instanceof SoupChange) {
+				result.add((SoupChange) changes);
+			} else {
+				((SoupEltChanges) changes).addTo(result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Last change type of the soup elements of a soup changed (in the order they were first changed)
+	 */
+	private static class SoupEltChanges {
+		private final String soupName;
+		private final Map<Long, ChangeType> changeTypes = new LinkedHashMap<Long, ChangeType>();
+
+		SoupEltChanges(String soupName) {
+			this.soupName = soupName;
+		}
+
+		void add(SoupChange soupChange) {
+			for (Long soupEntryId : soupChange.soupEntryIds) {
+				ChangeType previousChangeType = changeTypes.get(soupEntryId);
+				if (previousChangeType == ChangeType.created && soupChange.changeType == ChangeType.deleted) {
+					changeTypes.remove(soupEntryId);
+				} else if (previousChangeType != ChangeType.created || soupChange.changeType != ChangeType.updated) {
+					changeTypes.put(soupEntryId, soupChange.changeType);
+				}
+			}
+		}
+
+		void addTo(List<SoupChange> soupChanges) {
+			for (ChangeType changeType : new ChangeType[] {ChangeType.created, ChangeType.updated, ChangeType.deleted}) {
+				List<Long> soupEntryIds = new ArrayList<Long>();
+				for (Map.Entry<Long, ChangeType> entry : changeTypes.entrySet()) {
+					if (entry.getValue() == changeType) {
+						soupEntryIds.add(entry.getKey());
+					}
+				}
+				if (!soupEntryIds.isEmpty()) {
+					soupChanges.add(new SoupChange(soupName, changeType, soupEntryIds));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.store;
+
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.LruCache;
+
+/**
+ * In-memory cache of parsed soup elements of a soup (most recently used, bounded by an estimate of their size in bytes)
+ * Used by SmartStore.retrieve once enabled for the soup with SmartStore.setSoupEltCacheSize
+ *
+ * Cached elements are private copies that are never modified: elements are copied on the way in and on the way out
+ * Writers remove the soup elements they update or delete (the whole cache is emptied when the soup is cleared or dropped)
+ * Elements are only cached by readers outside of any transaction, so that uncommitted changes are never cached
+ */
+public class SoupEltCache {
+
+	// Rough estimates of the memory used by parsed values (object headers, references and map entries included)
+	private static final int OBJECT_SIZE = 48;
+	private static final int ENTRY_SIZE = 48;
+	private static final int VALUE_SIZE = 24;
+	private static final int STRING_SIZE = 40;
+
+	private final LruCache<Long, CachedSoupElt> cache;
+
+	/**
+	 * @param maxBytes
+	 */
+	SoupEltCache(int maxBytes) {
+		cache = new LruCache<Long, CachedSoupElt>(maxBytes) {
+			@Override
+			protected int sizeOf(Long soupEntryId, CachedSoupElt cachedSoupElt) {
+				return cachedSoupElt.size;
+			}
+		};
+	}
+
+	/**
+	 * @param soupEntryId
+	 * @return copy of cached soup element or null if it is not cached
+	 * @throws JSONException
+	 */
+	JSONObject get(long soupEntryId) throws JSONException {
+		CachedSoupElt cachedSoupElt = cache.get(soupEntryId);
+		return cachedSoupElt == null ? null : (JSONObject) copy(cachedSoupElt.soupElt, null);
+	}
+
+	/**
+	 * Cache a copy of soup element (not cached if it is bigger than the whole cache)
+	 * @param soupEntryId
+	 * @param soupElt
+	 * @throws JSONException
+	 */
+	void put(long soupEntryId, JSONObject soupElt) throws JSONException {
+		int[] size = new int[1];
+		JSONObject copy = (JSONObject) copy(soupElt, size);
+		if (size[0] <= cache.maxSize()) {
+			cache.put(soupEntryId, new CachedSoupElt(copy, size[0]));
+		}
+	}
+
+	/**
+	 * @param soupEntryIds
+	 */
+	void remove(Long... soupEntryIds) {
+		for (Long soupEntryId : soupEntryIds) {
+			cache.remove(soupEntryId);
+		}
+	}
+
+	/**
+	 * Empty cache
+	 */
+	void clear() {
+		cache.evictAll();
+	}
+
+	/**
+	 * @return number of soup elements served from the cache
+	 */
+	public int getHitCount() {
+		return cache.hitCount();
+	}
+
+	/**
+	 * @return number of soup elements not found in the cache
+	 */
+	public int getMissCount() {
+		return cache.missCount();
+	}
+
+	/**
+	 * @return number of soup elements evicted to make room for others (elements removed by writers are not counted)
+	 */
+	public int getEvictionCount() {
+		return cache.evictionCount();
+	}
+
+	/**
+	 * @return number of soup elements in the cache
+	 */
+	public int getCount() {
+		return cache.snapshot().size();
+	}
+
+	/**
+	 * @return estimated size in bytes of the soup elements in the cache
+	 */
+	public int getSize() {
+		return cache.size();
+	}
+
+	/**
+	 * @return max size in bytes of the cache
+	 */
+	public int getMaxSize() {
+		return cache.maxSize();
+	}
+
+	/**
+	 * Deep copy of a parsed value
+	 * @param value
+	 * @param size if not null, the estimated size in bytes of value is added to size[0]
+	 * @return copy of value (same object for immutable values)
+	 * @throws JSONException
+	 */
+	private static Object copy(Object value, int[] size) throws JSONException {
+		if (value instanceof JSONObject) {
+			JSONObject object = (JSONObject) value;
+			JSONObject copy = new JSONObject();
+			Iterator<String> keys = object.keys();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				copy.put(key, copy(object.opt(key), size));
+				if (size != null) {
+					size[0] += ENTRY_SIZE + STRING_SIZE + 2 * key.length();
+				}
+			}
+			if (size != null) {
+				size[0] += OBJECT_SIZE;
+			}
+			return copy;
+		}
+		if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			JSONArray copy = new JSONArray();
+			for (int i = 0; i < array.length(); i++) {
+				copy.put(copy(array.opt(i), size));
+			}
+			if (size != null) {
+				size[0] += OBJECT_SIZE + 8 * array.length();
+			}
+			return copy;
+		}
+		if (size != null) {
+			size[0] += (value instanceof String ? STRING_SIZE + 2 * ((String) value).length() : VALUE_SIZE);
+		}
+		return value;
+	}
+
+	/**
+	 * Cached soup element with its estimated size
+	 */
+	private static class CachedSoupElt {
+		final JSONObject soupElt;
+		final int size;
+
+		CachedSoupElt(JSONObject soupElt, int size) {
+			this.soupElt = soupElt;
+			this.size = size;
+		}
+	}
+}
@@ -27,13 +27,23 @@
 package com.salesforce.androidsdk.smartsync.manager;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -49,8 +59,10 @@ import com.salesforce.androidsdk.rest.RestClient;
 import com.salesforce.androidsdk.rest.RestRequest;
 import com.salesforce.androidsdk.rest.RestResponse;
 import com.salesforce.androidsdk.smartstore.app.SalesforceSDKManagerWithSmartStore;
+import com.salesforce.androidsdk.smartstore.store.CompiledPath;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.RowCallback;
 import com.salesforce.androidsdk.smartsync.app.SmartSyncSDKManager;
 import com.salesforce.androidsdk.smartsync.util.Constants;
 import com.salesforce.androidsdk.smartsync.util.SyncDownTarget;
@@ -67,11 +79,19 @@ public class SyncManager {
 
     // Constants
     public static final int PAGE_SIZE = 2000;
+    public static final int STREAMING_BATCH_SIZE = 200;
+    public static final int DEFAULT_THREAD_POOL_SIZE = 3;
+    public static final int PREFETCH_QUEUE_SIZE = PAGE_SIZE / 2;
+    public static final int SYNC_UP_RETRIEVE_SIZE = 100;
     private static final int UNCHANGED = -1;
 
     // For user agent
     private static final String SMART_SYNC = "SmartSync";
 
+    // Markers used between the fetching and the writing threads during a sync down
+    private static final JSONObject END_OF_PAGE = new JSONObject();
+    private static final JSONObject END_OF_FETCH = new JSONObject();
+
     // Local fields
     public static final String LOCALLY_CREATED = "__locally_created__";
     public static final String LOCALLY_UPDATED = "__locally_updated__";
@@ -83,7 +103,9 @@ public class SyncManager {
 
     // Members
     public final String apiVersion;
-    private final ExecutorService threadPool = Executors.newFixedThreadPool(1);
+    private final ThreadPoolExecutor threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(DEFAULT_THREAD_POOL_SIZE);
+    private final ExecutorService fetchThreadPool = Executors.newCachedThreadPool();
+    private final Map<String, SerialExecutor> soupExecutors = new HashMap<String, SerialExecutor>();
 	private SmartStore smartStore;
 	private RestClient restClient;
 
@@ -163,11 +185,26 @@ public class SyncManager {
 
     /**
      * Resets all the sync managers
+     * Their thread pools are shut down: running syncs are interrupted and syncs waiting to run are dropped
      */
     public static synchronized void reset() {
+        for (SyncManager instance : INSTANCES.values()) {
+            instance.shutdown();
+        }
         INSTANCES.clear();
     }
 
+    /**
+     * Shut down thread pools and forget soup executors
+     */
+    private void shutdown() {
+        threadPool.shutdownNow();
+        fetchThreadPool.shutdownNow();
+        synchronized (soupExecutors) {
+            soupExecutors.clear();
+        }
+    }
+
     /**
      * Get details of a sync state
      * @param syncId
@@ -228,14 +265,58 @@ public class SyncManager {
         return sync;
     }
 
+    /**
+     * Set number of syncs that can run concurrently
+     * Syncs targeting the same soup always run one after the other
+     * @param size
+     */
+    public void setThreadPoolSize(int size) {
+        if (size < 1) {
+            throw new SmartSyncException("Invalid thread pool size: " + size);
+        }
+        synchronized (threadPool) {
+            if (size > threadPool.getMaximumPoolSize()) {
+                threadPool.setMaximumPoolSize(size);
+                threadPool.setCorePoolSize(size);
+            } else {
+                threadPool.setCorePoolSize(size);
+                threadPool.setMaximumPoolSize(size);
+            }
+        }
+    }
+
+    /**
+     * @return number of syncs that can run concurrently
+     */
+    public int getThreadPoolSize() {
+        return threadPool.getMaximumPoolSize();
+    }
+
+    /**
+     * @param soupName
+     * @return executor running tasks for the given soup one at a time on the shared thread pool
+     */
+    private Executor getSoupExecutor(String soupName) {
+        synchronized (soupExecutors) {
+            SerialExecutor executor = soupExecutors.get(soupName);
+            if (executor == null) {
+                executor = new SerialExecutor(threadPool);
+                soupExecutors.put(soupName, executor);
+            }
+            return executor;
+        }
+    }
+
 	/**
 	 * Run a sync
+	 * Syncs for different soups run concurrently, syncs for the same soup run in the order they were submitted
+	 * NB: callback could therefore be invoked from different threads
 	 * @param sync
 	 * @param callback 
 	 */
 	public void runSync(final SyncState sync, final SyncUpdateCallback callback) {
 		updateSync(sync, SyncState.Status.RUNNING, 0, callback);
-		threadPool.execute(new Runnable() {
+		getSoupExecutor(sync.getSoupName()).execute(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -295,57 +376,215 @@ public class SyncManager {
 		final String soupName = sync.getSoupName();
         final SyncUpTarget target = (SyncUpTarget) sync.getTarget();
 		final SyncOptions options = sync.getOptions();
-		final List<String> fieldlist = options.getFieldlist();
+		final FieldsToSync fieldsToSync = new FieldsToSync(target, options.getFieldlist());
 		final MergeMode mergeMode = options.getMergeMode();
         final Set<String> dirtyRecordIds = target.getIdsOfRecordsToSyncUp(this, soupName);
 		int totalSize = dirtyRecordIds.size();
         sync.setTotalSize(totalSize);
         updateSync(sync, SyncState.Status.RUNNING, 0, callback);
+        if (target.getBatchSize() > 1) {
+            syncUpInBatches(sync, callback, dirtyRecordIds, fieldsToSync);
+            return;
+        }
+        List<String> ids = new ArrayList<String>(dirtyRecordIds);
         int i = 0;
-        for (final String id : dirtyRecordIds) {
-            JSONObject record = smartStore.retrieve(soupName, Long.valueOf(id)).getJSONObject(0);
-            syncUpOneRecord(target, soupName, fieldlist, record, mergeMode);
+        for (int start = 0; start < ids.size(); start += SYNC_UP_RETRIEVE_SIZE) {
+            // Retrieving records page by page
+            JSONArray records = smartStore.retrieve(soupName, toLongArray(ids.subList(start, Math.min(start + SYNC_UP_RETRIEVE_SIZE, ids.size()))));
+            for (int j = 0; j < records.length(); j++) {
+                syncUpOneRecord(target, soupName, fieldsToSync, records.getJSONObject(j), mergeMode);
+
+                // Updating status
+                int progress = (i + 1) * 100 / totalSize;
+                if (progress < 100) {
+                    updateSync(sync, SyncState.Status.RUNNING, progress, callback);
+                }
+
+                // Incrementing i
+                i++;
+            }
+        }
+	}
+
+    /**
+     * Sync up dirty records using composite batch requests
+     * For each batch: records are retrieved with one call to smartstore, last modified dates (if needed) are fetched with one query per object type
+     * and all creates/updates/deletes are sent in one request
+     * Records of failed sub-requests stay dirty (as with soft failures when records are sent one at a time)
+     * Records of failed batch requests or of creates returning no id also stay dirty, but the sync fails once all batches have been sent
+     * @param sync
+     * @param callback
+     * @param dirtyRecordIds
+     * @param fieldsToSync
+     * @throws Exception
+     */
+    private void syncUpInBatches(SyncState sync, SyncUpdateCallback callback, Set<String> dirtyRecordIds, FieldsToSync fieldsToSync) throws Exception {
+        final String soupName = sync.getSoupName();
+        final SyncUpTarget target = (SyncUpTarget) sync.getTarget();
+        final MergeMode mergeMode = sync.getOptions().getMergeMode();
+        final int batchSize = target.getBatchSize();
+        final int totalSize = dirtyRecordIds.size();
+        int failedCount = 0;
+        List<String> ids = new ArrayList<String>(dirtyRecordIds);
+        for (int start = 0; start < ids.size(); start += batchSize) {
+            JSONArray records = smartStore.retrieve(soupName, toLongArray(ids.subList(start, Math.min(start + batchSize, ids.size()))));
+
+            // Figuring out what to do for each record
+            List<JSONObject> recordsToSync = new ArrayList<JSONObject>();
+            List<Action> actions = new ArrayList<Action>();
+            Map<String, Set<String>> objectTypeToIdsToCheck = new HashMap<String, Set<String>>();
+            for (int j = 0; j < records.length(); j++) {
+                JSONObject record = records.getJSONObject(j);
+                Action action = getSyncUpAction(record);
+                if (action == null) {
+                    continue; // Nothing to do for this record
+                }
+                recordsToSync.add(record);
+                actions.add(action);
+                if (mergeMode == MergeMode.LEAVE_IF_CHANGED && (action == Action.update || action == Action.delete)
+                        && JSONObjectHelper.optString(record, target.getModificationDateFieldName()) != null) {
+                    String objectType = (String) SmartStore.project(record, Constants.SOBJECT_TYPE);
+                    Set<String> idsToCheck = objectTypeToIdsToCheck.get(objectType);
+                    if (idsToCheck == null) {
+                        idsToCheck = new HashSet<String>();
+                        objectTypeToIdsToCheck.put(objectType, idsToCheck);
+                    }
+                    idsToCheck.add(record.getString(target.getIdFieldName()));
+                }
+            }
+
+            // Fetching last modified dates on server with one query per object type
+            Map<String, String> serverLastModifiedDates = new HashMap<String, String>();
+            for (Map.Entry<String, Set<String>> entry : objectTypeToIdsToCheck.entrySet()) {
+                serverLastModifiedDates.putAll(target.fetchLastModifiedDates(this, entry.getKey(), entry.getValue()));
+            }
+
+            // Building requests
+            List<RestRequest> requests = new ArrayList<RestRequest>();
+            List<JSONObject> requestRecords = new ArrayList<JSONObject>();
+            List<Action> requestActions = new ArrayList<Action>();
+            for (int j = 0; j < recordsToSync.size(); j++) {
+                JSONObject record = recordsToSync.get(j);
+                Action action = actions.get(j);
+                String objectType = (String) SmartStore.project(record, Constants.SOBJECT_TYPE);
+                String objectId = action == Action.create ? null : record.getString(target.getIdFieldName());
+                if (objectTypeToIdsToCheck.containsKey(objectType) && objectTypeToIdsToCheck.get(objectType).contains(objectId)) {
+                    String serverLastModStr = serverLastModifiedDates.get(objectId);
+                    if (serverLastModStr == null) {
+                        // Record not found on server: the request is sent anyway and its failure leaves the record dirty
+                        Log.w("SmartSyncManager:syncUpInBatches",
+                                "Could not fetch last modified date of record " + objectId + " from server");
+                    }
+                    else if (!isNewerThan(JSONObjectHelper.optString(record, target.getModificationDateFieldName()), serverLastModStr)) {
+                        Log.i("SmartSyncManager:syncUpInBatches",
+                                "Record not synced since client does not have the latest from server");
+                        continue;
+                    }
+                }
+                Map<String, Object> fields = action == Action.delete ? null : fieldsToSync.project(record);
+                requests.add(target.getRequestForAction(this, action, objectType, objectId, fields));
+                requestRecords.add(record);
+                requestActions.add(action);
+            }
+
+            // Sending requests to server and updating smartstore
+            if (!requests.isEmpty()) {
+                JSONArray results = target.sendBatchToServer(this, requests);
+                if (results == null) {
+                    Log.e("SmartSyncManager:syncUpInBatches", "Batch request failed: " + requests.size() + " record(s) left dirty");
+                    failedCount += requests.size();
+                }
+                List<JSONObject> recordsToSave = new ArrayList<JSONObject>();
+                List<Long> idsToDelete = new ArrayList<Long>();
+                for (int j = 0; j < requests.size(); j++) {
+                    JSONObject result = results == null ? null : results.optJSONObject(j);
+                    int statusCode = result == null ? -1 : result.optInt(SyncUpTarget.BATCH_STATUS_CODE, -1);
+                    if (statusCode < 200 || statusCode >= 300) {
+                        if (results != null) {
+                            Log.e("SmartSyncManager:syncUpInBatches",
+                                    "Failed to " + requestActions.get(j) + " record on server: " + result);
+                        }
+                        continue; // failed - record stays dirty
+                    }
+                    JSONObject record = requestRecords.get(j);
+                    switch (requestActions.get(j)) {
+                        case create:
+                            JSONObject createResult = result.optJSONObject(SyncUpTarget.BATCH_RESULT);
+                            String recordServerId = createResult == null ? null : JSONObjectHelper.optString(createResult, Constants.LID);
+                            if (recordServerId != null) {
+                                record.put(target.getIdFieldName(), recordServerId);
+                                recordsToSave.add(cleanRecord(record));
+                            }
+                            else {
+                                Log.e("SmartSyncManager:syncUpInBatches", "No id returned for record created on server: " + result);
+                                failedCount++;
+                            }
+                            break;
+                        case update:
+                            recordsToSave.add(cleanRecord(record));
+                            break;
+                        case delete:
+                            idsToDelete.add(record.getLong(SmartStore.SOUP_ENTRY_ID));
+                            break;
+                    }
+                }
+                smartStore.beginTransaction();
+                try {
+                    smartStore.upsertAll(soupName, recordsToSave, SmartStore.SOUP_ENTRY_ID, false);
+                    if (!idsToDelete.isEmpty()) {
+                        smartStore.delete(soupName, idsToDelete.toArray(new Long[0]), false);
+                    }
+                    smartStore.setTransactionSuccessful();
+                } finally {
+                    smartStore.endTransaction();
+                }
+            }
 
             // Updating status
-            int progress = (i + 1) * 100 / totalSize;
+            int progress = Math.min(start + batchSize, totalSize) * 100 / totalSize;
             if (progress < 100) {
                 updateSync(sync, SyncState.Status.RUNNING, progress, callback);
             }
-
-            // Incrementing i
-            i++;
         }
-	}
+        if (failedCount > 0) {
+            throw new SmartSyncException(failedCount + " record(s) could not be synced up (see previous errors)");
+        }
+    }
 
-    private boolean isNewerThanServer(SyncUpTarget target, String objectType, String objectId, String lastModStr) throws JSONException, IOException {
-        if (lastModStr == null) {
-            // We didn't capture the last modified date so we can't really enforce merge mode, returning true so that we will behave like an "overwrite" merge mode
-            return true;
+    private static Long[] toLongArray(List<String> ids) {
+        Long[] result = new Long[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Long.valueOf(ids.get(i));
         }
+        return result;
+    }
 
+    private boolean isNewerThan(String lastModStr, String serverLastModStr) {
         try {
-            String serverLastModStr = target.fetchLastModifiedDate(this, objectType, objectId);
             long lastModifiedDate = Constants.TIMESTAMP_FORMAT.parse(lastModStr).getTime();
             long serverLastModifiedDate = Constants.TIMESTAMP_FORMAT.parse(serverLastModStr).getTime();
 
             return (serverLastModifiedDate <= lastModifiedDate);
         } catch (Exception e) {
-            Log.e("SmartSyncManager:isNewerThanServer", "Couldn't figure out last modified date", e);
+            Log.e("SmartSyncManager:isNewerThan", "Couldn't figure out last modified date", e);
             throw new SmartSyncException(e);
         }
     }
 
-    private boolean syncUpOneRecord(SyncUpTarget target, String soupName, List<String> fieldlist,
+    private boolean isNewerThanServer(SyncUpTarget target, String objectType, String objectId, String lastModStr) throws JSONException, IOException {
+        if (lastModStr == null) {
+            // We didn't capture the last modified date so we can't really enforce merge mode, returning true so that we will behave like an "overwrite" merge mode
+            return true;
+        }
+
+        return isNewerThan(lastModStr, target.fetchLastModifiedDate(this, objectType, objectId));
+    }
+
+    private boolean syncUpOneRecord(SyncUpTarget target, String soupName, FieldsToSync fieldsToSync,
                                     JSONObject record, MergeMode mergeMode) throws JSONException, IOException {
 
         // Do we need to do a create, update or delete
-        Action action = null;
-        if (record.getBoolean(LOCALLY_DELETED))
-            action = Action.delete;
-        else if (record.getBoolean(LOCALLY_CREATED))
-            action = Action.create;
-        else if (record.getBoolean(LOCALLY_UPDATED))
-            action = Action.update;
+        Action action = getSyncUpAction(record);
         if (action == null) {
 
             // Nothing to do for this record
@@ -376,11 +615,7 @@ public class SyncManager {
         // Fields to save (in the case of create or update)
         Map<String, Object> fields = new HashMap<String, Object>();
         if (action == Action.create || action == Action.update) {
-            for (String fieldName : fieldlist) {
-                if (!fieldName.equals(target.getIdFieldName()) && !fieldName.equals(SyncUpTarget.MODIFICATION_DATE_FIELD_NAME)) {
-                    fields.put(fieldName, SmartStore.project(record, fieldName));
-                }
-            }
+            fields = fieldsToSync.project(record);
         }
 
         // Create/update/delete record on server and update smartstore
@@ -407,61 +642,129 @@ public class SyncManager {
         return false;
     }
 
-    private void cleanAndSaveRecord(String soupName, JSONObject record) throws JSONException {
+    private Action getSyncUpAction(JSONObject record) throws JSONException {
+        if (record.getBoolean(LOCALLY_DELETED))
+            return Action.delete;
+        else if (record.getBoolean(LOCALLY_CREATED))
+            return Action.create;
+        else if (record.getBoolean(LOCALLY_UPDATED))
+            return Action.update;
+        return null;
+    }
+
+    private JSONObject cleanRecord(JSONObject record) throws JSONException {
         record.put(LOCAL, false);
         record.put(LOCALLY_CREATED, false);
         record.put(LOCALLY_UPDATED, false);
         record.put(LOCALLY_DELETED, false);
+        return record;
+    }
+
+    private void cleanAndSaveRecord(String soupName, JSONObject record) throws JSONException {
+        cleanRecord(record);
         smartStore.update(soupName, record, record.getLong(SmartStore.SOUP_ENTRY_ID));
     }
 
-    private void syncDown(SyncState sync, SyncUpdateCallback callback) throws Exception {
-        String soupName = sync.getSoupName();
-        SyncDownTarget target = (SyncDownTarget) sync.getTarget();
-        MergeMode mergeMode = sync.getMergeMode();
-        long maxTimeStamp = sync.getMaxTimeStamp();
-
-        JSONArray records = target.startFetch(this, maxTimeStamp);
-        int countSaved = 0;
-        int totalSize = target.getTotalSize();
-        sync.setTotalSize(totalSize);
-        updateSync(sync, SyncState.Status.RUNNING, 0, callback);
+    /**
+     * Fields sent to the server by sync up (all fields of the field list but the id and modification date fields)
+     * Compiled once per sync, so that each record is projected with a single traversal
+     */
+    private static class FieldsToSync {
+        private final List<String> fieldNames = new ArrayList<String>();
+        private final CompiledPath.Group group;
 
-        while (records != null) {
-            // Save to smartstore
-            saveRecordsToSmartStore(soupName, records, mergeMode);
-            countSaved += records.length();
-            maxTimeStamp = Math.max(maxTimeStamp, target.getLatestModificationTimeStamp(records));
+        FieldsToSync(SyncUpTarget target, List<String> fieldlist) {
+            for (String fieldName : fieldlist) {
+                if (!fieldName.equals(target.getIdFieldName()) && !fieldName.equals(SyncUpTarget.MODIFICATION_DATE_FIELD_NAME)) {
+                    fieldNames.add(fieldName);
+                }
+            }
+            group = CompiledPath.Group.compile(fieldNames);
+        }
 
-            // Update sync status
-            if (countSaved < totalSize)
-                updateSync(sync, SyncState.Status.RUNNING, countSaved*100 / totalSize, callback);
+        Map<String, Object> project(JSONObject record) {
+            Object[] values = group.project(record);
+            Map<String, Object> fields = new HashMap<String, Object>();
+            for (int i = 0; i < values.length; i++) {
+                fields.put(fieldNames.get(i), values[i]);
+            }
+            return fields;
+        }
+    }
+
+    private void syncDown(SyncState sync, SyncUpdateCallback callback) throws Exception {
+        final SyncDownTarget target = (SyncDownTarget) sync.getTarget();
+        final long startMaxTimeStamp = sync.getMaxTimeStamp();
+        long maxTimeStamp = startMaxTimeStamp;
+
+        // Pages are fetched and parsed on a separate thread while previously fetched records are being written
+        final BlockingQueue<JSONObject> queue = new ArrayBlockingQueue<JSONObject>(PREFETCH_QUEUE_SIZE);
+        final AtomicReference<Exception> fetchError = new AtomicReference<Exception>();
+        final SyncDownTarget.RecordHandler enqueuer = new SyncDownTarget.RecordHandler() {
+            @Override
+            public void onRecord(JSONObject record) {
+                enqueue(queue, record);
+            }
+        };
+        Future<?> fetchTask = fetchThreadPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    target.startFetch(SyncManager.this, startMaxTimeStamp, enqueuer);
+                    enqueue(queue, END_OF_PAGE);
+                    while (target.continueFetch(SyncManager.this, enqueuer)) {
+                        enqueue(queue, END_OF_PAGE);
+                    }
+                } catch (Exception e) {
+                    fetchError.set(e);
+                } finally {
+                    // Always let the writer know we are done (unless we got interrupted because the writer gave up)
+                    if (!Thread.currentThread().isInterrupted()) {
+                        enqueue(queue, END_OF_FETCH);
+                    }
+                }
+            }
+        });
 
-            // Fetch next records if any
-            records = target.continueFetch(this);
+        // Records are saved as they come off the queue
+        SyncDownRecordWriter writer = new SyncDownRecordWriter(sync, callback);
+        try {
+            while (true) {
+                JSONObject record = queue.take();
+                if (record == END_OF_FETCH) {
+                    break;
+                }
+                else if (record == END_OF_PAGE) {
+                    maxTimeStamp = Math.max(maxTimeStamp, writer.endPage());
+                }
+                else {
+                    writer.onRecord(record);
+                }
+            }
+        } finally {
+            writer.abortPage();
+            fetchTask.cancel(true);
+        }
+        if (fetchError.get() != null) {
+            throw fetchError.get();
         }
         sync.setMaxTimeStamp(maxTimeStamp);
 	}
 
-    private Set<String> toSet(JSONArray jsonArray) throws JSONException {
-        Set<String> set = new HashSet<String>();
-        for (int i=0; i<jsonArray.length(); i++) {
-            set.add(jsonArray.getJSONArray(i).getString(0));
+    private static void enqueue(BlockingQueue<JSONObject> queue, JSONObject record) {
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SmartSyncException(e);
         }
-        return set;
     }
+
 	
-	private void saveRecordsToSmartStore(String soupName, JSONArray records, MergeMode mergeMode)
+	private void saveRecordsToSmartStore(String soupName, List<JSONObject> records, MergeMode mergeMode, Set<String> idsToSkip, boolean handleTx)
 			throws JSONException {
-        // Gather ids of dirty records
-        Set<String> idsToSkip = null;
-        if (mergeMode == MergeMode.LEAVE_IF_CHANGED) {
-            idsToSkip = getDirtyRecordIds(soupName, Constants.ID);
-        }
-        smartStore.beginTransaction();
-		for (int i = 0; i < records.length(); i++) {
-			JSONObject record = records.getJSONObject(i);
-
+        List<JSONObject> recordsToSave = new ArrayList<JSONObject>();
+		for (JSONObject record : records) {
             // Skip?
             if (mergeMode == MergeMode.LEAVE_IF_CHANGED) {
                 String id = JSONObjectHelper.optString(record, Constants.ID);
@@ -470,27 +773,147 @@ public class SyncManager {
                 }
             }
 
-            // Save
             record.put(LOCAL, false);
             record.put(LOCALLY_CREATED, false);
             record.put(LOCALLY_UPDATED, false);
             record.put(LOCALLY_DELETED, false);
-            smartStore.upsert(soupName, records.getJSONObject(i), Constants.ID, false);
+            recordsToSave.add(record);
 		}
-		smartStore.setTransactionSuccessful();
-		smartStore.endTransaction();
+
+        // Save
+        smartStore.upsertAll(soupName, recordsToSave, Constants.ID, handleTx);
 	}
 
+    /**
+     * Record handler used during sync down
+     * Records handed over by the target are saved to smartstore in small batches, so that only
+     * STREAMING_BATCH_SIZE records (instead of a whole page) are held in memory at any given time
+     * The batches of a page are saved in a single transaction, committed at the end of the page: a sync that fails
+     * saves whole pages only (and can be run again to get the rest, records are upserted by id)
+     * NB: the store is therefore locked while the rest of the page is being fetched: targets must not use the store from
+     * startFetch / continueFetch (which run on another thread)
+     */
+    private class SyncDownRecordWriter implements SyncDownTarget.RecordHandler {
+
+        private final SyncState sync;
+        private final SyncUpdateCallback callback;
+        private final SyncDownTarget target;
+        private final String soupName;
+        private final MergeMode mergeMode;
+        private final List<JSONObject> batch = new ArrayList<JSONObject>();
+        private Set<String> idsToSkip;
+        private boolean totalSizeReported;
+        private int countSaved;
+        private int countSavedInPage;
+        private boolean inPageTransaction;
+        private long pageMaxTimeStamp = -1;
+        private boolean pageHasTimeStamps = true;
+
+        public SyncDownRecordWriter(SyncState sync, SyncUpdateCallback callback) {
+            this.sync = sync;
+            this.callback = callback;
+            this.target = (SyncDownTarget) sync.getTarget();
+            this.soupName = sync.getSoupName();
+            this.mergeMode = sync.getMergeMode();
+        }
+
+        @Override
+        public void onRecord(JSONObject record) throws JSONException {
+            reportTotalSizeIfNeeded(false);
+
+            // Keep track of latest modification time stamp
+            long timeStamp = target.getModificationTimeStamp(record);
+            if (timeStamp == -1) {
+                pageHasTimeStamps = false;
+            }
+            pageMaxTimeStamp = Math.max(pageMaxTimeStamp, timeStamp);
+
+            batch.add(record);
+            if (batch.size() >= STREAMING_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Save pending records and update sync status
+         * @return latest modification time stamp of the records of the page or -1 if it could not be determined
+         * @throws JSONException
+         */
+        public long endPage() throws JSONException {
+            reportTotalSizeIfNeeded(true);
+            flush();
+            if (inPageTransaction) {
+                smartStore.setTransactionSuccessful();
+                smartStore.endTransaction();
+                inPageTransaction = false;
+                countSaved += countSavedInPage;
+                countSavedInPage = 0;
+            }
+            long result = pageHasTimeStamps ? pageMaxTimeStamp : -1;
+            pageMaxTimeStamp = -1;
+            pageHasTimeStamps = true;
+            idsToSkip = null; // dirty records are looked up again for every page
+
+            // Update sync status
+            int totalSize = sync.getTotalSize();
+            if (countSaved < totalSize)
+                updateSync(sync, SyncState.Status.RUNNING, countSaved*100 / totalSize, callback);
+
+            return result;
+        }
+
+        /**
+         * Report total size once it is known - when the target reads it after the records of the first page, it is reported at the end of that page
+         * @param endOfPage
+         */
+        private void reportTotalSizeIfNeeded(boolean endOfPage) {
+            if (!totalSizeReported && (endOfPage || target.getTotalSize() >= 0)) {
+                totalSizeReported = true;
+                sync.setTotalSize(target.getTotalSize());
+                updateSync(sync, SyncState.Status.RUNNING, 0, callback);
+            }
+        }
+
+        /**
+         * Roll back the records of the page saved so far (sync failed before the end of the page)
+         */
+        public void abortPage() {
+            batch.clear();
+            if (inPageTransaction) {
+                smartStore.endTransaction();
+                inPageTransaction = false;
+                countSavedInPage = 0;
+            }
+        }
+
+        private void flush() throws JSONException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (!inPageTransaction) {
+                smartStore.beginTransaction();
+                inPageTransaction = true;
+            }
+            if (mergeMode == MergeMode.LEAVE_IF_CHANGED && idsToSkip == null) {
+                idsToSkip = getDirtyRecordIds(soupName, Constants.ID);
+            }
+            saveRecordsToSmartStore(soupName, batch, mergeMode, idsToSkip, false);
+            countSavedInPage += batch.size();
+            batch.clear();
+        }
+    }
+
     public Set<String> getDirtyRecordIds(String soupName, String idField) throws JSONException {
-        Set<String> idsToSkip = new HashSet<String>();
+        final Set<String> idsToSkip = new HashSet<String>();
+        // Single pass over the dirty records (streamed - not fetched page by page)
         String dirtyRecordsSql = String.format("SELECT {%s:%s} FROM {%s} WHERE {%s:%s} = 'true'", soupName, idField, soupName, soupName, LOCAL);
-        final QuerySpec smartQuerySpec = QuerySpec.buildSmartQuerySpec(dirtyRecordsSql, PAGE_SIZE);
-        boolean hasMore = true;
-        for (int pageIndex = 0; hasMore; pageIndex++) {
-            JSONArray results = smartStore.query(smartQuerySpec, pageIndex);
-            hasMore = (results.length() == PAGE_SIZE);
-            idsToSkip.addAll(toSet(results));
-        }
+        smartStore.streamQuery(QuerySpec.buildSmartQuerySpec(dirtyRecordsSql), new RowCallback() {
+            @Override
+            public boolean onRow(Object row) throws JSONException {
+                idsToSkip.add(((JSONArray) row).getString(0));
+                return true;
+            }
+        });
         return idsToSkip;
     }
 
@@ -536,6 +959,51 @@ public class SyncManager {
     }
     
 
+    /**
+     * Executor running tasks one at a time, in the order they were submitted, on an underlying executor
+     */
+    private static class SerialExecutor implements Executor {
+
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        private final Executor executor;
+        private Runnable active;
+
+        SerialExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable r) {
+            tasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (active == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            active = tasks.poll();
+            if (active != null) {
+                try {
+                    executor.execute(active);
+                } catch (RejectedExecutionException e) {
+                    // Thread pool was shut down (see reset)
+                    Log.w("SmartSyncManager:SerialExecutor", "Dropping " + (tasks.size() + 1) + " task(s) after shutdown");
+                    tasks.clear();
+                    active = null;
+                }
+            }
+        }
+    }
+
     /**
      * Sets the rest client to be used.
      *
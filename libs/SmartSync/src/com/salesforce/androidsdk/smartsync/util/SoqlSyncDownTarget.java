@@ -26,8 +26,12 @@
  */
 package com.salesforce.androidsdk.smartsync.util;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import com.salesforce.androidsdk.rest.RestRequest;
 import com.salesforce.androidsdk.rest.RestResponse;
+import com.salesforce.androidsdk.smartstore.store.JSONStreamHelper;
 import com.salesforce.androidsdk.smartsync.manager.SyncManager;
 import com.salesforce.androidsdk.util.JSONObjectHelper;
 
@@ -36,6 +40,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.Date;
 
 /**
@@ -104,9 +109,79 @@ public class SoqlSyncDownTarget extends SyncDownTarget {
         RestResponse response = syncManager.sendSyncWithSmartSyncUserAgent(request);
         JSONObject responseJson = response.asJSONObject();
         JSONArray records = responseJson.getJSONArray(Constants.RECORDS);
+
+        // Capture next records url
+        nextRecordsUrl = JSONObjectHelper.optString(responseJson, Constants.NEXT_RECORDS_URL);
+
         return records;
     }
 
+    @Override
+    public void startFetch(SyncManager syncManager, long maxTimeStamp, RecordHandler recordHandler) throws IOException, JSONException {
+        String queryToRun = maxTimeStamp > 0 ? SoqlSyncDownTarget.addFilterForReSync(query, maxTimeStamp) : query;
+        RestRequest request = RestRequest.getRequestForQuery(syncManager.apiVersion, queryToRun);
+        RestResponse response = syncManager.sendSyncWithSmartSyncUserAgent(request);
+        readResponse(response, recordHandler, true);
+    }
+
+    @Override
+    public boolean continueFetch(SyncManager syncManager, RecordHandler recordHandler) throws IOException, JSONException {
+        if (nextRecordsUrl == null) {
+            return false;
+        }
+
+        RestRequest request = new RestRequest(RestRequest.RestMethod.GET, nextRecordsUrl, null);
+        RestResponse response = syncManager.sendSyncWithSmartSyncUserAgent(request);
+        readResponse(response, recordHandler, false);
+        return true;
+    }
+
+    /**
+     * Parse query response as it comes off the wire
+     * Records are handed to recordHandler one at a time, total size and next records url are captured along the way
+     * Fields can come in any order: total size is -1 while records that precede it are handed over
+     * @param response
+     * @param recordHandler
+     * @param captureTotalSize
+     * @throws IOException
+     * @throws JSONException
+     */
+    protected void readResponse(RestResponse response, RecordHandler recordHandler, boolean captureTotalSize) throws IOException, JSONException {
+        nextRecordsUrl = null;
+        if (captureTotalSize) {
+            totalSize = -1;
+        }
+        JsonReader reader = new JsonReader(new InputStreamReader(response.asInputStream(), "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(Constants.RECORDS)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        recordHandler.onRecord(JSONStreamHelper.readObject(reader));
+                    }
+                    reader.endArray();
+                }
+                else if (name.equals(Constants.TOTAL_SIZE) && captureTotalSize) {
+                    totalSize = reader.nextInt();
+                }
+                else if (name.equals(Constants.NEXT_RECORDS_URL) && reader.peek() == JsonToken.STRING) {
+                    nextRecordsUrl = reader.nextString();
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // Thrown by JsonReader when the response does not have the expected structure (e.g. error response)
+            throw new JSONException("Unexpected query response: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
     public static String addFilterForReSync(String query, long maxTimeStamp) {
         if (maxTimeStamp > 0) {
             String extraPredicate = Constants.LAST_MODIFIED_DATE + " > " + Constants.TIMESTAMP_FORMAT.format(new Date(maxTimeStamp));
@@ -50,7 +50,7 @@ public abstract class SyncDownTarget extends SyncTarget {
 
     // Fields
 	protected QueryType queryType;
-    protected int totalSize; // set during a fetch
+    protected volatile int totalSize; // set during a fetch (possibly on a different thread than the one saving the records)
 
     /**
 	 * Build SyncDownTarget from json
@@ -126,7 +126,46 @@ public abstract class SyncDownTarget extends SyncTarget {
     public abstract JSONArray continueFetch(SyncManager syncManager) throws IOException, JSONException;
 
     /**
-     * @return number of records expected to be fetched - is set when startFetch() is called
+     * Start fetching records conforming to target, handing them one at a time to recordHandler
+     * If a value for maxTimeStamp greater than 0 is passed in, only records created/modified after maxTimeStamp should be returned
+     * Default implementation hands over the records returned by startFetch(syncManager, maxTimeStamp)
+     * Targets able to parse the server response incrementally should override it
+     * NB: runs on a fetching thread while the store is locked to save the records of the page: it must not use the store
+     * @param syncManager
+     * @param maxTimeStamp
+     * @param recordHandler
+     * @throws IOException, JSONException
+     */
+    public void startFetch(SyncManager syncManager, long maxTimeStamp, RecordHandler recordHandler) throws IOException, JSONException {
+        handleRecords(startFetch(syncManager, maxTimeStamp), recordHandler);
+    }
+
+    /**
+     * Continue fetching records conforming to target if any, handing them one at a time to recordHandler
+     * Default implementation hands over the records returned by continueFetch(syncManager)
+     * Targets able to parse the server response incrementally should override it
+     * @param syncManager
+     * @param recordHandler
+     * @return false if there are no more records to fetch
+     * @throws IOException, JSONException
+     */
+    public boolean continueFetch(SyncManager syncManager, RecordHandler recordHandler) throws IOException, JSONException {
+        JSONArray records = continueFetch(syncManager);
+        if (records == null) {
+            return false;
+        }
+        handleRecords(records, recordHandler);
+        return true;
+    }
+
+    private void handleRecords(JSONArray records, RecordHandler recordHandler) throws JSONException {
+        for (int i = 0; i < records.length(); i++) {
+            recordHandler.onRecord(records.getJSONObject(i));
+        }
+    }
+
+    /**
+     * @return number of records expected to be fetched - is set when startFetch() is called (-1 if not known yet)
      */
     public int getTotalSize() {
         return totalSize;
@@ -149,23 +188,42 @@ public abstract class SyncDownTarget extends SyncTarget {
     public long getLatestModificationTimeStamp(JSONArray records) throws JSONException {
         long maxTimeStamp = -1;
         for (int i = 0; i < records.length(); i++) {
-            String timeStampStr = JSONObjectHelper.optString(records.getJSONObject(i), getModificationDateFieldName());
-            if (timeStampStr == null) {
+            long timeStamp = getModificationTimeStamp(records.getJSONObject(i));
+            if (timeStamp == -1) {
                 maxTimeStamp = -1;
                 break; // field not present
             }
-            try {
-                long timeStamp = Constants.TIMESTAMP_FORMAT.parse(timeStampStr).getTime();
-                maxTimeStamp = Math.max(timeStamp, maxTimeStamp);
-            } catch (Exception e) {
-                Log.w("SyncDownTarget.getLatestModificationTimeStamp", "Could not parse modification date field " + getModificationDateFieldName(), e);
-                maxTimeStamp = -1;
-                break;
-            }
+            maxTimeStamp = Math.max(timeStamp, maxTimeStamp);
         }
         return maxTimeStamp;
     }
 
+    /**
+     * Gets the modification timestamp of a record.
+     * @param record
+     * @return modification time stamp or -1 if the field is missing or could not be parsed
+     * @throws JSONException
+     */
+    public long getModificationTimeStamp(JSONObject record) throws JSONException {
+        String timeStampStr = JSONObjectHelper.optString(record, getModificationDateFieldName());
+        if (timeStampStr == null) {
+            return -1; // field not present
+        }
+        try {
+            return Constants.TIMESTAMP_FORMAT.parse(timeStampStr).getTime();
+        } catch (Exception e) {
+            Log.w("SyncDownTarget.getModificationTimeStamp", "Could not parse modification date field " + getModificationDateFieldName(), e);
+            return -1;
+        }
+    }
+
+    /**
+     * Callback receiving fetched records one at a time
+     */
+    public interface RecordHandler {
+        void onRecord(JSONObject record) throws JSONException;
+    }
+
     /**
      * Enum for query type
      */
@@ -31,13 +31,22 @@ import com.salesforce.androidsdk.rest.RestResponse;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
 import com.salesforce.androidsdk.smartsync.manager.SyncManager;
 
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * Target for sync up:
@@ -46,6 +55,18 @@ import java.util.Set;
  */
 public class SyncUpTarget extends SyncTarget {
 
+    // Constants
+    public static final String BATCH_SIZE = "batchSize";
+    public static final int MAX_BATCH_SIZE = 25; // max number of sub-requests in a composite batch request
+    public static final String MIN_BATCH_API_VERSION = "v34.0"; // composite batch resource was introduced in v34.0
+    public static final String BATCH_RESULTS = "results";
+    public static final String BATCH_STATUS_CODE = "statusCode";
+    public static final String BATCH_RESULT = "result";
+    private static final Pattern SALESFORCE_ID_PATTERN = Pattern.compile("[a-zA-Z0-9]{15}([a-zA-Z0-9]{3})?");
+
+    // Fields
+    private int batchSize = 1; // 1 means records are sent to the server one at a time
+
     /**
      * Build SyncUpTarget from json
      *
@@ -77,13 +98,51 @@ public class SyncUpTarget extends SyncTarget {
         super();
     }
 
+    /**
+     * Construct SyncUpTarget sending records to the server in batches
+     * @param batchSize number of records per composite batch request (between 1 and MAX_BATCH_SIZE)
+     * @throws SyncManager.SmartSyncException if batchSize is out of range
+     */
+    public SyncUpTarget(int batchSize) {
+        super();
+        this.batchSize = checkBatchSize(batchSize);
+    }
+
     /**
      * Construct SyncUpTarget from json
      * @param target
      * @throws JSONException
+     * @throws SyncManager.SmartSyncException if batchSize is out of range
      */
     public SyncUpTarget(JSONObject target) throws JSONException {
         super(target);
+        if (target != null && target.has(BATCH_SIZE)) {
+            batchSize = checkBatchSize(target.getInt(BATCH_SIZE));
+        }
+    }
+
+    private static int checkBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new SyncManager.SmartSyncException("Invalid batchSize: " + batchSize + " (should be between 1 and " + MAX_BATCH_SIZE + ")");
+        }
+        return batchSize;
+    }
+
+    /**
+     * @return json representation of target
+     * @throws JSONException
+     */
+    public JSONObject asJSON() throws JSONException {
+        JSONObject target = super.asJSON();
+        target.put(BATCH_SIZE, batchSize);
+        return target;
+    }
+
+    /**
+     * @return number of records sent to the server in each composite batch request (1 means no batching)
+     */
+    public int getBatchSize() {
+        return batchSize;
     }
 
     /**
@@ -156,6 +215,97 @@ public class SyncUpTarget extends SyncTarget {
         return lastModResponse.asJSONObject().optJSONArray(Constants.RECORDS).optJSONObject(0).optString(Constants.LAST_MODIFIED_DATE);
     }
 
+    /**
+     * Fetch last modified dates for several records of a given type with a single query
+     * @param syncManager
+     * @param objectType
+     * @param objectIds
+     * @return map of record id to last modified date (records not found on the server and invalid ids are not in the map)
+     * @throws JSONException
+     * @throws IOException
+     */
+    public Map<String, String> fetchLastModifiedDates(SyncManager syncManager, String objectType, Collection<String> objectIds) throws JSONException, IOException {
+        Map<String, String> lastModifiedDates = new HashMap<String, String>();
+        // Only well formed salesforce ids go in the query
+        List<String> validIds = new ArrayList<String>();
+        for (String objectId : objectIds) {
+            if (objectId != null && SALESFORCE_ID_PATTERN.matcher(objectId).matches()) {
+                validIds.add(objectId);
+            }
+            else {
+                Log.w("SyncUpTarget:fetchLastModifiedDates", "Skipping invalid id: " + objectId);
+            }
+        }
+        if (validIds.isEmpty()) {
+            return lastModifiedDates;
+        }
+        final String query = SOQLBuilder.getInstanceWithFields(Constants.ID, Constants.LAST_MODIFIED_DATE)
+                .from(objectType)
+                .where(Constants.ID + " IN ('" + TextUtils.join("', '", validIds) + "')")
+                .build();
+
+        RestResponse lastModResponse = syncManager.sendSyncWithSmartSyncUserAgent(RestRequest.getRequestForQuery(syncManager.apiVersion, query));
+        JSONArray records = lastModResponse.asJSONObject().getJSONArray(Constants.RECORDS);
+        for (int i = 0; i < records.length(); i++) {
+            JSONObject record = records.getJSONObject(i);
+            lastModifiedDates.put(record.getString(Constants.ID), record.optString(Constants.LAST_MODIFIED_DATE));
+        }
+        return lastModifiedDates;
+    }
+
+    /**
+     * Send several create/update/delete requests to the server in a single composite batch request
+     * @param syncManager
+     * @param requests at most MAX_BATCH_SIZE requests
+     * @return array with one result per request (json object with statusCode and result) or null if the batch request failed
+     * @throws JSONException
+     * @throws IOException
+     */
+    public JSONArray sendBatchToServer(SyncManager syncManager, List<RestRequest> requests) throws JSONException, IOException {
+        RestRequest request = RestRequest.getRequestForBatch(getBatchApiVersion(syncManager), false, requests);
+        RestResponse response = syncManager.sendSyncWithSmartSyncUserAgent(request);
+
+        if (!response.isSuccess()) {
+            Log.e("SyncUpTarget:sendBatchToServer", "Batch request failed with status " + response.getStatusCode() + ": " + response.asString());
+            return null;
+        }
+        return response.asJSONObject().getJSONArray(BATCH_RESULTS);
+    }
+
+    /**
+     * @param syncManager
+     * @return api version to use for composite batch requests and their sub-requests
+     */
+    public String getBatchApiVersion(SyncManager syncManager) {
+        try {
+            double version = Double.parseDouble(syncManager.apiVersion.substring(1));
+            double minVersion = Double.parseDouble(MIN_BATCH_API_VERSION.substring(1));
+            return version >= minVersion ? syncManager.apiVersion : MIN_BATCH_API_VERSION;
+        } catch (NumberFormatException e) {
+            return syncManager.apiVersion;
+        }
+    }
+
+    /**
+     * Return request to save a locally created/updated/deleted record back to the server (used to build batch requests)
+     * @param syncManager
+     * @param objectType
+     * @param action
+     * @param objectId (null for create)
+     * @param fields (null for delete)
+     * @return
+     * @throws IOException
+     */
+    public RestRequest getRequestForAction(SyncManager syncManager, SyncManager.Action action, String objectType, String objectId, Map<String, Object> fields) throws IOException {
+        String apiVersion = getBatchApiVersion(syncManager);
+        switch (action) {
+            case create: return RestRequest.getRequestForCreate(apiVersion, objectType, fields);
+            case update: return RestRequest.getRequestForUpdate(apiVersion, objectType, objectId, fields);
+            case delete: return RestRequest.getRequestForDelete(apiVersion, objectType, objectId);
+            default: return null;
+        }
+    }
+
     /**
      * Return ids of records to sync up
      * @param syncManager
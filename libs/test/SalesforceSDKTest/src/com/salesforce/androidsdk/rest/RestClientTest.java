@@ -26,8 +26,10 @@
  */
 package com.salesforce.androidsdk.rest;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
@@ -391,6 +393,28 @@ public class RestClientTest extends InstrumentationTestCase {
         }
     }
     
+    /**
+     * Testing that a response can be read as a stream
+     * @throws Exception
+     */
+    public void testAsInputStream() throws Exception {
+        RestResponse response = restClient.sendSync(RestRequest.getRequestForMetadata(TestCredentials.API_VERSION, "account"));
+        assertTrue("Response should be successful", response.isSuccess());
+        InputStream in = response.asInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        JSONObject jsonResponse = new JSONObject(new String(out.toByteArray(), "UTF-8"));
+        checkKeys(jsonResponse, "objectDescribe", "recentItems");
+    }
+
     /**
      * Testing that WrappedRestRequest's url field is correct with various RestRequest objects
      * @throws Exception
@@ -192,7 +192,26 @@ public class RestRequestTest extends TestCase {
 		assertNull("Wrong request entity", request.getRequestEntity());
 		assertNull("Wrong additional headers", request.getAdditionalHttpHeaders());
 	}
-	
+
+	/**
+	 * Test for getRequestForBatch
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public void testGetRequestForBatch() throws IOException, JSONException {
+		List<RestRequest> requests = Arrays.asList(new RestRequest[] {
+				RestRequest.getRequestForCreate(TEST_API_VERSION, TEST_OBJECT_TYPE, TEST_FIELDS),
+				RestRequest.getRequestForDelete(TEST_API_VERSION, TEST_OBJECT_TYPE, TEST_OBJECT_ID)});
+		RestRequest request = RestRequest.getRequestForBatch(TEST_API_VERSION, false, requests);
+		assertEquals("Wrong method", RestMethod.POST, request.getMethod());
+		assertEquals("Wrong path", "/services/data/" + TEST_API_VERSION + "/composite/batch", request.getPath());
+		JSONObject expectedBody = new JSONObject("{\"haltOnError\":false, \"batchRequests\":["
+				+ "{\"method\":\"POST\", \"url\":\"" + TEST_API_VERSION + "/sobjects/" + TEST_OBJECT_TYPE + "\", \"richInput\":" + TEST_FIELDS_STRING + "},"
+				+ "{\"method\":\"DELETE\", \"url\":\"" + TEST_API_VERSION + "/sobjects/" + TEST_OBJECT_TYPE + "/" + TEST_OBJECT_ID + "\"}]}");
+		JSONTestHelper.assertSameJSON("Wrong request entity", expectedBody, new JSONObject(EntityUtils.toString(request.getRequestEntity())));
+		assertNull("Wrong additional headers", request.getAdditionalHttpHeaders());
+	}
+
 	/**
 	 * Test for getRequestForQuery
 	 * @throws UnsupportedEncodingException 
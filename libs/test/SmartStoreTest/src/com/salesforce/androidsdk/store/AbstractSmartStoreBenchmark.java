@@ -0,0 +1,545 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.store;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Build;
+import android.util.Log;
+
+import com.salesforce.androidsdk.smartstore.store.IndexSpec;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec.Order;
+import com.salesforce.androidsdk.smartstore.store.SmartStore;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
+
+/**
+ * Benchmarks of the smart store: writes (create / upsert / update / delete), retrieve, queries of every type, smart sql with a join,
+ * count queries, alter soup / re-index soup and (for encrypted stores) change key - on soups of 1k, 10k, 100k and 1M rows
+ *
+ * Data is generated from a fixed seed so that every run works on the same soup elements
+ * Each result is logged (tag SmartStoreBenchmark) and appended to smartstore_benchmark.jsonl in the files directory of the test app,
+ * as a json object per line: operation, rows, number of operations timed, ops/sec, p50 and p99 latency (ms), device, sdk level, encryption
+ * For writes, ops/sec is computed from the duration of whole transactions (commit included) while latencies are the ones of the calls
+ * made inside the transactions. Operations timed too few times to have meaningful percentiles (e.g. alter soup) report each duration instead.
+ *
+ * Benchmarks are skipped in regular test runs, they only run when the largest size to run is passed as benchmarkMaxRows e.g.
+ * adb shell am instrument -w -e class com.salesforce.androidsdk.store.EncryptedSmartStoreBenchmark -e benchmarkMaxRows 1000000
+ *   com.salesforce.androidsdk.smartstore.tests/com.salesforce.androidsdk.store.SmartStoreTestRunner
+ * Note: the runner stops after an hour, the 1M rows benchmarks should be run on their own (e.g. -e class ...EncryptedSmartStoreBenchmark#test1MRows)
+ */
+public abstract class AbstractSmartStoreBenchmark extends SmartStoreTestCase {
+
+	private static final String TAG = "SmartStoreBenchmark";
+	private static final String RESULTS_FILE = "smartstore_benchmark.jsonl";
+	private static final String MAX_ROWS_ARG = "benchmarkMaxRows";
+
+	private static final String CONTACTS_SOUP = "bench_contacts";
+	private static final String ACCOUNTS_SOUP = "bench_accounts";
+	private static final long SEED = 20150601L;
+
+	// Number of contacts per account / per key value
+	private static final int CONTACTS_PER_ACCOUNT = 10;
+	private static final int CONTACTS_PER_KEY = 10;
+
+	private static final int ROWS_PER_TRANSACTION = 1000;
+	private static final int MAX_TIMED_WRITES = 1000;
+	private static final int WRITES_PER_TRANSACTION = 100;
+	private static final int MIN_SAMPLES_FOR_PERCENTILES = 10;
+	private static final int TIMED_QUERIES = 100;
+	private static final int PAGE_SIZE = 50;
+
+	private static final String[] WORDS = new String[] {"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+		"india", "juliet", "kilo", "lima", "mike", "november", "oscar", "papa"};
+	private static final String[] CITIES = new String[] {"San Francisco", "New York", "London", "Paris", "Tokyo", "Sydney", "Berlin", "Toronto"};
+
+	private Random random;
+	private long[] contactIds;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		random = new Random(SEED);
+	}
+
+	public void test1kRows() throws JSONException {
+		runBenchmark(1000);
+	}
+
+	public void test10kRows() throws JSONException {
+		runBenchmark(10000);
+	}
+
+	public void test100kRows() throws JSONException {
+		runBenchmark(100000);
+	}
+
+	public void test1MRows() throws JSONException {
+		runBenchmark(1000000);
+	}
+
+	/**
+	 * @return benchmarkMaxRows argument of the run or 0 when missing (or not run through the smart store test runner)
+	 */
+	private int getMaxRows() {
+		if (!(getInstrumentation() instanceof SmartStoreTestRunner)) {
+			return 0;
+		}
+		String maxRowsArg = ((SmartStoreTestRunner) getInstrumentation()).getRunArguments().getString(MAX_ROWS_ARG);
+		return (maxRowsArg == null ? 0 : Integer.parseInt(maxRowsArg));
+	}
+
+	/**
+	 * Run all benchmarks on soups with the given number of rows (unless benchmarkMaxRows is missing or smaller)
+	 * @param rows
+	 * @throws JSONException
+	 */
+	private void runBenchmark(int rows) throws JSONException {
+		int maxRows = getMaxRows();
+		if (rows > maxRows) {
+			Log.i(TAG, "Skipping benchmark with " + rows + " rows (" + MAX_ROWS_ARG + " is " + maxRows + ")");
+			return;
+		}
+
+		registerSoups();
+		benchmarkCreate(rows);
+		benchmarkUpsert(rows);
+		benchmarkUpdate(rows);
+		benchmarkRetrieve(rows);
+		benchmarkQueries(rows);
+		benchmarkAlterSoup(rows);
+		if (getPasscode().length() > 0) {
+			benchmarkChangeKey(rows);
+		}
+		benchmarkDelete(rows);
+	}
+
+	private void registerSoups() {
+		store.registerSoup(ACCOUNTS_SOUP, new IndexSpec[] {
+				new IndexSpec("Id", Type.string),
+				new IndexSpec("key", Type.string),
+				new IndexSpec("name", Type.string)});
+		store.registerSoup(CONTACTS_SOUP, new IndexSpec[] {
+				new IndexSpec("Id", Type.string),
+				new IndexSpec("key", Type.string),
+				new IndexSpec("name", Type.string),
+				new IndexSpec("accountId", Type.string),
+				new IndexSpec("amount", Type.integer),
+				new IndexSpec("score", Type.floating),
+				new IndexSpec("description", Type.full_text)});
+	}
+
+	/**
+	 * Create the accounts (untimed) and the contacts (timed), ROWS_PER_TRANSACTION per transaction
+	 */
+	private void benchmarkCreate(int rows) throws JSONException {
+		int accounts = Math.max(1, rows / CONTACTS_PER_ACCOUNT);
+		store.beginTransaction();
+		try {
+			for (int i = 0; i < accounts; i++) {
+				store.create(ACCOUNTS_SOUP, generateAccount(i));
+			}
+			store.setTransactionSuccessful();
+		} finally {
+			store.endTransaction();
+		}
+
+		contactIds = new long[rows];
+		Timings timings = new Timings(rows);
+		for (int start = 0; start < rows; start += ROWS_PER_TRANSACTION) {
+			int end = Math.min(start + ROWS_PER_TRANSACTION, rows);
+			JSONObject[] contacts = new JSONObject[end - start];
+			for (int i = start; i < end; i++) {
+				contacts[i - start] = generateContact(i, rows);
+			}
+			long transactionStart = System.nanoTime();
+			store.beginTransaction();
+			try {
+				for (int i = start; i < end; i++) {
+					long t = System.nanoTime();
+					JSONObject contact = store.create(CONTACTS_SOUP, contacts[i - start]);
+					timings.add(System.nanoTime() - t);
+					contactIds[i] = contact.getLong(SmartStore.SOUP_ENTRY_ID);
+				}
+				store.setTransactionSuccessful();
+			} finally {
+				store.endTransaction();
+			}
+			timings.addTransaction(end - start, System.nanoTime() - transactionStart);
+		}
+		report("create", rows, timings);
+	}
+
+	/**
+	 * Upsert existing contacts by external id (Id), WRITES_PER_TRANSACTION per transaction
+	 */
+	private void benchmarkUpsert(int rows) throws JSONException {
+		int count = Math.min(rows, MAX_TIMED_WRITES);
+		Timings timings = new Timings(count);
+		for (int start = 0; start < count; start += WRITES_PER_TRANSACTION) {
+			int end = Math.min(start + WRITES_PER_TRANSACTION, count);
+			JSONObject[] contacts = new JSONObject[end - start];
+			for (int n = start; n < end; n++) {
+				contacts[n - start] = generateContact(random.nextInt(rows), rows);
+				contacts[n - start].put("amount", random.nextInt(100000));
+			}
+			long transactionStart = System.nanoTime();
+			store.beginTransaction();
+			try {
+				for (JSONObject contact : contacts) {
+					long t = System.nanoTime();
+					store.upsert(CONTACTS_SOUP, contact, "Id", false);
+					timings.add(System.nanoTime() - t);
+				}
+				store.setTransactionSuccessful();
+			} finally {
+				store.endTransaction();
+			}
+			timings.addTransaction(end - start, System.nanoTime() - transactionStart);
+		}
+		report("upsert", rows, timings);
+	}
+
+	/**
+	 * Update contacts by soup entry id, WRITES_PER_TRANSACTION per transaction
+	 */
+	private void benchmarkUpdate(int rows) throws JSONException {
+		int count = Math.min(rows, MAX_TIMED_WRITES);
+		Timings timings = new Timings(count);
+		for (int start = 0; start < count; start += WRITES_PER_TRANSACTION) {
+			int end = Math.min(start + WRITES_PER_TRANSACTION, count);
+			JSONObject[] contacts = new JSONObject[end - start];
+			long[] ids = new long[end - start];
+			for (int n = start; n < end; n++) {
+				int i = random.nextInt(rows);
+				contacts[n - start] = generateContact(i, rows);
+				contacts[n - start].put("score", random.nextDouble());
+				ids[n - start] = contactIds[i];
+			}
+			long transactionStart = System.nanoTime();
+			store.beginTransaction();
+			try {
+				for (int n = 0; n < contacts.length; n++) {
+					long t = System.nanoTime();
+					store.update(CONTACTS_SOUP, contacts[n], ids[n], false);
+					timings.add(System.nanoTime() - t);
+				}
+				store.setTransactionSuccessful();
+			} finally {
+				store.endTransaction();
+			}
+			timings.addTransaction(end - start, System.nanoTime() - transactionStart);
+		}
+		report("update", rows, timings);
+	}
+
+	private void benchmarkRetrieve(int rows) throws JSONException {
+		int count = Math.min(rows, MAX_TIMED_WRITES);
+		Timings timings = new Timings(count);
+		for (int n = 0; n < count; n++) {
+			long id = contactIds[random.nextInt(rows)];
+			long t = System.nanoTime();
+			store.retrieve(CONTACTS_SOUP, id);
+			timings.add(System.nanoTime() - t);
+		}
+		report("retrieve", rows, timings);
+	}
+
+	/**
+	 * One timing per query type (TIMED_QUERIES queries each, first page of PAGE_SIZE results)
+	 */
+	private void benchmarkQueries(int rows) throws JSONException {
+		int keys = Math.max(1, rows / CONTACTS_PER_KEY);
+		int accounts = Math.max(1, rows / CONTACTS_PER_ACCOUNT);
+		Timings allTimings = new Timings(TIMED_QUERIES);
+		Timings exactTimings = new Timings(TIMED_QUERIES);
+		Timings rangeTimings = new Timings(TIMED_QUERIES);
+		Timings likeTimings = new Timings(TIMED_QUERIES);
+		Timings matchTimings = new Timings(TIMED_QUERIES);
+		Timings smartTimings = new Timings(TIMED_QUERIES);
+		Timings countTimings = new Timings(TIMED_QUERIES);
+		for (int n = 0; n < TIMED_QUERIES; n++) {
+			int amount = random.nextInt(100000);
+			String begin = Integer.toString(amount);
+			String end = Integer.toString(amount + 1000);
+			time(allTimings, QuerySpec.buildAllQuerySpec(CONTACTS_SOUP, "name", Order.ascending, PAGE_SIZE));
+			time(exactTimings, QuerySpec.buildExactQuerySpec(CONTACTS_SOUP, "key", keyOf(random.nextInt(keys)), PAGE_SIZE));
+			time(rangeTimings, QuerySpec.buildRangeQuerySpec(CONTACTS_SOUP, "amount", begin, end, Order.ascending, PAGE_SIZE));
+			time(likeTimings, QuerySpec.buildLikeQuerySpec(CONTACTS_SOUP, "name", "Contact " + random.nextInt(100) + "%", Order.ascending, PAGE_SIZE));
+			time(matchTimings, QuerySpec.buildMatchQuerySpec(CONTACTS_SOUP, "description", WORDS[random.nextInt(WORDS.length)], "name", Order.ascending, PAGE_SIZE));
+			time(smartTimings, QuerySpec.buildSmartQuerySpec("SELECT {" + CONTACTS_SOUP + ":name}, {" + ACCOUNTS_SOUP + ":name}"
+					+ " FROM {" + CONTACTS_SOUP + "}, {" + ACCOUNTS_SOUP + "}"
+					+ " WHERE {" + CONTACTS_SOUP + ":accountId} = {" + ACCOUNTS_SOUP + ":Id}"
+					+ " AND {" + ACCOUNTS_SOUP + ":key} = '" + accountKeyOf(random.nextInt(accounts)) + "'", PAGE_SIZE));
+			QuerySpec countQuerySpec = QuerySpec.buildRangeQuerySpec(CONTACTS_SOUP, "amount", begin, end, Order.ascending, PAGE_SIZE);
+			long t = System.nanoTime();
+			store.countQuery(countQuerySpec);
+			countTimings.add(System.nanoTime() - t);
+		}
+		report("query_all", rows, allTimings);
+		report("query_exact", rows, exactTimings);
+		report("query_range", rows, rangeTimings);
+		report("query_like", rows, likeTimings);
+		report("query_match", rows, matchTimings);
+		report("query_smart_join", rows, smartTimings);
+		report("count_query", rows, countTimings);
+	}
+
+	private void time(Timings timings, QuerySpec querySpec) throws JSONException {
+		long t = System.nanoTime();
+		store.query(querySpec, 0);
+		timings.add(System.nanoTime() - t);
+	}
+
+	/**
+	 * Alter soup adding an index (with re-indexing), then re-index soup on an existing index
+	 */
+	private void benchmarkAlterSoup(int rows) throws JSONException {
+		IndexSpec[] indexSpecs = store.getSoupIndexSpecs(CONTACTS_SOUP);
+		IndexSpec[] newIndexSpecs = Arrays.copyOf(indexSpecs, indexSpecs.length + 1);
+		newIndexSpecs[indexSpecs.length] = new IndexSpec("city", Type.string);
+		Timings alterTimings = new Timings(1);
+		long t = System.nanoTime();
+		store.alterSoup(CONTACTS_SOUP, newIndexSpecs, true);
+		alterTimings.add(System.nanoTime() - t);
+		report("alter_soup", rows, alterTimings);
+
+		Timings reIndexTimings = new Timings(1);
+		t = System.nanoTime();
+		store.reIndexSoup(CONTACTS_SOUP, new String[] {"amount"}, true);
+		reIndexTimings.add(System.nanoTime() - t);
+		report("reindex_soup", rows, reIndexTimings);
+	}
+
+	/**
+	 * Change key to a new key and back (encrypted stores only)
+	 */
+	private void benchmarkChangeKey(int rows) {
+		final SQLiteDatabase db = dbOpenHelper.getWritableDatabase(getPasscode());
+		Timings timings = new Timings(2);
+		long t = System.nanoTime();
+		SmartStore.changeKey(db, getPasscode() + "-new");
+		timings.add(System.nanoTime() - t);
+		t = System.nanoTime();
+		SmartStore.changeKey(db, getPasscode());
+		timings.add(System.nanoTime() - t);
+		report("change_key", rows, timings);
+	}
+
+	/**
+	 * Delete contacts by soup entry id, WRITES_PER_TRANSACTION per transaction
+	 */
+	private void benchmarkDelete(int rows) throws JSONException {
+		int count = Math.min(rows, MAX_TIMED_WRITES);
+		Timings timings = new Timings(count);
+		// Deleting distinct contacts: every stride-th one
+		int stride = Math.max(1, rows / count);
+		for (int start = 0; start < count; start += WRITES_PER_TRANSACTION) {
+			int end = Math.min(start + WRITES_PER_TRANSACTION, count);
+			long transactionStart = System.nanoTime();
+			store.beginTransaction();
+			try {
+				for (int n = start; n < end; n++) {
+					long t = System.nanoTime();
+					store.delete(CONTACTS_SOUP, new Long[] {contactIds[n * stride]}, false);
+					timings.add(System.nanoTime() - t);
+				}
+				store.setTransactionSuccessful();
+			} finally {
+				store.endTransaction();
+			}
+			timings.addTransaction(end - start, System.nanoTime() - transactionStart);
+		}
+		report("delete", rows, timings);
+	}
+
+	/**
+	 * Data generators: the i-th element is always the same
+	 */
+	private static JSONObject generateAccount(int i) throws JSONException {
+		JSONObject account = new JSONObject();
+		account.put("Id", accountIdOf(i));
+		account.put("key", accountKeyOf(i));
+		account.put("name", "Account " + i);
+		account.put("city", CITIES[i % CITIES.length]);
+		return account;
+	}
+
+	private static JSONObject generateContact(int i, int rows) throws JSONException {
+		Random r = new Random(SEED + i);
+		JSONObject contact = new JSONObject();
+		contact.put("Id", String.format("003%012d", i));
+		contact.put("key", keyOf(i / CONTACTS_PER_KEY));
+		contact.put("name", "Contact " + i);
+		contact.put("accountId", accountIdOf(i % Math.max(1, rows / CONTACTS_PER_ACCOUNT)));
+		contact.put("amount", r.nextInt(100000));
+		contact.put("score", r.nextDouble());
+		contact.put("city", CITIES[r.nextInt(CITIES.length)]);
+		StringBuilder description = new StringBuilder();
+		for (int w = 0; w < 8; w++) {
+			description.append(w == 0 ? "" : " ").append(WORDS[r.nextInt(WORDS.length)]);
+		}
+		contact.put("description", description.toString());
+		JSONObject attributes = new JSONObject();
+		attributes.put("type", "Contact");
+		attributes.put("url", "/services/data/v33.0/sobjects/Contact/" + contact.getString("Id"));
+		contact.put("attributes", attributes);
+		return contact;
+	}
+
+	private static String keyOf(int i) {
+		return String.format("k%08d", i);
+	}
+
+	private static String accountIdOf(int i) {
+		return String.format("001%012d", i);
+	}
+
+	private static String accountKeyOf(int i) {
+		return String.format("ak%08d", i);
+	}
+
+	/**
+	 * Log result and append it to the results file
+	 * @param operation
+	 * @param rows
+	 * @param timings
+	 */
+	private void report(String operation, int rows, Timings timings) {
+		try {
+			JSONObject result = new JSONObject();
+			result.put("timestamp", System.currentTimeMillis());
+			result.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+			result.put("sdk", Build.VERSION.SDK_INT);
+			result.put("encrypted", getPasscode().length() > 0);
+			result.put("rows", rows);
+			result.put("operation", operation);
+			result.put("ops", timings.getOps());
+			result.put("opsPerSec", timings.getOpsPerSec());
+			if (timings.count >= MIN_SAMPLES_FOR_PERCENTILES) {
+				result.put("p50Ms", timings.getPercentileMs(50));
+				result.put("p99Ms", timings.getPercentileMs(99));
+			}
+			else {
+				result.put("durationsMs", timings.getDurationsMs());
+			}
+			String line = result.toString();
+			Log.i(TAG, line);
+			FileWriter writer = new FileWriter(new File(targetContext.getFilesDir(), RESULTS_FILE), true);
+			try {
+				writer.write(line + "\n");
+			} finally {
+				writer.close();
+			}
+		} catch (JSONException e) {
+			Log.e(TAG, "Could not build result for " + operation, e);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not write result for " + operation, e);
+		}
+	}
+
+	/**
+	 * Durations of the operations timed
+	 * Plus, for writes, durations of the transactions they were made in
+	 */
+	private static class Timings {
+		private final long[] nanos;
+		private int count;
+		private int transactionOps;
+		private long transactionNanos;
+
+		Timings(int capacity) {
+			nanos = new long[capacity];
+		}
+
+		void add(long duration) {
+			nanos[count++] = duration;
+		}
+
+		/**
+		 * @param ops number of operations made in the transaction
+		 * @param duration of the transaction, from begin to end (commit included)
+		 */
+		void addTransaction(int ops, long duration) {
+			transactionOps += ops;
+			transactionNanos += duration;
+		}
+
+		int getOps() {
+			return (transactionOps > 0 ? transactionOps : count);
+		}
+
+		/**
+		 * @return operations per second - computed from the duration of the transactions when there were any
+		 */
+		double getOpsPerSec() {
+			if (transactionOps > 0) {
+				return transactionOps * 1e9 / transactionNanos;
+			}
+			long total = 0;
+			for (int i = 0; i < count; i++) {
+				total += nanos[i];
+			}
+			return (total == 0 ? 0 : count * 1e9 / total);
+		}
+
+		/**
+		 * @return duration (ms) of each operation
+		 */
+		JSONArray getDurationsMs() throws JSONException {
+			JSONArray durations = new JSONArray();
+			for (int i = 0; i < count; i++) {
+				durations.put(nanos[i] / 1e6);
+			}
+			return durations;
+		}
+
+		/**
+		 * @param percentile
+		 * @return duration (ms) under which percentile % of the operations completed (nearest rank)
+		 */
+		double getPercentileMs(int percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf(nanos, count);
+			Arrays.sort(sorted);
+			int rank = (int) Math.ceil(percentile / 100.0 * count);
+			return sorted[Math.max(rank, 1) - 1] / 1e6;
+		}
+	}
+}
@@ -26,17 +26,25 @@
  */
 package com.salesforce.androidsdk.store;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import android.database.Cursor;
 import android.os.SystemClock;
 
 import com.salesforce.androidsdk.smartstore.store.AlterSoupLongOperation;
 import com.salesforce.androidsdk.smartstore.store.AlterSoupLongOperation.AlterSoupStep;
+import com.salesforce.androidsdk.smartstore.store.CompoundIndexSpec;
 import com.salesforce.androidsdk.smartstore.store.DBHelper;
 import com.salesforce.androidsdk.smartstore.store.IndexSpec;
 import com.salesforce.androidsdk.smartstore.store.LongOperation;
@@ -44,6 +52,13 @@ import com.salesforce.androidsdk.smartstore.store.QuerySpec;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec.Order;
 import com.salesforce.androidsdk.smartstore.store.SmartSqlHelper.SmartSqlException;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.ReIndexCallback;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.RowCallback;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.SoupChangeListener;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.SoupFormat;
+import com.salesforce.androidsdk.smartstore.store.SoupChange;
+import com.salesforce.androidsdk.smartstore.store.SoupEltCache;
 import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
 import com.salesforce.androidsdk.util.test.JSONTestHelper;
 
@@ -454,6 +469,105 @@ public abstract class AbstractSmartStoreTest extends SmartStoreTestCase {
 		}
 	}
 	
+	/**
+	 * Testing upsertAll: upsert multiple soup elements in one call, then update some of them and add a new one in a second call, check them all
+	 * @throws JSONException
+	 */
+	public void testUpsertAll() throws JSONException {
+		JSONArray soupElts = new JSONArray("[{'key':'ka1', 'value':'va1'}, {'key':'ka2', 'value':'va2'}, {'key':'ka3', 'value':'va3'}]");
+		JSONArray soupEltsUpserted = store.upsertAll(TEST_SOUP, soupElts, SmartStore.SOUP_ENTRY_ID);
+		assertEquals("Wrong number of results", 3, soupEltsUpserted.length());
+		for (int i = 0; i < 3; i++) {
+			JSONObject soupEltUpserted = soupEltsUpserted.getJSONObject(i);
+			JSONObject soupEltRetrieved = store.retrieve(TEST_SOUP, idOf(soupEltUpserted)).getJSONObject(0);
+			JSONTestHelper.assertSameJSON("Retrieve mismatch", soupEltUpserted, soupEltRetrieved);
+		}
+
+		SystemClock.sleep(10); // to get a different last modified date
+		JSONObject soupElt2ForUpdate = new JSONObject("{'key':'ka2u', 'value':'va2u'}");
+		soupElt2ForUpdate.put(SmartStore.SOUP_ENTRY_ID, idOf(soupEltsUpserted.getJSONObject(1)));
+		JSONObject soupElt4 = new JSONObject("{'key':'ka4', 'value':'va4'}");
+		JSONArray soupEltsUpserted2 = store.upsertAll(TEST_SOUP, new JSONArray().put(soupElt2ForUpdate).put(soupElt4), SmartStore.SOUP_ENTRY_ID);
+		assertEquals("Wrong number of results", 2, soupEltsUpserted2.length());
+		assertEquals("Wrong id for updated element", idOf(soupEltsUpserted.getJSONObject(1)), idOf(soupEltsUpserted2.getJSONObject(0)));
+		assertTrue("Wrong id for created element", idOf(soupEltsUpserted2.getJSONObject(1)) > idOf(soupEltsUpserted.getJSONObject(2)));
+
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", soupEltsUpserted.getJSONObject(0), store.retrieve(TEST_SOUP, idOf(soupEltsUpserted.getJSONObject(0))).getJSONObject(0));
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", soupEltsUpserted2.getJSONObject(0), store.retrieve(TEST_SOUP, idOf(soupEltsUpserted.getJSONObject(1))).getJSONObject(0));
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", soupEltsUpserted.getJSONObject(2), store.retrieve(TEST_SOUP, idOf(soupEltsUpserted.getJSONObject(2))).getJSONObject(0));
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", soupEltsUpserted2.getJSONObject(1), store.retrieve(TEST_SOUP, idOf(soupEltsUpserted2.getJSONObject(1))).getJSONObject(0));
+
+		// Check index column got updated
+		JSONArray result = store.query(QuerySpec.buildExactQuerySpec(TEST_SOUP, "key", "ka2u", 10), 0);
+		assertEquals("One result expected", 1, result.length());
+		JSONTestHelper.assertSameJSON("Wrong result for query", soupEltsUpserted2.getJSONObject(0), result.getJSONObject(0));
+	}
+
+	/**
+	 * Testing upsertAll with external id: existing elements should be updated, new ones created
+	 * and elements sharing an external id within the batch should end up in the same row
+	 * @throws JSONException
+	 */
+	public void testUpsertAllWithExternalId() throws JSONException {
+		JSONObject soupElt1Upserted = store.upsert(TEST_SOUP, new JSONObject("{'key':'ka1', 'value':'va1'}"), "key");
+		JSONObject soupElt2Upserted = store.upsert(TEST_SOUP, new JSONObject("{'key':'ka2', 'value':'va2'}"), "key");
+
+		JSONArray soupElts = new JSONArray("[{'key':'ka2', 'value':'va2u'}, {'key':'ka3', 'value':'va3'}, {'key':'ka3', 'value':'va3u'}, {'value':'va4'}]");
+		JSONArray soupEltsUpserted = store.upsertAll(TEST_SOUP, soupElts, "key");
+		assertEquals("Wrong number of results", 4, soupEltsUpserted.length());
+		assertEquals("Wrong id for updated element", idOf(soupElt2Upserted), idOf(soupEltsUpserted.getJSONObject(0)));
+		assertEquals("Elements with same external id should share a row", idOf(soupEltsUpserted.getJSONObject(1)), idOf(soupEltsUpserted.getJSONObject(2)));
+		assertFalse("Element without external id should get its own row", idOf(soupEltsUpserted.getJSONObject(1)) == idOf(soupEltsUpserted.getJSONObject(3)));
+
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", soupElt1Upserted, store.retrieve(TEST_SOUP, idOf(soupElt1Upserted)).getJSONObject(0));
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", soupEltsUpserted.getJSONObject(0), store.retrieve(TEST_SOUP, idOf(soupElt2Upserted)).getJSONObject(0));
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", soupEltsUpserted.getJSONObject(2), store.retrieve(TEST_SOUP, idOf(soupEltsUpserted.getJSONObject(2))).getJSONObject(0));
+		assertEquals("Wrong value", "va3u", store.retrieve(TEST_SOUP, idOf(soupEltsUpserted.getJSONObject(1))).getJSONObject(0).getString("value"));
+		assertEquals("Expected four soup elements", 4, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
+	/**
+	 * Testing upsertAll with an external id that is not unique in the soup
+	 * @throws JSONException
+	 */
+	public void testUpsertAllWithNonUniqueExternalId() throws JSONException {
+		store.upsert(TEST_SOUP, new JSONObject("{'key':'ka', 'value':'va1'}"));
+		store.upsert(TEST_SOUP, new JSONObject("{'key':'ka', 'value':'va2'}"));
+		try {
+			store.upsertAll(TEST_SOUP, new JSONArray("[{'key':'kb', 'value':'vb'}, {'key':'ka', 'value':'va3'}]"), "key");
+			fail("Exception was expected: key is not unique in the soup");
+		} catch (RuntimeException e) {
+			assertTrue("Wrong exception", e.getMessage().contains("are more than one soup elements"));
+		}
+		assertEquals("Expected two soup elements", 2, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
+	/**
+	 * Testing ids handed out by create/upsertAll: they should be increasing and never reused (even after a rollback or a reset of the memory cache)
+	 * @throws JSONException
+	 */
+	public void testSoupEntryIdAllocation() throws JSONException {
+		JSONObject soupElt1Created = store.create(TEST_SOUP, new JSONObject("{'key':'ka1'}"));
+		JSONArray soupEltsUpserted = store.upsertAll(TEST_SOUP, new JSONArray("[{'key':'ka2'}, {'key':'ka3'}]"), SmartStore.SOUP_ENTRY_ID);
+		assertEquals("Wrong id", idOf(soupElt1Created) + 1, idOf(soupEltsUpserted.getJSONObject(0)));
+		assertEquals("Wrong id", idOf(soupElt1Created) + 2, idOf(soupEltsUpserted.getJSONObject(1)));
+
+		// Rolled back insert
+		store.beginTransaction();
+		JSONObject soupElt4Created = store.create(TEST_SOUP, new JSONObject("{'key':'ka4'}"), false);
+		store.endTransaction();
+		assertEquals("Element should have been rolled back", 0, store.retrieve(TEST_SOUP, idOf(soupElt4Created)).length());
+		JSONObject soupElt5Created = store.create(TEST_SOUP, new JSONObject("{'key':'ka5'}"));
+		assertTrue("Id should not be reused", idOf(soupElt5Created) > idOf(soupElt4Created));
+
+		// Allocator re-seeded from database
+		final SQLiteDatabase db = dbOpenHelper.getWritableDatabase(getPasscode());
+		DBHelper.getInstance(db).clearMemoryCache();
+		JSONObject soupElt6Created = store.create(TEST_SOUP, new JSONObject("{'key':'ka6'}"));
+		assertTrue("Id should not be reused", idOf(soupElt6Created) > idOf(soupElt5Created));
+		assertEquals("Expected five soup elements", 5, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
 	/**
 	 * Testing retrieve: create multiple soup elements and retrieves them back
 	 * @throws JSONException 
@@ -476,6 +590,270 @@ public abstract class AbstractSmartStoreTest extends SmartStoreTestCase {
 		JSONTestHelper.assertSameJSON("Retrieve mismatch", soupElt3Created, soupElt3Retrieved);
 	}
 
+	/**
+	 * Testing retrieve with the soup element cache enabled (hits, misses, invalidation by writers and eviction)
+	 * @throws JSONException
+	 */
+	public void testRetrieveWithSoupEltCache() throws JSONException {
+		assertNull("No cache expected", store.getSoupEltCache(TEST_SOUP));
+		store.setSoupEltCacheSize(TEST_SOUP, 1024 * 1024);
+		SoupEltCache soupEltCache = store.getSoupEltCache(TEST_SOUP);
+		assertNotNull("Cache expected", soupEltCache);
+
+		JSONObject soupElt1Created = store.create(TEST_SOUP, new JSONObject("{'key':'ka1', 'value':'va1', 'nested':{'list':[1,2]}}"));
+		JSONObject soupElt2Created = store.create(TEST_SOUP, new JSONObject("{'key':'ka2', 'value':'va2'}"));
+		JSONObject soupElt3Created = store.create(TEST_SOUP, new JSONObject("{'key':'ka3', 'value':'va3'}"));
+
+		// Misses then hits
+		JSONArray result = store.retrieve(TEST_SOUP, idOf(soupElt3Created), idOf(soupElt1Created), idOf(soupElt1Created));
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", new JSONArray(Arrays.asList(soupElt1Created, soupElt3Created)), result);
+		assertEquals("Wrong miss count", 2, soupEltCache.getMissCount());
+		assertEquals("Wrong hit count", 0, soupEltCache.getHitCount());
+		assertEquals("Wrong number of cached soup elements", 2, soupEltCache.getCount());
+		result.getJSONObject(0).getJSONObject("nested").put("list", "changed by caller");
+		result = store.retrieve(TEST_SOUP, idOf(soupElt1Created), idOf(soupElt2Created), idOf(soupElt3Created));
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", new JSONArray(Arrays.asList(soupElt1Created, soupElt2Created, soupElt3Created)), result);
+		assertEquals("Wrong miss count", 3, soupEltCache.getMissCount());
+		assertEquals("Wrong hit count", 2, soupEltCache.getHitCount());
+
+		// Update / upsert / delete invalidate
+		soupElt1Created.put("value", "va1u");
+		JSONObject soupElt1Updated = store.update(TEST_SOUP, soupElt1Created, idOf(soupElt1Created));
+		soupElt2Created.put("value", "va2u");
+		JSONObject soupElt2Updated = store.upsertAll(TEST_SOUP, new JSONArray(Arrays.asList(soupElt2Created)), SmartStore.SOUP_ENTRY_ID).getJSONObject(0);
+		store.delete(TEST_SOUP, idOf(soupElt3Created));
+		result = store.retrieve(TEST_SOUP, idOf(soupElt1Created), idOf(soupElt2Created), idOf(soupElt3Created));
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", new JSONArray(Arrays.asList(soupElt1Updated, soupElt2Updated)), result);
+		assertEquals("Wrong miss count", 6, soupEltCache.getMissCount());
+
+		// Nothing cached while a transaction is in progress
+		store.beginTransaction();
+		try {
+			soupElt1Updated.put("value", "va1uu");
+			store.update(TEST_SOUP, soupElt1Updated, idOf(soupElt1Created), false);
+			store.retrieve(TEST_SOUP, idOf(soupElt1Created));
+		}
+		finally {
+			store.endTransaction(); // rolled back
+		}
+		assertEquals("Wrong value", "va1u", store.retrieve(TEST_SOUP, idOf(soupElt1Created)).getJSONObject(0).getString("value"));
+
+		// Clear soup empties cache
+		store.clearSoup(TEST_SOUP);
+		assertEquals("Cache should be empty", 0, soupEltCache.getCount());
+		assertEquals("Cache should be empty", 0, soupEltCache.getSize());
+		assertEquals("No soup elements expected", 0, store.retrieve(TEST_SOUP, idOf(soupElt1Created)).length());
+
+		// Eviction
+		store.setSoupEltCacheSize(TEST_SOUP, 1024);
+		soupEltCache = store.getSoupEltCache(TEST_SOUP);
+		for (int i = 0; i < 20; i++) {
+			JSONObject soupEltCreated = store.create(TEST_SOUP, new JSONObject("{'key':'k" + i + "', 'value':'v" + i + "'}"));
+			store.retrieve(TEST_SOUP, idOf(soupEltCreated));
+		}
+		assertTrue("Soup elements should have been evicted", soupEltCache.getEvictionCount() > 0);
+		assertTrue("Cache is too big", soupEltCache.getSize() <= soupEltCache.getMaxSize());
+
+		// Disabling cache
+		store.setSoupEltCacheSize(TEST_SOUP, 0);
+		assertNull("No cache expected", store.getSoupEltCache(TEST_SOUP));
+	}
+
+	/**
+	 * Testing that dropping a soup removes its soup element cache
+	 * @throws JSONException
+	 */
+	public void testDropSoupRemovesSoupEltCache() throws JSONException {
+		store.setSoupEltCacheSize(TEST_SOUP, 1024 * 1024);
+		SoupEltCache soupEltCache = store.getSoupEltCache(TEST_SOUP);
+		JSONObject soupEltCreated = store.create(TEST_SOUP, new JSONObject("{'key':'ka1', 'value':'va1'}"));
+		store.retrieve(TEST_SOUP, idOf(soupEltCreated));
+		assertEquals("Wrong number of cached soup elements", 1, soupEltCache.getCount());
+
+		store.dropSoup(TEST_SOUP);
+		assertNull("No cache expected", store.getSoupEltCache(TEST_SOUP));
+		assertEquals("Cache should be empty", 0, soupEltCache.getCount());
+
+		// Registered again under the same name: no cache
+		store.registerSoup(TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.string)});
+		assertNull("No cache expected", store.getSoupEltCache(TEST_SOUP));
+		soupEltCreated = store.create(TEST_SOUP, new JSONObject("{'key':'ka2', 'value':'va2'}"));
+		assertEquals("Wrong value", "va2", store.retrieve(TEST_SOUP, idOf(soupEltCreated)).getJSONObject(0).getString("value"));
+		assertEquals("Nothing should have been cached", 0, soupEltCache.getCount());
+	}
+
+	/**
+	 * Testing soup change listener: changes published after commit, coalesced per transaction, dropped on rollback
+	 * @throws Exception
+	 */
+	public void testSoupChangeListener() throws Exception {
+		final LinkedBlockingQueue<List<SoupChange>> published = new LinkedBlockingQueue<List<SoupChange>>();
+		SoupChangeListener listener = new SoupChangeListener() {
+			@Override
+			public void onSoupChanges(List<SoupChange> soupChanges) {
+				published.add(soupChanges);
+			}
+		};
+		store.registerSoupChangeListener(listener);
+		try {
+			// Outside of transaction
+			long id1 = idOf(store.create(TEST_SOUP, new JSONObject("{'key':'ka1'}")));
+			checkSoupChanges(published.poll(5, TimeUnit.SECONDS), TEST_SOUP + " created [" + id1 + "]");
+
+			// Transaction committed
+			store.beginTransaction();
+			long id2, id3;
+			try {
+				id2 = idOf(store.create(TEST_SOUP, new JSONObject("{'key':'ka2'}"), false));
+				id3 = idOf(store.create(TEST_SOUP, new JSONObject("{'key':'ka3'}"), false));
+				store.update(TEST_SOUP, new JSONObject("{'key':'ka1u'}"), id1, false);
+				store.upsert(TEST_SOUP, new JSONObject("{'key':'ka2u', '_soupEntryId':" + id2 + "}"), SmartStore.SOUP_ENTRY_ID, false);
+				store.setTransactionSuccessful();
+			}
+			finally {
+				store.endTransaction();
+			}
+			checkSoupChanges(published.poll(5, TimeUnit.SECONDS), TEST_SOUP + " created [" + id2 + ", " + id3 + "]", TEST_SOUP + " updated [" + id1 + "]");
+
+			// Transaction rolled back
+			store.beginTransaction();
+			try {
+				store.delete(TEST_SOUP, new Long[] {id1}, false);
+			}
+			finally {
+				store.endTransaction();
+			}
+			store.delete(TEST_SOUP, id2, id3);
+			checkSoupChanges(published.poll(5, TimeUnit.SECONDS), TEST_SOUP + " deleted [" + id2 + ", " + id3 + "]");
+
+			// Clear / drop
+			store.clearSoup(TEST_SOUP);
+			checkSoupChanges(published.poll(5, TimeUnit.SECONDS), TEST_SOUP + " cleared []");
+			store.dropSoup(TEST_SOUP);
+			checkSoupChanges(published.poll(5, TimeUnit.SECONDS), TEST_SOUP + " dropped []");
+		}
+		finally {
+			store.unregisterSoupChangeListener(listener);
+		}
+
+		// No longer notified
+		store.registerSoup(TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.string)});
+		store.create(TEST_SOUP, new JSONObject("{'key':'ka4'}"));
+		assertNull("No soup changes expected", published.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Testing soup change listener with soup elements changed more than once in a transaction and with transactions not started by the store
+	 * @throws Exception
+	 */
+	public void testSoupChangeListenerCoalescing() throws Exception {
+		final LinkedBlockingQueue<List<SoupChange>> published = new LinkedBlockingQueue<List<SoupChange>>();
+		SoupChangeListener listener = new SoupChangeListener() {
+			@Override
+			public void onSoupChanges(List<SoupChange> soupChanges) {
+				published.add(soupChanges);
+			}
+		};
+		long id1 = idOf(store.create(TEST_SOUP, new JSONObject("{'key':'kc1'}")));
+		store.registerSoupChangeListener(listener);
+		try {
+			// Created then deleted: not published
+			store.beginTransaction();
+			long id2;
+			try {
+				id2 = idOf(store.create(TEST_SOUP, new JSONObject("{'key':'kc2'}"), false));
+				store.update(TEST_SOUP, new JSONObject("{'key':'kc2u'}"), id2, false);
+				store.delete(TEST_SOUP, new Long[] {id2}, false);
+				store.setTransactionSuccessful();
+			}
+			finally {
+				store.endTransaction();
+			}
+			assertNull("No soup changes expected", published.poll(200, TimeUnit.MILLISECONDS));
+
+			// Updated then deleted: deleted
+			store.beginTransaction();
+			try {
+				store.update(TEST_SOUP, new JSONObject("{'key':'kc1u'}"), id1, false);
+				store.delete(TEST_SOUP, new Long[] {id1}, false);
+				store.setTransactionSuccessful();
+			}
+			finally {
+				store.endTransaction();
+			}
+			checkSoupChanges(published.poll(5, TimeUnit.SECONDS), TEST_SOUP + " deleted [" + id1 + "]");
+
+			// Transaction not started by the store: changes not published and not carried over to the next transaction
+			SQLiteDatabase db = store.getDatabase();
+			db.beginTransaction();
+			try {
+				store.create(TEST_SOUP, new JSONObject("{'key':'kc3'}"), false);
+				db.setTransactionSuccessful();
+			}
+			finally {
+				db.endTransaction();
+			}
+			assertNull("No soup changes expected", published.poll(200, TimeUnit.MILLISECONDS));
+			long id4 = idOf(store.create(TEST_SOUP, new JSONObject("{'key':'kc4'}")));
+			checkSoupChanges(published.poll(5, TimeUnit.SECONDS), TEST_SOUP + " created [" + id4 + "]");
+		}
+		finally {
+			store.unregisterSoupChangeListener(listener);
+		}
+	}
+
+	private void checkSoupChanges(List<SoupChange> soupChanges, String... expectedSoupChanges) {
+		assertNotNull("Soup changes expected", soupChanges);
+		List<String> actualSoupChanges = new ArrayList<String>();
+		for (SoupChange soupChange : soupChanges) {
+			actualSoupChanges.add(soupChange.toString());
+		}
+		assertEquals("Wrong soup changes", Arrays.asList(expectedSoupChanges), actualSoupChanges);
+	}
+
+	/**
+	 * Testing that readers on other threads wait for a transaction to complete and that concurrent readers don't block each other
+	 * @throws Exception
+	 */
+	public void testConcurrentReadersAndWriter() throws Exception {
+		final QuerySpec querySpec = QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10);
+		final int[] countsRead = new int[] {-1, -1};
+		Thread[] readers = new Thread[countsRead.length];
+
+		// Writer holds the store while readers are started
+		store.beginTransaction();
+		try {
+			store.create(TEST_SOUP, new JSONObject("{'key':'ka1'}"), false);
+			for (int i = 0; i < readers.length; i++) {
+				final int readerIndex = i;
+				readers[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						countsRead[readerIndex] = store.countQuery(querySpec);
+					}
+				});
+				readers[i].start();
+			}
+			SystemClock.sleep(200);
+			for (Thread reader : readers) {
+				assertTrue("Reader should be waiting for transaction to end", reader.isAlive());
+			}
+			store.create(TEST_SOUP, new JSONObject("{'key':'ka2'}"), false);
+			store.setTransactionSuccessful();
+		} finally {
+			store.endTransaction();
+		}
+
+		// Readers should see the whole transaction
+		for (Thread reader : readers) {
+			reader.join(5000);
+			assertFalse("Reader should be done", reader.isAlive());
+		}
+		for (int count : countsRead) {
+			assertEquals("Wrong count read", 2, count);
+		}
+	}
+
 	/**
 	 * Testing delete: create a soup element, deletes and check database directly that it is in fact gone
 	 * @throws JSONException 
@@ -517,6 +895,149 @@ public abstract class AbstractSmartStoreTest extends SmartStoreTestCase {
 		}
 	}
 	
+	/**
+	 * Testing soup change count: bumped by every write (soups altered or re-indexed included), left alone by reads
+	 * @throws JSONException
+	 */
+	public void testSoupChangeCount() throws JSONException {
+		long count = store.getSoupChangeCount();
+		JSONObject soupElt = store.create(TEST_SOUP, new JSONObject("{'key':'ka'}"));
+		assertTrue("Create should have been counted", store.getSoupChangeCount() > count);
+
+		count = store.getSoupChangeCount();
+		store.retrieve(TEST_SOUP, idOf(soupElt));
+		store.query(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10), 0);
+		assertEquals("Reads should not have been counted", count, store.getSoupChangeCount());
+
+		store.update(TEST_SOUP, new JSONObject("{'key':'kb'}"), idOf(soupElt));
+		assertTrue("Update should have been counted", store.getSoupChangeCount() > count);
+
+		count = store.getSoupChangeCount();
+		store.deleteByQuery(TEST_SOUP, QuerySpec.buildExactQuerySpec(TEST_SOUP, "key", "kb", 10));
+		assertTrue("Delete by query should have been counted", store.getSoupChangeCount() > count);
+
+		count = store.getSoupChangeCount();
+		store.reIndexSoup(TEST_SOUP, new String[] {"key"}, true);
+		assertTrue("Re-index should have been counted", store.getSoupChangeCount() > count);
+
+		count = store.getSoupChangeCount();
+		store.alterSoup(TEST_SOUP, store.getSoupIndexSpecs(TEST_SOUP), false);
+		assertTrue("Alter soup should have been counted", store.getSoupChangeCount() > count);
+
+		count = store.getSoupChangeCount();
+		store.clearSoup(TEST_SOUP);
+		assertTrue("Clear should have been counted", store.getSoupChangeCount() > count);
+	}
+
+	/**
+	 * Testing query spec with a different page size
+	 */
+	public void testQuerySpecWithPageSize() {
+		QuerySpec rangeQuerySpec = QuerySpec.buildRangeQuerySpec(TEST_SOUP, "key", "k2", "k4", Order.descending, 10);
+		QuerySpec resized = rangeQuerySpec.withPageSize(30);
+		assertEquals("Wrong page size", 30, resized.pageSize);
+		assertEquals("Wrong smart sql", rangeQuerySpec.smartSql, resized.smartSql);
+		assertEquals("Wrong count smart sql", rangeQuerySpec.countSmartSql, resized.countSmartSql);
+		assertSame("Same page size should give back the same query spec", rangeQuerySpec, rangeQuerySpec.withPageSize(10));
+
+		QuerySpec smartQuerySpec = QuerySpec.buildSmartQuerySpec("select {test_soup:key} from {test_soup}", 10);
+		resized = smartQuerySpec.withPageSize(5);
+		assertEquals("Wrong page size", 5, resized.pageSize);
+		assertEquals("Wrong smart sql", smartQuerySpec.smartSql, resized.smartSql);
+	}
+
+	/**
+	 * Testing delete by query with range and smart query specs
+	 * @throws JSONException
+	 */
+	public void testDeleteByQuery() throws JSONException {
+		for (int i = 0; i < 10; i++) {
+			store.create(TEST_SOUP, new JSONObject("{'key':'k" + i + "', 'value':'v" + i + "'}"));
+		}
+
+		// Range query (page size is ignored)
+		store.deleteByQuery(TEST_SOUP, QuerySpec.buildRangeQuerySpec(TEST_SOUP, "key", "k2", "k4", Order.ascending, 1));
+		assertEquals("Wrong number of soup elements left", 7, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+
+		// Smart query
+		store.deleteByQuery(TEST_SOUP, QuerySpec.buildSmartQuerySpec("select {test_soup:_soupEntryId} from {test_soup} where {test_soup:key} like 'k8%' or {test_soup:key} = 'k0'", 1));
+		JSONArray result = store.query(QuerySpec.buildAllQuerySpec(TEST_SOUP, new String[] {"key"}, "key", Order.ascending, 10), 0);
+		JSONTestHelper.assertSameJSON("Wrong soup elements left", new JSONArray("[['k1'],['k5'],['k6'],['k7'],['k9']]"), result);
+
+		// Query spec for another soup
+		try {
+			store.deleteByQuery(TEST_SOUP, QuerySpec.buildAllQuerySpec(OTHER_TEST_SOUP, "key", Order.ascending, 10));
+			fail("Delete by query should have failed");
+		}
+		catch (SmartStoreException e) {
+			assertTrue("Wrong exception", e.getMessage().contains(OTHER_TEST_SOUP));
+		}
+		assertEquals("Wrong number of soup elements left", 5, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
+	/**
+	 * Testing delete by query with smart queries that do not select soup entry ids of the soup: they should be rejected without deleting anything
+	 * @throws JSONException
+	 */
+	public void testDeleteByQueryWithInvalidSmartQuery() throws JSONException {
+		store.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.string)});
+		for (int i = 0; i < 5; i++) {
+			store.create(TEST_SOUP, new JSONObject("{'key':'" + i + "'}"));
+			store.create(OTHER_TEST_SOUP, new JSONObject("{'key':'" + i + "'}"));
+		}
+		String[] invalidSmartSqls = new String[] {
+				"select {test_soup:key} from {test_soup}",
+				"select {other_test_soup:_soupEntryId} from {other_test_soup}",
+				"select {test_soup:_soupEntryId} from {other_test_soup}",
+				"select {test_soup:_soupEntryId} from {test_soup}, {other_test_soup}",
+				"select {test_soup:_soupEntryId} from {test_soup} where 0 union select {other_test_soup:_soupEntryId} from {other_test_soup}",
+				"select {test_soup:_soupEntryId}, {test_soup:key} from {test_soup}"
+		};
+		for (String invalidSmartSql : invalidSmartSqls) {
+			try {
+				store.deleteByQuery(TEST_SOUP, QuerySpec.buildSmartQuerySpec(invalidSmartSql, 10));
+				fail("Delete by query should have failed for: " + invalidSmartSql);
+			}
+			catch (SmartStoreException e) {
+				assertTrue("Wrong exception", e.getMessage().contains(invalidSmartSql));
+			}
+		}
+		assertEquals("Wrong number of soup elements left", 5, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+		assertEquals("Wrong number of soup elements left", 5, store.countQuery(QuerySpec.buildAllQuerySpec(OTHER_TEST_SOUP, "key", Order.ascending, 10)));
+
+		// Valid smart query (case and white space do not matter)
+		store.deleteByQuery(TEST_SOUP, QuerySpec.buildSmartQuerySpec("SELECT  {test_soup:_soupEntryId}\nFROM {test_soup} WHERE {test_soup:key} < '2'", 10));
+		assertEquals("Wrong number of soup elements left", 3, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+		assertEquals("Wrong number of soup elements left", 5, store.countQuery(QuerySpec.buildAllQuerySpec(OTHER_TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
+	/**
+	 * Testing retrieve and delete with more soup entry ids than fit in a single predicate
+	 * @throws JSONException
+	 */
+	public void testRetrieveAndDeleteManySoupEntryIds() throws JSONException {
+		JSONArray soupElts = new JSONArray();
+		for (int i = 0; i < 2500; i++) {
+			soupElts.put(new JSONObject("{'key':'k" + i + "'}"));
+		}
+		store.upsertAll(TEST_SOUP, soupElts, SmartStore.SOUP_ENTRY_ID);
+		Long[] soupEntryIds = new Long[soupElts.length()];
+		for (int i = 0; i < soupEntryIds.length; i++) {
+			// Reversed to check results still come back in soup entry id order
+			soupEntryIds[i] = idOf(soupElts.getJSONObject(soupEntryIds.length - 1 - i));
+		}
+
+		JSONArray result = store.retrieve(TEST_SOUP, soupEntryIds);
+		assertEquals("Wrong number of soup elements", 2500, result.length());
+		for (int i = 0; i < result.length(); i++) {
+			assertEquals("Wrong soup element", "k" + i, result.getJSONObject(i).getString("key"));
+		}
+		assertEquals("Wrong number of soup elements", 2500, store.retrieve(TEST_SOUP, new String[] {"key"}, soupEntryIds).length());
+
+		store.delete(TEST_SOUP, Arrays.copyOfRange(soupEntryIds, 0, 2300));
+		assertEquals("Wrong number of soup elements left", 200, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
 	/**
 	 * Testing clear soup: create soup elements, clear soup and check database directly that there are in fact gone
 	 * @throws JSONException 
@@ -684,7 +1205,304 @@ public abstract class AbstractSmartStoreTest extends SmartStoreTestCase {
 		JSONTestHelper.assertSameJSON("Wrong result for query", soupElt1Created, result.getJSONObject(1));
 		JSONTestHelper.assertSameJSON("Wrong result for query", soupElt3Created, result.getJSONObject(2));
 	}
-	
+
+	/**
+	 * Test keyset pagination (with ascending or descending ordering, duplicate and null values) against page index pagination
+	 * @throws JSONException
+	 */
+	public void testKeysetPagination() throws JSONException {
+		String[] keys = new String[] {"kb", null, "ka", "kc", "kb", null, "ka", "kb", "kd", null, "kb"};
+		for (String key : keys) {
+			JSONObject soupElt = new JSONObject();
+			soupElt.put("key", key); // no key when null
+			store.create(TEST_SOUP, soupElt);
+		}
+
+		for (Order order : Order.values()) {
+			for (int pageSize = 1; pageSize <= keys.length + 1; pageSize++) {
+				QuerySpec querySpec = QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", order, pageSize);
+				JSONArray expected = store.query(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", order, keys.length), 0);
+				int pageIndex = 0;
+				int i = 0;
+				QuerySpec.PageKey afterKey = null;
+				do {
+					JSONArray page = store.query(querySpec, afterKey);
+					JSONTestHelper.assertSameJSONArray("Wrong page " + pageIndex + " for " + order + " and page size " + pageSize, store.query(querySpec, pageIndex), page);
+					for (int j = 0; j < page.length(); j++) {
+						JSONTestHelper.assertSameJSON("Wrong element " + i + " for " + order + " and page size " + pageSize, expected.getJSONObject(i++), page.getJSONObject(j));
+					}
+					afterKey = store.getNextPageKey(querySpec, page);
+					pageIndex++;
+				} while (afterKey != null);
+				assertEquals("Wrong number of elements for " + order + " and page size " + pageSize, keys.length, i);
+			}
+		}
+
+		// Range query
+		QuerySpec querySpec = QuerySpec.buildRangeQuerySpec(TEST_SOUP, "key", "kb", "kc", Order.ascending, 2);
+		JSONArray page = store.query(querySpec, (QuerySpec.PageKey) null);
+		assertEquals("Two results expected", 2, page.length());
+		page = store.query(querySpec, store.getNextPageKey(querySpec, page));
+		assertEquals("Two results expected", 2, page.length());
+		page = store.query(querySpec, store.getNextPageKey(querySpec, page));
+		assertEquals("One result expected", 1, page.length());
+		assertEquals("Wrong result for query", "kc", page.getJSONObject(0).getString("key"));
+		assertNull("No more pages expected", store.getNextPageKey(querySpec, page));
+	}
+
+	/**
+	 * Test that keyset pagination seeks through the index of the path (ascending or descending ordering, page key with or without value)
+	 * @throws JSONException
+	 */
+	public void testKeysetPaginationUsesIndex() throws JSONException {
+		String indexName = getSoupTableName(TEST_SOUP) + "_0_idx";
+		final SQLiteDatabase db = dbOpenHelper.getWritableDatabase(getPasscode());
+		for (Order order : Order.values()) {
+			QuerySpec querySpec = QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", order, 10);
+			for (QuerySpec.PageKey afterKey : new QuerySpec.PageKey[] {new QuerySpec.PageKey("kb", 5), new QuerySpec.PageKey(null, 5)}) {
+				String[] sqls = new String[] {querySpec.computeKeysetSmartSql(afterKey), querySpec.computeKeysetFollowingSmartSql(afterKey)};
+				String[][] argss = new String[][] {querySpec.getKeysetArgs(afterKey), querySpec.getArgs()};
+				for (int i = 0; i < sqls.length; i++) {
+					if (sqls[i] == null) {
+						continue;
+					}
+					Cursor c = null;
+					try {
+						c = db.rawQuery("EXPLAIN QUERY PLAN " + store.convertSmartSql(sqls[i]), argss[i]);
+						StringBuilder plan = new StringBuilder();
+						while (c.moveToNext()) {
+							plan.append(c.getString(c.getColumnCount() - 1)).append("\n");
+						}
+						assertTrue("Index should have been used for " + sqls[i] + ": " + plan, plan.toString().contains("INDEX " + indexName));
+					}
+					finally {
+						safeClose(c);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test queryAsStrings against query (soup, smart and select paths queries, page index and keyset pagination)
+	 * @throws JSONException
+	 */
+	public void testQueryAsStrings() throws JSONException {
+		for (int i = 0; i < 7; i++) {
+			store.create(TEST_SOUP, new JSONObject("{'key':'k" + i + "', 'value':{'count':" + i + ", 'label':'v\\\"" + i + "'}}"));
+		}
+
+		QuerySpec[] querySpecs = new QuerySpec[] {
+				QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.descending, 3),
+				QuerySpec.buildAllQuerySpec(TEST_SOUP, new String[] {"key", "value.count"}, "key", Order.ascending, 3),
+				QuerySpec.buildSmartQuerySpec("select {test_soup:key}, {test_soup:_soup}, 1.5, null from {test_soup} order by {test_soup:key}", 3),
+				QuerySpec.buildSmartQuerySpec("select {test_soup:key}, {test_soup:_soup}, 1.5, null from {test_soup} order by {test_soup:key}", 3, true)
+		};
+		for (QuerySpec querySpec : querySpecs) {
+			for (int pageIndex = 0; pageIndex < 4; pageIndex++) {
+				assertSameStrings("Wrong page " + pageIndex + " for " + querySpec.smartSql, store.query(querySpec, pageIndex), store.queryAsStrings(querySpec, pageIndex));
+			}
+		}
+
+		// Keyset pagination
+		QuerySpec querySpec = querySpecs[0];
+		QuerySpec.PageKey afterKey = null;
+		int pageIndex = 0;
+		do {
+			List<String> page = store.queryAsStrings(querySpec, afterKey);
+			assertSameStrings("Wrong page " + pageIndex, store.query(querySpec, pageIndex), page);
+			afterKey = store.getNextPageKeyFromStrings(querySpec, page);
+			pageIndex++;
+		} while (afterKey != null);
+		assertEquals("Wrong number of pages", 3, pageIndex);
+	}
+
+	/**
+	 * Test smart query selecting a blob column: it should come back base64 encoded from query and queryAsStrings
+	 * @throws JSONException
+	 */
+	public void testSmartQueryWithBlobColumn() throws JSONException {
+		store.create(TEST_SOUP, new JSONObject("{'key':'k1'}"));
+		QuerySpec querySpec = QuerySpec.buildSmartQuerySpec("select {test_soup:key}, cast('abc' as blob) from {test_soup}", 1);
+		JSONArray expected = new JSONArray("[['k1', 'YWJj']]");
+		JSONTestHelper.assertSameJSON("Wrong result", expected, store.query(querySpec, 0));
+		assertSameStrings("Wrong result", expected, store.queryAsStrings(querySpec, 0));
+	}
+
+	private void assertSameStrings(String message, JSONArray expected, List<String> actual) throws JSONException {
+		assertEquals(message + ": wrong number of results", expected.length(), actual.size());
+		for (int i = 0; i < actual.size(); i++) {
+			JSONTestHelper.assertSameJSON(message + ": wrong result " + i, expected.get(i), new JSONTokener(actual.get(i)).nextValue());
+		}
+	}
+
+	/**
+	 * Test full-text search: match queries on one or all full_text indexed paths, ranking and maintenance of the full-text table on update/delete/clear/alter
+	 * @throws JSONException
+	 */
+	public void testFullTextSearch() throws JSONException {
+		store.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.string), new IndexSpec("name", Type.full_text), new IndexSpec("notes", Type.full_text)});
+		String soupTableName = getSoupTableName(OTHER_TEST_SOUP);
+		assertTrue("Full-text table should exist", hasTable(soupTableName + "_fts"));
+
+		JSONObject soupElt1Created = store.create(OTHER_TEST_SOUP, new JSONObject("{'key':'k1', 'name':'John Smith', 'notes':'Met at conference'}"));
+		JSONObject soupElt2Created = store.create(OTHER_TEST_SOUP, new JSONObject("{'key':'k2', 'name':'Jane Doe', 'notes':'Referred by John Smith, call Smith back'}"));
+		JSONObject soupElt3Created = store.create(OTHER_TEST_SOUP, new JSONObject("{'key':'k3', 'name':'Smithers', 'notes':'No notes'}"));
+
+		// Match on one path
+		JSONArray result = store.query(QuerySpec.buildMatchQuerySpec(OTHER_TEST_SOUP, "name", "smith", "key", Order.ascending, 10), 0);
+		assertEquals("One result expected", 1, result.length());
+		JSONTestHelper.assertSameJSON("Wrong result for query", soupElt1Created, result.getJSONObject(0));
+
+		// Prefix match on one path
+		QuerySpec querySpec = QuerySpec.buildMatchQuerySpec(OTHER_TEST_SOUP, "name", "smi*", "key", Order.descending, 10);
+		result = store.query(querySpec, 0);
+		assertEquals("Two results expected", 2, result.length());
+		assertEquals("Two results expected", 2, store.countQuery(querySpec));
+		JSONTestHelper.assertSameJSON("Wrong result for query", soupElt3Created, result.getJSONObject(0));
+		JSONTestHelper.assertSameJSON("Wrong result for query", soupElt1Created, result.getJSONObject(1));
+
+		// Match on all paths ranked by relevance
+		result = store.query(QuerySpec.buildMatchQuerySpec(OTHER_TEST_SOUP, null, "smith", null, null, 10), 0);
+		assertEquals("Two results expected", 2, result.length());
+		JSONTestHelper.assertSameJSON("Wrong result for query", soupElt2Created, result.getJSONObject(0));
+		JSONTestHelper.assertSameJSON("Wrong result for query", soupElt1Created, result.getJSONObject(1));
+
+		// Update / delete
+		soupElt3Created.put("name", "Will Smith");
+		store.update(OTHER_TEST_SOUP, soupElt3Created, idOf(soupElt3Created));
+		store.delete(OTHER_TEST_SOUP, idOf(soupElt1Created));
+		result = store.query(QuerySpec.buildMatchQuerySpec(OTHER_TEST_SOUP, "name", "smith", "key", Order.ascending, 10), 0);
+		assertEquals("One result expected", 1, result.length());
+		assertEquals("Wrong result for query", idOf(soupElt3Created), idOf(result.getJSONObject(0)));
+
+		// Alter soup: notes no longer full-text indexed, key now full-text indexed
+		store.alterSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.full_text), new IndexSpec("name", Type.full_text)}, true);
+		assertEquals("No result expected", 0, store.countQuery(QuerySpec.buildMatchQuerySpec(OTHER_TEST_SOUP, null, "conference", null, null, 10)));
+		assertEquals("One result expected", 1, store.countQuery(QuerySpec.buildMatchQuerySpec(OTHER_TEST_SOUP, "key", "k2", null, null, 10)));
+		assertEquals("One result expected", 1, store.countQuery(QuerySpec.buildMatchQuerySpec(OTHER_TEST_SOUP, "name", "smith", null, null, 10)));
+
+		// Clear soup
+		store.clearSoup(OTHER_TEST_SOUP);
+		assertEquals("No result expected", 0, store.countQuery(QuerySpec.buildMatchQuerySpec(OTHER_TEST_SOUP, null, "jane", null, null, 10)));
+
+		// Drop soup
+		store.dropSoup(OTHER_TEST_SOUP);
+		assertFalse("Full-text table should no longer exist", hasTable(soupTableName + "_fts"));
+	}
+
+	/**
+	 * Test queries and retrieve with select paths (indexed, not indexed, nested, missing)
+	 * @throws JSONException
+	 */
+	public void testQueryWithSelectPaths() throws JSONException {
+		JSONObject soupElt1Created = store.create(TEST_SOUP, new JSONObject("{'key':'ka', 'value':'va1', 'address':{'city':'SF', 'zip':94105}, 'tags':['t1','t2']}"));
+		JSONObject soupElt2Created = store.create(TEST_SOUP, new JSONObject("{'key':'kb', 'value':'va2', 'address':{'city':'NY'}, 'big':{'nested':{'stuff':[1,2,3]}}}"));
+		String[] selectPaths = new String[] {"key", SmartStore.SOUP_ENTRY_ID, "address.city", "value", "address.zip", "tags", "missing.path"};
+
+		QuerySpec querySpec = QuerySpec.buildAllQuerySpec(TEST_SOUP, selectPaths, "key", Order.descending, 10);
+		assertFalse("Keyset pagination not expected", querySpec.supportsKeysetPagination());
+		JSONArray result = store.query(querySpec, 0);
+		assertEquals("Two results expected", 2, result.length());
+		JSONTestHelper.assertSameJSON("Wrong result for query", new JSONArray("['kb'," + idOf(soupElt2Created) + ",'NY','va2',null,null,null]"), result.getJSONArray(0));
+		JSONTestHelper.assertSameJSON("Wrong result for query", new JSONArray("['ka'," + idOf(soupElt1Created) + ",'SF','va1',94105,['t1','t2'],null]"), result.getJSONArray(1));
+
+		// Only indexed paths
+		result = store.query(QuerySpec.buildExactQuerySpec(TEST_SOUP, new String[] {SmartStore.SOUP_ENTRY_ID, "key"}, "key", "ka", 10), 0);
+		assertEquals("One result expected", 1, result.length());
+		JSONTestHelper.assertSameJSON("Wrong result for query", new JSONArray("[" + idOf(soupElt1Created) + ",'ka']"), result.getJSONArray(0));
+
+		// Retrieve
+		result = store.retrieve(TEST_SOUP, new String[] {"address", "key"}, idOf(soupElt2Created));
+		assertEquals("One result expected", 1, result.length());
+		JSONTestHelper.assertSameJSON("Wrong result for retrieve", new JSONArray("[{'city':'NY'},'kb']"), result.getJSONArray(0));
+	}
+
+	/**
+	 * Test streamQuery for all / smart / select paths queries, with and without early termination
+	 * @throws JSONException
+	 */
+	public void testStreamQuery() throws JSONException {
+		for (int i = 0; i < 25; i++) {
+			store.create(TEST_SOUP, new JSONObject("{'key':'k" + (char) ('a' + i) + "', 'value':'v" + i + "'}"));
+		}
+
+		// All rows streamed (page size ignored)
+		QuerySpec querySpec = QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10);
+		final JSONArray streamed = new JSONArray();
+		int count = store.streamQuery(querySpec, new RowCallback() {
+			@Override
+			public boolean onRow(Object row) {
+				streamed.put(row);
+				return true;
+			}
+		});
+		assertEquals("Wrong count", 25, count);
+		JSONArray expected = store.query(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 25), 0);
+		JSONTestHelper.assertSameJSON("Wrong results", expected, streamed);
+
+		// Early termination
+		final List<Object> firstTwo = new ArrayList<Object>();
+		count = store.streamQuery(querySpec, new RowCallback() {
+			@Override
+			public boolean onRow(Object row) {
+				firstTwo.add(row);
+				return firstTwo.size() < 2;
+			}
+		});
+		assertEquals("Wrong count", 2, count);
+		JSONTestHelper.assertSameJSON("Wrong results", new JSONArray(Arrays.asList(expected.get(0), expected.get(1))), new JSONArray(firstTwo));
+
+		// Smart query
+		final JSONArray smartStreamed = new JSONArray();
+		store.streamQuery(QuerySpec.buildSmartQuerySpec("select {test_soup:key}, {test_soup:_soup} from {test_soup} where {test_soup:key} > 'kw' order by {test_soup:key}", 1), new RowCallback() {
+			@Override
+			public boolean onRow(Object row) {
+				smartStreamed.put(row);
+				return true;
+			}
+		});
+		assertEquals("Wrong number of results", 2, smartStreamed.length());
+		assertEquals("Wrong key", "kx", smartStreamed.getJSONArray(0).getString(0));
+		JSONTestHelper.assertSameJSON("Wrong soup element", expected.getJSONObject(23), smartStreamed.getJSONArray(0).getJSONObject(1));
+
+		// Select paths
+		final JSONArray selectStreamed = new JSONArray();
+		store.streamQuery(QuerySpec.buildExactQuerySpec(TEST_SOUP, new String[] {"value"}, "key", "kc", 10), new RowCallback() {
+			@Override
+			public boolean onRow(Object row) {
+				selectStreamed.put(row);
+				return true;
+			}
+		});
+		JSONTestHelper.assertSameJSON("Wrong results", new JSONArray("[['v2']]"), selectStreamed);
+	}
+
+	/**
+	 * Test streamQuery with a callback writing to the store: it should fail instead of waiting forever for the write lock
+	 * @throws JSONException
+	 */
+	public void testStreamQueryCallbackWriting() throws JSONException {
+		store.create(TEST_SOUP, new JSONObject("{'key':'ka'}"));
+		try {
+			store.streamQuery(QuerySpec.buildSmartQuerySpec("select {test_soup:key} from {test_soup}"), new RowCallback() {
+				@Override
+				public boolean onRow(Object row) throws JSONException {
+					store.create(TEST_SOUP, new JSONObject("{'key':'kb'}"));
+					return true;
+				}
+			});
+			fail("Writing from the callback should have failed");
+		}
+		catch (SmartStoreException e) {
+			assertTrue("Wrong exception", e.getMessage().contains("while reading"));
+		}
+
+		// Read lock should have been released
+		store.create(TEST_SOUP, new JSONObject("{'key':'kc'}"));
+		assertEquals("Wrong count", 2, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
 	/**
 	 * Test upsert soup element with null value in indexed field
 	 * @throws JSONException 
@@ -902,7 +1720,204 @@ public abstract class AbstractSmartStoreTest extends SmartStoreTestCase {
 
 		checkIndexSpecs(indexSpecs);
 	}
-	
+
+	/**
+	 * Test loading of all soups' metadata in one pass (done when database is opened)
+	 * @throws JSONException
+	 */
+	public void testLoadSoupMetadata() throws JSONException {
+		IndexSpec[] indexSpecs = new IndexSpec[] {new IndexSpec("lastName", Type.string), new IndexSpec("age", Type.integer)};
+		store.registerSoup(OTHER_TEST_SOUP, indexSpecs);
+
+		final SQLiteDatabase db = dbOpenHelper.getWritableDatabase(getPasscode());
+		DBHelper dbHelper = DBHelper.getInstance(db);
+		dbHelper.clearMemoryCache();
+		assertNull("Metadata should not be cached", dbHelper.getCachedTableName(OTHER_TEST_SOUP));
+		assertNull("Metadata should not be cached", dbHelper.getCachedIndexSpecs(OTHER_TEST_SOUP));
+
+		dbHelper.loadSoupMetadata(db);
+		assertEquals("Wrong table name", "TABLE_1", dbHelper.getCachedTableName(TEST_SOUP));
+		assertEquals("Wrong table name", getSoupTableName(OTHER_TEST_SOUP), dbHelper.getCachedTableName(OTHER_TEST_SOUP));
+		IndexSpec[] cachedIndexSpecs = dbHelper.getCachedIndexSpecs(OTHER_TEST_SOUP);
+		assertEquals("Wrong number of index specs", 2, cachedIndexSpecs.length);
+		for (int i = 0; i < indexSpecs.length; i++) {
+			assertEquals("Wrong path", indexSpecs[i].path, cachedIndexSpecs[i].path);
+			assertEquals("Wrong type", indexSpecs[i].type, cachedIndexSpecs[i].type);
+		}
+		assertNull("Metadata should not exist for unknown soup", dbHelper.getCachedTableName("unknown_soup"));
+	}
+
+	/**
+	 * Test that dropping a soup only evicts the cached sql referencing its own tables (TABLE_1 should not evict sql using TABLE_10)
+	 * @throws JSONException
+	 */
+	public void testRemoveFromCacheMatchesWholeTableNames() throws JSONException {
+		final SQLiteDatabase db = dbOpenHelper.getWritableDatabase(getPasscode());
+		DBHelper dbHelper = DBHelper.getInstance(db);
+		assertEquals("Wrong table name", "TABLE_1", getSoupTableName(TEST_SOUP));
+		dbHelper.cacheSql("smart sql 1", "SELECT TABLE_1.soup FROM TABLE_1");
+		dbHelper.cacheSql("smart sql 1 fts", "SELECT TABLE_1.soup FROM TABLE_1_fts");
+		dbHelper.cacheSql("smart sql 10", "SELECT TABLE_10.soup FROM TABLE_10");
+		dbHelper.cacheSql("smart sql 11", "SELECT TABLE_11_0 FROM TABLE_11");
+
+		store.dropSoup(TEST_SOUP);
+		assertNull("Sql referencing dropped soup's table should have been evicted", dbHelper.getCachedSql("smart sql 1"));
+		assertNull("Sql referencing dropped soup's full-text table should have been evicted", dbHelper.getCachedSql("smart sql 1 fts"));
+		assertEquals("Sql referencing another table should have been kept", "SELECT TABLE_10.soup FROM TABLE_10", dbHelper.getCachedSql("smart sql 10"));
+		assertEquals("Sql referencing another table should have been kept", "SELECT TABLE_11_0 FROM TABLE_11", dbHelper.getCachedSql("smart sql 11"));
+	}
+
+	/**
+	 * Test for compound index: created on register, used (as a covering index) by queries filtering on its first path and ordering by the next one,
+	 * kept by alterSoup as long as its paths are indexed, dropped otherwise
+	 * @throws JSONException
+	 */
+	public void testCompoundIndex() throws JSONException {
+		IndexSpec[] indexSpecs = new IndexSpec[] {new IndexSpec("ownerId", Type.string), new IndexSpec("lastModifiedDate", Type.string), new IndexSpec("name", Type.string)};
+		CompoundIndexSpec compoundIndexSpec = new CompoundIndexSpec(new String[] {"ownerId", "lastModifiedDate"}, new String[] {"name"});
+		store.registerSoup(OTHER_TEST_SOUP, indexSpecs, new CompoundIndexSpec[] {compoundIndexSpec});
+		String soupTableName = getSoupTableName(OTHER_TEST_SOUP);
+		String indexName = soupTableName + "_c0_idx";
+
+		// Check meta data and db index
+		CompoundIndexSpec[] compoundIndexSpecs = store.getSoupCompoundIndexSpecs(OTHER_TEST_SOUP);
+		assertEquals("Wrong number of compound index specs", 1, compoundIndexSpecs.length);
+		assertEquals("Wrong compound index spec", compoundIndexSpec, compoundIndexSpecs[0]);
+		String indexSql = getIndexSql(indexName);
+		assertNotNull("Compound index should exist", indexSql);
+		assertTrue("Wrong columns for compound index", indexSql.contains(soupTableName + "_0, " + soupTableName + "_1, " + soupTableName + "_2"));
+
+		// Check query plan
+		final SQLiteDatabase db = dbOpenHelper.getWritableDatabase(getPasscode());
+		Cursor c = null;
+		try {
+			c = db.rawQuery(String.format("EXPLAIN QUERY PLAN SELECT %s_2 FROM %s WHERE %s_0 = ? ORDER BY %s_1", soupTableName, soupTableName, soupTableName, soupTableName), new String[] {"o1"});
+			StringBuilder plan = new StringBuilder();
+			while (c.moveToNext()) {
+				plan.append(c.getString(c.getColumnCount() - 1)).append("\n");
+			}
+			assertTrue("Compound index should have been used as a covering index: " + plan, plan.toString().contains("COVERING INDEX " + indexName));
+			assertFalse("No sort should be needed: " + plan, plan.toString().contains("TEMP B-TREE"));
+		}
+		finally {
+			safeClose(c);
+		}
+
+		// Check query results
+		store.create(OTHER_TEST_SOUP, new JSONObject("{'ownerId':'o1', 'lastModifiedDate':'2015-03', 'name':'n3'}"));
+		store.create(OTHER_TEST_SOUP, new JSONObject("{'ownerId':'o2', 'lastModifiedDate':'2015-02', 'name':'n2'}"));
+		store.create(OTHER_TEST_SOUP, new JSONObject("{'ownerId':'o1', 'lastModifiedDate':'2015-01', 'name':'n1'}"));
+		JSONArray result = store.query(QuerySpec.buildSmartQuerySpec("select {other_test_soup:name} from {other_test_soup} where {other_test_soup:ownerId} = 'o1' order by {other_test_soup:lastModifiedDate}", 10), 0);
+		JSONTestHelper.assertSameJSON("Wrong result", new JSONArray("[['n1'], ['n3']]"), result);
+
+		// Alter soup keeping all the paths of the compound index
+		store.alterSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("name", Type.string), new IndexSpec("ownerId", Type.string), new IndexSpec("lastModifiedDate", Type.string)}, true);
+		assertEquals("Compound index spec should have been kept", compoundIndexSpec, store.getSoupCompoundIndexSpecs(OTHER_TEST_SOUP)[0]);
+		indexSql = getIndexSql(indexName);
+		assertNotNull("Compound index should exist", indexSql);
+		assertTrue("Wrong columns for compound index", indexSql.contains(soupTableName + "_1, " + soupTableName + "_2, " + soupTableName + "_0"));
+		result = store.query(QuerySpec.buildSmartQuerySpec("select {other_test_soup:name} from {other_test_soup} where {other_test_soup:ownerId} = 'o1' order by {other_test_soup:lastModifiedDate}", 10), 0);
+		JSONTestHelper.assertSameJSON("Wrong result", new JSONArray("[['n1'], ['n3']]"), result);
+
+		// Alter soup dropping a path of the compound index
+		store.alterSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("ownerId", Type.string), new IndexSpec("lastModifiedDate", Type.string)}, true);
+		assertEquals("Compound index spec should have been dropped", 0, store.getSoupCompoundIndexSpecs(OTHER_TEST_SOUP).length);
+		assertNull("Compound index should no longer exist", getIndexSql(indexName));
+
+		// Compound index on path that is not indexed
+		try {
+			store.registerSoup(THIRD_TEST_SOUP, indexSpecs, new CompoundIndexSpec[] {new CompoundIndexSpec("ownerId", "city")});
+			fail("Registering soup should have failed");
+		}
+		catch (SmartStoreException e) {
+			assertTrue("Wrong exception", e.getMessage().contains("city"));
+		}
+		assertFalse("Soup third_test_soup should not exist", store.hasSoup(THIRD_TEST_SOUP));
+	}
+
+	/**
+	 * Test for soups using the binary soup formats (and for migrating a json soup to binary with alterSoup)
+	 * @throws JSONException
+	 */
+	public void testBinarySoupFormat() throws JSONException {
+		IndexSpec[] indexSpecs = new IndexSpec[] {new IndexSpec("key", Type.string)};
+		store.registerSoup(THIRD_TEST_SOUP, indexSpecs, new CompoundIndexSpec[0], SoupFormat.compressed_binary);
+		assertEquals("Wrong soup format", SoupFormat.compressed_binary, store.getSoupFormat(THIRD_TEST_SOUP));
+		assertEquals("Wrong soup format", SoupFormat.json, store.getSoupFormat(TEST_SOUP));
+
+		// Create / update / upsert
+		JSONObject soupElt1Created = store.create(THIRD_TEST_SOUP, new JSONObject("{'key':'ka', 'value':'va1', 'address':{'city':'SF', 'zip':94105}}"));
+		JSONObject soupElt2 = new JSONObject("{'key':'kb', 'value':'va2'}");
+		soupElt2.put("long", 1234567890123L);
+		soupElt2.put("text", new String(new char[2000]).replace('\0', 'x'));
+		JSONObject soupElt2Created = store.create(THIRD_TEST_SOUP, soupElt2);
+		soupElt1Created.put("value", "va1u");
+		JSONObject soupElt1Updated = store.update(THIRD_TEST_SOUP, soupElt1Created, idOf(soupElt1Created));
+		JSONObject soupElt3Created = store.upsert(THIRD_TEST_SOUP, new JSONObject("{'key':'kc', 'value':'va3'}"));
+		assertStoredAs("blob", THIRD_TEST_SOUP);
+
+		// Retrieve / query
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", soupElt1Updated, store.retrieve(THIRD_TEST_SOUP, idOf(soupElt1Created)).getJSONObject(0));
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", soupElt2Created, store.retrieve(THIRD_TEST_SOUP, idOf(soupElt2Created)).getJSONObject(0));
+		JSONArray result = store.query(QuerySpec.buildAllQuerySpec(THIRD_TEST_SOUP, "key", Order.ascending, 10), 0);
+		JSONTestHelper.assertSameJSON("Wrong result for query", new JSONArray(Arrays.asList(soupElt1Updated, soupElt2Created, soupElt3Created)), result);
+		result = store.query(QuerySpec.buildSmartQuerySpec("select {third_test_soup:_soup}, {third_test_soup:value} from {third_test_soup} where {third_test_soup:key} = 'kc'", 10), 0);
+		JSONTestHelper.assertSameJSON("Wrong result for smart query", new JSONArray(Arrays.asList(new JSONArray(Arrays.asList(soupElt3Created, "va3")))), result);
+		result = store.query(QuerySpec.buildExactQuerySpec(THIRD_TEST_SOUP, new String[] {"address.city", "value"}, "key", "ka", 10), 0);
+		JSONTestHelper.assertSameJSON("Wrong result for query with select paths", new JSONArray("[['SF','va1u']]"), result);
+
+		// Migrating json soup to binary
+		store.registerSoup(OTHER_TEST_SOUP, indexSpecs);
+		JSONObject otherSoupEltCreated = store.create(OTHER_TEST_SOUP, new JSONObject("{'key':'ka', 'value':'va1', 'address':{'city':'SF'}}"));
+		assertStoredAs("text", OTHER_TEST_SOUP);
+		store.alterSoup(OTHER_TEST_SOUP, indexSpecs, null, SoupFormat.binary, false);
+		assertEquals("Wrong soup format", SoupFormat.binary, store.getSoupFormat(OTHER_TEST_SOUP));
+		assertStoredAs("blob", OTHER_TEST_SOUP);
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", otherSoupEltCreated, store.retrieve(OTHER_TEST_SOUP, idOf(otherSoupEltCreated)).getJSONObject(0));
+		assertRowCount(1, "key", "ka");
+
+		// Back to json
+		store.alterSoup(OTHER_TEST_SOUP, indexSpecs, null, SoupFormat.json, false);
+		assertEquals("Wrong soup format", SoupFormat.json, store.getSoupFormat(OTHER_TEST_SOUP));
+		assertStoredAs("text", OTHER_TEST_SOUP);
+		JSONTestHelper.assertSameJSON("Retrieve mismatch", otherSoupEltCreated, store.retrieve(OTHER_TEST_SOUP, idOf(otherSoupEltCreated)).getJSONObject(0));
+	}
+
+	/**
+	 * Check the storage class of all the soup elements of a soup
+	 * @param storageClass
+	 * @param soupName
+	 */
+	private void assertStoredAs(String storageClass, String soupName) {
+		Cursor c = null;
+		final SQLiteDatabase db = dbOpenHelper.getWritableDatabase(getPasscode());
+		try {
+			c = db.rawQuery("SELECT DISTINCT typeof(soup) FROM " + getSoupTableName(soupName), null);
+			assertTrue("Soup should not be empty", c.moveToFirst());
+			assertEquals("Wrong storage class for soup elements", storageClass, c.getString(0));
+			assertFalse("All soup elements should have the same storage class", c.moveToNext());
+		}
+		finally {
+			safeClose(c);
+		}
+	}
+
+	/**
+	 * @param indexName
+	 * @return sql of db index (null if there is no such index)
+	 */
+	private String getIndexSql(String indexName) {
+		Cursor c = null;
+		final SQLiteDatabase db = dbOpenHelper.getWritableDatabase(getPasscode());
+		try {
+			c = DBHelper.getInstance(db).query(db, "sqlite_master", new String[] {"sql"}, null, null, "type = ? and name = ?", "index", indexName);
+			return c.moveToFirst() ? c.getString(0) : null;
+		}
+		finally {
+			safeClose(c);
+		}
+	}
+
 	/**
 	 * Test for alterSoup with reIndexData = false
 	 * 
@@ -1091,6 +2106,118 @@ public abstract class AbstractSmartStoreTest extends SmartStoreTestCase {
 		assertRowCount(1, "address.street", "1 market");
 	}
 	
+	/**
+	 * Test alterSoup re-indexing in chunks: progress reported after every chunk, lock released in between chunks,
+	 * re-indexing resumed after the last chunk completed when interrupted
+	 * @throws Exception
+	 */
+	public void testAlterSoupReIndexInChunks() throws Exception {
+		store.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("lastName", Type.string)});
+		String soupTableName = getSoupTableName(OTHER_TEST_SOUP);
+		long[] ids = new long[25];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = idOf(store.create(OTHER_TEST_SOUP, new JSONObject("{'lastName':'Doe" + i + "', 'address':{'city':'city" + (i % 5) + "'}}")));
+		}
+
+		// Alter soup with re-indexing - interrupted after the second chunk
+		final QuerySpec querySpec = QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10);
+		final List<String> progress = new ArrayList<String>();
+		store.setReIndexChunkSize(10);
+		store.setReIndexCallback(new ReIndexCallback() {
+			@Override
+			public void onProgress(String soupName, int reIndexed, int total) {
+				progress.add(reIndexed + "/" + total);
+
+				// Lock is not held: other threads can read
+				Thread reader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						store.countQuery(querySpec);
+					}
+				});
+				reader.start();
+				try {
+					reader.join(5000);
+				} catch (InterruptedException e) {
+					// Checked below
+				}
+				assertFalse("Reader should not have been blocked", reader.isAlive());
+
+				if (reIndexed == 20) {
+					throw new RuntimeException("Interrupted");
+				}
+			}
+		});
+		IndexSpec[] indexSpecsNew = new IndexSpec[] {new IndexSpec("lastName", Type.string), new IndexSpec("address.city", Type.string)};
+		try {
+			store.alterSoup(OTHER_TEST_SOUP, indexSpecsNew, true);
+			fail("Alter soup should have been interrupted");
+		}
+		catch (RuntimeException e) {
+			assertEquals("Wrong exception", "Interrupted", e.getMessage());
+		}
+		assertEquals("Wrong progress", Arrays.asList("10/25", "20/25"), progress);
+		assertRowCount(4, "address.city", "city0");
+
+		// Check checkpoint
+		LongOperation[] operations = store.getLongOperations();
+		assertEquals("Wrong number of long operations found", 1, operations.length);
+		assertEquals("Wrong step", AlterSoupStep.COPY_TABLE, ((AlterSoupLongOperation) operations[0]).getLastStepCompleted());
+		assertEquals("Wrong last re-indexed id", ids[19], operations[0].getDetails().getLong("lastReIndexedId"));
+
+		// Soup can't be altered again while the alter is not done
+		try {
+			store.alterSoup(OTHER_TEST_SOUP, indexSpecsNew, true);
+			fail("Alter soup should have failed");
+		}
+		catch (SmartStoreException e) {
+			// as expected
+		}
+
+		// Resume - only last chunk should be re-indexed
+		progress.clear();
+		store.resumeLongOperations();
+		assertEquals("Wrong progress", Arrays.asList("25/25"), progress);
+		assertRowCount(5, "address.city", "city0");
+		assertEquals("Wrong number of long operations found", 0, store.getLongOperations().length);
+		assertFalse("Old table should have been dropped", hasTable(soupTableName + "_old"));
+	}
+
+	/**
+	 * Test queries run in between chunks of alterSoup re-indexing: soup elements not re-indexed yet have a NULL value for the new index
+	 * @throws Exception
+	 */
+	public void testQueryDuringAlterSoupReIndexInChunks() throws Exception {
+		store.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("lastName", Type.string)});
+		for (int i = 0; i < 25; i++) {
+			store.create(OTHER_TEST_SOUP, new JSONObject("{'lastName':'Doe" + i + "', 'address':{'city':'city" + (i % 5) + "'}}"));
+		}
+
+		// Alter soup with re-indexing - querying new index after every chunk
+		final List<String> counts = new ArrayList<String>();
+		store.setReIndexChunkSize(10);
+		store.setReIndexCallback(new ReIndexCallback() {
+			@Override
+			public void onProgress(String soupName, int reIndexed, int total) {
+				try {
+					String countNullSql = "SELECT count(*) FROM {" + OTHER_TEST_SOUP + "} WHERE {" + OTHER_TEST_SOUP + ":address.city} IS NULL";
+					int countNull = store.query(QuerySpec.buildSmartQuerySpec(countNullSql, 1), 0).getJSONArray(0).getInt(0);
+					String countCity0Sql = "SELECT count(*) FROM {" + OTHER_TEST_SOUP + "} WHERE {" + OTHER_TEST_SOUP + ":address.city} = 'city0'";
+					int countCity0 = store.query(QuerySpec.buildSmartQuerySpec(countCity0Sql, 1), 0).getJSONArray(0).getInt(0);
+					counts.add(countNull + "/" + countCity0);
+				} catch (JSONException e) {
+					counts.add(e.getMessage());
+				}
+			}
+		});
+		store.alterSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("lastName", Type.string), new IndexSpec("address.city", Type.string)}, true);
+		store.setReIndexCallback(null);
+
+		// Elements not re-indexed yet were not found by queries on the new index in between chunks
+		assertEquals("Wrong counts during re-indexing", Arrays.asList("15/2", "5/4", "0/5"), counts);
+		assertRowCount(5, "address.city", "city0");
+	}
+
 	/**
 	 * Helper function for testReIndexSoup: count rows where field has value
 	 * @param expectedCount
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.store;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.test.InstrumentationTestCase;
+
+import com.salesforce.androidsdk.smartstore.store.BinaryJson;
+import com.salesforce.androidsdk.util.test.JSONTestHelper;
+
+/**
+ * Test class for BinaryJson
+ *
+ */
+public class BinaryJsonTest extends InstrumentationTestCase {
+
+	private static final String JSON = "{'a':'va', 'b':2, 'c':[0,1.5,'two',null,true,[]], 'd': {'d1':'vdé中', 'd2':null, 'd3':false, 'd4':{'e':-5}}, 'f':1234567890123, 'g':-0.25, 'h':{}}";
+
+	/**
+	 * TEST for encode / decode round trip of all value types
+	 * @throws JSONException
+	 */
+	public void testRoundTrip() throws JSONException {
+		JSONObject json = new JSONObject(JSON);
+		JSONObject decoded = BinaryJson.decode(BinaryJson.encode(json, false));
+		JSONTestHelper.assertSameJSON("Wrong decoded element", json, decoded);
+		assertEquals("Wrong value for b", 2, decoded.get("b"));
+		assertEquals("Wrong value for f", 1234567890123L, decoded.get("f"));
+		assertEquals("Wrong value for g", -0.25, decoded.get("g"));
+		assertEquals("Wrong value for d.d1", "vdé中", decoded.getJSONObject("d").get("d1"));
+		assertSame("Wrong value for d.d2", JSONObject.NULL, decoded.getJSONObject("d").get("d2"));
+		assertEquals("Wrong value for d.d4.e", -5, decoded.getJSONObject("d").getJSONObject("d4").get("e"));
+
+		// Small elements are not compressed
+		assertEquals("Small element should not have been compressed", BinaryJson.encode(json, false).length, BinaryJson.encode(json, true).length);
+	}
+
+	/**
+	 * TEST for encode / decode round trip of a large compressed element
+	 * @throws JSONException
+	 */
+	public void testCompressedRoundTrip() throws JSONException {
+		JSONObject json = new JSONObject();
+		JSONArray records = new JSONArray();
+		for (int i = 0; i < 200; i++) {
+			records.put(new JSONObject("{'Id':'001000000000" + i + "', 'Name':'Account number " + i + "', 'attributes':{'type':'Account'}}"));
+		}
+		json.put("records", records);
+		byte[] plain = BinaryJson.encode(json, false);
+		byte[] compressed = BinaryJson.encode(json, true);
+		assertTrue("Binary element should be smaller than json", plain.length < json.toString().length());
+		assertTrue("Compressed element should be smaller than plain one", compressed.length < plain.length / 2);
+		JSONTestHelper.assertSameJSON("Wrong decoded element", json, BinaryJson.decode(compressed));
+	}
+
+	/**
+	 * TEST for decoding bytes that are not an encoded element
+	 */
+	public void testDecodeBogusBytes() {
+		byte[] encoded = BinaryJson.encode(new JSONObject(), false);
+		tryDecodeBogusBytes(new byte[0]);
+		tryDecodeBogusBytes(new byte[] {42});
+		tryDecodeBogusBytes(new byte[] {encoded[0]});
+		tryDecodeBogusBytes(new byte[] {encoded[0], 6, 3, 'a'});
+		tryDecodeBogusBytes(new byte[] {2, 100, 1, 2, 3});
+	}
+
+	private void tryDecodeBogusBytes(byte[] bytes) {
+		try {
+			BinaryJson.decode(bytes);
+			fail("Decode should have failed");
+		}
+		catch (JSONException e) {
+			// Expected
+		}
+	}
+}
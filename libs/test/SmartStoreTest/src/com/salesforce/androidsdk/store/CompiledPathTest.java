@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.store;
+
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.test.InstrumentationTestCase;
+
+import com.salesforce.androidsdk.smartstore.store.CompiledPath;
+import com.salesforce.androidsdk.smartstore.store.IndexSpec;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
+import com.salesforce.androidsdk.util.test.JSONTestHelper;
+
+/**
+ * Test class for CompiledPath
+ *
+ */
+public class CompiledPathTest extends InstrumentationTestCase {
+
+	private static final String JSON = "{'a':'va', 'b':2, 'c':[0,1,2], 'd': {'d1':'vd1', 'd2':null, 'd4':{'e':5}}}";
+
+	/**
+	 * TEST for project with top level, nested, missing and empty paths
+	 * @throws JSONException
+	 */
+	public void testProject() throws JSONException {
+		JSONObject json = new JSONObject(JSON);
+		assertEquals("Wrong value for a", "va", CompiledPath.compile("a").project(json));
+		assertEquals("Wrong value for b", 2, CompiledPath.compile("b").project(json));
+		JSONTestHelper.assertSameJSON("Wrong value for c", new JSONArray("[0,1,2]"), CompiledPath.compile("c").project(json));
+		assertEquals("Wrong value for d.d1", "vd1", CompiledPath.compile("d.d1").project(json));
+		assertEquals("Wrong value for d.d4.e", 5, CompiledPath.compile("d.d4.e").project(json));
+		assertNull("Should have been null", CompiledPath.compile("d.d3").project(json));
+		assertNull("Should have been null", CompiledPath.compile("a.x").project(json));
+		assertNull("Should have been null", CompiledPath.compile("x.y.z").project(json));
+		assertNull("Should have been null", CompiledPath.compile("a").project(null));
+		assertSame("Should have returned whole object", json, CompiledPath.compile("").project(json));
+		assertSame("Should have returned whole object", json, CompiledPath.compile(null).project(json));
+		assertSame("Compiled path should be cached", CompiledPath.compile("d.d4.e"), CompiledPath.compile("d.d4.e"));
+	}
+
+	/**
+	 * TEST for projecting a group of paths (sharing prefixes, repeated, missing)
+	 * @throws JSONException
+	 */
+	public void testProjectGroup() throws JSONException {
+		JSONObject json = new JSONObject(JSON);
+		CompiledPath.Group group = CompiledPath.Group.compile(Arrays.asList("d.d1", "a", "d.d4.e", "d.d3", "a", "d", "x.y"));
+		Object[] values = group.project(json);
+		assertEquals("Wrong number of values", 7, values.length);
+		assertEquals("Wrong value for d.d1", "vd1", values[0]);
+		assertEquals("Wrong value for a", "va", values[1]);
+		assertEquals("Wrong value for d.d4.e", 5, values[2]);
+		assertNull("Should have been null", values[3]);
+		assertEquals("Wrong value for a", "va", values[4]);
+		assertSame("Wrong value for d", json.get("d"), values[5]);
+		assertNull("Should have been null", values[6]);
+
+		// Same values as projecting the paths one by one
+		IndexSpec[] indexSpecs = new IndexSpec[] {new IndexSpec("d.d1", Type.string), new IndexSpec("b", Type.integer), new IndexSpec("d.d2", Type.string)};
+		values = IndexSpec.projectAll(json, indexSpecs);
+		for (int i = 0; i < indexSpecs.length; i++) {
+			assertEquals("Wrong value for " + indexSpecs[i].path, indexSpecs[i].compiledPath.project(json), values[i]);
+		}
+	}
+}
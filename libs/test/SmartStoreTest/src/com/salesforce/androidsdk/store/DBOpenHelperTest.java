@@ -32,6 +32,7 @@ import java.util.Set;
 
 import net.sqlcipher.database.SQLiteDatabase;
 import android.content.Context;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.test.InstrumentationTestCase;
 
@@ -266,6 +267,46 @@ public class DBOpenHelperTest extends InstrumentationTestCase {
 				DBOpenHelper.smartStoreExists(targetContext, "dbdne", null, null));
 	}
 
+	/**
+	 * Ensures a database created at version 2 gets both the compound index table and the soup format column when upgraded.
+	 */
+	public void testUpgradeFromVersion2() {
+		DBOpenHelper.deleteDatabase(targetContext, "upgradedb", null, null);
+
+		// create a version 2 database
+		SQLiteDatabase.loadLibs(targetContext);
+		File dbFile = targetContext.getDatabasePath("upgradedb.db");
+		dbFile.getParentFile().mkdirs();
+		SQLiteDatabase oldDb = SQLiteDatabase.openOrCreateDatabase(dbFile, "", null);
+		oldDb.execSQL("CREATE TABLE soup_index_map (soupName TEXT, path TEXT, columnName TEXT, columnType TEXT)");
+		oldDb.execSQL("CREATE TABLE soup_names (id INTEGER PRIMARY KEY AUTOINCREMENT, soupName TEXT)");
+		oldDb.execSQL("CREATE TABLE long_operations_status (id INTEGER PRIMARY KEY AUTOINCREMENT, type TEXT, details TEXT, status TEXT, created INTEGER, lastModified INTEGER)");
+		oldDb.execSQL("INSERT INTO soup_names (soupName) VALUES ('oldSoup')");
+		oldDb.setVersion(2);
+		oldDb.close();
+
+		// open it through the helper
+		DBOpenHelper helper = DBOpenHelper.getOpenHelper(targetContext, "upgradedb", null, null);
+		SQLiteDatabase db = helper.getWritableDatabase("");
+		assertEquals("Wrong version", DBOpenHelper.DB_VERSION, db.getVersion());
+		Cursor cursor = null;
+		try {
+			cursor = db.rawQuery("SELECT soupName, soupFormat FROM soup_names", null);
+			assertTrue("Soup should have been kept", cursor.moveToFirst());
+			assertEquals("Wrong soup name", "oldSoup", cursor.getString(0));
+			assertTrue("Soup format should not be set", cursor.isNull(1));
+			cursor.close();
+			cursor = db.rawQuery("SELECT count(*) FROM soup_compound_index_map", null);
+			assertTrue("Compound index table should have been created", cursor.moveToFirst());
+			assertEquals("Compound index table should be empty", 0, cursor.getInt(0));
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+			DBOpenHelper.deleteDatabase(targetContext, "upgradedb", null, null);
+		}
+	}
+
 	/**
 	 * Determines if the given database file exists or not in the database directory.
 	 *
@@ -30,6 +30,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.salesforce.androidsdk.smartstore.store.DBHelper;
 import com.salesforce.androidsdk.smartstore.store.IndexSpec;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec;
 import com.salesforce.androidsdk.smartstore.store.SmartSqlHelper.SmartSqlException;
@@ -156,6 +157,28 @@ public class SmartSqlTest extends SmartStoreTestCase {
 			}
 		}
 	}
+
+	/**
+	 * Test that converted smart sql is cached and that cache entries are dropped when the soup is dropped
+	 */
+	public void testConvertSmartSqlCache() {
+		DBHelper dbHelper = DBHelper.getInstance(dbOpenHelper.getWritableDatabase(getPasscode()));
+		String smartSql = "select {departments:name} from {departments} order by {departments:deptCode}";
+		assertEquals("select TABLE_2_1 from TABLE_2 order by TABLE_2_0", store.convertSmartSql(smartSql));
+		int hitCount = dbHelper.getSmartSqlCacheHitCount();
+		int missCount = dbHelper.getSmartSqlCacheMissCount();
+		assertEquals("select TABLE_2_1 from TABLE_2 order by TABLE_2_0", store.convertSmartSql(smartSql));
+		assertEquals("Wrong hit count", hitCount + 1, dbHelper.getSmartSqlCacheHitCount());
+		assertEquals("Wrong miss count", missCount, dbHelper.getSmartSqlCacheMissCount());
+
+		// Drop and re-create soup with different indexes
+		store.dropSoup(DEPARTMENTS_SOUP);
+		store.registerSoup(DEPARTMENTS_SOUP, new IndexSpec[] { // should be TABLE_3
+				new IndexSpec(NAME, Type.string),              // should be TABLE_3_0
+				new IndexSpec(DEPT_CODE, Type.string) } );     // should be TABLE_3_1
+		assertEquals("select TABLE_3_0 from TABLE_3 order by TABLE_3_1", store.convertSmartSql(smartSql));
+		assertEquals("Wrong miss count", missCount + 1, dbHelper.getSmartSqlCacheMissCount());
+	}
 	
 	/**
 	 * Test running smart query that does a select count
@@ -223,6 +246,53 @@ public class SmartSqlTest extends SmartStoreTestCase {
 		assertEquals("Wrong salary", 200000, result.getJSONArray(0).getInt(2));
 	}
 	
+	/**
+	 * Test running smart query that return a string made of digits, a null and a floating (values with their type guessed from their text)
+	 * @throws JSONException
+	 */
+	public void testSmartQueryReturningGuessedValues() throws JSONException {
+		loadData();
+		String smartSql = "select {employees:employeeId}, {employees:managerId} from {employees} where {employees:lastName} = 'Haas'";
+		JSONArray result = store.query(QuerySpec.buildSmartQuerySpec(smartSql, 1), 0);
+		assertEquals("Expected one row", 1, result.length());
+		assertEquals("Wrong employee id", 10L, result.getJSONArray(0).get(0));
+		assertTrue("Wrong manager id", result.getJSONArray(0).isNull(1));
+		assertEquals("Wrong serialized row", "[10,null]", store.queryAsStrings(QuerySpec.buildSmartQuerySpec(smartSql, 1), 0).get(0));
+
+		result = store.query(QuerySpec.buildSmartQuerySpec("select avg({employees:salary}) from {employees} where {employees:deptCode} = 'A00'", 1), 0);
+		assertEquals("Wrong average salary", 140000.0, result.getJSONArray(0).get(0));
+	}
+
+	/**
+	 * Test running smart query that return a string made of digits, a null and a floating (values mapped using their storage class)
+	 * @throws JSONException
+	 */
+	public void testSmartQueryReturningTypedValues() throws JSONException {
+		loadData();
+		String smartSql = "select {employees:employeeId}, {employees:managerId} from {employees} where {employees:lastName} = 'Haas'";
+		JSONArray result = store.query(QuerySpec.buildSmartQuerySpec(smartSql, 1, true), 0);
+		assertEquals("Expected one row", 1, result.length());
+		assertEquals("Wrong employee id", "00010", result.getJSONArray(0).get(0));
+		assertTrue("Wrong manager id", result.getJSONArray(0).isNull(1));
+		assertEquals("Wrong serialized row", "[\"00010\",null]", store.queryAsStrings(QuerySpec.buildSmartQuerySpec(smartSql, 1, true), 0).get(0));
+
+		result = store.query(QuerySpec.buildSmartQuerySpec("select avg({employees:salary}) from {employees} where {employees:deptCode} = 'A00'", 1, true), 0);
+		assertEquals("Wrong average salary", 140000.0, result.getJSONArray(0).get(0));
+	}
+
+	/**
+	 * Test that typed columns survive a change of page size and are read from json
+	 * @throws JSONException
+	 */
+	public void testSmartQuerySpecTypedColumns() throws JSONException {
+		String smartSql = "select {employees:employeeId} from {employees}";
+		assertFalse("Values should be guessed by default", QuerySpec.buildSmartQuerySpec(smartSql, 1).typedColumns);
+		assertTrue("Values should be typed", QuerySpec.buildSmartQuerySpec(smartSql, 1, true).withPageSize(5).typedColumns);
+		JSONObject querySpecJson = new JSONObject().put("queryType", "smart").put("smartSql", smartSql).put("pageSize", 1);
+		assertFalse("Values should be guessed by default", QuerySpec.fromJSON(null, querySpecJson).typedColumns);
+		assertTrue("Values should be typed", QuerySpec.fromJSON(null, querySpecJson.put("typedColumns", true)).typedColumns);
+	}
+
 	/**
 	 * Test running smart query with paging
 	 * @throws JSONException
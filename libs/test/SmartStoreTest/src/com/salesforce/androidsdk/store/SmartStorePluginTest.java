@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.salesforce.androidsdk.smartstore.phonegap.SmartStorePlugin;
+import com.salesforce.androidsdk.smartstore.store.IndexSpec;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec.Order;
+import com.salesforce.androidsdk.smartstore.store.SmartStore;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
+
+/**
+ * Tests for the native side of smart store plugin actions that can be run without a web view
+ */
+public class SmartStorePluginTest extends SmartStoreTestCase {
+
+	private static final String TEST_SOUP = "test_soup";
+
+	private RecordingCallbackContext callbackContext;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		store.registerSoup(TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.string)});
+		callbackContext = new RecordingCallbackContext();
+	}
+
+	@Override
+	protected String getPasscode() {
+		return "";
+	}
+
+	/**
+	 * Testing bulk upsert with the default transaction size and a partial last transaction
+	 * @throws JSONException
+	 */
+	public void testBulkUpsertDefaultTransactionSize() throws JSONException {
+		int count = SmartStorePlugin.DEFAULT_BULK_TRANSACTION_SIZE * 2 + 10;
+		SmartStorePlugin.bulkUpsertSoupEntries(store, buildBulkUpsertArg(count, null), callbackContext);
+
+		List<JSONObject> acks = callbackContext.getAcks();
+		assertEquals("Wrong number of acks", 3, acks.size());
+		checkAck(acks.get(0), 0, SmartStorePlugin.DEFAULT_BULK_TRANSACTION_SIZE, SmartStorePlugin.DEFAULT_BULK_TRANSACTION_SIZE, 0, false);
+		checkAck(acks.get(1), SmartStorePlugin.DEFAULT_BULK_TRANSACTION_SIZE, SmartStorePlugin.DEFAULT_BULK_TRANSACTION_SIZE, SmartStorePlugin.DEFAULT_BULK_TRANSACTION_SIZE * 2, 0, false);
+		checkAck(acks.get(2), SmartStorePlugin.DEFAULT_BULK_TRANSACTION_SIZE * 2, 10, count, 0, true);
+		assertTrue("Callback should be kept until the last ack", callbackContext.keepCallbacks.get(0));
+		assertTrue("Callback should be kept until the last ack", callbackContext.keepCallbacks.get(1));
+		assertFalse("Callback should not be kept after the last ack", callbackContext.keepCallbacks.get(2));
+		assertEquals("Wrong number of soup elements", count, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
+	/**
+	 * Testing bulk upsert with a transaction size that does not divide the number of entries
+	 * @throws JSONException
+	 */
+	public void testBulkUpsertPartialLastTransaction() throws JSONException {
+		SmartStorePlugin.bulkUpsertSoupEntries(store, buildBulkUpsertArg(7, 3), callbackContext);
+
+		List<JSONObject> acks = callbackContext.getAcks();
+		assertEquals("Wrong number of acks", 3, acks.size());
+		checkAck(acks.get(0), 0, 3, 3, 0, false);
+		checkAck(acks.get(1), 3, 3, 6, 0, false);
+		checkAck(acks.get(2), 6, 1, 7, 0, true);
+
+		// Soup entry ids acknowledged are the ones of the entries stored, in order
+		JSONArray result = store.query(QuerySpec.buildAllQuerySpec(TEST_SOUP, new String[] {"_soupEntryId"}, "key", Order.ascending, 10), 0);
+		int index = 0;
+		for (JSONObject ack : acks) {
+			JSONArray entryIds = ack.getJSONArray("entryIds");
+			for (int i = 0; i < entryIds.length(); i++) {
+				assertEquals("Wrong soup entry id", result.getJSONArray(index++).getLong(0), entryIds.getLong(i));
+			}
+		}
+	}
+
+	/**
+	 * Testing bulk upsert with an entry failing in a transaction: the other entries should still be upserted
+	 * @throws JSONException
+	 */
+	public void testBulkUpsertFailingEntry() throws JSONException {
+		JSONObject arg0 = buildBulkUpsertArg(4, 2);
+		arg0.put("externalIdPath", SmartStore.SOUP_ENTRY_ID);
+		arg0.getJSONArray("entries").getJSONObject(1).put(SmartStore.SOUP_ENTRY_ID, 999999); // update of a soup element that does not exist
+		SmartStorePlugin.bulkUpsertSoupEntries(store, arg0, callbackContext);
+
+		List<JSONObject> acks = callbackContext.getAcks();
+		assertEquals("Wrong number of acks", 2, acks.size());
+		checkAck(acks.get(0), 0, 2, 1, 1, false);
+		assertTrue("Entry id of failed entry should be null", acks.get(0).getJSONArray("entryIds").isNull(1));
+		assertFalse("Entry id of upserted entry should not be null", acks.get(0).getJSONArray("entryIds").isNull(0));
+		checkAck(acks.get(1), 2, 2, 3, 1, true);
+		assertEquals("Wrong number of soup elements", 3, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
+	/**
+	 * Testing bulk upsert with invalid transaction sizes: nothing should be upserted or acknowledged
+	 * @throws JSONException
+	 */
+	public void testBulkUpsertInvalidTransactionSize() throws JSONException {
+		for (Object transactionSize : new Object[] {0, -1, "abc"}) {
+			JSONObject arg0 = buildBulkUpsertArg(3, null);
+			arg0.put("transactionSize", transactionSize);
+			try {
+				SmartStorePlugin.bulkUpsertSoupEntries(store, arg0, callbackContext);
+				fail("Bulk upsert should have failed for transactionSize " + transactionSize);
+			}
+			catch (SmartStoreException e) {
+				assertTrue("Wrong exception", e.getMessage().contains("transactionSize"));
+			}
+			catch (JSONException e) {
+				// expected for non numeric transaction size
+			}
+		}
+		assertEquals("No ack expected", 0, callbackContext.getAcks().size());
+		assertEquals("No soup element expected", 0, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
+	/**
+	 * Testing that opening a cursor starts the timer dropping the windows of idle cursors, and that closing the last cursor stops it
+	 * @throws JSONException
+	 */
+	public void testIdleCursorsRelease() throws JSONException {
+		for (int i = 0; i < 10; i++) {
+			store.create(TEST_SOUP, new JSONObject().put("key", String.format("k%05d", i)));
+		}
+		SmartStorePlugin.runQuery(store, QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 5), 1, false, callbackContext);
+		JSONObject cursorData = callbackContext.getAcks().get(0);
+		assertEquals("Wrong number of entries", 5, cursorData.getJSONArray("currentPageOrderedEntries").length());
+		int cursorId = cursorData.getInt("cursorId");
+		assertTrue("Timer should be running", SmartStorePlugin.isReleasingIdleCursors());
+
+		// Not idle yet
+		assertEquals("No window should have been dropped", 0, SmartStorePlugin.releaseIdleCursors(System.currentTimeMillis()));
+
+		// Idle
+		assertTrue("Window should have been dropped", SmartStorePlugin.releaseIdleCursors(System.currentTimeMillis() + SmartStorePlugin.CURSOR_IDLE_TIMEOUT) >= 1);
+		assertTrue("Timer should still be running", SmartStorePlugin.isReleasingIdleCursors());
+
+		// Last cursor closed
+		SmartStorePlugin.closeCursor(store, cursorId);
+		SmartStorePlugin.releaseIdleCursors(System.currentTimeMillis());
+		assertFalse("Timer should have been stopped", SmartStorePlugin.isReleasingIdleCursors());
+	}
+
+	/**
+	 * Testing that smart query rows serialized by the plugin parse back, when some selected columns are named like the soup column
+	 * @throws JSONException
+	 */
+	public void testSmartQueryWithSoupLikeColumns() throws JSONException {
+		for (int i = 0; i < 3; i++) {
+			store.create(TEST_SOUP, new JSONObject().put("key", String.format("k%05d", i)));
+		}
+		String smartSql = "select {test_soup:_soup}, {test_soup:key} as my_soup, 'not json' as soup from {test_soup} order by {test_soup:key}";
+		tryRunQueryWithSoupLikeColumns(smartSql, 0);
+		tryRunQueryWithSoupLikeColumns(smartSql, 1);
+	}
+
+	private void tryRunQueryWithSoupLikeColumns(String smartSql, int readAheadPages) throws JSONException {
+		callbackContext = new RecordingCallbackContext();
+		SmartStorePlugin.runQuery(store, QuerySpec.buildSmartQuerySpec(smartSql, 3), readAheadPages, false, callbackContext);
+		JSONObject cursorData = callbackContext.getAcks().get(0);
+		JSONArray rows = cursorData.getJSONArray("currentPageOrderedEntries");
+		assertEquals("Wrong number of rows", 3, rows.length());
+		for (int i = 0; i < 3; i++) {
+			String key = String.format("k%05d", i);
+			JSONArray row = rows.getJSONArray(i);
+			assertEquals("Wrong number of columns", 3, row.length());
+			assertEquals("Wrong soup element", key, row.getJSONObject(0).getString("key"));
+			assertEquals("Wrong aliased column", key, row.getString(1));
+			assertEquals("Wrong column named soup", "not json", row.getString(2));
+		}
+		SmartStorePlugin.closeCursor(store, cursorData.getInt("cursorId"));
+	}
+
+	/**
+	 * Build arguments of a pgBulkUpsertSoupEntries call
+	 * @param count number of entries
+	 * @param transactionSize or null for the default
+	 * @return
+	 * @throws JSONException
+	 */
+	private JSONObject buildBulkUpsertArg(int count, Integer transactionSize) throws JSONException {
+		JSONArray entries = new JSONArray();
+		for (int i = 0; i < count; i++) {
+			entries.put(new JSONObject().put("key", String.format("k%05d", i)));
+		}
+		JSONObject arg0 = new JSONObject();
+		arg0.put("soupName", TEST_SOUP);
+		arg0.put("entries", entries);
+		arg0.put("externalIdPath", "key");
+		if (transactionSize != null) {
+			arg0.put("transactionSize", transactionSize);
+		}
+		return arg0;
+	}
+
+	/**
+	 * Check ack of a bulk upsert transaction
+	 */
+	private void checkAck(JSONObject ack, int offset, int entryIdsCount, int upsertedCount, int failedCount, boolean done) throws JSONException {
+		assertEquals("Wrong offset", offset, ack.getInt("offset"));
+		assertEquals("Wrong number of entry ids", entryIdsCount, ack.getJSONArray("entryIds").length());
+		assertEquals("Wrong upserted count", upsertedCount, ack.getInt("upsertedCount"));
+		assertEquals("Wrong failed count", failedCount, ack.getInt("failedCount"));
+		assertEquals("Wrong done", done, ack.getBoolean("done"));
+	}
+
+	/**
+	 * Callback context recording the plugin results sent instead of handing them to a web view
+	 */
+	private static class RecordingCallbackContext extends CallbackContext {
+		private final List<String> messages = new ArrayList<String>();
+		private final List<Boolean> keepCallbacks = new ArrayList<Boolean>();
+
+		RecordingCallbackContext() {
+			super("test", null);
+		}
+
+		@Override
+		public void sendPluginResult(PluginResult pluginResult) {
+			assertEquals("Wrong status", PluginResult.Status.OK.ordinal(), pluginResult.getStatus());
+			messages.add(pluginResult.getMessage());
+			keepCallbacks.add(pluginResult.getKeepCallback());
+		}
+
+		List<JSONObject> getAcks() throws JSONException {
+			List<JSONObject> acks = new ArrayList<JSONObject>();
+			for (String message : messages) {
+				acks.add(new JSONObject(message));
+			}
+			return acks;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.store;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.salesforce.androidsdk.smartstore.phonegap.SmartStorePlugin;
+import com.salesforce.androidsdk.smartstore.phonegap.StoreCursor;
+import com.salesforce.androidsdk.smartstore.store.IndexSpec;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec.Order;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
+
+/**
+ * Tests for store cursors: read-ahead window, lazy count and release of idle windows
+ */
+public class StoreCursorTest extends SmartStoreTestCase {
+
+	private static final String TEST_SOUP = "test_soup";
+	private static final int PAGE_SIZE = 5;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		store.registerSoup(TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.string)});
+	}
+
+	@Override
+	protected String getPasscode() {
+		return "";
+	}
+
+	/**
+	 * Testing that pages in the read-ahead window are served from it, and that the window is fetched again once the store changes
+	 * @throws JSONException
+	 */
+	public void testReadAheadWindow() throws JSONException {
+		createEntries(0, 25);
+		StoreCursor cursor = new StoreCursor(store, buildQuerySpec(), 2, false);
+		checkPage(cursor.getData(store), 0, 0, 5);
+
+		// Entry of second page deleted behind the store's back: second page still comes from the window
+		deleteEntryWithoutChangingStore("k06");
+		cursor.moveToPageIndex(1);
+		checkPage(cursor.getData(store), 1, 5, 5);
+
+		// Fourth page is in the next window: fetched from the store
+		cursor.moveToPageIndex(3);
+		JSONObject data = new JSONObject(cursor.getData(store));
+		assertEquals("Wrong first entry", "k15", getKeys(data).getString(0));
+
+		// Store change: window gets fetched again
+		cursor.moveToPageIndex(1);
+		createEntries(25, 26);
+		data = new JSONObject(cursor.getData(store));
+		assertEquals("Wrong keys", new JSONArray("['k05','k07','k08','k09','k10']").toString(), getKeys(data).toString());
+	}
+
+	/**
+	 * Testing that the window of a cursor is fetched again when a re-index changes the store
+	 * @throws JSONException
+	 */
+	public void testReadAheadWindowAfterReIndex() throws JSONException {
+		createEntries(0, 10);
+		StoreCursor cursor = new StoreCursor(store, buildQuerySpec(), 1, false);
+		checkPage(cursor.getData(store), 0, 0, 5);
+		long soupChangeCount = store.getSoupChangeCount();
+
+		// Re-index changes the store
+		deleteEntryWithoutChangingStore("k02");
+		store.reIndexSoup(TEST_SOUP, new String[] {"key"}, true);
+		assertTrue("Soup change count should have changed", store.getSoupChangeCount() != soupChangeCount);
+		JSONObject data = new JSONObject(cursor.getData(store));
+		assertEquals("Wrong keys", new JSONArray("['k00','k01','k03','k04','k05']").toString(), getKeys(data).toString());
+	}
+
+	/**
+	 * Testing totals of a lazily counted cursor as it moves through the entries
+	 * @throws JSONException
+	 */
+	public void testLazyCount() throws JSONException {
+		createEntries(0, 12);
+
+		// Counted upfront
+		StoreCursor countedCursor = new StoreCursor(store, buildQuerySpec(), 0, false);
+		JSONObject data = new JSONObject(countedCursor.getData(store));
+		checkTotals(data, 12, 3);
+		assertFalse("No totalEntriesExact expected", data.has("totalEntriesExact"));
+
+		// Lazily counted: lower bound until the end is reached
+		StoreCursor cursor = new StoreCursor(store, buildQuerySpec(), 0, true);
+		data = new JSONObject(cursor.getData(store));
+		checkTotals(data, 6, 2);
+		assertFalse("Total should not be exact", data.getBoolean("totalEntriesExact"));
+		cursor.moveToPageIndex(1);
+		data = new JSONObject(cursor.getData(store));
+		checkTotals(data, 11, 3);
+		assertFalse("Total should not be exact", data.getBoolean("totalEntriesExact"));
+		cursor.moveToPageIndex(2);
+		data = new JSONObject(cursor.getData(store));
+		checkTotals(data, 12, 3);
+		assertTrue("Total should be exact", data.getBoolean("totalEntriesExact"));
+		assertEquals("Wrong number of entries", 2, getKeys(data).length());
+
+		// Store change: totals get updated when the last page is fetched again
+		createEntries(12, 13);
+		data = new JSONObject(cursor.getData(store));
+		checkTotals(data, 13, 3);
+		assertTrue("Total should be exact", data.getBoolean("totalEntriesExact"));
+		assertEquals("Wrong number of entries", 3, getKeys(data).length());
+	}
+
+	/**
+	 * Testing that the window of an idle cursor is dropped and fetched again the next time the cursor is read
+	 * @throws JSONException
+	 */
+	public void testReleaseIfIdle() throws JSONException {
+		createEntries(0, 10);
+		StoreCursor cursor = new StoreCursor(store, buildQuerySpec(), 1, false);
+		checkPage(cursor.getData(store), 0, 0, 5);
+		long now = System.currentTimeMillis();
+		assertFalse("Window should not be dropped before timeout", cursor.releaseIfIdle(now, 60000));
+		assertTrue("Window should have been dropped", cursor.releaseIfIdle(now + 60000, 60000));
+		assertFalse("No window left to drop", cursor.releaseIfIdle(now + 60000, 60000));
+
+		// Window fetched again
+		deleteEntryWithoutChangingStore("k01");
+		JSONObject data = new JSONObject(cursor.getData(store));
+		assertEquals("Wrong keys", new JSONArray("['k00','k02','k03','k04','k05']").toString(), getKeys(data).toString());
+
+		// Cursors without window have nothing to drop
+		StoreCursor unwindowedCursor = new StoreCursor(store, buildQuerySpec(), 0, false);
+		unwindowedCursor.getData(store);
+		assertFalse("Nothing to drop", unwindowedCursor.releaseIfIdle(now + 60000, 60000));
+	}
+
+	/**
+	 * @return query spec for all entries ordered by key
+	 */
+	private QuerySpec buildQuerySpec() {
+		return QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, PAGE_SIZE);
+	}
+
+	/**
+	 * Create entries with keys k{from} to k{to-1}
+	 */
+	private void createEntries(int from, int to) throws JSONException {
+		for (int i = from; i < to; i++) {
+			store.create(TEST_SOUP, new JSONObject().put("key", String.format("k%02d", i)));
+		}
+	}
+
+	/**
+	 * Delete entry directly from the soup table: the soup change count of the store is not incremented
+	 * @param key
+	 */
+	private void deleteEntryWithoutChangingStore(String key) {
+		String soupTableName = getSoupTableName(TEST_SOUP);
+		final SQLiteDatabase db = dbOpenHelper.getWritableDatabase(getPasscode());
+		db.execSQL("DELETE FROM " + soupTableName + " WHERE " + soupTableName + "_0 = ?", new Object[] {key});
+	}
+
+	/**
+	 * Check page index and keys of cursor data
+	 */
+	private void checkPage(String serializedData, int pageIndex, int firstKey, int count) throws JSONException {
+		JSONObject data = new JSONObject(serializedData);
+		assertEquals("Wrong page index", pageIndex, data.getInt("currentPageIndex"));
+		JSONArray keys = getKeys(data);
+		assertEquals("Wrong number of entries", count, keys.length());
+		for (int i = 0; i < count; i++) {
+			assertEquals("Wrong key", String.format("k%02d", firstKey + i), keys.getString(i));
+		}
+	}
+
+	/**
+	 * Check totals of cursor data
+	 */
+	private void checkTotals(JSONObject data, int totalEntries, int totalPages) throws JSONException {
+		assertEquals("Wrong total entries", totalEntries, data.getInt("totalEntries"));
+		assertEquals("Wrong total pages", totalPages, data.getInt("totalPages"));
+	}
+
+	/**
+	 * @return keys of the entries of cursor data
+	 */
+	private JSONArray getKeys(JSONObject data) throws JSONException {
+		JSONArray entries = data.getJSONArray("currentPageOrderedEntries");
+		JSONArray keys = new JSONArray();
+		for (int i = 0; i < entries.length(); i++) {
+			keys.put(entries.getJSONObject(i).getString("key"));
+		}
+		return keys;
+	}
+}
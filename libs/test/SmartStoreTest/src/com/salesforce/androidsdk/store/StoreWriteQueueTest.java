@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.salesforce.androidsdk.smartstore.phonegap.StoreWriteQueue;
+import com.salesforce.androidsdk.smartstore.store.IndexSpec;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec.Order;
+import com.salesforce.androidsdk.smartstore.store.SmartStore;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
+import com.salesforce.androidsdk.util.test.JSONTestHelper;
+
+/**
+ * Tests for the write queue used by the smart store plugin
+ */
+public class StoreWriteQueueTest extends SmartStoreTestCase {
+
+	private static final String TEST_SOUP = "test_soup";
+	private static final int TIMEOUT_SECONDS = 10;
+
+	private StoreWriteQueue writeQueue;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		store.registerSoup(TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.string)});
+		writeQueue = new StoreWriteQueue("test");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		writeQueue.shutdown();
+		super.tearDown();
+	}
+
+	@Override
+	protected String getPasscode() {
+		return "";
+	}
+
+	/**
+	 * Testing that writes run one at a time in the order they were queued, on a daemon thread
+	 * @throws InterruptedException
+	 */
+	public void testWritesRunInOrder() throws InterruptedException {
+		final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Boolean> daemons = Collections.synchronizedList(new ArrayList<Boolean>());
+		final CountDownLatch done = new CountDownLatch(50);
+		for (int i = 0; i < 50; i++) {
+			final int index = i;
+			writeQueue.queue(new TestAction() {
+				@Override
+				public void run() {
+					ran.add(index);
+					daemons.add(Thread.currentThread().isDaemon());
+					done.countDown();
+				}
+			});
+		}
+		assertTrue("Writes did not run", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		for (int i = 0; i < 50; i++) {
+			assertEquals("Writes ran out of order", i, ran.get(i).intValue());
+			assertTrue("Writes should run on a daemon thread", daemons.get(i));
+		}
+	}
+
+	/**
+	 * Testing that reads are not held up by queued writes
+	 * @throws Exception
+	 */
+	public void testReadsRunWhileWriteQueued() throws Exception {
+		store.create(TEST_SOUP, new JSONObject("{'key':'k0'}"));
+		final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+		final CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+		final CountDownLatch secondWriteDone = new CountDownLatch(1);
+		writeQueue.queue(new TestAction() {
+			@Override
+			public void run() {
+				firstWriteStarted.countDown();
+				try {
+					releaseFirstWrite.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// done waiting
+				}
+			}
+		});
+		writeQueue.queue(new TestAction() {
+			@Override
+			public void run() {
+				store.clearSoup(TEST_SOUP);
+				secondWriteDone.countDown();
+			}
+		});
+		assertTrue("First write did not start", firstWriteStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		// Read while the second write is queued
+		assertEquals("Wrong count", 1, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+		assertEquals("Second write should not have run yet", 1, secondWriteDone.getCount());
+
+		// Let writes run
+		releaseFirstWrite.countDown();
+		assertTrue("Second write did not run", secondWriteDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertEquals("Wrong count", 0, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
+	/**
+	 * Testing that batched upserts are run again one by one with their original entries when one of them fails
+	 * (entries created by the rolled back batch should not be updated using soup entry ids that do not exist)
+	 * @throws Exception
+	 */
+	public void testBatchedUpsertsRetriedAfterRollback() throws Exception {
+		writeQueue.setBatchUpserts(true);
+
+		// Holding the queue so that the upserts get batched
+		final CountDownLatch releaseQueue = new CountDownLatch(1);
+		writeQueue.queue(new TestAction() {
+			@Override
+			public void run() {
+				try {
+					releaseQueue.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// done waiting
+				}
+			}
+		});
+		TestUpsert first = new TestUpsert(TEST_SOUP, new JSONArray("[{'key':'k1'},{'key':'k2'}]"));
+		TestUpsert failing = new TestUpsert("missing_soup", new JSONArray("[{'key':'k3'}]"));
+		TestUpsert last = new TestUpsert(TEST_SOUP, new JSONArray("[{'key':'k4'}]"));
+		writeQueue.queue(first);
+		writeQueue.queue(failing);
+		writeQueue.queue(last);
+		releaseQueue.countDown();
+
+		assertTrue("First upsert should have succeeded", first.await());
+		assertFalse("Upsert to missing soup should have failed", failing.await());
+		assertTrue("Last upsert should have succeeded", last.await());
+		JSONArray result = store.query(QuerySpec.buildAllQuerySpec(TEST_SOUP, new String[] {"key"}, "key", Order.ascending, 10), 0);
+		JSONTestHelper.assertSameJSON("Wrong soup elements", new JSONArray("[['k1'],['k2'],['k4']]"), result);
+		for (int i = 0; i < first.results.length(); i++) {
+			assertEquals("Wrong soup entry id", idOf(first.results.getJSONObject(i)), idOf(store.retrieve(TEST_SOUP, idOf(first.results.getJSONObject(i))).getJSONObject(0)));
+		}
+	}
+
+	/**
+	 * Testing that writes queued after shutdown run on a new thread
+	 * @throws InterruptedException
+	 */
+	public void testQueueAfterShutdown() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(2);
+		StoreWriteQueue.Action action = new TestAction() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		};
+		writeQueue.queue(action);
+		waitForQueue();
+		writeQueue.shutdown();
+		writeQueue.queue(action);
+		assertTrue("Writes did not run", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Testing that writes still waiting to run when the queue is shut down fail instead of running (the store they were queued for is gone)
+	 * while the write running completes
+	 * @throws Exception
+	 */
+	public void testShutdownDropsPendingWrites() throws Exception {
+		final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+		final CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+		final CountDownLatch firstWriteDone = new CountDownLatch(1);
+		writeQueue.queue(new TestAction() {
+			@Override
+			public void run() {
+				firstWriteStarted.countDown();
+				try {
+					releaseFirstWrite.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// done waiting
+				}
+				firstWriteDone.countDown();
+			}
+		});
+		final List<String> outcomes = Collections.synchronizedList(new ArrayList<String>());
+		writeQueue.queue(new TestAction() {
+			@Override
+			public void run() {
+				outcomes.add("ran");
+			}
+
+			@Override
+			public void onError(Exception e) {
+				outcomes.add("failed");
+			}
+		});
+		TestUpsert upsert = new TestUpsert(TEST_SOUP, new JSONArray("[{'key':'k1'}]"));
+		writeQueue.queue(upsert);
+		assertTrue("First write did not start", firstWriteStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		// Shutdown while the first write runs
+		writeQueue.shutdown();
+		assertEquals("Pending write should have failed", Collections.singletonList("failed"), new ArrayList<String>(outcomes));
+		assertFalse("Pending upsert should have failed", upsert.await());
+		releaseFirstWrite.countDown();
+		assertTrue("First write did not complete", firstWriteDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		// Nothing else ran
+		waitForQueue();
+		assertEquals("Pending write should not have run", Collections.singletonList("failed"), new ArrayList<String>(outcomes));
+		assertEquals("Pending upsert should not have run", 0, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 10)));
+	}
+
+	/**
+	 * Wait for the writes queued so far to have run (or been dropped)
+	 * @throws InterruptedException
+	 */
+	private void waitForQueue() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		writeQueue.queue(new TestAction() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue("Queue did not run", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Write action failing the test if it is dropped
+	 */
+	private static abstract class TestAction implements StoreWriteQueue.Action {
+		@Override
+		public void onError(Exception e) {
+			fail("Write should not have been dropped: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Upsert of soup entries with _soupEntryId as external id path recording its outcome
+	 */
+	private class TestUpsert extends StoreWriteQueue.SoupEntriesUpsert {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private JSONArray results;
+
+		TestUpsert(String soupName, JSONArray entries) {
+			super(soupName, entries, SmartStore.SOUP_ENTRY_ID);
+		}
+
+		@Override
+		public SmartStore getSmartStore() {
+			return store;
+		}
+
+		@Override
+		public void onSuccess(JSONArray results) {
+			this.results = results;
+			done.countDown();
+		}
+
+		@Override
+		public void onError(Exception e) {
+			done.countDown();
+		}
+
+		/**
+		 * @return true if the upsert succeeded
+		 * @throws InterruptedException
+		 */
+		boolean await() throws InterruptedException {
+			assertTrue("Upsert did not run", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+			return results != null;
+		}
+	}
+}
@@ -60,6 +60,9 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -74,6 +77,7 @@ public class SyncManagerTest extends ManagerTestCase {
 	// Local
 	private static final String LOCAL_ID_PREFIX = "local_";
 	private static final String ACCOUNTS_SOUP = "accounts";
+	private static final String OTHER_ACCOUNTS_SOUP = "other_accounts";
 	
 	// Misc
 	private static final int COUNT_TEST_ACCOUNTS = 10;
@@ -89,8 +93,10 @@ public class SyncManagerTest extends ManagerTestCase {
     
     @Override 
     public void tearDown() throws Exception {
+    	TestSyncDownTarget.setFetchListener(null);
     	deleteTestAccountsOnServer(idToNames);
     	dropAccountsSoup();
+    	smartStore.dropSoup(OTHER_ACCOUNTS_SOUP);
     	deleteSyncs();
     	super.tearDown();
     }
@@ -181,6 +187,209 @@ public class SyncManagerTest extends ManagerTestCase {
         assertTrue("Wrong time stamp", syncManager.getSyncStatus(syncId).getMaxTimeStamp() > maxTimeStamp);
     }
 
+    /**
+     * Sync down the test accounts in several pages (the next page being fetched while the previous one is saved), check smart store and status during sync
+     */
+    public void testSyncDownInPages() throws Exception {
+        trySyncDownInPages(MergeMode.OVERWRITE, false);
+
+        // Check that db was correctly populated
+        checkDb(idToNames);
+    }
+
+    /**
+     * Sync down the test accounts in several pages with responses having their total size after their records,
+     * check smart store and status during sync
+     */
+    public void testSyncDownInPagesWithTotalSizeAfterRecords() throws Exception {
+        trySyncDownInPages(MergeMode.OVERWRITE, true);
+
+        // Check that db was correctly populated
+        checkDb(idToNames);
+    }
+
+    /**
+     * Sync down the test accounts in several pages, make some local change, sync down again in several pages with merge mode LEAVE_IF_CHANGED
+     * check that local changes were not overwritten
+     */
+    public void testSyncDownInPagesWithoutOverwrite() throws Exception {
+        // first sync down
+        trySyncDownInPages(MergeMode.OVERWRITE, false);
+
+        // Make some local change
+        Map<String, String> idToNamesLocallyUpdated = makeSomeLocalChanges();
+
+        // sync down again with MergeMode.LEAVE_IF_CHANGED
+        trySyncDownInPages(MergeMode.LEAVE_IF_CHANGED, true);
+
+        // Check db
+        Map<String, String> idToNamesExpected = new HashMap<String, String>(idToNames);
+        idToNamesExpected.putAll(idToNamesLocallyUpdated);
+        checkDb(idToNamesExpected);
+        checkDbStateFlags(idToNamesLocallyUpdated.keySet(), false, true, false);
+    }
+
+    /**
+     * Sync down into two soups at the same time: the second sync should complete while the first one is still fetching
+     */
+    public void testSyncDownConcurrentlyInDifferentSoups() throws Exception {
+        createAccountsSoup(OTHER_ACCOUNTS_SOUP);
+        BlockingFetchListener listener = new BlockingFetchListener();
+        TestSyncDownTarget.setFetchListener(listener);
+
+        // First sync held while fetching
+        SyncUpdateCallbackQueue firstQueue = new SyncUpdateCallbackQueue();
+        SyncState firstSync = createTestSyncDown(new TestSyncDownTarget(buildRecords(10), 5, false), ACCOUNTS_SOUP);
+        syncManager.runSync(firstSync, firstQueue);
+        assertTrue("First fetch did not start", listener.firstFetchStarted.await(30, TimeUnit.SECONDS));
+
+        // Second sync runs to completion in the meantime
+        SyncUpdateCallbackQueue secondQueue = new SyncUpdateCallbackQueue();
+        syncManager.runSync(createTestSyncDown(new TestSyncDownTarget(buildRecords(10), 5, false), OTHER_ACCOUNTS_SOUP), secondQueue);
+        assertEquals("Wrong status for second sync", SyncState.Status.DONE, waitForEndOfSync(secondQueue).getStatus());
+        assertEquals("First sync should still be running", SyncState.Status.RUNNING, syncManager.getSyncStatus(firstSync.getId()).getStatus());
+
+        // Releasing first sync
+        listener.releaseFirstFetch.countDown();
+        assertEquals("Wrong status for first sync", SyncState.Status.DONE, waitForEndOfSync(firstQueue).getStatus());
+        assertEquals("Wrong number of records", 10, smartStore.countQuery(QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, null, null, 10)));
+        assertEquals("Wrong number of records", 10, smartStore.countQuery(QuerySpec.buildAllQuerySpec(OTHER_ACCOUNTS_SOUP, null, null, 10)));
+    }
+
+    /**
+     * Sync down twice into the same soup: the second sync should only start fetching once the first one is done
+     */
+    public void testSyncDownOneAtATimeInSameSoup() throws Exception {
+        BlockingFetchListener listener = new BlockingFetchListener();
+        TestSyncDownTarget.setFetchListener(listener);
+
+        // First sync held while fetching
+        SyncUpdateCallbackQueue firstQueue = new SyncUpdateCallbackQueue();
+        SyncState firstSync = createTestSyncDown(new TestSyncDownTarget(buildRecords(10), 5, false), ACCOUNTS_SOUP);
+        listener.firstSyncId = firstSync.getId();
+        syncManager.runSync(firstSync, firstQueue);
+        assertTrue("First fetch did not start", listener.firstFetchStarted.await(30, TimeUnit.SECONDS));
+
+        // Second sync waits
+        SyncUpdateCallbackQueue secondQueue = new SyncUpdateCallbackQueue();
+        SyncState secondSync = createTestSyncDown(new TestSyncDownTarget(buildRecords(20), 5, false), ACCOUNTS_SOUP);
+        syncManager.runSync(secondSync, secondQueue);
+        Thread.sleep(500);
+        assertEquals("Second sync should not have started fetching", 1, listener.fetchesStarted.get());
+
+        // Releasing first sync: both syncs complete, in order
+        listener.releaseFirstFetch.countDown();
+        assertEquals("Wrong status for first sync", SyncState.Status.DONE, waitForEndOfSync(firstQueue).getStatus());
+        assertEquals("Wrong status for second sync", SyncState.Status.DONE, waitForEndOfSync(secondQueue).getStatus());
+        assertEquals("Wrong number of fetches", 2, listener.fetchesStarted.get());
+        assertEquals("First sync should have been done when second sync started fetching", SyncState.Status.DONE, listener.firstSyncStatusAtLaterFetch);
+        assertEquals("Wrong number of records", 20, smartStore.countQuery(QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, null, null, 10)));
+    }
+
+    /**
+     * Sync down with the writing thread held: the fetching thread should stop once the prefetch queue is full
+     */
+    public void testSyncDownPrefetchIsBounded() throws Exception {
+        final int count = SyncManager.PREFETCH_QUEUE_SIZE * 3;
+        final AtomicInteger handedOver = new AtomicInteger();
+        TestSyncDownTarget.setFetchListener(new TestSyncDownTarget.FetchListener() {
+            @Override
+            public void onFetchStarted() {
+            }
+
+            @Override
+            public void onRecordHandedOver() {
+                handedOver.incrementAndGet();
+            }
+        });
+
+        // Holding the writing thread when it reports the total size (i.e. before it saves any record)
+        final CountDownLatch writerHeld = new CountDownLatch(1);
+        final CountDownLatch releaseWriter = new CountDownLatch(1);
+        final SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue();
+        SyncState sync = createTestSyncDown(new TestSyncDownTarget(buildRecords(count), SyncManager.PREFETCH_QUEUE_SIZE / 2, false), ACCOUNTS_SOUP);
+        syncManager.runSync(sync, new SyncManager.SyncUpdateCallback() {
+            private boolean held;
+
+            @Override
+            public void onUpdate(SyncState sync) {
+                if (!held && sync.getStatus() == SyncState.Status.RUNNING && sync.getTotalSize() >= 0) {
+                    held = true;
+                    writerHeld.countDown();
+                    try {
+                        releaseWriter.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // done waiting
+                    }
+                }
+                queue.onUpdate(sync);
+            }
+        });
+        assertTrue("Writing thread was not held", writerHeld.await(30, TimeUnit.SECONDS));
+
+        // Fetching thread should be held by the full queue (the record being written is off the queue)
+        int handedOverWhileHeld = waitForStableCount(handedOver);
+        assertTrue("Too many records fetched ahead: " + handedOverWhileHeld, handedOverWhileHeld <= SyncManager.PREFETCH_QUEUE_SIZE + 1);
+
+        // Releasing writing thread
+        releaseWriter.countDown();
+        assertEquals("Wrong status", SyncState.Status.DONE, waitForEndOfSync(queue).getStatus());
+        assertEquals("Wrong number of records handed over", count, handedOver.get());
+        assertEquals("Wrong number of records", count, smartStore.countQuery(QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, null, null, 10)));
+    }
+
+    /**
+     * Sync down failing to fetch its second page: the error should reach the writing thread and fail the sync
+     * after the records of the first page are saved
+     */
+    public void testSyncDownWithFetchError() throws Exception {
+        final int pageSize = 5;
+        SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue();
+        SyncState sync = createTestSyncDown(new TestSyncDownTarget(buildRecords(pageSize * 3), pageSize, false, 1), ACCOUNTS_SOUP);
+        syncManager.runSync(sync, queue);
+        assertEquals("Wrong status", SyncState.Status.FAILED, waitForEndOfSync(queue).getStatus());
+        assertEquals("Records of the first page should have been saved", pageSize, smartStore.countQuery(QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, null, null, 10)));
+        assertEquals("Time stamp should not have been updated", -1, syncManager.getSyncStatus(sync.getId()).getMaxTimeStamp());
+    }
+
+    /**
+     * Sync down failing in the middle of its second page: only the records of the first page should be saved
+     * (the records of a page are saved in a single transaction), running the sync again should get all the records
+     */
+    public void testSyncDownResumedAfterFailure() throws Exception {
+        final int pageSize = SyncManager.STREAMING_BATCH_SIZE * 2;
+        final int count = pageSize * 3;
+        final AtomicInteger handedOver = new AtomicInteger();
+        TestSyncDownTarget.setFetchListener(new TestSyncDownTarget.FetchListener() {
+            @Override
+            public void onFetchStarted() {
+            }
+
+            @Override
+            public void onRecordHandedOver() {
+                if (handedOver.incrementAndGet() == pageSize + SyncManager.STREAMING_BATCH_SIZE + 1) {
+                    throw new RuntimeException("Failing in the middle of the second page");
+                }
+            }
+        });
+        SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue();
+        SyncState sync = createTestSyncDown(new TestSyncDownTarget(buildRecords(count), pageSize, false), ACCOUNTS_SOUP);
+        syncManager.runSync(sync, queue);
+        assertEquals("Wrong status", SyncState.Status.FAILED, waitForEndOfSync(queue).getStatus());
+        assertEquals("Only the records of the first page should have been saved", pageSize, smartStore.countQuery(QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, null, null, 10)));
+        assertEquals("Time stamp should not have been updated", -1, syncManager.getSyncStatus(sync.getId()).getMaxTimeStamp());
+
+        // Running the sync again
+        TestSyncDownTarget.setFetchListener(null);
+        queue = new SyncUpdateCallbackQueue();
+        syncManager.runSync(syncManager.getSyncStatus(sync.getId()), queue);
+        assertEquals("Wrong status", SyncState.Status.DONE, waitForEndOfSync(queue).getStatus());
+        assertEquals("Wrong number of records", count, smartStore.countQuery(QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, null, null, 10)));
+        assertEquals("Wrong number of distinct ids", count, smartStore.countQuery(QuerySpec.buildSmartQuerySpec(
+                "SELECT DISTINCT {" + ACCOUNTS_SOUP + ":" + Constants.ID + "} FROM {" + ACCOUNTS_SOUP + "}", 10)));
+        assertTrue("Time stamp should have been updated", syncManager.getSyncStatus(sync.getId()).getMaxTimeStamp() > 0);
+    }
+
     /**
 	 * Sync down the test accounts, modify a few, sync up, check smartstore and server afterwards
 	 */
@@ -541,6 +750,200 @@ public class SyncManagerTest extends ManagerTestCase {
         assertEquals("Wrong number of records created by target", 0, idsDeletedByTarget.size());
     }
 
+    /**
+     * Sync down the test accounts, modify a few, sync up in batches, check smartstore and server afterwards
+     */
+    public void testBatchSyncUpWithLocallyUpdatedRecords() throws Exception {
+        // First sync down
+        trySyncDown(MergeMode.OVERWRITE);
+
+        // Update a few entries locally
+        Map<String, String> idToNamesLocallyUpdated = makeSomeLocalChanges();
+
+        // Sync up in batches of 2
+        trySyncUp(new SyncUpTarget(2), 3, MergeMode.OVERWRITE);
+
+        // Check that db doesn't show entries as locally modified anymore
+        checkDbStateFlags(idToNamesLocallyUpdated.keySet(), false, false, false);
+
+        // Check server
+        checkServer(idToNamesLocallyUpdated);
+    }
+
+    /**
+     * Sync down the test accounts, modify a few, sync up in batches with merge mode LEAVE_IF_CHANGED, check smartstore and server afterwards
+     */
+    public void testBatchSyncUpWithLocallyUpdatedRecordsWithoutOverwrite() throws Exception {
+        // First sync down
+        trySyncDown(MergeMode.LEAVE_IF_CHANGED);
+
+        // Update a few entries locally
+        Map<String, String> idToNamesLocallyUpdated = makeSomeLocalChanges();
+
+        // Update entries on server
+        Thread.sleep(1000); // time stamp precision is in seconds
+        final Map<String, String> idToNamesRemotelyUpdated = new HashMap<String, String>();
+        final Set<String> ids = idToNamesLocallyUpdated.keySet();
+        for (final String id : ids) {
+            idToNamesRemotelyUpdated.put(id, idToNamesLocallyUpdated.get(id) + "_updated_again");
+        }
+        updateAccountsOnServer(idToNamesRemotelyUpdated);
+
+        // Sync up in batches of 2
+        trySyncUp(new SyncUpTarget(2), 3, MergeMode.LEAVE_IF_CHANGED);
+
+        // Check that db shows entries as locally modified
+        checkDbStateFlags(ids, false, true, false);
+
+        // Check server
+        checkServer(idToNamesRemotelyUpdated);
+    }
+
+    /**
+     * Sync down the test accounts, modify a few, delete one of them on the server, sync up in batches with merge mode LEAVE_IF_CHANGED,
+     * check that the sync completes, that the other records are synced up and that the one deleted on the server stays dirty
+     */
+    public void testBatchSyncUpWithRecordDeletedOnServerWithoutOverwrite() throws Exception {
+        // First sync down
+        trySyncDown(MergeMode.LEAVE_IF_CHANGED);
+
+        // Update a few entries locally
+        Map<String, String> idToNamesLocallyUpdated = makeSomeLocalChanges();
+
+        // Delete one of them on server
+        String idDeletedOnServer = idToNamesLocallyUpdated.keySet().iterator().next();
+        Map<String, String> idToNamesDeletedOnServer = new HashMap<String, String>();
+        idToNamesDeletedOnServer.put(idDeletedOnServer, idToNames.get(idDeletedOnServer));
+        deleteTestAccountsOnServer(idToNamesDeletedOnServer);
+        idToNames.remove(idDeletedOnServer);
+        idToNamesLocallyUpdated.remove(idDeletedOnServer);
+
+        // Sync up in batches of 2
+        trySyncUp(new SyncUpTarget(2), 3, MergeMode.LEAVE_IF_CHANGED);
+
+        // Check that db only shows the entry deleted on server as locally modified
+        checkDbStateFlags(Arrays.asList(idDeletedOnServer), false, true, false);
+        checkDbStateFlags(idToNamesLocallyUpdated.keySet(), false, false, false);
+
+        // Check server
+        checkServer(idToNamesLocallyUpdated);
+    }
+
+    /**
+     * Create accounts locally, sync up in batches, check smartstore and server afterwards
+     */
+    public void testBatchSyncUpWithLocallyCreatedRecords() throws Exception {
+        // Create a few entries locally
+        String[] names = new String[] { createAccountName(), createAccountName(), createAccountName() };
+        createAccountsLocally(names);
+
+        // Sync up in batches of 2
+        trySyncUp(new SyncUpTarget(2), 3, MergeMode.OVERWRITE);
+
+        // Check that db doesn't show entries as locally created anymore and that they use sfdc id
+        Map<String, String> idToNamesCreated = getIdsForNames(names);
+        checkDbStateFlags(idToNamesCreated.keySet(), false, false, false);
+
+        // Check server
+        checkServer(idToNamesCreated);
+
+        // Adding to idToNames so that they get deleted in tearDown
+        idToNames.putAll(idToNamesCreated);
+    }
+
+    /**
+     * Create accounts locally, sync up in batches using TestSyncUpTarget with failing batch requests:
+     * sync should fail and records should stay locally created
+     */
+    public void testBatchSyncUpWithFailedBatch() throws Exception {
+        tryFailingBatchSyncUpWithLocallyCreatedRecords(TestSyncUpTarget.SyncBehavior.SOFT_FAIL_ON_SYNC);
+    }
+
+    /**
+     * Create accounts locally, sync up in batches using TestSyncUpTarget with creates returning no id:
+     * sync should fail and records should stay locally created
+     */
+    public void testBatchSyncUpWithCreatesReturningNoId() throws Exception {
+        tryFailingBatchSyncUpWithLocallyCreatedRecords(TestSyncUpTarget.SyncBehavior.NO_ID_ON_BATCH_CREATE);
+    }
+
+    /**
+     * Create accounts locally, sync up in batches using TestSyncUpTarget with creates returning ids
+     */
+    public void testCustomBatchSyncUpWithLocallyCreatedRecords() throws Exception {
+        String[] names = new String[] { createAccountName(), createAccountName(), createAccountName() };
+        createAccountsLocally(names);
+        TestSyncUpTarget.ActionCollector collector = new TestSyncUpTarget.ActionCollector();
+        TestSyncUpTarget.setActionCollector(collector);
+        trySyncUp(new TestSyncUpTarget(TestSyncUpTarget.SyncBehavior.NO_FAIL, 2), 3, MergeMode.OVERWRITE);
+
+        // Check that db doesn't show entries as locally created anymore and that they use the ids returned
+        Map<String, String> idToNamesCreated = getIdsForNames(names);
+        checkDbStateFlags(idToNamesCreated.keySet(), false, false, false);
+        assertEquals("Wrong number of records created by target", 3, collector.createdRecordIds.size());
+        for (String idCreatedByTarget : collector.createdRecordIds) {
+            assertTrue("Unexpected id:" + idCreatedByTarget, idToNamesCreated.containsKey(idCreatedByTarget));
+        }
+    }
+
+    /**
+     * Create accounts locally, sync up (in one batch) with failing target, check sync failed and smartstore
+     * @param syncBehavior
+     */
+    private void tryFailingBatchSyncUpWithLocallyCreatedRecords(TestSyncUpTarget.SyncBehavior syncBehavior) throws Exception {
+        String[] names = new String[] { createAccountName(), createAccountName(), createAccountName() };
+        createAccountsLocally(names);
+        trySyncUp(new TestSyncUpTarget(syncBehavior, 5), 3, MergeMode.OVERWRITE, true /* expect failure */);
+
+        // Check that db still shows entries as locally created
+        Map<String, String> idToNamesCreated = getIdsForNames(names);
+        assertEquals("Wrong number of records", 3, idToNamesCreated.size());
+        checkDbStateFlags(idToNamesCreated.keySet(), true, false, false);
+    }
+
+    /**
+     * Sync down the test accounts, delete a few, sync up in batches, check smartstore and server afterwards
+     */
+    public void testBatchSyncUpWithLocallyDeletedRecords() throws Exception {
+        // First sync down
+        trySyncDown(MergeMode.OVERWRITE);
+
+        // Delete a few entries locally
+        String[] allIds = idToNames.keySet().toArray(new String[0]);
+        String[] idsLocallyDeleted = new String[] { allIds[0], allIds[1], allIds[2] };
+        deleteAccountsLocally(idsLocallyDeleted);
+
+        // Sync up in batches of 2
+        trySyncUp(new SyncUpTarget(2), 3, MergeMode.OVERWRITE);
+
+        // Check that db doesn't contain those entries anymore
+        checkDbDeleted(idsLocallyDeleted);
+
+        // Check server
+        checkServerDeleted(idsLocallyDeleted);
+    }
+
+    /**
+     * Sync up targets with a batch size out of range should be rejected
+     */
+    public void testInvalidBatchSize() throws Exception {
+        for (int batchSize : new int[] { 0, -1, SyncUpTarget.MAX_BATCH_SIZE + 1 }) {
+            try {
+                new SyncUpTarget(batchSize);
+                fail("Batch size " + batchSize + " should have been rejected");
+            } catch (SyncManager.SmartSyncException e) {
+                assertTrue("Wrong exception", e.getMessage().contains("batchSize"));
+            }
+            try {
+                SyncUpTarget.fromJSON(new JSONObject().put(SyncUpTarget.BATCH_SIZE, batchSize));
+                fail("Batch size " + batchSize + " should have been rejected");
+            } catch (SyncManager.SmartSyncException e) {
+                assertTrue("Wrong exception", e.getMessage().contains("batchSize"));
+            }
+        }
+        assertEquals("Wrong batch size", SyncUpTarget.MAX_BATCH_SIZE, new SyncUpTarget(SyncUpTarget.MAX_BATCH_SIZE).getBatchSize());
+    }
+
 
     /**
      * Test addFilterForReSync with various queries
@@ -584,6 +987,143 @@ public class SyncManagerTest extends ManagerTestCase {
         return syncId;
 	}
 
+    /**
+     * Sync down helper using a TestSyncDownTarget serving the test accounts three at a time
+     * @param mergeMode
+     * @param totalSizeAfterRecords true to have the total size after the records in the first response
+     * @throws JSONException
+     */
+    private void trySyncDownInPages(MergeMode mergeMode, boolean totalSizeAfterRecords) throws JSONException {
+        // Records served by target
+        final int pageSize = 3;
+        Date lastModifiedDate = new Date(System.currentTimeMillis() / 1000 * 1000); // time stamp precision is in seconds
+        JSONArray records = new JSONArray();
+        for (Entry<String, String> idToName : idToNames.entrySet()) {
+            JSONObject record = new JSONObject();
+            record.put(Constants.ID, idToName.getKey());
+            record.put(Constants.NAME, idToName.getValue());
+            record.put(Constants.LAST_MODIFIED_DATE, Constants.TIMESTAMP_FORMAT.format(lastModifiedDate));
+            records.put(record);
+        }
+
+        // Create sync
+        SyncDownTarget target = new TestSyncDownTarget(records, pageSize, totalSizeAfterRecords);
+        SyncOptions options = SyncOptions.optionsForSyncDown(mergeMode);
+        SyncState sync = SyncState.createSyncDown(smartStore, target, options, ACCOUNTS_SOUP);
+        long syncId = sync.getId();
+        checkStatus(sync, SyncState.Type.syncDown, syncId, target, options, SyncState.Status.NEW, 0, -1);
+
+        // Run sync
+        SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue();
+        syncManager.runSync(sync, queue);
+
+        // Check status updates: one per page
+        int totalSize = idToNames.size();
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, totalSize);
+        for (int countSaved = pageSize; countSaved < totalSize; countSaved += pageSize) {
+            checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, countSaved * 100 / totalSize, totalSize);
+        }
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.DONE, 100, totalSize);
+
+        // Check sync time stamp
+        assertEquals("Wrong time stamp", lastModifiedDate.getTime(), syncManager.getSyncStatus(syncId).getMaxTimeStamp());
+    }
+
+    /**
+     * @param target
+     * @param soupName
+     * @return new sync down (overwriting local changes)
+     * @throws JSONException
+     */
+    private SyncState createTestSyncDown(SyncDownTarget target, String soupName) throws JSONException {
+        return SyncState.createSyncDown(smartStore, target, SyncOptions.optionsForSyncDown(MergeMode.OVERWRITE), soupName);
+    }
+
+    /**
+     * @param count
+     * @return account records (that only exist locally)
+     * @throws JSONException
+     */
+    private JSONArray buildRecords(int count) throws JSONException {
+        String lastModifiedDate = Constants.TIMESTAMP_FORMAT.format(new Date());
+        JSONArray records = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject record = new JSONObject();
+            record.put(Constants.ID, String.format(Locale.US, "001T%014d", i));
+            record.put(Constants.NAME, createAccountName());
+            record.put(Constants.LAST_MODIFIED_DATE, lastModifiedDate);
+            records.put(record);
+        }
+        return records;
+    }
+
+    /**
+     * @param queue
+     * @return first sync update that is not RUNNING
+     */
+    private SyncState waitForEndOfSync(SyncUpdateCallbackQueue queue) {
+        while (true) {
+            SyncState sync = queue.getNextSyncUpdate();
+            if (sync.getStatus() != SyncState.Status.RUNNING) {
+                return sync;
+            }
+        }
+    }
+
+    /**
+     * @param counter
+     * @return value of counter once it stopped changing
+     * @throws InterruptedException
+     */
+    private int waitForStableCount(AtomicInteger counter) throws InterruptedException {
+        int previous = -1;
+        for (int i = 0; i < 50; i++) {
+            Thread.sleep(200);
+            int current = counter.get();
+            if (current == previous) {
+                return current;
+            }
+            previous = current;
+        }
+        fail("Count did not settle");
+        return previous;
+    }
+
+    /**
+     * Fetch listener holding the first fetch until released
+     */
+    private class BlockingFetchListener implements TestSyncDownTarget.FetchListener {
+        final CountDownLatch firstFetchStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirstFetch = new CountDownLatch(1);
+        final AtomicInteger fetchesStarted = new AtomicInteger();
+        volatile long firstSyncId = -1;
+        volatile SyncState.Status firstSyncStatusAtLaterFetch;
+
+        @Override
+        public void onFetchStarted() {
+            if (fetchesStarted.incrementAndGet() == 1) {
+                firstFetchStarted.countDown();
+                try {
+                    releaseFirstFetch.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // done waiting
+                }
+            }
+            else if (firstSyncId != -1) {
+                try {
+                    firstSyncStatusAtLaterFetch = syncManager.getSyncStatus(firstSyncId).getStatus();
+                } catch (JSONException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        @Override
+        public void onRecordHandedOver() {
+        }
+    }
+
     /**
      * Sync up helper
      * @param numberChanges
@@ -631,7 +1171,8 @@ public class SyncManagerTest extends ManagerTestCase {
             checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.FAILED, 0, numberChanges);
         }
         else {
-            for (int i = 1; i < numberChanges; i++) {
+            // One update per batch of records (one update per record when not batching)
+            for (int i = target.getBatchSize(); i < numberChanges; i += target.getBatchSize()) {
                 checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.RUNNING, i * 100 / numberChanges, numberChanges);
             }
             checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.DONE, 100, numberChanges);
@@ -722,12 +1263,20 @@ public class SyncManagerTest extends ManagerTestCase {
 	 * Create soup for accounts
 	 */
 	private void createAccountsSoup() {
+		createAccountsSoup(ACCOUNTS_SOUP);
+	}
+
+	/**
+	 * Create soup for accounts with the given name
+	 * @param soupName
+	 */
+	private void createAccountsSoup(String soupName) {
     	final IndexSpec[] indexSpecs = {
     			new IndexSpec(Constants.ID, SmartStore.Type.string),
     			new IndexSpec(Constants.NAME, SmartStore.Type.string),
     			new IndexSpec(SyncManager.LOCAL, SmartStore.Type.string)
     	};    	
-    	smartStore.registerSoup(ACCOUNTS_SOUP, indexSpecs);
+    	smartStore.registerSoup(soupName, indexSpecs);
 	}
 	
 	/**
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2015, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartsync.manager;
+
+import com.salesforce.androidsdk.rest.RestResponse;
+import com.salesforce.androidsdk.smartsync.util.Constants;
+import com.salesforce.androidsdk.smartsync.util.SoqlSyncDownTarget;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+
+/**
+ * Custom sync down target for tests
+ * Serves canned query responses (split in pages) that are parsed as they would be coming off the wire
+ */
+public class TestSyncDownTarget extends SoqlSyncDownTarget {
+
+    public static final String RECORDS = "records";
+    public static final String PAGE_SIZE = "pageSize";
+    public static final String TOTAL_SIZE_LAST = "totalSizeLast";
+    public static final String FAIL_AFTER_PAGES = "failAfterPages";
+
+    private static FetchListener fetchListener;
+
+    private final JSONArray records;
+    private final int pageSize;
+    private final boolean totalSizeLast;
+    private final int failAfterPages;
+    private int pageIndex;
+
+    public TestSyncDownTarget(JSONObject target) throws JSONException {
+        super(target);
+        this.queryType = QueryType.custom;
+        this.records = target.getJSONArray(RECORDS);
+        this.pageSize = target.getInt(PAGE_SIZE);
+        this.totalSizeLast = target.getBoolean(TOTAL_SIZE_LAST);
+        this.failAfterPages = target.optInt(FAIL_AFTER_PAGES, 0);
+    }
+
+    /**
+     * @param records records returned by the "server"
+     * @param pageSize number of records per response
+     * @param totalSizeLast true to put totalSize after the records in the first response
+     */
+    public TestSyncDownTarget(JSONArray records, int pageSize, boolean totalSizeLast) {
+        this(records, pageSize, totalSizeLast, 0);
+    }
+
+    /**
+     * @param records records returned by the "server"
+     * @param pageSize number of records per response
+     * @param totalSizeLast true to put totalSize after the records in the first response
+     * @param failAfterPages number of responses served before failing with an IOException (0 to never fail)
+     */
+    public TestSyncDownTarget(JSONArray records, int pageSize, boolean totalSizeLast, int failAfterPages) {
+        super("SELECT Id, Name, LastModifiedDate FROM Account");
+        this.queryType = QueryType.custom;
+        this.records = records;
+        this.pageSize = pageSize;
+        this.totalSizeLast = totalSizeLast;
+        this.failAfterPages = failAfterPages;
+    }
+
+    /**
+     * @param listener listener to notify of fetches by any TestSyncDownTarget (null to stop notifying)
+     */
+    public static void setFetchListener(FetchListener listener) {
+        fetchListener = listener;
+    }
+
+    @Override
+    public JSONObject asJSON() throws JSONException {
+        JSONObject target = super.asJSON();
+        target.put(RECORDS, records);
+        target.put(PAGE_SIZE, pageSize);
+        target.put(TOTAL_SIZE_LAST, totalSizeLast);
+        target.put(FAIL_AFTER_PAGES, failAfterPages);
+        return target;
+    }
+
+    @Override
+    public void startFetch(SyncManager syncManager, long maxTimeStamp, RecordHandler recordHandler) throws IOException, JSONException {
+        FetchListener listener = fetchListener;
+        if (listener != null) {
+            listener.onFetchStarted();
+        }
+        pageIndex = 0;
+        readResponse(getResponse(pageIndex), wrap(recordHandler, listener), true);
+    }
+
+    @Override
+    public boolean continueFetch(SyncManager syncManager, RecordHandler recordHandler) throws IOException, JSONException {
+        if ((pageIndex + 1) * pageSize >= records.length()) {
+            return false;
+        }
+        if (failAfterPages > 0 && pageIndex + 1 >= failAfterPages) {
+            throw new IOException("Failing fetch of page " + (pageIndex + 1));
+        }
+        pageIndex++;
+        readResponse(getResponse(pageIndex), wrap(recordHandler, fetchListener), false);
+        return true;
+    }
+
+    /**
+     * @return record handler that notifies listener after every record handed over to recordHandler
+     */
+    private RecordHandler wrap(final RecordHandler recordHandler, final FetchListener listener) {
+        if (listener == null) {
+            return recordHandler;
+        }
+        return new RecordHandler() {
+            @Override
+            public void onRecord(JSONObject record) throws JSONException {
+                recordHandler.onRecord(record);
+                listener.onRecordHandedOver();
+            }
+        };
+    }
+
+    /**
+     * Build query response for a page (fields are written out by hand to control their order)
+     * @param index
+     * @return
+     * @throws JSONException
+     * @throws IOException
+     */
+    private RestResponse getResponse(int index) throws JSONException, IOException {
+        JSONArray pageRecords = new JSONArray();
+        for (int i = index * pageSize; i < Math.min((index + 1) * pageSize, records.length()); i++) {
+            pageRecords.put(records.getJSONObject(i));
+        }
+        boolean done = (index + 1) * pageSize >= records.length();
+        String totalSizeField = JSONObject.quote(Constants.TOTAL_SIZE) + ":" + records.length();
+        String recordsField = JSONObject.quote(Constants.RECORDS) + ":" + pageRecords.toString();
+        String nextRecordsUrlField = JSONObject.quote(Constants.NEXT_RECORDS_URL) + ":" + (done ? "null" : JSONObject.quote("/page/" + (index + 1)));
+        String json = "{" + (totalSizeLast
+                ? recordsField + "," + nextRecordsUrlField + "," + totalSizeField
+                : totalSizeField + "," + nextRecordsUrlField + "," + recordsField) + ",\"done\":" + done + "}";
+
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+        response.setEntity(new StringEntity(json, "UTF-8"));
+        return new RestResponse(response);
+    }
+
+    /**
+     * Listener of the fetches of TestSyncDownTarget's (called on the fetching thread)
+     */
+    public interface FetchListener {
+        void onFetchStarted();
+        void onRecordHandedOver();
+    }
+}
@@ -26,8 +26,11 @@
  */
 package com.salesforce.androidsdk.smartsync.manager;
 
+import com.salesforce.androidsdk.rest.RestRequest;
+import com.salesforce.androidsdk.smartsync.util.Constants;
 import com.salesforce.androidsdk.smartsync.util.SyncUpTarget;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -53,6 +56,7 @@ public class TestSyncUpTarget extends SyncUpTarget {
     public enum SyncBehavior {
         SOFT_FAIL_ON_SYNC, // doesn't update server but doesn't throw exception, so sync should not end up in failed state
         HARD_FAIL_ON_SYNC, // doesn't update server and throw exception, so sync should end up in failed state
+        NO_ID_ON_BATCH_CREATE, // (batches only) creates succeed but return no id, so sync should end up in failed state
         NO_FAIL;
     }
 
@@ -66,14 +70,57 @@ public class TestSyncUpTarget extends SyncUpTarget {
         this.syncBehavior = syncBehavior;
     }
 
+    /**
+     * @param syncBehavior
+     * @param batchSize number of records per batch (sent with sendBatchToServer)
+     */
+    public TestSyncUpTarget(SyncBehavior syncBehavior, int batchSize) {
+        super(batchSize);
+        this.syncBehavior = syncBehavior;
+    }
+
     @Override
     public JSONObject asJSON() throws JSONException {
         JSONObject target = new JSONObject();
         target.put(ANDROID_IMPL, getClass().getName());
         target.put(SYNC_BEHAVIOR, syncBehavior.name());
+        target.put(BATCH_SIZE, getBatchSize());
         return target;
     }
 
+    @Override
+    public JSONArray sendBatchToServer(SyncManager syncManager, List<RestRequest> requests) throws JSONException, IOException {
+        switch (syncBehavior) {
+            case SOFT_FAIL_ON_SYNC:
+                return null;
+            case HARD_FAIL_ON_SYNC:
+                throw new RuntimeException("batch hard fail");
+            default:
+                JSONArray results = new JSONArray();
+                for (RestRequest request : requests) {
+                    String objectId = request.getPath().substring(request.getPath().lastIndexOf('/') + 1);
+                    JSONObject result = new JSONObject();
+                    switch (request.getMethod()) {
+                        case POST:
+                            result.put(BATCH_STATUS_CODE, 201);
+                            result.put(BATCH_RESULT, syncBehavior == SyncBehavior.NO_ID_ON_BATCH_CREATE
+                                    ? new JSONObject()
+                                    : new JSONObject().put(Constants.LID, createOnServer(syncManager, null, null)));
+                            break;
+                        case DELETE:
+                            deleteOnServer(syncManager, null, objectId);
+                            result.put(BATCH_STATUS_CODE, 204);
+                            break;
+                        default:
+                            updateOnServer(syncManager, null, objectId, null);
+                            result.put(BATCH_STATUS_CODE, 204);
+                    }
+                    results.put(result);
+                }
+                return results;
+        }
+    }
+
     @Override
     public String createOnServer(SyncManager syncManager, String objectType, Map<String, Object> fields) throws JSONException, IOException {
         switch (syncBehavior) {
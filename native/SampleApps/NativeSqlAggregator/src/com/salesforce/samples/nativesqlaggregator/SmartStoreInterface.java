@@ -224,7 +224,7 @@ public class SmartStoreInterface {
 		JSONArray result = null;
 		QuerySpec querySpec = QuerySpec.buildSmartQuerySpec(smartSql, 10);
 		int count = smartStore.countQuery(querySpec);
-		querySpec = QuerySpec.buildSmartQuerySpec(smartSql, count);
+		querySpec = QuerySpec.buildSmartQuerySpec(smartSql, count, true);
 		try {
 			result = smartStore.query(querySpec, 0);	
 		} catch (JSONException e) {